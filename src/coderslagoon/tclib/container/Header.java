@@ -21,6 +21,7 @@ package coderslagoon.tclib.container;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.List;
 import java.util.TimeZone;
 
 import coderslagoon.baselib.util.BinUtils;
@@ -28,10 +29,16 @@ import coderslagoon.baselib.util.BytePtr;
 import coderslagoon.tclib.crypto.AES256;
 import coderslagoon.tclib.crypto.BlockCipher;
 import coderslagoon.tclib.crypto.CRC32;
+import coderslagoon.tclib.crypto.Cascade;
 import coderslagoon.tclib.crypto.Hash;
 import coderslagoon.tclib.crypto.PKCS5;
 import coderslagoon.tclib.crypto.RIPEMD160;
 import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.Registry;
+import coderslagoon.tclib.crypto.SHA512;
+import coderslagoon.tclib.crypto.Serpent;
+import coderslagoon.tclib.crypto.Twofish;
+import coderslagoon.tclib.crypto.Whirlpool;
 import coderslagoon.tclib.crypto.XTS;
 import coderslagoon.tclib.util.Erasable;
 import coderslagoon.tclib.util.Key;
@@ -211,38 +218,405 @@ public class Header implements Erasable {
      * @param ofs Where the header data starts in the buffer.
      * @throws TCLibException If any error occurred.
      */
-    @SuppressWarnings("unchecked")
     public Header(Key key, byte[] buf, int ofs) throws TCLibException {
-        for (Class<Hash.Function> tryHashFunction : new Class[] {
-                RIPEMD160.class
-        }) {
-            for (Class<BlockCipher> tryBlockCipher : new Class[] {
-                   AES256.class
-            }) {
-                try {
-                    DecodeResult dres = decode(
-                            tryBlockCipher.newInstance(),
-                            tryBlockCipher.newInstance(),
-                            tryHashFunction.newInstance(),
-                            key.data(), buf, ofs);
-
-                    if (dres == DecodeResult.SUCCESS) {
-                        this.hashFunction = tryHashFunction;
-                        this.blockCipher  = tryBlockCipher;
-                        return;
+        final byte[] passw = key.data();
+        for (Class<? extends Hash.Function> tryHashFunction : hashFunctions()) {
+            final byte[] kbuf = deriveKey(tryHashFunction, passw, buf, ofs, true, false);
+            try {
+                if (tryDecode(tryHashFunction, kbuf, buf, ofs)) {
+                    return;
+                }
+            }
+            finally {
+                Arrays.fill(kbuf, (byte)0);
+            }
+        }
+        throw new NoMatchingAlgorithmException();
+    }
+
+    /**
+     * To parse out a header with key material derived by the caller, e.g. for
+     * many passwords at once in a password search.
+     * @param hashFunction The hash function the key got derived with.
+     * @param kbuf The key material, derivedKeySize() bytes.
+     * @param buf Buffer containing the header data. Only gets changed, meaning
+     * decrypted, if decoding succeeded.
+     * @param ofs Where the header data starts in the buffer.
+     * @throws TCLibException If any error occurred.
+     */
+    public Header(
+            Class<? extends Hash.Function> hashFunction,
+            byte[] kbuf, byte[] buf, int ofs) throws TCLibException {
+        if (!tryDecode(hashFunction, kbuf, buf, ofs)) {
+            throw new NoMatchingAlgorithmException();
+        }
+    }
+
+    /** For decoding in multiple steps, see deriveKey() and tryDecode(). */
+    Header() {
+    }
+
+    /**
+     * @return All of the hash functions a header might have been created with,
+     * in the order they should be tried out. These are the registered ones or,
+     * if the registry has not been set up, all of the built-in ones.
+     */
+    @SuppressWarnings("unchecked")
+    public static Class<? extends Hash.Function>[] hashFunctions() {
+        final List<Class<? extends Hash.Function>> result =
+                Registry._hashFunctions.classes();
+        if (result.isEmpty()) {
+            return new Class[] {
+                RIPEMD160.class,
+                SHA512   .class,
+                Whirlpool.class
+            };
+        }
+        return result.toArray(new Class[result.size()]);
+    }
+
+    /**
+     * @return All of the block ciphers (and cascades) a header might have been
+     * created with, in TrueCrypt's order.
+     */
+    @SuppressWarnings("unchecked")
+    public static Class<? extends BlockCipher>[] blockCiphers() {
+        return new Class[] {
+            AES256.class,
+            Serpent.class,
+            Twofish.class,
+            Cascade.AESTwofish.class,
+            Cascade.AESTwofishSerpent.class,
+            Cascade.SerpentAES.class,
+            Cascade.SerpentTwofishAES.class,
+            Cascade.TwofishSerpent.class
+        };
+    }
+
+    /**
+     * @return Size of the key material derived from a password, long enough
+     * for any of the block ciphers.
+     * @throws TCLibException If any error occurred.
+     */
+    public static int derivedKeySize() throws TCLibException {
+        return derivedKeySize(blockCiphers());
+    }
+
+    /**
+     * @param bccs The block ciphers to consider.
+     * @return Size of the key material derived from a password, long enough
+     * for any of the given block ciphers. Since the cascades need three times
+     * the key material the single ciphers do, restricting the block ciphers
+     * can save a lot of key derivation work.
+     * @throws TCLibException If any error occurred.
+     */
+    public static int derivedKeySize(Class<? extends BlockCipher>[] bccs) throws TCLibException {
+        try {
+            int result = 0;
+            for (Class<? extends BlockCipher> bcc : bccs) {
+                BlockCipher bc = bcc.newInstance();
+                result = Math.max(result, bc.keySize() << 1);
+                bc.erase();
+            }
+            return result;
+        }
+        catch (InstantiationException ie) {
+            throw new TCLibException(ie);
+        }
+        catch (IllegalAccessException iae) {
+            throw new TCLibException(iae);
+        }
+    }
+
+    /**
+     * Derives the header key for a certain hash function. The key is long
+     * enough to be used for any of the block ciphers, so derivation has to
+     * happen only once per hash function.
+     * @param hashFunction The hash function to use.
+     * @param passw The password.
+     * @param buf Buffer containing the header data, for the salt.
+     * @param ofs Where the header data starts in the buffer.
+     * @param parallel True to allow parallel key derivation.
+     * @param interruptible True to give up if the current thread gets
+     * interrupted, which then causes an exception.
+     * @return The key material. Must be cleared after use.
+     * @throws TCLibException If any error occurred.
+     */
+    static byte[] deriveKey(
+            Class<? extends Hash.Function> hashFunction,
+            byte[] passw, byte[] buf, int ofs,
+            boolean parallel, boolean interruptible) throws TCLibException {
+        Hash.Function hashf = null;
+        PKCS5.PBKDF2 kdf = null;
+        try {
+            final int keyLen = derivedKeySize();
+
+            hashf = hashFunction.newInstance();
+
+            final byte[] salt = new BytePtr(buf, ofs + OFS_SALT, SALT_SIZE).extract();
+
+            final KeyCache kc = _keyCache;
+            if (null != kc) {
+                byte[] result = kc.get(hashf.name(), passw, salt);
+                if (null != result) {
+                    if (result.length == keyLen) {
+                        return result;
                     }
+                    Arrays.fill(result, (byte)0);
                 }
-                catch (InstantiationException ie) {
-                    throw new TCLibException(ie);
+            }
+
+            kdf = new PKCS5.PBKDF2(hashf);
+            kdf.setParallel(parallel);
+            kdf.setInterruptible(interruptible);
+
+            byte[] result = kdf.deriveKey(
+                    passw,
+                    salt,
+                    hashf.recommededHMACIterations(),
+                    keyLen);
+            if (null == result) {
+                throw new TCLibException(new InterruptedException());
+            }
+
+            if (null != kc) {
+                kc.put(hashf.name(), passw, salt, result);
+            }
+            return result;
+        }
+        catch (InstantiationException ie) {
+            throw new TCLibException(ie);
+        }
+        catch (IllegalAccessException iae) {
+            throw new TCLibException(iae);
+        }
+        finally {
+            if (null != kdf) kdf.erase();
+            else if (null != hashf) hashf.erase();
+        }
+    }
+
+    static volatile KeyCache _keyCache;
+
+    /**
+     * Sets the cache to consult before deriving header keys. By default there
+     * is none, meaning each decoding goes through the full key derivation.
+     * @param keyCache The cache. Null to not use any caching.
+     * @return The previously set cache, if any.
+     */
+    public synchronized static KeyCache keyCache(KeyCache keyCache) {
+        KeyCache result = _keyCache;
+        _keyCache = keyCache;
+        return result;
+    }
+
+    /**
+     * Sets the cache, but only if a certain one is still the current one, e.g.
+     * to undo a keyCache() call without disturbing anyone who set up their own
+     * cache in the meantime.
+     * @param expected The cache which is expected to be set right now.
+     * @param keyCache The cache. Null to not use any caching.
+     * @return True if the cache got set.
+     */
+    public synchronized static boolean keyCache(KeyCache expected, KeyCache keyCache) {
+        if (expected != _keyCache) {
+            return false;
+        }
+        _keyCache = keyCache;
+        return true;
+    }
+
+    /**
+     * Tries to decode a header with all of the block ciphers.
+     * @param hashFunction The hash function the key got derived with.
+     * @param kbuf The derived key material, see deriveKey().
+     * @param buf Buffer containing the header data. Only gets changed, meaning
+     * decrypted, if decoding succeeded.
+     * @param ofs Where the header data starts in the buffer.
+     * @return True if decoding succeeded.
+     * @throws TCLibException If any error occurred.
+     */
+    boolean tryDecode(
+            Class<? extends Hash.Function> hashFunction,
+            byte[] kbuf, byte[] buf, int ofs) throws TCLibException {
+        return tryDecode(hashFunction, kbuf, buf, ofs, blockCiphers());
+    }
+
+    /**
+     * Tries to decode a header with certain block ciphers. Those needing more
+     * key material than available get skipped.
+     * @see #tryDecode(Class, byte[], byte[], int)
+     * @param bccs The block ciphers to try.
+     */
+    boolean tryDecode(
+            Class<? extends Hash.Function> hashFunction,
+            byte[] kbuf, byte[] buf, int ofs,
+            Class<? extends BlockCipher>[] bccs) throws TCLibException {
+        final byte[] blk = new byte[BLOCK_SIZE];
+        try {
+            for (Class<? extends BlockCipher> tryBlockCipher : bccs) {
+                final BlockCipher bcipher1 = tryBlockCipher.newInstance();
+                final BlockCipher bcipher2 = tryBlockCipher.newInstance();
+                if (kbuf.length < bcipher1.keySize() << 1) {
+                    continue;
                 }
-                catch (IllegalAccessException iae) {
-                    throw new TCLibException(iae);
+
+                // work on a copy, so the next attempt sees the original data...
+                System.arraycopy(buf, ofs, blk, 0, BLOCK_SIZE);
+
+                DecodeResult dres = decode(bcipher1, bcipher2, kbuf, blk);
+
+                if (dres == DecodeResult.SUCCESS) {
+                    System.arraycopy(blk, 0, buf, ofs, BLOCK_SIZE);
+                    parse(buf, ofs);
+                    this.hashFunction = hashFunction;
+                    this.blockCipher  = tryBlockCipher;
+                    return true;
                 }
             }
+            return false;
+        }
+        catch (InstantiationException ie) {
+            throw new TCLibException(ie);
+        }
+        catch (IllegalAccessException iae) {
+            throw new TCLibException(iae);
+        }
+        finally {
+            Arrays.fill(blk, (byte)0);
         }
-        throw new NoMatchingAlgorithmException();
     }
-    
+
+    /**
+     * Checks key material against a header, made for the common case of a
+     * mismatch, e.g. in password searches. At first only the cipher block
+     * holding the magic value gets decrypted, the full decoding with all of
+     * its checks happens only if that one matches. Apart from what the cipher
+     * implementations might do internally nothing gets allocated for a
+     * mismatch. Instances are not thread-safe.
+     */
+    public static class Verifier implements Erasable {
+        // (XTS works with 128bit blocks only)
+        final static int MAGIC_BLOCK_SIZE = 16;
+
+        final byte[]                         buf;
+        final int                            ofs;
+        final Class<? extends BlockCipher>[] bccs;
+        final BlockCipher[]                  ciphers1;
+        final BlockCipher[]                  ciphers2;
+        final BlockCipher[][]                stages1;
+        final BlockCipher[][]                stages2;
+        final byte[]                         tweak = new byte[MAGIC_BLOCK_SIZE];
+        final byte[]                         blk   = new byte[MAGIC_BLOCK_SIZE];
+
+        /**
+         * Default constructor.
+         * @param buf Buffer containing the header data. Only gets changed,
+         * meaning decrypted, if a verification succeeds.
+         * @param ofs Where the header data starts in the buffer.
+         * @throws TCLibException If any error occurred.
+         */
+        public Verifier(byte[] buf, int ofs) throws TCLibException {
+            this(buf, ofs, blockCiphers());
+        }
+
+        /**
+         * Constructor for verifying with certain block ciphers only.
+         * @param buf Buffer containing the header data. Only gets changed,
+         * meaning decrypted, if a verification succeeds.
+         * @param ofs Where the header data starts in the buffer.
+         * @param bccs The block ciphers to try. The key material to verify
+         * must be derivedKeySize(bccs) bytes.
+         * @throws TCLibException If any error occurred.
+         */
+        public Verifier(byte[] buf, int ofs,
+                        Class<? extends BlockCipher>[] bccs) throws TCLibException {
+            this.buf = buf;
+            this.ofs = ofs;
+            this.bccs = bccs.clone();
+            this.ciphers1 = new BlockCipher[bccs.length];
+            this.ciphers2 = new BlockCipher[bccs.length];
+            this.stages1 = new BlockCipher[bccs.length][];
+            this.stages2 = new BlockCipher[bccs.length][];
+            try {
+                for (int i = 0; i < bccs.length; i++) {
+                    this.ciphers1[i] = bccs[i].newInstance();
+                    this.ciphers2[i] = bccs[i].newInstance();
+                    this.stages1[i] = Cascade.stages(this.ciphers1[i]);
+                    this.stages2[i] = Cascade.stages(this.ciphers2[i]);
+                }
+            }
+            catch (InstantiationException ie) {
+                throw new TCLibException(ie);
+            }
+            catch (IllegalAccessException iae) {
+                throw new TCLibException(iae);
+            }
+        }
+
+        /**
+         * Verifies key material.
+         * @param hashFunction The hash function the key got derived with.
+         * @param kbuf The key material, derivedKeySize() bytes.
+         * @return The decoded header or null if the key does not match.
+         * @throws TCLibException If any error occurred.
+         */
+        public Header verify(
+                Class<? extends Hash.Function> hashFunction,
+                byte[] kbuf) throws TCLibException {
+            final byte[] tweak = this.tweak;
+            final byte[] blk   = this.blk;
+            final int mofs = this.ofs + OFS_MAGIC;
+            boolean magic = false;
+            for (int i = 0; i < this.ciphers1.length && !magic; i++) {
+                final BlockCipher bcipher1 = this.ciphers1[i];
+                final BlockCipher bcipher2 = this.ciphers2[i];
+                final BlockCipher[] stages1 = this.stages1[i];
+                final BlockCipher[] stages2 = this.stages2[i];
+
+                bcipher2.initialize(BlockCipher.Mode.ENCRYPT, kbuf, bcipher2.keySize());
+                bcipher1.initialize(BlockCipher.Mode.DECRYPT, kbuf, 0);
+
+                // the magic is at the very start of data unit zero, so the
+                // tweak is just the encrypted all zero block; cascades got
+                // there through one XTS pass per stage, the last one has to
+                // be undone first ...
+                System.arraycopy(this.buf, mofs, blk, 0, MAGIC_BLOCK_SIZE);
+                for (int s = stages1.length - 1; s >= 0; s--) {
+                    Arrays.fill(tweak, (byte)0);
+                    stages2[s].processBlock(tweak, 0, tweak, 0);
+                    for (int j = 0; j < MAGIC_BLOCK_SIZE; j++) {
+                        blk[j] ^= tweak[j];
+                    }
+                    stages1[s].processBlock(blk, 0, blk, 0);
+                    for (int j = 0; j < MAGIC_BLOCK_SIZE; j++) {
+                        blk[j] ^= tweak[j];
+                    }
+                }
+
+                magic = true;
+                for (int j = 0; j < MAGIC.length; j++) {
+                    magic &= MAGIC[j] == blk[j];
+                }
+            }
+            if (!magic) {
+                return null;
+            }
+            // could still be a false positive, so only a full decode counts
+            final Header result = new Header();
+            return result.tryDecode(hashFunction, kbuf, this.buf, this.ofs, this.bccs) ?
+                   result : null;
+        }
+
+        @Override
+        public void erase() {
+            for (BlockCipher bcipher : this.ciphers1) bcipher.erase();
+            for (BlockCipher bcipher : this.ciphers2) bcipher.erase();
+            Arrays.fill(this.tweak, (byte)0);
+            Arrays.fill(this.blk  , (byte)0);
+        }
+    }
+
     /**
      * Exception to detect if the header decoding failed due to a password
      * mismatch, meaning no algorithm combination yielded proper decryption. 
@@ -263,92 +637,82 @@ public class Header implements Erasable {
         BAD_CRC32_2,
     }
 
-    DecodeResult decode(
+    /**
+     * Decrypts and verifies a header block.
+     * @param bcipher1 The first block cipher instance, gets erased after use.
+     * @param bcipher2 The second block cipher instance, gets erased after use.
+     * @param kbuf The derived key material.
+     * @param blk The header block, decrypted in place.
+     * @return The result. Only if successful the block is fit for parsing.
+     * @throws TCLibException If any error occurred.
+     */
+    static DecodeResult decode(
             BlockCipher bcipher1, BlockCipher bcipher2,
-            Hash.Function hashf,
-            byte[] passw, byte[] buf, int ofs) throws TCLibException {
-        PKCS5.PBKDF2 kdf = null;
+            byte[] kbuf, byte[] blk) throws TCLibException {
         XTS xts = null;
         CRC32 crc = null;
 
-        byte[] kbuf = null;
-
         try {
-            kdf = new PKCS5.PBKDF2(hashf);
-
-            this.salt = new BytePtr(buf, ofs + OFS_SALT, SALT_SIZE);
-
-            kbuf = kdf.deriveKey(
-                    passw,
-                    this.salt.extract(),
-                    hashf.recommededHMACIterations(),
-                    bcipher1.keySize() +
-                    bcipher2.keySize());
-
             bcipher1.initialize(BlockCipher.Mode.DECRYPT, kbuf, 0);
             bcipher2.initialize(BlockCipher.Mode.ENCRYPT, kbuf, bcipher2.keySize());
 
             xts = new XTS(bcipher1, bcipher2);
 
-            xts.process(buf, ofs + SALT_SIZE, BLOCK_SIZE - SALT_SIZE, 0L, 0);
+            xts.process(blk, SALT_SIZE, BLOCK_SIZE - SALT_SIZE, 0L, 0);
 
-            //BinUtils.hexDump(buf, System.out, 48, 4);
+            //BinUtils.hexDump(blk, System.out, 48, 4);
 
-            if (!BinUtils.arraysEquals(buf, ofs + OFS_MAGIC, MAGIC, 0, MAGIC.length)) {
+            if (!BinUtils.arraysEquals(blk, OFS_MAGIC, MAGIC, 0, MAGIC.length)) {
                 return DecodeResult.NO_MAGIC;
             }
 
-            this.version        = new Version(buf, ofs + OFS_VERSION);
-            this.minimumVersion = new Version(buf, ofs + OFS_MIN_VERSION);
-
             crc = new CRC32();
-            crc.update(buf, ofs + OFS_KEY_MATERIAL, KEY_MATERIAL_SIZE);
-            if (crc.get() != BinUtils.readInt32BE(buf, ofs + OFS_CRC32_1)) {
+            crc.update(blk, OFS_KEY_MATERIAL, KEY_MATERIAL_SIZE);
+            if (crc.get() != BinUtils.readInt32BE(blk, OFS_CRC32_1)) {
                 return DecodeResult.BAD_CRC32_1;
             }
 
-            this.reserved           = new BytePtr(buf, ofs + OFS_RESERVED, RESERVED_SIZE);
-            this.sizeofHiddenVolume = BinUtils.readInt64BE(buf, ofs + OFS_HIDDEN_VOLUME_SIZE);
-            this.sizeofVolume       = BinUtils.readInt64BE(buf, ofs + OFS_VOLUME_SIZE);
-
-            this.dataAreaOffset = BinUtils.readInt64BE(buf, ofs + OFS_DATA_AREA_OFFSET);
-            if (OFS_DATA_AREA != this.dataAreaOffset) {
+            if (OFS_DATA_AREA != BinUtils.readInt64BE(blk, OFS_DATA_AREA_OFFSET)) {
                 return DecodeResult.UNEXPECTED_DATA_AREA_OFFSET;
             }
-            this.dataAreaSize = BinUtils.readInt64BE(buf, ofs + OFS_DATA_AREA_SIZE);
 
-            this.flags = BinUtils.readInt32BE(buf, ofs + OFS_FLAGS);
-            if (0 != (FLAG_SYSTEM_ENCRYPTION & this.flags)) {
+            if (0 != (FLAG_SYSTEM_ENCRYPTION & BinUtils.readInt32BE(blk, OFS_FLAGS))) {
                 return DecodeResult.SYSTEM_ENCRYPTION_NOT_SUPPORTED;
             }
 
-            this.reserved2 = new BytePtr(buf, ofs + OFS_RESERVED2, RESERVED2_SIZE);
-
             crc.reset();
-            crc.update(buf, ofs + SALT_SIZE, OFS_CRC32_2 - SALT_SIZE);
-            if (crc.get() != BinUtils.readInt32BE(buf, ofs + OFS_CRC32_2)) {
+            crc.update(blk, SALT_SIZE, OFS_CRC32_2 - SALT_SIZE);
+            if (crc.get() != BinUtils.readInt32BE(blk, OFS_CRC32_2)) {
                 return DecodeResult.BAD_CRC32_2;
             }
 
-            this.keyMaterial = new BytePtr(buf, ofs + OFS_KEY_MATERIAL, KEY_MATERIAL_SIZE);
-
-            this.reserved3          = new BytePtr(buf, ofs + OFS_RESERVED3, 65024);
-            this.hiddenVolumeHeader = new BytePtr(buf, ofs + OFS_HIDDEN_VOLUME_HEADER, 65536);
-
             return DecodeResult.SUCCESS;
         }
         finally {
-            if (null != kbuf) Arrays.fill(kbuf, (byte)0);
-
             bcipher1.erase();
             bcipher2.erase();
-            hashf   .erase();
-            if (null != kdf) kdf.erase();
             if (null != xts) xts.erase();
             if (null != crc) crc.erase();
         }
     }
 
+    // populates the fields from a successfully decoded header...
+    private void parse(byte[] buf, int ofs) {
+        this.salt               = new BytePtr(buf, ofs + OFS_SALT, SALT_SIZE);
+        this.version            = new Version(buf, ofs + OFS_VERSION);
+        this.minimumVersion     = new Version(buf, ofs + OFS_MIN_VERSION);
+        this.reserved           = new BytePtr(buf, ofs + OFS_RESERVED, RESERVED_SIZE);
+        this.sizeofHiddenVolume = BinUtils.readInt64BE(buf, ofs + OFS_HIDDEN_VOLUME_SIZE);
+        this.sizeofVolume       = BinUtils.readInt64BE(buf, ofs + OFS_VOLUME_SIZE);
+        this.dataAreaOffset     = BinUtils.readInt64BE(buf, ofs + OFS_DATA_AREA_OFFSET);
+        this.dataAreaSize       = BinUtils.readInt64BE(buf, ofs + OFS_DATA_AREA_SIZE);
+        this.flags              = BinUtils.readInt32BE(buf, ofs + OFS_FLAGS);
+        this.reserved2          = new BytePtr(buf, ofs + OFS_RESERVED2, RESERVED2_SIZE);
+        this.keyMaterial        = new BytePtr(buf, ofs + OFS_KEY_MATERIAL, KEY_MATERIAL_SIZE);
+        this.reserved3          = new BytePtr(buf, ofs + OFS_RESERVED3, 65024);
+        this.hiddenVolumeHeader = new BytePtr(buf, ofs + OFS_HIDDEN_VOLUME_HEADER, 65536);
+    }
+
     @Override
     public void erase() {
         eraseKeyMaterial();
@@ -400,18 +764,68 @@ public class Header implements Erasable {
      * @throws TCLibException If any error occurred.
      */
     public byte[] encode(byte[] passw) throws TCLibException {
+        final byte[] kbuf = deriveEncodeKey(passw);
+        try {
+            return encodeWithKey(kbuf);
+        }
+        finally {
+            Arrays.fill(kbuf, (byte)0);
+        }
+    }
+
+    /**
+     * Derives the key to encode a header with, which is the expensive part of
+     * encoding, so it can be done ahead of time. Salt, hash function and
+     * block cipher must not change anymore afterwards.
+     * @param passw The key material to use for encryption.
+     * @return The derived key. Must be cleared after use.
+     * @throws TCLibException If any error occurred.
+     */
+    public byte[] deriveEncodeKey(byte[] passw) throws TCLibException {
+        Hash.Function hashf = null;
+        BlockCipher bcipher = null;
+        PKCS5.PBKDF2 kdf = null;
+        try {
+            hashf = this.hashFunction.newInstance();
+            bcipher = this.blockCipher.newInstance();
+
+            kdf = new PKCS5.PBKDF2(hashf);
+
+            return kdf.deriveKey(
+                    passw,
+                    this.salt.extract(),
+                    hashf.recommededHMACIterations(),
+                    bcipher.keySize() << 1);
+        }
+        catch (InstantiationException ie) {
+            throw new TCLibException(ie);
+        }
+        catch (IllegalAccessException iae) {
+            throw new TCLibException(iae);
+        }
+        finally {
+            if (null != kdf) kdf.erase();
+            else if (null != hashf) hashf.erase();
+            if (null != bcipher) bcipher.erase();
+        }
+    }
+
+    /**
+     * Encode a header with a key derived beforehand.
+     * @param kbuf The key, see deriveEncodeKey().
+     * @return The encrypted header material.
+     * @throws TCLibException If any error occurred.
+     */
+    public byte[] encodeWithKey(byte[] kbuf) throws TCLibException {
         if (null == this.version ||
             null == this.minimumVersion) {
             throw new TCLibException();
         }
 
-        byte[] kbuf = null;
         byte[] result = new byte[SIZE];
 
-        PKCS5.PBKDF2 kdf = null;
         XTS xts = null;
         CRC32 crc = null;
-        Hash.Function hashf = null;
         BlockCipher bcipher1 = null;
         BlockCipher bcipher2 = null;
 
@@ -443,19 +857,9 @@ public class Header implements Erasable {
             crc.update(result, SALT_SIZE, OFS_CRC32_2 - SALT_SIZE);
             BinUtils.writeInt32BE(crc.get(), result, OFS_CRC32_2);
 
-            hashf = this.hashFunction.newInstance();
             bcipher1 = this.blockCipher.newInstance();
             bcipher2 = this.blockCipher.newInstance();
 
-            kdf = new PKCS5.PBKDF2(hashf);
-
-            kbuf = kdf.deriveKey(
-                    passw,
-                    this.salt.extract(),
-                    hashf.recommededHMACIterations(),
-                    bcipher1.keySize() +
-                    bcipher2.keySize());
-
             bcipher1.initialize(BlockCipher.Mode.ENCRYPT, kbuf, 0);
             bcipher2.initialize(BlockCipher.Mode.ENCRYPT, kbuf, bcipher2.keySize());
 
@@ -463,10 +867,11 @@ public class Header implements Erasable {
 
             xts.process(result, SALT_SIZE, BLOCK_SIZE - SALT_SIZE, 0L, 0);
 
-            // the rest is all random data, either reused or new...
+            // the rest is all random data, either reused or new, where the
+            // latter is just filler and thus can come from the fast source...
             final int rsvsz3 = OFS_HIDDEN_VOLUME_HEADER - OFS_RESERVED3;
             if (null == this.reserved3) {
-                rnd().make(result, OFS_RESERVED3, rsvsz3);
+                Rand.fast().make(result, OFS_RESERVED3, rsvsz3);
             }
             else {
                 System.arraycopy(this.reserved3.buf,
@@ -477,7 +882,7 @@ public class Header implements Erasable {
             }
             final int hvolsz = SIZE - OFS_HIDDEN_VOLUME_HEADER;
             if (null == this.hiddenVolumeHeader) {
-                rnd().make(result, OFS_HIDDEN_VOLUME_HEADER, SIZE - OFS_HIDDEN_VOLUME_HEADER);
+                Rand.fast().make(result, OFS_HIDDEN_VOLUME_HEADER, SIZE - OFS_HIDDEN_VOLUME_HEADER);
             }
             else {
                 System.arraycopy(this.hiddenVolumeHeader.buf,
@@ -492,13 +897,10 @@ public class Header implements Erasable {
             throw new TCLibException(err);
         }
         finally {
-            if (null != kdf     ) kdf     .erase();
             if (null != xts     ) xts     .erase();
             if (null != crc     ) crc     .erase();
-            if (null != hashf   ) hashf   .erase();
             if (null != bcipher1) bcipher1.erase();
             if (null != bcipher2) bcipher2.erase();
-            if (null != kbuf    ) Arrays.fill(kbuf, (byte)0);
         }
 
         return result;
@@ -0,0 +1,224 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.container;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import coderslagoon.tclib.crypto.Hash;
+import coderslagoon.tclib.util.Erasable;
+import coderslagoon.tclib.util.Key;
+import coderslagoon.tclib.util.TCLibException;
+
+/**
+ * Unlocks a header by trying all of its candidate locations (e.g. primary and
+ * backup) with all of the hash functions at the same time. Key derivation
+ * happens once per location and hash function, all of the block ciphers then
+ * share its result. A candidate gets taken once all of the ones preferred over
+ * it failed, all of the attempts which then do not matter anymore get
+ * cancelled.
+ */
+public class HeaderUnlock {
+    /**
+     * What a successful unlock yields.
+     */
+    public static class Result {
+        Result(Header header, int index) {
+            this.header = header;
+            this.index  = index;
+        }
+        /** The decoded header. */
+        public final Header header;
+        /** Index of the candidate which got decoded. */
+        public final int index;
+    }
+
+    /**
+     * Unlock a header.
+     * @param key The key to decrypt the header.
+     * @param candidates The header data of all candidates, in the order of
+     * preference. Only the one which got decoded gets changed.
+     * @return The result.
+     * @throws TCLibException If any error occurred. Specifically a
+     * NoMatchingAlgorithmException if no candidate could be decoded.
+     */
+    public static Result unlock(Key key, byte[]... candidates) throws TCLibException {
+        final byte[] passw = key.data();
+
+        final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+
+        final Class<? extends Hash.Function>[] hfcs = Header.hashFunctions();
+        final boolean single = 1 == candidates.length * hfcs.length;
+
+        // (each task hands over the key material if it matched, the actual
+        // decoding then happens only for the candidate which gets taken)
+        final Matches matches = new Matches(candidates.length * hfcs.length);
+        for (int i = 0; i < candidates.length; i++) {
+            for (final Class<? extends Hash.Function> hfc : hfcs) {
+                final byte[] data = candidates[i];
+                final int t = tasks.size();
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() throws Exception {
+                        final byte[] kbuf = Header.deriveKey(hfc, passw, data, 0, single, true);
+                        final byte[] copy = data.clone();
+                        boolean match = false;
+                        try {
+                            if (Thread.currentThread().isInterrupted()) {
+                                return false;
+                            }
+                            Header hdr = new Header();
+                            if (hdr.tryDecode(hfc, kbuf, copy, 0)) {
+                                hdr.erase();
+                                match = matches.put(t, kbuf);
+                            }
+                            return match;
+                        }
+                        finally {
+                            Arrays.fill(copy, (byte)0);
+                            if (!match) {
+                                Arrays.fill(kbuf, (byte)0);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+
+        final ExecutorService exsvc = Executors.newFixedThreadPool(
+                Math.min(tasks.size(), CPUS), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, "headerunlock");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+        final byte[][] kbufs = new byte[candidates.length][];
+        try {
+            final CompletionService<Boolean> csvc = new ExecutorCompletionService<Boolean>(exsvc);
+            final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+            for (Callable<Boolean> task : tasks) {
+                futures.add(csvc.submit(task));
+            }
+            final int[] pending = new int[candidates.length];
+            Arrays.fill(pending, hfcs.length);
+            final int[] matched = new int[candidates.length];
+            TCLibException err = null;
+            for (int n = 0; n < tasks.size(); n++) {
+                final Future<Boolean> future;
+                try {
+                    future = csvc.take();
+                }
+                catch (InterruptedException ie) {
+                    throw new TCLibException(ie);
+                }
+                final int t = futures.indexOf(future);
+                final int index = t / hfcs.length;
+                pending[index]--;
+                try {
+                    if (future.get()) {
+                        if (null == kbufs[index]) {
+                            kbufs[index] = matches.get(t);
+                            matched[index] = t;
+                        }
+                        // nothing for this or any less preferred candidate
+                        // can change the outcome anymore...
+                        for (int u = index * hfcs.length; u < futures.size(); u++) {
+                            futures.get(u).cancel(true);
+                        }
+                    }
+                }
+                catch (CancellationException ce) {
+                }
+                catch (InterruptedException ie) {
+                    throw new TCLibException(ie);
+                }
+                catch (ExecutionException ee) {
+                    if (null == err) {
+                        err = ee.getCause() instanceof TCLibException ?
+                              (TCLibException)ee.getCause() :
+                              new TCLibException(ee.getCause());
+                    }
+                }
+                for (int i = 0; i < candidates.length; i++) {
+                    if (null != kbufs[i]) {
+                        Header hdr = new Header();
+                        if (!hdr.tryDecode(hfcs[matched[i] % hfcs.length],
+                                           kbufs[i], candidates[i], 0)) {
+                            throw new TCLibException("decoding not repeatable");
+                        }
+                        return new Result(hdr, i);
+                    }
+                    if (0 < pending[i]) {
+                        break;
+                    }
+                }
+            }
+            if (null != err) {
+                throw err;
+            }
+            throw new Header.NoMatchingAlgorithmException();
+        }
+        finally {
+            exsvc.shutdownNow();
+            matches.erase();
+        }
+    }
+
+    // key material of the tasks which matched; also of those which got
+    // cancelled after matching, their results never get collected, and of
+    // those finishing late, so everything can be wiped in any case ...
+    final static class Matches implements Erasable {
+        Matches(int count) {
+            this.kbufs = new byte[count][];
+        }
+        synchronized boolean put(int t, byte[] kbuf) {
+            if (this.erased) {
+                return false;
+            }
+            this.kbufs[t] = kbuf;
+            return true;
+        }
+        synchronized byte[] get(int t) {
+            return this.kbufs[t];
+        }
+        @Override
+        public synchronized void erase() {
+            this.erased = true;
+            for (byte[] kbuf : this.kbufs) {
+                if (null != kbuf) {
+                    Arrays.fill(kbuf, (byte)0);
+                }
+            }
+        }
+        final byte[][] kbufs;
+        boolean erased;
+    }
+
+    private final static int CPUS = Runtime.getRuntime().availableProcessors();
+}
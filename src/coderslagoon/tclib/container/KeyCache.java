@@ -0,0 +1,182 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.container;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import coderslagoon.tclib.util.Erasable;
+
+/**
+ * Cache for derived header keys, so opening the same container over and over
+ * again doesn't have to go through the key derivation every time. Entries are
+ * identified by a digest of the password, the salt and the hash function. The
+ * least recently used entries get dropped if the cache is full, and each entry
+ * gets wiped after a certain time no matter what.
+ */
+public class KeyCache implements Erasable {
+    /**
+     * Default constructor.
+     * @param capacity Maximum number of keys to keep.
+     * @param timeout Number of milliseconds after which a key gets evicted.
+     */
+    public KeyCache(final int capacity, long timeout) {
+        this.timeout = timeout;
+        this.entries = new LinkedHashMap<Id, Entry>(capacity, .75f, true) {
+            private static final long serialVersionUID = 2985101637741366541L;
+            protected boolean removeEldestEntry(Map.Entry<Id, Entry> eldest) {
+                if (size() > capacity) {
+                    eldest.getKey  ().erase();
+                    eldest.getValue().erase();
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.timer = new Timer("keycache", true);
+        this.timer.schedule(new TimerTask() {
+            public void run() {
+                purge(System.currentTimeMillis());
+            }
+        }, timeout, Math.max(1L, timeout >> 2));
+    }
+
+    /**
+     * Looks up a key.
+     * @param hashFunction Name of the hash function.
+     * @param passw The password.
+     * @param salt The salt.
+     * @return Copy of the key or null if not cached (anymore).
+     */
+    public synchronized byte[] get(String hashFunction, byte[] passw, byte[] salt) {
+        final Id id = new Id(hashFunction, passw, salt);
+        try {
+            final Entry entry = this.entries.get(id);
+            return null == entry ? null : entry.key.clone();
+        }
+        finally {
+            id.erase();
+        }
+    }
+
+    /**
+     * Stores a key.
+     * @param hashFunction Name of the hash function.
+     * @param passw The password.
+     * @param salt The salt.
+     * @param key The key, a copy of it gets stored.
+     */
+    public synchronized void put(String hashFunction, byte[] passw, byte[] salt, byte[] key) {
+        if (this.erased) {
+            return;
+        }
+        final Id id = new Id(hashFunction, passw, salt);
+        final Entry entry = new Entry(key.clone(), System.currentTimeMillis() + this.timeout);
+        final Entry old = this.entries.get(id);
+        this.entries.put(id, entry);
+        if (null != old) {
+            // (the map keeps its own identifier, the new one is not needed)
+            old.erase();
+            id.erase();
+        }
+    }
+
+    /**
+     * @return Number of keys in the cache.
+     */
+    public synchronized int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * Wipes all of the keys and stops the eviction timer. The cache does not
+     * store any new keys afterwards.
+     * @see coderslagoon.tclib.util.Erasable#erase()
+     */
+    public synchronized void erase() {
+        this.erased = true;
+        this.timer.cancel();
+        purge(Long.MAX_VALUE);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final Map<Id, Entry> entries;
+    private final long timeout;
+    private final Timer timer;
+    private boolean erased;
+
+    synchronized void purge(long now) {
+        Iterator<Map.Entry<Id, Entry>> itr = this.entries.entrySet().iterator();
+        while (itr.hasNext()) {
+            Map.Entry<Id, Entry> me = itr.next();
+            if (me.getValue().expires <= now) {
+                me.getKey  ().erase();
+                me.getValue().erase();
+                itr.remove();
+            }
+        }
+    }
+
+    static class Entry implements Erasable {
+        Entry(byte[] key, long expires) {
+            this.key     = key;
+            this.expires = expires;
+        }
+        final byte[] key;
+        final long expires;
+        public void erase() {
+            Arrays.fill(this.key, (byte)0);
+        }
+    }
+
+    static class Id implements Erasable {
+        Id(String hashFunction, byte[] passw, byte[] salt) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(hashFunction.getBytes());
+                md.update((byte)0);
+                md.update(salt);
+                md.update(passw);
+                this.data = md.digest();
+            }
+            catch (NoSuchAlgorithmException nsae) {
+                throw new Error(nsae);
+            }
+            this.hash = Arrays.hashCode(this.data);
+        }
+        final byte[] data;
+        final int hash;
+        public int hashCode() {
+            return this.hash;
+        }
+        public boolean equals(Object obj) {
+            return obj instanceof Id && Arrays.equals(this.data, ((Id)obj).data);
+        }
+        public void erase() {
+            Arrays.fill(this.data, (byte)0);
+        }
+    }
+}
@@ -18,14 +18,20 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.container;
 
+import java.nio.ByteBuffer;
+
 import coderslagoon.tclib.crypto.BlockCipher;
+import coderslagoon.tclib.crypto.Registry;
 import coderslagoon.tclib.crypto.XTS;
 import coderslagoon.tclib.util.Erasable;
 import coderslagoon.tclib.util.TCLibException;
 
 
 /**
- * TrueCrypt volume encryption or decryption.
+ * TrueCrypt volume encryption or decryption. Instances can be shared between
+ * threads, there is no need to clone them for each worker anymore. Cascades
+ * are handled by XTS, which runs their stages pipelined for larger amounts of
+ * data, so it pays off to process as many blocks as possible with one call.
  */
 public class Volume implements Erasable, Cloneable {
     XTS xts;
@@ -41,8 +47,9 @@ public class Volume implements Erasable, Cloneable {
         BlockCipher bc1 = null;
         BlockCipher bc2 = null;
         try {
-            bc1 = header.blockCipher.newInstance();
-            bc2 = header.blockCipher.newInstance();
+            Class<? extends BlockCipher> bcc = implementation(header.blockCipher);
+            bc1 = bcc.newInstance();
+            bc2 = bcc.newInstance();
 
             bc1.initialize(mode                    , header.keyMaterial.buf, header.keyMaterial.ofs);
             bc2.initialize(BlockCipher.Mode.ENCRYPT, header.keyMaterial.buf, header.keyMaterial.ofs + bc1.keySize());
@@ -63,6 +70,22 @@ public class Volume implements Erasable, Cloneable {
         }
     }
 
+    /**
+     * Picks the registered implementation of a block cipher, which might be a
+     * faster one than the one used for decoding the header.
+     * @param clz The block cipher kind.
+     * @return The class registered under the same name, or the original one if
+     * the cipher is not registered (at all).
+     */
+    static Class<? extends BlockCipher> implementation(
+            Class<? extends BlockCipher> clz) throws InstantiationException,
+                                                     IllegalAccessException {
+        BlockCipher bc = clz.newInstance();
+        Class<? extends BlockCipher> result = Registry._blockCiphers.lookup(bc.name());
+        bc.erase();
+        return null == result ? clz : result;
+    }
+
     /**
      * @return Size of block of a volume.
      */
@@ -81,6 +104,33 @@ public class Volume implements Erasable, Cloneable {
         this.xts.process(blk, ofs, blockSize(), number, 0);
     }
 
+    /**
+     * Encrypts or decrypts multiple consecutive blocks with one call, which
+     * is much more efficient than doing it block by block.
+     * @param number The number of the first block.
+     * @param buf Buffer holding the blocks' data.
+     * @param ofs Where the data of the first block starts.
+     * @param count Number of blocks to process.
+     * @throws TCLibException If any error occurred.
+     */
+    public void processBlocks(long number, byte[] buf, int ofs, int count) throws TCLibException {
+        this.xts.process(buf, ofs, count * blockSize(), number, 0);
+    }
+
+    /**
+     * Encrypts or decrypts multiple consecutive blocks held by a (heap or
+     * direct) buffer, in place.
+     * @param number The number of the first block.
+     * @param buf Buffer holding the blocks' data. Position and limit do not
+     * get changed.
+     * @param ofs Absolute index in the buffer where the first block starts.
+     * @param count Number of blocks to process.
+     * @throws TCLibException If any error occurred.
+     */
+    public void processBlocks(long number, ByteBuffer buf, int ofs, int count) throws TCLibException {
+        this.xts.process(buf, ofs, count * blockSize(), number, 0);
+    }
+
     /** @see coderslagoon.tclib.util.Erasable#erase() */
     public void erase() {
         this.xts.erase();
@@ -24,7 +24,9 @@ import coderslagoon.baselib.util.BinUtils;
 
 
 /**
- * AES256 implementation.
+ * AES256 implementation. The expanded key is not modified after initialization
+ * and blocks get processed in local variables only, so an instance can be
+ * shared between threads.
  */
 public class AES256 extends BlockCipher {
    
@@ -45,10 +47,6 @@ public class AES256 extends BlockCipher {
                 Arrays.fill(wk, 0);
             }
         }
-        this.C0 = 0;
-        this.C1 = 0;
-        this.C2 = 0;
-        this.C3 = 0;
     }
 
     @Override
@@ -69,15 +67,23 @@ public class AES256 extends BlockCipher {
 
     @Override
     public void processBlock(byte[] in, int ofsi, byte[] out, int ofso) {
+        processBlocks(in, ofsi, out, ofso, 1);
+    }
+
+    @Override
+    public void processBlocks(byte[] in, int ofsi, byte[] out, int ofso, int count) {
+        final int[][] KW = this.workingKey;
+        final int rounds = this.rounds;
+        final int end = ofsi + count * BLOCK_SIZE;
         if (Mode.ENCRYPT == this.mode) {
-            unpackBlock(in, ofsi);
-            encryptBlock(this.workingKey);
-            packBlock(out, ofso);
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                encryptBlock(KW, rounds, in, ofsi, out, ofso);
+            }
         }
         else {
-            unpackBlock(in, ofsi);
-            decryptBlock(this.workingKey);
-            packBlock(out, ofso);
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                decryptBlock(KW, rounds, in, ofsi, out, ofso);
+            }
         }
     }
 
@@ -117,7 +123,6 @@ public class AES256 extends BlockCipher {
 
     private int rounds;
     private int[][] workingKey;
-    private int C0, C1, C2, C3;
 
     ///////////////////////////////////////////////////////////////////////////
 
@@ -127,10 +132,6 @@ public class AES256 extends BlockCipher {
         result.mode = this.mode;
         result.rounds = this.rounds;
         result.workingKey = BinUtils.copyArray(this.workingKey);
-        result.C0 = this.C0;
-        result.C1 = this.C1;
-        result.C2 = this.C2;
-        result.C3 = this.C3;
         return result;
     }
 
@@ -186,15 +187,6 @@ public class AES256 extends BlockCipher {
                 (bytes[index + 3]         << 24);
     }
 
-    private final void unpackBlock(
-            byte[] bytes,
-            int off) {
-        this.C0 = unpack(bytes, off);
-        this.C1 = unpack(bytes, off + 4);
-        this.C2 = unpack(bytes, off + 8);
-        this.C3 = unpack(bytes, off + 12);
-    }
-
     private final static void pack(int val, byte[] bytes, int index) {
         bytes[index    ] = (byte) val;
         bytes[index + 1] = (byte)(val >>> 8);
@@ -202,22 +194,14 @@ public class AES256 extends BlockCipher {
         bytes[index + 3] = (byte)(val >>> 24);
     }
 
-    private final void packBlock(
-        byte[] bytes,
-        int off) {
-        pack(this.C0, bytes, off);
-        pack(this.C1, bytes, off + 4);
-        pack(this.C2, bytes, off + 8);
-        pack(this.C3, bytes, off + 12);
-    }
-
-    private final void encryptBlock(int[][] KW) {
+    private final static void encryptBlock(int[][] KW, int rounds,
+            byte[] in, int ofsi, byte[] out, int ofso) {
         int r, r0, r1, r2, r3;
 
-        int c0 = this.C0;
-        int c1 = this.C1;
-        int c2 = this.C2;
-        int c3 = this.C3;
+        int c0 = unpack(in, ofsi);
+        int c1 = unpack(in, ofsi + 4);
+        int c2 = unpack(in, ofsi + 8);
+        int c3 = unpack(in, ofsi + 12);
 
         c0 ^= KW[0][0];
         c1 ^= KW[0][1];
@@ -225,7 +209,7 @@ public class AES256 extends BlockCipher {
         c3 ^= KW[0][3];
 
         r = 1;
-        while (r < this.rounds - 1) {
+        while (r < rounds - 1) {
             r0 = T0[c0&255] ^ T1[(c1>>8)&255] ^ T2[(c2>>16)&255] ^ T3[c3>>>24] ^ KW[r][0];
             r1 = T0[c1&255] ^ T1[(c2>>8)&255] ^ T2[(c3>>16)&255] ^ T3[c0>>>24] ^ KW[r][1];
             r2 = T0[c2&255] ^ T1[(c3>>8)&255] ^ T2[(c0>>16)&255] ^ T3[c1>>>24] ^ KW[r][2];
@@ -241,26 +225,27 @@ public class AES256 extends BlockCipher {
         r2 = T0[c2&255] ^ T1[(c3>>8)&255] ^ T2[(c0>>16)&255] ^ T3[c1>>>24] ^ KW[r][2];
         r3 = T0[c3&255] ^ T1[(c0>>8)&255] ^ T2[(c1>>16)&255] ^ T3[c2>>>24] ^ KW[r++][3];
 
-        this.C0 = (S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[r3>>>24]<<24) ^ KW[r][0];
-        this.C1 = (S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[r0>>>24]<<24) ^ KW[r][1];
-        this.C2 = (S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[r1>>>24]<<24) ^ KW[r][2];
-        this.C3 = (S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[r2>>>24]<<24) ^ KW[r][3];
+        pack((S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[r3>>>24]<<24) ^ KW[r][0], out, ofso);
+        pack((S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[r0>>>24]<<24) ^ KW[r][1], out, ofso + 4);
+        pack((S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[r1>>>24]<<24) ^ KW[r][2], out, ofso + 8);
+        pack((S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[r2>>>24]<<24) ^ KW[r][3], out, ofso + 12);
     }
 
-    private final void decryptBlock(int[][] KW) {
+    private final static void decryptBlock(int[][] KW, int rounds,
+            byte[] in, int ofsi, byte[] out, int ofso) {
         int r0, r1, r2, r3;
 
-        int c0 = this.C0;
-        int c1 = this.C1;
-        int c2 = this.C2;
-        int c3 = this.C3;
+        int c0 = unpack(in, ofsi);
+        int c1 = unpack(in, ofsi + 4);
+        int c2 = unpack(in, ofsi + 8);
+        int c3 = unpack(in, ofsi + 12);
 
-        c0 ^= KW[this.rounds][0];
-        c1 ^= KW[this.rounds][1];
-        c2 ^= KW[this.rounds][2];
-        c3 ^= KW[this.rounds][3];
+        c0 ^= KW[rounds][0];
+        c1 ^= KW[rounds][1];
+        c2 ^= KW[rounds][2];
+        c3 ^= KW[rounds][3];
 
-        int r = this.rounds - 1;
+        int r = rounds - 1;
 
         while (r>1) {
             r0 = Tinv0[c0&255] ^ Tinv1[(c3>>8)&255] ^ Tinv2[(c2>>16)&255] ^ Tinv3[c1>>>24] ^ KW[r][0];
@@ -278,10 +263,10 @@ public class AES256 extends BlockCipher {
         r2 = Tinv0[c2&255] ^ Tinv1[(c1>>8)&255] ^ Tinv2[(c0>>16)&255] ^ Tinv3[c3>>>24] ^ KW[r][2];
         r3 = Tinv0[c3&255] ^ Tinv1[(c2>>8)&255] ^ Tinv2[(c1>>16)&255] ^ Tinv3[c0>>>24] ^ KW[r--][3];
 
-        this.C0 = (Si[r0&255]&255) ^ ((Si[(r3>>8)&255]&255)<<8) ^ ((Si[(r2>>16)&255]&255)<<16) ^ (Si[r1>>>24]<<24) ^ KW[0][0];
-        this.C1 = (Si[r1&255]&255) ^ ((Si[(r0>>8)&255]&255)<<8) ^ ((Si[(r3>>16)&255]&255)<<16) ^ (Si[r2>>>24]<<24) ^ KW[0][1];
-        this.C2 = (Si[r2&255]&255) ^ ((Si[(r1>>8)&255]&255)<<8) ^ ((Si[(r0>>16)&255]&255)<<16) ^ (Si[r3>>>24]<<24) ^ KW[0][2];
-        this.C3 = (Si[r3&255]&255) ^ ((Si[(r2>>8)&255]&255)<<8) ^ ((Si[(r1>>16)&255]&255)<<16) ^ (Si[r0>>>24]<<24) ^ KW[0][3];
+        pack((Si[r0&255]&255) ^ ((Si[(r3>>8)&255]&255)<<8) ^ ((Si[(r2>>16)&255]&255)<<16) ^ (Si[r1>>>24]<<24) ^ KW[0][0], out, ofso);
+        pack((Si[r1&255]&255) ^ ((Si[(r0>>8)&255]&255)<<8) ^ ((Si[(r3>>16)&255]&255)<<16) ^ (Si[r2>>>24]<<24) ^ KW[0][1], out, ofso + 4);
+        pack((Si[r2&255]&255) ^ ((Si[(r1>>8)&255]&255)<<8) ^ ((Si[(r0>>16)&255]&255)<<16) ^ (Si[r3>>>24]<<24) ^ KW[0][2], out, ofso + 8);
+        pack((Si[r3&255]&255) ^ ((Si[(r2>>8)&255]&255)<<8) ^ ((Si[(r1>>16)&255]&255)<<16) ^ (Si[r0>>>24]<<24) ^ KW[0][3], out, ofso + 12);
     }
 
     ///////////////////////////////////////////////////////////////////////////
@@ -0,0 +1,292 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import coderslagoon.baselib.util.BinUtils;
+
+
+/**
+ * AES256 implementation delegating to the JCE provider of the runtime. Modern
+ * VMs compile the AES transformation down to dedicated CPU instructions, so
+ * this is much faster than the table-driven implementation, especially if
+ * many blocks get processed with one single call. Registers under the very
+ * same name as the regular AES256 class, if the runtime supports it. Since
+ * JCE ciphers are not thread-safe, instances are kept in a small pool, from
+ * which each concurrent caller borrows its own.
+ */
+public class AES256JCE extends BlockCipher {
+
+    private final static int KEY_SIZE = 32;
+    private final static int BLOCK_SIZE = 16;
+
+    private final static String NAME = "AES256";
+    private final static String TRANSFORMATION = "AES/ECB/NoPadding";
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void erase() {
+        Arrays.fill(this.key, (byte)0);
+        // the provider keeps its own expanded key, so the best we can do is to
+        // replace it with the (now all zero) key...
+        init();
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int keySize() {
+        return KEY_SIZE;
+    }
+
+    @Override
+    public void initialize(Mode mode, byte[] key, int ofs) {
+        super.initialize(mode, null, 0);
+        System.arraycopy(key, ofs, this.key, 0, KEY_SIZE);
+        init();
+    }
+
+    @Override
+    public void processBlock(byte[] in, int ofsi, byte[] out, int ofso) {
+        processBlocks(in, ofsi, out, ofso, 1);
+    }
+
+    @Override
+    public void processBlocks(byte[] in, int ofsi, byte[] out, int ofso, int count) {
+        Cipher cipher = this.pool.poll();
+        if (null == cipher) {
+            cipher = newCipher();
+        }
+        try {
+            cipher.doFinal(in, ofsi, count * BLOCK_SIZE, out, ofso);
+        }
+        catch (GeneralSecurityException gse) {
+            throw new Error(gse);
+        }
+        this.pool.offer(cipher);
+    }
+
+    @Override
+    public void processBlocks(ByteBuffer buf, int ofs, int count) {
+        if (buf.hasArray()) {
+            super.processBlocks(buf, ofs, count);
+            return;
+        }
+        // the provider deals with native memory by itself, input and output
+        // may overlap in the case of ECB ...
+        final ByteBuffer in  = buf.duplicate();
+        final ByteBuffer out = buf.duplicate();
+        in.clear();
+        in.position(ofs);
+        in.limit(ofs + count * BLOCK_SIZE);
+        out.clear();
+        out.position(ofs);
+        Cipher cipher = this.pool.poll();
+        if (null == cipher) {
+            cipher = newCipher();
+        }
+        try {
+            cipher.doFinal(in, out);
+        }
+        catch (GeneralSecurityException gse) {
+            throw new Error(gse);
+        }
+        this.pool.offer(cipher);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final byte[] key = new byte[KEY_SIZE];
+    private final Queue<Cipher> pool = new ConcurrentLinkedQueue<Cipher>();
+    private final List<Cipher> ciphers = new ArrayList<Cipher>();
+
+    private Cipher newCipher() {
+        final Cipher result;
+        try {
+            result = Cipher.getInstance(TRANSFORMATION);
+        }
+        catch (GeneralSecurityException gse) {
+            throw new Error(gse);
+        }
+        synchronized(this.ciphers) {
+            init(result);
+            this.ciphers.add(result);
+        }
+        return result;
+    }
+
+    // (re)keying must not happen while blocks get processed, hence all of
+    // the ciphers, borrowed or not, can be reached from here ...
+    private void init() {
+        synchronized(this.ciphers) {
+            for (Cipher cipher : this.ciphers) {
+                init(cipher);
+            }
+        }
+    }
+
+    private void init(Cipher cipher) {
+        try {
+            cipher.init(Mode.ENCRYPT == this.mode ? Cipher.ENCRYPT_MODE :
+                                                    Cipher.DECRYPT_MODE,
+                        new SecretKeySpec(this.key, "AES"));
+        }
+        catch (GeneralSecurityException gse) {
+            throw new Error(gse);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public Object clone() {
+        AES256JCE result = new AES256JCE();
+        result.mode = this.mode;
+        System.arraycopy(this.key, 0, result.key, 0, KEY_SIZE);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static Boolean _available;
+
+    /**
+     * Checks if the runtime offers AES with 256bit keys. This might not be the
+     * case e.g. with old VMs restricted by export regulations.
+     * @return True if this implementation can be used.
+     */
+    public synchronized static boolean available() {
+        if (null == _available) {
+            try {
+                Cipher.getInstance(TRANSFORMATION).init(
+                        Cipher.ENCRYPT_MODE,
+                        new SecretKeySpec(new byte[KEY_SIZE], "AES"));
+                _available = Boolean.TRUE;
+            }
+            catch (GeneralSecurityException gse) {
+                _available = Boolean.FALSE;
+            }
+        }
+        return _available;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        final AES256JCE aes = new AES256JCE();
+
+        final byte[] TEST_KEY = {
+            0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08, 0x09, 0x0a, 0x0b, 0x0c, 0x0d, 0x0e, 0x0f,
+            0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f,
+        };
+        final byte[] REF_PTXT = {
+            0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, (byte)0x88, (byte)0x99, (byte)0xaa, (byte)0xbb, (byte)0xcc, (byte)0xdd, (byte)0xee, (byte)0xff
+        };
+        final byte[] REF_CTXT = {
+            (byte)0x8e, (byte)0xa2, (byte)0xb7, (byte)0xca, 0x51, 0x67, 0x45, (byte)0xbf, (byte)0xea, (byte)0xfc, 0x49, (byte)0x90, 0x4b, 0x49, 0x60, (byte)0x89
+        };
+
+        aes.initialize(Mode.ENCRYPT, TEST_KEY, 0);
+
+        byte[] ctxt = new byte[REF_CTXT.length];
+
+        aes.processBlock(REF_PTXT, 0, ctxt, 0);
+
+        if (!BinUtils.arraysEquals(ctxt, REF_CTXT)) {
+            throw new Exception();
+        }
+
+        // multiple blocks must match what the reference implementation does
+        final AES256 ref = new AES256();
+        ref.initialize(Mode.ENCRYPT, TEST_KEY, 0);
+
+        final byte[] blks = new byte[BLOCK_SIZE * 33];
+        for (int i = 0; i < blks.length; i++) {
+            blks[i] = (byte)(i * 7);
+        }
+        final byte[] blks2 = blks.clone();
+
+        aes.processBlocks(blks, 0, blks, 0, 33);
+        for (int ofs = 0; ofs < blks2.length; ofs += BLOCK_SIZE) {
+            ref.processBlock(blks2, ofs, blks2, ofs);
+        }
+        if (!BinUtils.arraysEquals(blks, blks2)) {
+            throw new Exception();
+        }
+
+        // same for native memory, in place
+        final ByteBuffer dbuf = ByteBuffer.allocateDirect(blks.length + BLOCK_SIZE);
+        dbuf.position(BLOCK_SIZE);
+        dbuf.put(blks);
+        aes.processBlocks(dbuf, BLOCK_SIZE, 32);
+        final byte[] blks3 = new byte[blks.length];
+        dbuf.position(BLOCK_SIZE);
+        dbuf.get(blks3);
+        for (int ofs = 0; ofs < blks2.length - BLOCK_SIZE; ofs += BLOCK_SIZE) {
+            ref.processBlock(blks2, ofs, blks2, ofs);
+        }
+        if (!BinUtils.arraysEquals(blks3, blks2)) {
+            throw new Exception();
+        }
+
+        AES256JCE aes2 = (AES256JCE)aes.clone();
+
+        byte[] btxt = new byte[REF_CTXT.length];
+        aes.erase();
+        aes.processBlock(REF_PTXT, 0, btxt, 0);
+
+        if (BinUtils.arraysEquals(btxt, REF_CTXT)) {
+            throw new Exception();
+        }
+
+        aes2.processBlock(REF_PTXT, 0, btxt, 0);
+
+        if (!BinUtils.arraysEquals(btxt, REF_CTXT)) {
+            throw new Exception();
+        }
+
+        aes.initialize(Mode.DECRYPT, TEST_KEY, 0);
+
+        byte[] ptxt = new byte[REF_PTXT.length];
+
+        aes.processBlock(ctxt, 0, ptxt, 0);
+
+        if (!BinUtils.arraysEquals(ptxt, REF_PTXT)) {
+            throw new Exception();
+        }
+    }
+}
@@ -18,8 +18,14 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.crypto;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 /**
- * Block cipher abstraction.
+ * Block cipher abstraction. Once initialized an instance must allow blocks to
+ * be processed by multiple threads at the same time, meaning that the key
+ * schedule is not to be touched anymore and all scratch data has to live on
+ * the stack.
  */
 public abstract class BlockCipher implements Algorithm, Cloneable {
     /** Operation modes. */
@@ -50,6 +56,55 @@ public abstract class BlockCipher implements Algorithm, Cloneable {
      * @param ofs_o Where the processed block is written to the output buffer.
      */
     public abstract void processBlock(byte[] in, int ofs_i, byte[] out, int ofs_o);
+    /**
+     * Processes multiple consecutive blocks of plain- or ciphertext. The
+     * default implementation simply calls processBlock() for each of them,
+     * implementations should override it if they can do better.
+     * @param in The input buffer.
+     * @param ofs_i Where the first block is read from in the input buffer.
+     * @param out The output buffer. Can be the same as the input buffer.
+     * @param ofs_o Where the first processed block is written to.
+     * @param count Number of blocks to process.
+     */
+    public void processBlocks(byte[] in, int ofs_i, byte[] out, int ofs_o, int count) {
+        final int bsz = blockSize();
+        for (int i = 0; i < count; i++, ofs_i += bsz, ofs_o += bsz) {
+            processBlock(in, ofs_i, out, ofs_o);
+        }
+    }
+    /**
+     * Processes multiple consecutive blocks held by a buffer, in place. Heap
+     * buffers get passed on to the array version, direct ones are moved
+     * through a small temporary array by the default implementation, so
+     * implementations able to work on native memory should override it.
+     * @param buf The buffer. Its position and limit do not get changed.
+     * @param ofs Absolute index of the first block in the buffer.
+     * @param count Number of blocks to process.
+     */
+    public void processBlocks(ByteBuffer buf, int ofs, int count) {
+        if (buf.hasArray()) {
+            final byte[] arr = buf.array();
+            final int aofs = buf.arrayOffset() + ofs;
+            processBlocks(arr, aofs, arr, aofs, count);
+            return;
+        }
+        final int bsz = blockSize();
+        final byte[] tmp = new byte[Math.min(count, CHUNK_BLOCKS) * bsz];
+        final ByteBuffer dup = buf.duplicate();
+        while (0 < count) {
+            final int blocks = Math.min(count, CHUNK_BLOCKS);
+            final int len = blocks * bsz;
+            dup.clear().position(ofs);
+            dup.get(tmp, 0, len);
+            processBlocks(tmp, 0, tmp, 0, blocks);
+            dup.position(ofs);
+            dup.put(tmp, 0, len);
+            ofs += len;
+            count -= blocks;
+        }
+        Arrays.fill(tmp, (byte)0);
+    }
+    private final static int CHUNK_BLOCKS = 256;
     /**
      * @return The operation mode.
      */
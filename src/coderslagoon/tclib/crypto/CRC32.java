@@ -22,37 +22,32 @@ import coderslagoon.baselib.util.BinUtils;
 
 
 /**
- * Standard CRC32 implementation.
+ * Standard CRC32 implementation. The computation is delegated to the runtime,
+ * whose implementation uses the very same polynomial and gets compiled down to
+ * dedicated CPU instructions by modern VMs.
  */
 public class CRC32 implements Algorithm {
-    int state;
+    final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
 
     public CRC32() {
         reset();
     }
 
     public void reset() {
-        this.state = -1;
+        this.crc.reset();
     }
 
     public void update(byte[] buf, int ofs, int len) {
-        int state = this.state;
-
-        for (int end = ofs + len; ofs < end; ofs++) {
-            state = (state >>> 8) ^ TABLE[(buf[ofs] ^ state) & 0x0ff];
-        }
-
-        this.state = state;
-        state = 0;
+        this.crc.update(buf, ofs, len);
     }
 
     public int get() {
-        return this.state ^ -1;
+        return (int)this.crc.getValue();
     }
 
     @Override
     public void erase() {
-        this.state = 0;
+        this.crc.reset();
     }
 
     @Override
@@ -71,6 +66,24 @@ public class CRC32 implements Algorithm {
         if (0x6fcf9e13 != crc32.get()) {
             throw new Exception();
         }
+        // must match the table driven computation for any length and offset
+        byte[] data = new byte[257];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 31 + (i >>> 3));
+        }
+        for (int ofs = 0; ofs < 8; ofs++) {
+            for (int len = 0; len <= data.length - ofs; len += 1 + (len >>> 4)) {
+                int state = -1;
+                for (int i = ofs, end = ofs + len; i < end; i++) {
+                    state = (state >>> 8) ^ TABLE[(data[i] ^ state) & 0x0ff];
+                }
+                crc32.reset();
+                crc32.update(data, ofs, len);
+                if ((state ^ -1) != crc32.get()) {
+                    throw new Exception();
+                }
+            }
+        }
     }
 
     final static int[] TABLE = {
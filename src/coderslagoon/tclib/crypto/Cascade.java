@@ -0,0 +1,256 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.nio.ByteBuffer;
+
+import coderslagoon.baselib.util.BinUtils;
+
+
+/**
+ * Cascade of block ciphers, as offered by TrueCrypt. The stages are kept in
+ * the order they encrypt in, which is the reverse of how the cascade gets
+ * named, e.g. "AES-Twofish-Serpent" encrypts with Serpent first. Their keys
+ * are laid out one after the other in the same order. Notice that TrueCrypt
+ * does not run the stages block by block but does a full XTS pass with each of
+ * them, so this is taken care of by the XTS implementation itself, processing
+ * blocks here only composes the stages' ECB transformations.
+ */
+public abstract class Cascade extends BlockCipher {
+
+    private final static int BLOCK_SIZE = 16;
+
+    final String name;
+    final BlockCipher[] stages;
+
+    /**
+     * Default constructor.
+     * @param name The name of the cascade, as TrueCrypt shows it.
+     * @param stages The stages, in encryption order. If a faster implementation
+     * of a stage's cipher is registered then that one gets used instead.
+     */
+    protected Cascade(String name, BlockCipher[] stages) {
+        this.name = name;
+        this.stages = stages;
+        for (int i = 0; i < stages.length; i++) {
+            Class<? extends BlockCipher> clz = Registry._blockCiphers.lookup(stages[i].name());
+            if (null != clz && !clz.equals(stages[i].getClass())) {
+                try {
+                    stages[i] = clz.newInstance();
+                }
+                catch (Exception e) {
+                    throw new Error(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The stages, in encryption order. These are the actual instances,
+     * initialized when the cascade gets initialized.
+     */
+    public BlockCipher[] stages() {
+        return this.stages.clone();
+    }
+
+    /**
+     * @param bc A block cipher.
+     * @return The stages of a cascade, or the block cipher itself if it is not
+     * a cascade.
+     */
+    public static BlockCipher[] stages(BlockCipher bc) {
+        return bc instanceof Cascade ? ((Cascade)bc).stages() :
+                                       new BlockCipher[] { bc };
+    }
+
+    @Override
+    public String name() {
+        return this.name;
+    }
+
+    @Override
+    public void erase() {
+        for (BlockCipher stage : this.stages) {
+            stage.erase();
+        }
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int keySize() {
+        int result = 0;
+        for (BlockCipher stage : this.stages) {
+            result += stage.keySize();
+        }
+        return result;
+    }
+
+    @Override
+    public void initialize(Mode mode, byte[] key, int ofs) {
+        super.initialize(mode, null, 0);
+        for (BlockCipher stage : this.stages) {
+            stage.initialize(mode, key, ofs);
+            ofs += stage.keySize();
+        }
+    }
+
+    @Override
+    public void processBlock(byte[] in, int ofsi, byte[] out, int ofso) {
+        processBlocks(in, ofsi, out, ofso, 1);
+    }
+
+    @Override
+    public void processBlocks(byte[] in, int ofsi, byte[] out, int ofso, int count) {
+        final int c = this.stages.length;
+        for (int i = 0; i < c; i++) {
+            final BlockCipher stage = this.stages[Mode.ENCRYPT == this.mode ? i : c - 1 - i];
+            // (first stage moves the data to the output, all others work there)
+            if (0 == i) {
+                stage.processBlocks(in, ofsi, out, ofso, count);
+            }
+            else {
+                stage.processBlocks(out, ofso, out, ofso, count);
+            }
+        }
+    }
+
+    @Override
+    public void processBlocks(ByteBuffer buf, int ofs, int count) {
+        final int c = this.stages.length;
+        for (int i = 0; i < c; i++) {
+            this.stages[Mode.ENCRYPT == this.mode ? i : c - 1 - i].processBlocks(buf, ofs, count);
+        }
+    }
+
+    @Override
+    public Object clone() {
+        final Cascade result;
+        try {
+            result = getClass().newInstance();
+        }
+        catch (Exception e) {
+            throw new Error(e);
+        }
+        result.mode = this.mode;
+        for (int i = 0; i < this.stages.length; i++) {
+            result.stages[i] = (BlockCipher)this.stages[i].clone();
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /** AES-Twofish, meaning Twofish encrypts first. */
+    public static class AESTwofish extends Cascade {
+        public AESTwofish() {
+            super("AES-Twofish", new BlockCipher[] {
+                    new Twofish(), new AES256() });
+        }
+    }
+
+    /** AES-Twofish-Serpent, meaning Serpent encrypts first. */
+    public static class AESTwofishSerpent extends Cascade {
+        public AESTwofishSerpent() {
+            super("AES-Twofish-Serpent", new BlockCipher[] {
+                    new Serpent(), new Twofish(), new AES256() });
+        }
+    }
+
+    /** Serpent-AES, meaning AES encrypts first. */
+    public static class SerpentAES extends Cascade {
+        public SerpentAES() {
+            super("Serpent-AES", new BlockCipher[] {
+                    new AES256(), new Serpent() });
+        }
+    }
+
+    /** Serpent-Twofish-AES, meaning AES encrypts first. */
+    public static class SerpentTwofishAES extends Cascade {
+        public SerpentTwofishAES() {
+            super("Serpent-Twofish-AES", new BlockCipher[] {
+                    new AES256(), new Twofish(), new Serpent() });
+        }
+    }
+
+    /** Twofish-Serpent, meaning Serpent encrypts first. */
+    public static class TwofishSerpent extends Cascade {
+        public TwofishSerpent() {
+            super("Twofish-Serpent", new BlockCipher[] {
+                    new Serpent(), new Twofish() });
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        final int BLOCKS = 5;
+
+        byte[] key = new byte[keySize() + 1];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)(i * 3 + 1);
+        }
+        byte[] ptxt = new byte[BLOCK_SIZE * BLOCKS];
+        for (int i = 0; i < ptxt.length; i++) {
+            ptxt[i] = (byte)i;
+        }
+
+        // has to be the same as running the stages one after the other, each
+        // with its own part of the key ...
+        byte[] ref = ptxt.clone();
+        int kofs = 1;
+        for (BlockCipher stage : this.stages) {
+            BlockCipher bc = stage.getClass().newInstance();
+            bc.initialize(Mode.ENCRYPT, key, kofs);
+            bc.processBlocks(ref, 0, ref, 0, BLOCKS);
+            kofs += bc.keySize();
+        }
+
+        Cascade enc = getClass().newInstance();
+        enc.initialize(Mode.ENCRYPT, key, 1);
+        byte[] ctxt = new byte[ptxt.length];
+        enc.processBlocks(ptxt, 0, ctxt, 0, BLOCKS);
+        if (!BinUtils.arraysEquals(ctxt, ref)) {
+            throw new Exception();
+        }
+
+        Cascade dec = getClass().newInstance();
+        dec.initialize(Mode.DECRYPT, key, 1);
+        ByteBuffer dbuf = ByteBuffer.allocateDirect(ctxt.length);
+        dbuf.put(ctxt);
+        dec.processBlocks(dbuf, 0, BLOCKS);
+        byte[] ptxt2 = new byte[ptxt.length];
+        dbuf.clear();
+        dbuf.get(ptxt2);
+        if (!BinUtils.arraysEquals(ptxt2, ptxt)) {
+            throw new Exception();
+        }
+
+        Cascade dec2 = (Cascade)dec.clone();
+        dec.erase();
+        dec2.processBlocks(ctxt, 0, ptxt2, 0, BLOCKS);
+        if (!BinUtils.arraysEquals(ptxt2, ptxt)) {
+            throw new Exception();
+        }
+    }
+}
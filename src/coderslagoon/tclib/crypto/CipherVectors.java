@@ -0,0 +1,117 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import coderslagoon.baselib.util.BinUtils;
+
+/**
+ * Common self-test for block ciphers: known answers in both directions, many
+ * chained encryptions to catch errors the few vectors might miss, bulk versus
+ * single block processing, and that clones survive the erasure of the
+ * original.
+ */
+class CipherVectors {
+    private CipherVectors() {
+    }
+
+    /**
+     * Runs the test.
+     * @param bc The block cipher, its class gets used for new instances.
+     * @param vectors Key, plaintext and ciphertext, as hex strings.
+     * @param chained The expected result of encrypting the plaintext of the
+     * last vector 1000 times in a row, with the key of the last vector.
+     * @throws Throwable If any test failed.
+     */
+    static void check(BlockCipher bc, String[][] vectors, String chained) throws Throwable {
+        final Class<? extends BlockCipher> clz = bc.getClass();
+        final int bsz = bc.blockSize();
+
+        byte[] key = null, ptxt = null, ctxt = null;
+        byte[] blk = new byte[bsz];
+        for (String[] v : vectors) {
+            key  = BinUtils.hexStrToBytes(v[0]);
+            ptxt = BinUtils.hexStrToBytes(v[1]);
+            ctxt = BinUtils.hexStrToBytes(v[2]);
+
+            // (keys do not have to start at the beginning of a buffer)
+            byte[] kbuf = new byte[key.length + 3];
+            System.arraycopy(key, 0, kbuf, 3, key.length);
+
+            BlockCipher enc = clz.newInstance();
+            enc.initialize(BlockCipher.Mode.ENCRYPT, kbuf, 3);
+            enc.processBlock(ptxt, 0, blk, 0);
+            if (!BinUtils.arraysEquals(blk, ctxt)) {
+                throw new Exception();
+            }
+            BlockCipher dec = clz.newInstance();
+            dec.initialize(BlockCipher.Mode.DECRYPT, kbuf, 3);
+            dec.processBlock(blk, 0, blk, 0);
+            if (!BinUtils.arraysEquals(blk, ptxt)) {
+                throw new Exception();
+            }
+        }
+
+        BlockCipher enc = clz.newInstance();
+        BlockCipher dec = clz.newInstance();
+        enc.initialize(BlockCipher.Mode.ENCRYPT, key, 0);
+        dec.initialize(BlockCipher.Mode.DECRYPT, key, 0);
+        System.arraycopy(ptxt, 0, blk, 0, bsz);
+        for (int i = 0; i < 1000; i++) {
+            enc.processBlock(blk, 0, blk, 0);
+        }
+        if (!BinUtils.arraysEquals(blk, BinUtils.hexStrToBytes(chained))) {
+            throw new Exception();
+        }
+        for (int i = 0; i < 1000; i++) {
+            dec.processBlock(blk, 0, blk, 0);
+        }
+        if (!BinUtils.arraysEquals(blk, ptxt)) {
+            throw new Exception();
+        }
+
+        // bulk processing, also into a different buffer
+        final int BLOCKS = 33;
+        byte[] blks = new byte[bsz * BLOCKS];
+        for (int i = 0; i < blks.length; i++) {
+            blks[i] = (byte)(i * 7);
+        }
+        byte[] blks2 = blks.clone();
+        byte[] blks3 = new byte[blks.length + 1];
+        enc.processBlocks(blks, 0, blks3, 1, BLOCKS);
+        enc.processBlocks(blks, 0, blks, 0, BLOCKS);
+        for (int ofs = 0; ofs < blks2.length; ofs += bsz) {
+            enc.processBlock(blks2, ofs, blks2, ofs);
+        }
+        if (!BinUtils.arraysEquals(blks, blks2) ||
+            !BinUtils.arraysEquals(blks, 0, blks3, 1, blks.length)) {
+            throw new Exception();
+        }
+
+        BlockCipher enc2 = (BlockCipher)enc.clone();
+        enc.erase();
+        enc.processBlock(ptxt, 0, blk, 0);
+        if (BinUtils.arraysEquals(blk, ctxt)) {
+            throw new Exception();
+        }
+        enc2.processBlock(ptxt, 0, blk, 0);
+        if (!BinUtils.arraysEquals(blk, ctxt)) {
+            throw new Exception();
+        }
+    }
+}
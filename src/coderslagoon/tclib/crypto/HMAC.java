@@ -30,6 +30,7 @@ public class HMAC implements Hash.Producer {
     
     private Hash.Function hfnc;
     private byte[] k_opad, k_ipad;
+    private Hash.State s_opad, s_ipad;
     private String name;
 
     /**
@@ -56,6 +57,8 @@ public class HMAC implements Hash.Producer {
     public void erase() {
         if (null != this.k_opad) Arrays.fill(this.k_opad, (byte)0);
         if (null != this.k_ipad) Arrays.fill(this.k_ipad, (byte)0);
+        if (null != this.s_opad) this.s_opad.erase();
+        if (null != this.s_ipad) this.s_ipad.erase();
         if (null != this.hfnc) this.hfnc.erase();
     }
 
@@ -64,7 +67,8 @@ public class HMAC implements Hash.Producer {
 
     /**
      * Reset the instance with a new key.
-     * @param key The key material.
+     * @param key The key material. If null the instance gets reset to the
+     * current key, which is much cheaper.
      * @param ofs Where the key material is stored.
      * @param len Length of the key material in bytes.
      */
@@ -92,17 +96,25 @@ public class HMAC implements Hash.Producer {
                 this.k_opad[i] = OPAD_VALUE;
                 this.k_ipad[i] = IPAD_VALUE;
             }
+
+            // the pads fill exactly one block each, so we keep the states
+            // after absorbing them and save two compressions per hash...
+            this.hfnc.reset();
+            this.hfnc.update(this.k_opad, 0, this.k_opad.length);
+            this.s_opad = this.hfnc.snapshot(this.s_opad);
+            this.hfnc.reset();
+            this.hfnc.update(this.k_ipad, 0, this.k_ipad.length);
+            this.s_ipad = this.hfnc.snapshot(this.s_ipad);
+            return;
         }
 
-        this.hfnc.reset();
-        this.hfnc.update(this.k_ipad, 0, this.k_opad.length);
+        this.hfnc.restore(this.s_ipad);
     }
 
     @Override
     public void hash(byte[] hash, int ofs) {
         this.hfnc.hash(hash, ofs);
-        this.hfnc.reset();
-        this.hfnc.update(this.k_opad, 0, this.k_opad.length);
+        this.hfnc.restore(this.s_opad);
         this.hfnc.update(hash, ofs, this.hfnc.hashSize());
         this.hfnc.hash(hash, ofs);
     }
@@ -18,6 +18,8 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.crypto;
 
+import coderslagoon.tclib.util.Erasable;
+
 /**
  * Hash algorithm abstraction.
  */
@@ -61,5 +63,26 @@ public interface Hash {
          * This is the value which makes brute force password guessing slow.
          */
         int recommededHMACIterations();
+        /**
+         * Captures the current internal state, e.g. after the first block of
+         * an HMAC got absorbed, so it can be restored over and over again
+         * instead of hashing the same data repeatedly.
+         * @param state Instance to store the state into, recycling it. Can be
+         * null, to create a new one.
+         * @return The state. Must be erased after use.
+         */
+        State snapshot(State state);
+        /**
+         * Restores a state captured by snapshot(), the function then behaves
+         * exactly like at the time the snapshot was taken.
+         * @param state The state to restore. Must originate from the same
+         * kind of function.
+         */
+        void restore(State state);
+    }
+    /**
+     * Opaque internal state of a hash function.
+     */
+    public interface State extends Erasable {
     }
 }
@@ -0,0 +1,118 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import coderslagoon.baselib.util.BinUtils;
+
+/**
+ * Common self-test for hash functions, covering what TrueCrypt needs them for:
+ * hashing data fed in pieces, the snapshots HMAC relies on, HMAC itself and
+ * the PBKDF2 key derivation as done for headers.
+ */
+class HashVectors {
+    private HashVectors() {
+    }
+
+    /**
+     * Runs the test.
+     * @param hfunc The hash function, its class gets used for new instances.
+     * @param sizes Sizes of the data, which is always 0,1,2,...
+     * @param hashes The expected hashes for each of the sizes.
+     * @param hmac The expected HMAC of "what do ya want for nothing?" with the
+     * key "Jefe".
+     * @param pbkdf2 The expected 64 byte key derived from the password
+     * "password", 64 salt bytes 0,1,2,... and 1000 iterations.
+     * @throws Throwable If any test failed.
+     */
+    static void check(Hash.Function hfunc,
+                      int[] sizes, String[] hashes,
+                      String hmac, String pbkdf2) throws Throwable {
+        final Class<? extends Hash.Function> clz = hfunc.getClass();
+
+        int c = sizes[sizes.length - 1];
+        byte[] data = new byte[c];
+        for (int i = 0; i < c; i++) {
+            data[i] = (byte)i;
+        }
+        byte[] hash = new byte[hfunc.hashSize()];
+        for (int i = 0; i < sizes.length; i++) {
+            Hash.Function hf = clz.newInstance();
+            final int CSZ = 11;
+            int ofs = 0, sz = sizes[i];
+            while (ofs < sz) {
+                int tohash = Math.min(sz - ofs, CSZ);
+                hf.update(data, ofs, tohash);
+                ofs += tohash;
+            }
+            hf.hash(hash, 0);
+            if (!BinUtils.arraysEquals(hash, BinUtils.hexStrToBytes(hashes[i]))) {
+                throw new Exception();
+            }
+            // same after a reset, in one go
+            hf.reset();
+            hf.update(data, 0, sz);
+            hf.hash(hash, 0);
+            if (!BinUtils.arraysEquals(hash, BinUtils.hexStrToBytes(hashes[i]))) {
+                throw new Exception();
+            }
+            hf.erase();
+        }
+
+        // a restored state must continue exactly like the original one did
+        Hash.Function hf = clz.newInstance();
+        hf.update(data, 0, 37);
+        Hash.State st = hf.snapshot(null);
+        hf.update(data, 37, c - 37);
+        hf.hash(hash, 0);
+        for (int i = 0; i < 2; i++) {
+            hf.reset();
+            hf.update(data, 0, 5);
+            hf.restore(st);
+            hf.update(data, 37, c - 37);
+            byte[] hash2 = new byte[hash.length];
+            hf.hash(hash2, 0);
+            if (!BinUtils.arraysEquals(hash, hash2)) {
+                throw new Exception();
+            }
+        }
+        st = hf.snapshot(st);
+        st.erase();
+        hf.erase();
+
+        HMAC hm = new HMAC();
+        hm.initialize(clz.newInstance(), "Jefe".getBytes(), 0, 4);
+        final byte[] msg = "what do ya want for nothing?".getBytes();
+        hm.update(msg, 0, msg.length);
+        hm.hash(hash, 0);
+        if (!BinUtils.arraysEquals(hash, BinUtils.hexStrToBytes(hmac))) {
+            throw new Exception();
+        }
+        hm.erase();
+
+        PKCS5.PBKDF2 kdf = new PKCS5.PBKDF2(clz.newInstance());
+        kdf.setParallel(false);
+        byte[] salt = new byte[64];
+        System.arraycopy(data, 0, salt, 0, salt.length);
+        byte[] key = kdf.deriveKey("password".getBytes(), salt, 1000, 64);
+        if (!BinUtils.arraysEquals(key, BinUtils.hexStrToBytes(pbkdf2))) {
+            throw new Exception();
+        }
+        kdf.erase();
+    }
+}
@@ -18,9 +18,18 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.crypto;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.baselib.util.Prp;
 
 
 public class PKCS5 {
@@ -29,6 +38,11 @@ public class PKCS5 {
      * PKCS5/PBKDF2 key derivation implementation.
      */
     public static class PBKDF2 implements Algorithm {
+        protected static class Props {
+            public final static String PFX = "tclib.pbkdf2.";
+            public final static Prp.Bool PARALLEL = new Prp.Bool(PFX + "parallel", true);
+        }
+
 
         private HMAC hmac;
         private Hash.Function hfunc;
@@ -51,59 +65,240 @@ public class PKCS5 {
          * @param salt The salt value.
          * @param iterations Number of iteration to make brute forcing harder.
          * @param keyLen The size of the key to generate.
-         * @return The derived key material.
+         * @return The derived key material. Null if the derivation got
+         * interrupted, which can only happen if enabled by setInterruptible().
          */
         public byte[] deriveKey(
                 byte[] passw, byte[] salt,
                 int iterations,
                 int keyLen) {
             byte[] result = new byte[keyLen];
+            return deriveKey(passw, passw.length, salt, iterations, result) ?
+                   result : null;
+        }
 
-            final int J = 0;
+        /**
+         * Derive a key into a given buffer. Unless done in parallel nothing
+         * gets allocated, so it is the way to go for testing many passwords
+         * one after the other with the same instance.
+         * @param passw The buffer holding the password bytes.
+         * @param passwLen Number of password bytes, from the buffer's start.
+         * @param salt The salt value.
+         * @param iterations Number of iteration to make brute forcing harder.
+         * @param result Where to store the key, its length is the key size.
+         * @return False if the derivation got interrupted, which can only
+         * happen if enabled by setInterruptible(). The result is zeroed then.
+         */
+        public boolean deriveKey(
+                byte[] passw, int passwLen, byte[] salt,
+                int iterations,
+                byte[] result) {
             final int K = this.hfunc.hashSize();
-            final int U = this.hfunc.hashSize() << 1;
-            final int B = K + U;
-            final byte[] tmp = new byte[K + U + 4];
 
             HMAC hmac = this.hmac;
-            hmac.initialize(this.hfunc, passw, 0, passw.length);
+            if (this.keyed) {
+                hmac.reset(passw, 0, passwLen);
+            }
+            else {
+                hmac.initialize(this.hfunc, passw, 0, passwLen);
+                this.keyed = true;
+            }
 
-            for (int kpos = 0, blk = 1; kpos < keyLen; kpos += K, blk++) {
-                BinUtils.writeInt32BE(blk, tmp, B);
+            if (this.parallel && K < result.length && 1 < CPUS) {
+                if (deriveBlocksParallel(passw, passwLen, salt, iterations, result)) {
+                    return true;
+                }
+                Arrays.fill(result, (byte)0);
+                return false;
+            }
 
+            if (null == this.tmp) {
+                this.tmp = new byte[3 * K + 4];
+            }
+            for (int kpos = 0, blk = 1; kpos < result.length; kpos += K, blk++) {
+                if (!deriveBlock(hmac, salt, iterations, blk, result, kpos,
+                                 this.interruptible, this.tmp)) {
+                    Arrays.fill(result, (byte)0);
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        /**
+         * Computes one output block of the key.
+         * @param hmac The HMAC instance, initialized with the password.
+         * @param salt The salt value.
+         * @param iterations Number of iterations.
+         * @param blk The (1-based) index of the block.
+         * @param result Where to store the block.
+         * @param kpos Where the block starts in the result buffer. If less
+         * bytes than the hash size are left only these get stored.
+         * @param interruptible True to stop early if the current thread got
+         * interrupted.
+         * @param tmp Scratch buffer, three times the hash size plus four bytes.
+         * Gets cleared before returning.
+         * @return False if stopped early, meaning nothing got stored.
+         */
+        static boolean deriveBlock(
+                HMAC hmac, byte[] salt,
+                int iterations,
+                int blk, byte[] result, int kpos,
+                boolean interruptible,
+                byte[] tmp) {
+            final int J = 0;
+            final int K = hmac.hashSize();
+            final int U = K << 1;
+            final int B = K + U;
+
+            BinUtils.writeInt32BE(blk, tmp, B);
+
+            hmac.reset(null, 0, 0);
+            hmac.update(salt, 0, salt.length);
+            hmac.update(tmp, B, 4);
+            hmac.hash(tmp, U);
+            System.arraycopy(tmp, U, tmp, J, K);
+
+            for (int i = 1, j = J, k = K; i < iterations; i++) {
+                if (interruptible && 0 == (i & 0xff) &&
+                    Thread.currentThread().isInterrupted()) {
+                    Arrays.fill(tmp, (byte)0);
+                    return false;
+                }
                 hmac.reset(null, 0, 0);
-                hmac.update(salt, 0, salt.length);
-                hmac.update(tmp, B, 4);
-                hmac.hash(tmp, U);
-                System.arraycopy(tmp, U, tmp, J, K);
-
-                for (int i = 1, j = J, k = K; i < iterations; i++) {
-                    hmac.reset(passw, 0, passw.length);
-                    hmac.update(tmp, j, K);
-                    hmac.hash(tmp, k);
-
-                    for (int u = U, v = k; u < B; u++, v++) {
-                        tmp[u] ^= tmp[v];
-                    }
+                hmac.update(tmp, j, K);
+                hmac.hash(tmp, k);
 
-                    int swp = k;
-                    k = j;
-                    j = swp;
+                for (int u = U, v = k; u < B; u++, v++) {
+                    tmp[u] ^= tmp[v];
                 }
 
-                int tocpy = Math.min(keyLen - kpos, K);
-                System.arraycopy(tmp, U, result, kpos, tocpy);
+                int swp = k;
+                k = j;
+                j = swp;
             }
 
+            int tocpy = Math.min(result.length - kpos, K);
+            System.arraycopy(tmp, U, result, kpos, tocpy);
+
             Arrays.fill(tmp, (byte)0);
+            return true;
+        }
 
-            return result;
+        // the first block is computed by the calling thread, all of the
+        // others get handed out to the pool, each with its own HMAC; returns
+        // false if interrupted (and allowed to be), with the pool work cancelled
+        private boolean deriveBlocksParallel(
+                final byte[] passw, final int passwLen, final byte[] salt,
+                final int iterations,
+                final byte[] result) {
+            final int K = this.hfunc.hashSize();
+            final List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int kpos = K, blk = 2; kpos < result.length; kpos += K, blk++) {
+                final int kpos_ = kpos, blk_ = blk;
+                futures.add(executor().submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        HMAC hmac = new HMAC();
+                        hmac.initialize(PBKDF2.this.hfunc.getClass().newInstance(),
+                                        passw, 0, passwLen);
+                        try {
+                            if (!deriveBlock(hmac, salt, iterations, blk_, result, kpos_,
+                                             PBKDF2.this.interruptible, new byte[3 * K + 4])) {
+                                throw new InterruptedException();
+                            }
+                        }
+                        finally {
+                            hmac.erase();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            boolean interrupted = !deriveBlock(this.hmac, salt, iterations, 1,
+                                               result, 0, this.interruptible,
+                                               new byte[3 * K + 4]);
+            for (Future<?> future : futures) {
+                for (;;) {
+                    if (interrupted && this.interruptible) {
+                        break;
+                    }
+                    try {
+                        future.get();
+                        break;
+                    }
+                    catch (InterruptedException ie) {
+                        // unless allowed otherwise we have to wait for the
+                        // result in any case...
+                        interrupted = true;
+                    }
+                    catch (ExecutionException ee) {
+                        throw new Error(ee.getCause());
+                    }
+                }
+            }
+            if (interrupted && this.interruptible) {
+                for (Future<?> future : futures) {
+                    future.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+
+        /**
+         * Enables or disables parallel derivation of the output blocks. The
+         * default is determined by the Props.PARALLEL property.
+         * @param parallel True to compute output blocks concurrently.
+         */
+        public void setParallel(boolean parallel) {
+            this.parallel = parallel;
+        }
+
+        /**
+         * Allows derivation to be stopped by interrupting the calling thread,
+         * e.g. if the result isn't needed anymore. The default is to ignore
+         * interrupts and always derive the whole key.
+         * @param interruptible True to stop early if interrupted.
+         */
+        public void setInterruptible(boolean interruptible) {
+            this.interruptible = interruptible;
+        }
+
+        private boolean parallel = Props.PARALLEL.get();
+        private boolean interruptible;
+        private boolean keyed;
+        private byte[] tmp;
+
+        private final static int CPUS = Runtime.getRuntime().availableProcessors();
+
+        private static ExecutorService _executor;
+
+        private synchronized static ExecutorService executor() {
+            if (null == _executor) {
+                _executor = Executors.newFixedThreadPool(CPUS, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread result = new Thread(r, "pbkdf2");
+                        result.setDaemon(true);
+                        return result;
+                    }
+                });
+            }
+            return _executor;
         }
 
         @Override
         public void erase() {
             this.hfunc.erase();
             this.hmac.erase();
+            this.keyed = false;
+            if (null != this.tmp) {
+                Arrays.fill(this.tmp, (byte)0);
+            }
         }
 
         @Override
@@ -113,7 +308,13 @@ public class PKCS5 {
 
         @Override
         public void test() throws Throwable {
+            test(false);
+            test(true);
+        }
+
+        static void test(boolean parallel) throws Throwable {
             PBKDF2 inst = new PBKDF2(new RIPEMD160());
+            inst.setParallel(parallel);
 
             byte[] key = inst.deriveKey("password".getBytes(),
                     new byte[] { 0x12, 0x34, 0x56, 0x78, }, 5, 4);
@@ -63,7 +63,7 @@ public class RIPEMD160 implements Hash.Function {
 
     @Override
     public void hash(byte[] hash, int ofs) {
-        final byte[] size = new byte[8];
+        final byte[] size = this.size;
         BinUtils.writeInt64LE(this.count, size, 0);
 
         int padlen = BLOCK_SIZE - (((int)this.count >> 3) & 0x3f);
@@ -89,6 +89,34 @@ public class RIPEMD160 implements Hash.Function {
         this.state[4] = 0xc3d2e1f0;
     }
 
+    @Override
+    public Hash.State snapshot(Hash.State state) {
+        State result = null == state ? new State() : (State)state;
+        System.arraycopy(this.state, 0, result.state, 0, this.state.length);
+        System.arraycopy(this.buf, 0, result.buf, 0, ((int)this.count >> 3) & 0x3f);
+        result.count = this.count;
+        return result;
+    }
+
+    @Override
+    public void restore(Hash.State state) {
+        State st = (State)state;
+        System.arraycopy(st.state, 0, this.state, 0, this.state.length);
+        System.arraycopy(st.buf, 0, this.buf, 0, ((int)st.count >> 3) & 0x3f);
+        this.count = st.count;
+    }
+
+    static class State implements Hash.State {
+        final int[] state = new int[5];
+        final byte[] buf = new byte[BLOCK_SIZE];
+        long count;
+        public void erase() {
+            Arrays.fill(this.state, 0);
+            Arrays.fill(this.buf, (byte)0);
+            this.count = 0L;
+        }
+    }
+
     @Override
     public void update(final byte[] input, int ofs, final int len) {
         int rest = ((int)this.count >> 3) & 0x3f;
@@ -119,6 +147,7 @@ public class RIPEMD160 implements Hash.Function {
     private final int[] block = new int[16];
     private long count;
     private final byte[] buf = new byte[BLOCK_SIZE];
+    private final byte[] size = new byte[8];
 
     private final static byte[] PADDING = new byte[BLOCK_SIZE]; {
         PADDING[0] = (byte)0x80;
@@ -430,5 +459,24 @@ public class RIPEMD160 implements Hash.Function {
                 throw new Exception();
             }
         }
+        // restoring a snapshot must continue exactly where it was taken
+        byte[] hash2 = new byte[HASH_SIZE];
+        byte[] junk = new byte[100];
+        for (final int split : new int[] { 0, 11, 64, 75, 128 }) {
+            re.reset();
+            re.update(refData, 0, refData.length);
+            re.hash(hash, 0);
+            re.reset();
+            re.update(refData, 0, split);
+            Hash.State st = re.snapshot(null);
+            re.update(junk, 0, junk.length);
+            re.restore(st);
+            re.update(refData, split, refData.length - split);
+            re.hash(hash2, 0);
+            if (!BinUtils.arraysEquals(hash, hash2)) {
+                throw new Exception();
+            }
+            st.erase();
+        }
     }
 }
@@ -0,0 +1,463 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+
+package coderslagoon.tclib.crypto;
+
+import java.util.Arrays;
+
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.baselib.util.Prp;
+
+
+/**
+ * PBKDF2-HMAC-RIPEMD160 key derivation for multiple passwords at once. The
+ * compression function runs over a number of lanes side by side, with all of
+ * the state kept as structure of arrays, so the processor can work on several
+ * independent dependency chains (or even vectorize the lane loops) instead of
+ * stalling on one single chain as the regular implementation does. Meant for
+ * throughput, e.g. password searches, not for the occasional key derivation.
+ * The lane count should be wide enough for the lane loops to get compiled
+ * into vector instructions, a handful of lanes does not really pay off.
+ */
+public class RIPEMD160Lanes implements Algorithm {
+    protected static class Props {
+        public final static String PFX = "tclib.ripemd160lanes.";
+        public final static Prp.Int LANES = new Prp.Int(PFX + "lanes", 256);
+    }
+
+    private final static int HASH_SIZE  = 20;
+    private final static int BLOCK_SIZE = 64;
+
+    private final static int HASH_WORDS  = HASH_SIZE  >> 2;
+    private final static int BLOCK_WORDS = BLOCK_SIZE >> 2;
+
+    final int lanes;
+    int active;
+
+    // all of these are [word][lane] ...
+    final int[][] ipad;
+    final int[][] opad;
+    final int[][] isalt;
+    final int[][] u;
+    final int[][] t;
+    final int[][] h;
+    final int[][] x;
+    final int[][] vl;
+    final int[][] vr;
+
+    final byte[] kpad = new byte[BLOCK_SIZE];
+    final byte[] tail = new byte[BLOCK_SIZE << 1];
+    final RIPEMD160 rmd = new RIPEMD160();
+
+    /**
+     * Default constructor, the number of lanes is determined by the
+     * Props.LANES property.
+     */
+    public RIPEMD160Lanes() {
+        this(Props.LANES.get());
+    }
+
+    /**
+     * Constructor.
+     * @param lanes Number of passwords to process side by side.
+     */
+    public RIPEMD160Lanes(int lanes) {
+        this.lanes = lanes;
+        this.ipad  = new int[HASH_WORDS ][lanes];
+        this.opad  = new int[HASH_WORDS ][lanes];
+        this.isalt = new int[HASH_WORDS ][lanes];
+        this.u     = new int[HASH_WORDS ][lanes];
+        this.t     = new int[HASH_WORDS ][lanes];
+        this.h     = new int[HASH_WORDS ][lanes];
+        this.x     = new int[BLOCK_WORDS][lanes];
+        this.vl    = new int[HASH_WORDS ][lanes];
+        this.vr    = new int[HASH_WORDS ][lanes];
+    }
+
+    /** @return Number of lanes, meaning the maximum number of passwords. */
+    public int lanes() {
+        return this.lanes;
+    }
+
+    @Override
+    public String name() {
+        return "RIPEMD-160";
+    }
+
+    @Override
+    public void erase() {
+        for (int[][] ia : new int[][][] {
+                this.ipad, this.opad, this.isalt, this.u,
+                this.t, this.h, this.x, this.vl, this.vr }) {
+            fill(ia, 0);
+        }
+        Arrays.fill(this.kpad, (byte)0);
+        Arrays.fill(this.tail, (byte)0);
+        this.rmd.erase();
+    }
+
+    /**
+     * Derives keys for multiple passwords, the very same way PKCS5.PBKDF2
+     * does it with a RIPEMD160 instance.
+     * @param passws The passwords.
+     * @param count Number of passwords to process, at most lanes().
+     * @param salt The salt value.
+     * @param iterations Number of iterations.
+     * @param keys Where to store the keys, one array per password. The key
+     * length is determined by the size of each of the arrays, which must be
+     * the same for all of them.
+     */
+    public void deriveKeys(byte[][] passws, int count,
+                           byte[] salt, int iterations,
+                           byte[][] keys) {
+        deriveKeys(passws, null, count, salt, iterations, keys);
+    }
+
+    /**
+     * Derives keys for multiple passwords held by buffers which might be
+     * larger than the passwords themselves, so they can be reused.
+     * @param passws The password buffers.
+     * @param lens The length of each password, null if the buffer lengths
+     * are the password lengths.
+     * @param count Number of passwords to process, at most lanes().
+     * @param salt The salt value.
+     * @param iterations Number of iterations.
+     * @param keys Where to store the keys, see above.
+     */
+    public void deriveKeys(byte[][] passws, int[] lens, int count,
+                           byte[] salt, int iterations,
+                           byte[][] keys) {
+        if (count > this.lanes || 0 > count) {
+            throw new IllegalArgumentException();
+        }
+        if (0 == count) {
+            return;
+        }
+        final int[][] x = this.x;
+        final int[][] h = this.h;
+
+        // lanes beyond the count just get left alone, whatever is in there ...
+        this.active = count;
+
+        // inner and outer pad states, per lane ...
+        for (int pass = 0; pass < 2; pass++) {
+            final byte pad = 0 == pass ? (byte)0x36 : (byte)0x5c;
+            for (int lane = 0; lane < count; lane++) {
+                loadKeyPad(passws[lane], null == lens ?
+                           passws[lane].length : lens[lane], pad, lane);
+            }
+            initState(h);
+            compress(h);
+            copy(h, 0 == pass ? this.ipad : this.opad);
+        }
+
+        // the complete blocks of the salt are the same for all of the output
+        // blocks, so they get hashed only once ...
+        final int saltOfs = salt.length - salt.length % BLOCK_SIZE;
+        copy(this.ipad, this.isalt);
+        for (int ofs = 0; ofs < saltOfs; ofs += BLOCK_SIZE) {
+            for (int w = 0; w < BLOCK_WORDS; w++) {
+                Arrays.fill(x[w], BinUtils.readInt32LE(salt, ofs + (w << 2)));
+            }
+            compress(this.isalt);
+        }
+
+        final int keyLen = keys[0].length;
+        final byte[] tail = this.tail;
+        for (int kpos = 0, blk = 1; kpos < keyLen; kpos += HASH_SIZE, blk++) {
+            // U1 = HMAC(P, S || INT(blk)) ...
+            final int rest = salt.length - saltOfs;
+            System.arraycopy(salt, saltOfs, tail, 0, rest);
+            BinUtils.writeInt32BE(blk, tail, rest);
+            final int tlen = rest + 4;
+            final int tblocks = tlen + 9 > BLOCK_SIZE ? 2 : 1;
+            Arrays.fill(tail, tlen, tail.length, (byte)0);
+            tail[tlen] = (byte)0x80;
+            BinUtils.writeInt64LE((long)(BLOCK_SIZE + salt.length + 4) << 3,
+                    tail, tblocks * BLOCK_SIZE - 8);
+            copy(this.isalt, h);
+            for (int tb = 0; tb < tblocks; tb++) {
+                for (int w = 0; w < BLOCK_WORDS; w++) {
+                    Arrays.fill(x[w], BinUtils.readInt32LE(tail, tb * BLOCK_SIZE + (w << 2)));
+                }
+                compress(h);
+            }
+            outer();
+            copy(h, this.u);
+            copy(h, this.t);
+
+            // U2..Un, all lanes in lockstep ...
+            for (int i = 1; i < iterations; i++) {
+                loadHash(this.u);
+                copy(this.ipad, h);
+                compress(h);
+                outer();
+                for (int w = 0; w < HASH_WORDS; w++) {
+                    final int[] hw = h[w], uw = this.u[w], tw = this.t[w];
+                    for (int l = 0; l < count; l++) {
+                        tw[l] ^= uw[l] = hw[l];
+                    }
+                }
+            }
+
+            final int tocpy = Math.min(keyLen - kpos, HASH_SIZE);
+            for (int lane = 0; lane < count; lane++) {
+                final byte[] key = keys[lane];
+                for (int b = 0; b < tocpy; b++) {
+                    key[kpos + b] = (byte)(this.t[b >> 2][lane] >>> ((b & 3) << 3));
+                }
+            }
+        }
+        Arrays.fill(tail, (byte)0);
+    }
+
+    // HMAC key block, XORed with the pad, into the message words of a lane
+    private void loadKeyPad(byte[] passw, int len, byte pad, int lane) {
+        final byte[] kpad = this.kpad;
+        Arrays.fill(kpad, (byte)0);
+        if (len > BLOCK_SIZE) {
+            this.rmd.reset();
+            this.rmd.update(passw, 0, len);
+            this.rmd.hash(kpad, 0);
+        }
+        else {
+            System.arraycopy(passw, 0, kpad, 0, len);
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            kpad[i] ^= pad;
+        }
+        for (int w = 0; w < BLOCK_WORDS; w++) {
+            this.x[w][lane] = BinUtils.readInt32LE(kpad, w << 2);
+        }
+    }
+
+    // a hash value (of a message following the pad block) as the message,
+    // since RIPEMD-160 is little endian the words can be taken over as-is
+    private void loadHash(int[][] hv) {
+        final int[][] x = this.x;
+        copy(hv, x);
+        Arrays.fill(x[HASH_WORDS], 0x80);
+        for (int w = HASH_WORDS + 1; w < BLOCK_WORDS; w++) {
+            Arrays.fill(x[w], 0);
+        }
+        Arrays.fill(x[14], (BLOCK_SIZE + HASH_SIZE) << 3);
+    }
+
+    private void outer() {
+        loadHash(this.h);
+        copy(this.opad, this.h);
+        compress(this.h);
+    }
+
+    private static void initState(int[][] hv) {
+        Arrays.fill(hv[0], 0x67452301);
+        Arrays.fill(hv[1], 0xefcdab89);
+        Arrays.fill(hv[2], 0x98badcfe);
+        Arrays.fill(hv[3], 0x10325476);
+        Arrays.fill(hv[4], 0xc3d2e1f0);
+    }
+
+    // (copies as many words as the source has)
+    private static void copy(int[][] from, int[][] to) {
+        for (int w = 0; w < from.length; w++) {
+            System.arraycopy(from[w], 0, to[w], 0, from[w].length);
+        }
+    }
+
+    private static void fill(int[][] ia, int val) {
+        for (int[] i : ia) {
+            Arrays.fill(i, val);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    final static int[] R_L = {
+         0,  1,  2,  3,  4,  5,  6,  7,  8,  9, 10, 11, 12, 13, 14, 15,
+         7,  4, 13,  1, 10,  6, 15,  3, 12,  0,  9,  5,  2, 14, 11,  8,
+         3, 10, 14,  4,  9, 15,  8,  1,  2,  7,  0,  6, 13, 11,  5, 12,
+         1,  9, 11, 10,  0,  8, 12,  4, 13,  3,  7, 15, 14,  5,  6,  2,
+         4,  0,  5,  9,  7, 12,  2, 10, 14,  1,  3,  8, 11,  6, 15, 13 };
+    final static int[] R_R = {
+         5, 14,  7,  0,  9,  2, 11,  4, 13,  6, 15,  8,  1, 10,  3, 12,
+         6, 11,  3,  7,  0, 13,  5, 10, 14, 15,  8, 12,  4,  9,  1,  2,
+        15,  5,  1,  3,  7, 14,  6,  9, 11,  8, 12,  2, 10,  0,  4, 13,
+         8,  6,  4,  1,  3, 11, 15,  0,  5, 12,  2, 13,  9,  7, 10, 14,
+        12, 15, 10,  4,  1,  5,  8,  7,  6,  2, 13, 14,  0,  3,  9, 11 };
+    final static int[] S_L = {
+        11, 14, 15, 12,  5,  8,  7,  9, 11, 13, 14, 15,  6,  7,  9,  8,
+         7,  6,  8, 13, 11,  9,  7, 15,  7, 12, 15,  9, 11,  7, 13, 12,
+        11, 13,  6,  7, 14,  9, 13, 15, 14,  8, 13,  6,  5, 12,  7,  5,
+        11, 12, 14, 15, 14, 15,  9,  8,  9, 14,  5,  6,  8,  6,  5, 12,
+         9, 15,  5, 11,  6,  8, 13, 12,  5, 12, 13, 14, 11,  8,  5,  6 };
+    final static int[] S_R = {
+         8,  9,  9, 11, 13, 15, 15,  5,  7,  7,  8, 11, 14, 14, 12,  6,
+         9, 13, 15,  7, 12,  8,  9, 11,  7,  7, 12,  7,  6, 15, 13, 11,
+         9,  7, 15, 11,  8,  6,  6, 14, 12, 13,  5, 14, 13, 13,  7,  5,
+        15,  5,  8, 11, 14, 14,  6, 14,  6,  9, 12,  9, 12,  5, 15,  8,
+         8,  5, 12,  9, 12,  5, 14,  6,  8, 13,  6,  5, 15, 13, 11, 11 };
+
+    final static int[] K_L = { 0, RIPEMD160.KT_1, RIPEMD160.KT_2, RIPEMD160.KT_3, RIPEMD160.KT_4 };
+    final static int[] K_R = { RIPEMD160.KT_5, RIPEMD160.KT_6, RIPEMD160.KT_7, RIPEMD160.KT_8, 0 };
+
+    final static int[] F_L = { 0, 1, 2, 3, 4 };
+    final static int[] F_R = { 4, 3, 2, 1, 0 };
+
+    // one compression for all lanes, chaining values in and out
+    private void compress(int[][] hv) {
+        final int[][] vl = this.vl;
+        final int[][] vr = this.vr;
+        copy(hv, vl);
+        copy(hv, vr);
+
+        line(vl, R_L, S_L, K_L, F_L);
+        line(vr, R_R, S_R, K_R, F_R);
+
+        // after 80 steps the variables are back at their original places
+        final int[] h0 = hv[0], h1 = hv[1], h2 = hv[2], h3 = hv[3], h4 = hv[4];
+        final int[] l0 = vl[0], l1 = vl[1], l2 = vl[2], l3 = vl[3], l4 = vl[4];
+        final int[] r0 = vr[0], r1 = vr[1], r2 = vr[2], r3 = vr[3], r4 = vr[4];
+        final int L = this.active;
+        for (int l = 0; l < L; l++) {
+            final int tmp = h1[l] + l2[l] + r3[l];
+            h1[l] = h2[l] + l3[l] + r4[l];
+            h2[l] = h3[l] + l4[l] + r0[l];
+            h3[l] = h4[l] + l0[l] + r1[l];
+            h4[l] = h0[l] + l1[l] + r2[l];
+            h0[l] = tmp;
+        }
+    }
+
+    // Runs one line of the compression. Instead of shifting the variables
+    // around after each step their roles rotate, a is where e was before ...
+    private void line(int[][] v, int[] rs, int[] ss, int[] ks, int[] fs) {
+        final int[][] x = this.x;
+        final int L = this.active;
+        int i0 = 0;
+        for (int step = 0; step < 80; step++) {
+            final int[] A = v[ i0         ];
+            final int[] B = v[(i0 + 1) % 5];
+            final int[] C = v[(i0 + 2) % 5];
+            final int[] D = v[(i0 + 3) % 5];
+            final int[] E = v[(i0 + 4) % 5];
+            final int[] X = x[rs[step]];
+            final int s = ss[step];
+            final int k = ks[step >> 4];
+            switch (fs[step >> 4]) {
+            case 0:
+                for (int l = 0; l < L; l++) {
+                    final int c = C[l];
+                    final int a = A[l] + X[l] + k + (B[l] ^ c ^ D[l]);
+                    A[l] = ((a << s) | (a >>> (32 - s))) + E[l];
+                    C[l] = (c << 10) | (c >>> 22);
+                }
+                break;
+            case 1:
+                for (int l = 0; l < L; l++) {
+                    final int b = B[l], c = C[l];
+                    final int a = A[l] + X[l] + k + ((b & c) | (~b & D[l]));
+                    A[l] = ((a << s) | (a >>> (32 - s))) + E[l];
+                    C[l] = (c << 10) | (c >>> 22);
+                }
+                break;
+            case 2:
+                for (int l = 0; l < L; l++) {
+                    final int c = C[l];
+                    final int a = A[l] + X[l] + k + ((B[l] | ~c) ^ D[l]);
+                    A[l] = ((a << s) | (a >>> (32 - s))) + E[l];
+                    C[l] = (c << 10) | (c >>> 22);
+                }
+                break;
+            case 3:
+                for (int l = 0; l < L; l++) {
+                    final int c = C[l], d = D[l];
+                    final int a = A[l] + X[l] + k + ((B[l] & d) | (c & ~d));
+                    A[l] = ((a << s) | (a >>> (32 - s))) + E[l];
+                    C[l] = (c << 10) | (c >>> 22);
+                }
+                break;
+            default:
+                for (int l = 0; l < L; l++) {
+                    final int c = C[l];
+                    final int a = A[l] + X[l] + k + (B[l] ^ (c | ~D[l]));
+                    A[l] = ((a << s) | (a >>> (32 - s))) + E[l];
+                    C[l] = (c << 10) | (c >>> 22);
+                }
+                break;
+            }
+            i0 = (i0 + 4) % 5;
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        final byte[] SALT = BinUtils.hexStrToBytes(
+                "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f" +
+                "202122232425262728292a2b2c2d2e2f303132333435363738393a3b3c3d3e3f");
+
+        for (final int lanes : new int[] { 1, 3, 8 }) {
+            RIPEMD160Lanes rl = new RIPEMD160Lanes(lanes);
+            for (final byte[] salt : new byte[][] {
+                    SALT, new byte[0], Arrays.copyOf(SALT, 57), Arrays.copyOf(SALT, 60) }) {
+                for (final int iterations : new int[] { 0, 1, 11 }) {
+                    for (final int count : new int[] { lanes, 1, (lanes + 1) >> 1 }) {
+                        final byte[][] passws = new byte[count][];
+                        final byte[][] keys = new byte[count][];
+                        for (int i = 0; i < count; i++) {
+                            passws[i] = new byte[i * 11 % 77];
+                            Arrays.fill(passws[i], (byte)(i + 'a'));
+                            keys[i] = new byte[64];
+                        }
+                        rl.deriveKeys(passws, count, salt, iterations, keys);
+
+                        // same with the passwords in larger buffers
+                        final byte[][] bufs = new byte[count][80];
+                        final int[] lens = new int[count];
+                        final byte[][] keys2 = new byte[count][64];
+                        for (int i = 0; i < count; i++) {
+                            Arrays.fill(bufs[i], (byte)0xcc);
+                            System.arraycopy(passws[i], 0, bufs[i], 0, passws[i].length);
+                            lens[i] = passws[i].length;
+                        }
+                        rl.deriveKeys(bufs, lens, count, salt, iterations, keys2);
+                        for (int i = 0; i < count; i++) {
+                            if (!BinUtils.arraysEquals(keys[i], keys2[i])) {
+                                throw new Exception();
+                            }
+                        }
+
+                        PKCS5.PBKDF2 ref = new PKCS5.PBKDF2(new RIPEMD160());
+                        ref.setParallel(false);
+                        for (int i = 0; i < count; i++) {
+                            final byte[] key = ref.deriveKey(
+                                    passws[i], salt, iterations, keys[i].length);
+                            if (!BinUtils.arraysEquals(key, keys[i])) {
+                                throw new Exception();
+                            }
+                        }
+                        ref.erase();
+                    }
+                }
+            }
+            rl.erase();
+        }
+    }
+}
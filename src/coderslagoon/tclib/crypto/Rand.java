@@ -22,7 +22,9 @@ import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Random;
 
+import coderslagoon.baselib.util.BinUtils;
 import coderslagoon.baselib.util.BytePtr;
+import coderslagoon.baselib.util.Prp;
 import coderslagoon.tclib.util.Erasable;
 import coderslagoon.tclib.util.Testable;
 
@@ -101,7 +103,158 @@ public abstract class Rand implements Testable, Erasable {
     }
     
     ///////////////////////////////////////////////////////////////////////////
-    
+
+    protected static class Props {
+        public final static String PFX = "tclib.rand.";
+        public final static Prp.Lng RESEED = new Prp.Lng(PFX + "reseed", 1L << 24);
+    }
+
+    /**
+     * AES-CTR based generator, seeded from the global secure random instance.
+     * Output gets produced by encrypting counter blocks right in the target
+     * buffer, so large requests are cheap. After each request the instance
+     * rekeys itself, so former output can't be reconstructed from its state.
+     * Not thread-safe, see fast() for the shared use case.
+     */
+    public static class CTR extends Rand {
+        final static int BLOCK_SIZE = 16;
+        final static int KEY_SIZE = 32;
+
+        final long reseedInterval;
+        final byte[] tmp = new byte[KEY_SIZE + BLOCK_SIZE];
+        BlockCipher cipher;
+        long ctrHi, ctrLo;
+        long produced;
+        long seedings;
+
+        /**
+         * Default constructor.
+         * @param reseedInterval After how many bytes of output the instance
+         * gets seeded again from the global secure random instance. Zero to
+         * never reseed (after the initial seeding).
+         */
+        public CTR(long reseedInterval) {
+            this.reseedInterval = reseedInterval;
+        }
+
+        @Override
+        public void make(byte[] buf, int ofs, int len) {
+            if (null == this.cipher ||
+                (0L < this.reseedInterval && this.produced >= this.reseedInterval)) {
+                secure().nextBytes(this.tmp);
+                rekey();
+                // (counting starts over, otherwise every request after the
+                // first interval would go to the shared instance again)
+                this.produced = 0L;
+                this.seedings++;
+            }
+            generate(buf, ofs, len);
+            this.produced += len;
+
+            generate(this.tmp, 0, this.tmp.length);
+            rekey();
+        }
+
+        void generate(byte[] buf, int ofs, int len) {
+            final int blocks = len / BLOCK_SIZE;
+            for (int i = 0, o = ofs; i < blocks; i++, o += BLOCK_SIZE) {
+                BinUtils.writeInt64BE(this.ctrHi, buf, o);
+                BinUtils.writeInt64BE(this.ctrLo, buf, o + 8);
+                if (0L == ++this.ctrLo) {
+                    this.ctrHi++;
+                }
+            }
+            this.cipher.processBlocks(buf, ofs, buf, ofs, blocks);
+            final int rest = len - blocks * BLOCK_SIZE;
+            if (0 < rest) {
+                final byte[] blk = new byte[BLOCK_SIZE];
+                generate(blk, 0, BLOCK_SIZE);
+                System.arraycopy(blk, 0, buf, ofs + blocks * BLOCK_SIZE, rest);
+                Arrays.fill(blk, (byte)0);
+            }
+        }
+
+        void rekey() {
+            if (null == this.cipher) {
+                this.cipher = AES256JCE.available() ? new AES256JCE() : new AES256();
+            }
+            this.cipher.initialize(BlockCipher.Mode.ENCRYPT, this.tmp, 0);
+            this.ctrHi = BinUtils.readInt64BE(this.tmp, KEY_SIZE);
+            this.ctrLo = BinUtils.readInt64BE(this.tmp, KEY_SIZE + 8);
+            Arrays.fill(this.tmp, (byte)0);
+        }
+
+        @Override
+        public void erase() {
+            Arrays.fill(this.tmp, (byte)0);
+            if (null != this.cipher) {
+                this.cipher.erase();
+                this.cipher = null;
+            }
+            this.ctrHi = this.ctrLo = 0L;
+            this.produced = 0L;
+        }
+
+        @Override
+        public void test() throws Throwable {
+            CTR ctr = new CTR(100);
+            byte[] buf1 = new byte[1000];
+            byte[] buf2 = new byte[buf1.length];
+            ctr.make(buf1, 0, 333);
+            ctr.make(buf1, 333, buf1.length - 333);
+            ctr.make(buf2, 1, buf2.length - 2);
+            if (0 != buf2[0] || 0 != buf2[buf2.length - 1]) {
+                throw new Exception();
+            }
+            if (BinUtils.arraysEquals(buf1, buf2)) {
+                throw new Exception();
+            }
+            // (very weak check, but a stuck or zero output would show)
+            int[] hist = new int[256];
+            for (byte b : buf1) {
+                hist[b & 0xff]++;
+            }
+            for (int h : hist) {
+                if (h > 20) {
+                    throw new Exception();
+                }
+            }
+            ctr.erase();
+            ctr.make(buf1, 0, 15);
+            ctr.erase();
+        }
+    }
+
+    private final static ThreadLocal<CTR> _local = new ThreadLocal<CTR>() {
+        protected CTR initialValue() {
+            return new CTR(Props.RESEED.get());
+        }
+    };
+
+    private final static Rand _fast = new Rand() {
+        public void make(byte[] buf, int ofs, int len) {
+            _local.get().make(buf, ofs, len);
+        }
+        public void test() throws Throwable {
+            _local.get().test();
+        }
+        public void erase() {
+            _local.get().erase();
+        }
+    };
+
+    /**
+     * Provides a fast generator for bulk random data. It can be shared between
+     * threads, each one of them gets its own CTR instance behind the scenes,
+     * so there is no contention at all. Meant for filler and wiping only, since
+     * extra seed data does not reach an instance before its next reseed. Keys
+     * and salts should come from the secure instance instead.
+     * @return The fast random number generator.
+     */
+    public static Rand fast() {
+        return _fast;
+    }
+
     /**
      * Provides the global secure random number instance. It should be seeded
      * with extra data whenever possible, to provide even better randomness.
@@ -18,7 +18,9 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.crypto;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import coderslagoon.tclib.util.TCLibException;
@@ -30,8 +32,9 @@ import coderslagoon.tclib.util.TCLibException;
  * @param <T> The algorithm class the registry is storing.
  */
 public class Registry<T extends Algorithm> {
+    // (keeps the registration order, which is the order of decoding attempts)
     private Map<String, Class<? extends T>> map = new
-        HashMap<String, Class<? extends T>>();
+        LinkedHashMap<String, Class<? extends T>>();
 
     /**
      * Add a class to the registry.
@@ -73,6 +76,14 @@ public class Registry<T extends Algorithm> {
         return this.map.keySet().toArray(new String[0]);
     }
 
+    /**
+     * @return All of the registered algorithm classes, in the order they got
+     * registered in.
+     */
+    public List<Class<? extends T>> classes() {
+        return new ArrayList<Class<? extends T>>(this.map.values());
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     /** All of the supported block ciphers. */ 
@@ -91,8 +102,23 @@ public class Registry<T extends Algorithm> {
         clear();
 
         _blockCiphers.add(AES256.class, test);
-
+        if (AES256JCE.available()) {
+            // same name, so it replaces the table-driven implementation
+            _blockCiphers.add(AES256JCE.class, test);
+        }
+        _blockCiphers.add(Serpent.class, test);
+        _blockCiphers.add(Twofish.class, test);
+        // (cascades pick up the implementations registered so far)
+        _blockCiphers.add(Cascade.AESTwofish       .class, test);
+        _blockCiphers.add(Cascade.AESTwofishSerpent.class, test);
+        _blockCiphers.add(Cascade.SerpentAES       .class, test);
+        _blockCiphers.add(Cascade.SerpentTwofishAES.class, test);
+        _blockCiphers.add(Cascade.TwofishSerpent   .class, test);
+
+        // (TrueCrypt's order, the most common one first)
         _hashFunctions.add(RIPEMD160.class, test);
+        _hashFunctions.add(SHA512   .class, test);
+        _hashFunctions.add(Whirlpool.class, test);
     }
 
     /**
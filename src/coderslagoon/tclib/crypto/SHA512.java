@@ -0,0 +1,159 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+
+/**
+ * SHA-512 implementation delegating to the provider of the runtime, which
+ * modern VMs compile down to dedicated CPU instructions. Snapshots are clones
+ * of the provider's digest, which is how HMAC midstates get kept.
+ */
+public class SHA512 implements Hash.Function {
+    private final static int HASH_SIZE = 64;
+    private final static int BLOCK_SIZE = 128;
+
+    private final static String NAME = "SHA-512";
+    private final static String ALGORITHM = "SHA-512";
+
+    public SHA512() {
+        try {
+            this.md = MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException nsae) {
+            throw new Error(nsae);
+        }
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public int hashSize() {
+        return HASH_SIZE;
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int recommededHMACIterations() {
+        return 1000;
+    }
+
+    @Override
+    public void erase() {
+        // (the provider's state cannot be wiped, resetting is the best we got)
+        this.md.reset();
+    }
+
+    @Override
+    public void reset() {
+        this.md.reset();
+    }
+
+    @Override
+    public void update(byte[] buf, int ofs, int len) {
+        this.md.update(buf, ofs, len);
+    }
+
+    @Override
+    public void hash(byte[] hash, int ofs) {
+        try {
+            this.md.digest(hash, ofs, HASH_SIZE);
+        }
+        catch (DigestException de) {
+            throw new Error(de);
+        }
+    }
+
+    @Override
+    public Hash.State snapshot(Hash.State state) {
+        State result = null == state ? new State() : (State)state;
+        if (null != result.md) {
+            result.md.reset();
+        }
+        result.md = copy(this.md);
+        return result;
+    }
+
+    @Override
+    public void restore(Hash.State state) {
+        this.md.reset();
+        this.md = copy(((State)state).md);
+    }
+
+    static class State implements Hash.State {
+        MessageDigest md;
+        public void erase() {
+            if (null != this.md) {
+                this.md.reset();
+            }
+        }
+    }
+
+    static MessageDigest copy(MessageDigest md) {
+        try {
+            return (MessageDigest)md.clone();
+        }
+        catch (CloneNotSupportedException cnse) {
+            throw new Error(cnse);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private MessageDigest md;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        // vectors created with OpenSSL
+        final int[] REF_DATA_SIZES = {
+                0, 1, 63, 64, 65, 127, 128, 129, 255, 256, 258
+        };
+        final String[] REF_HASHES = new String[] {
+                "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e",
+                "b8244d028981d693af7b456af8efa4cad63d282e19ff14942c246e50d9351d22704a802a71c3580b6370de4ceb293c324a8423342557d4e5c38438f0e36910ee",
+                "9dc9c5598e55dc42955695320839788e353f1d7f6ba74df74c80a8a52f463c0697f57f68835d1418f4ce9b6530cd79bd0f4c6f7e13c93feb1218c0b65c2c0561",
+                "ee4320ebaf3fdb4f2c832b137200c08e235e0fa7bbd0eb1740c7063ba8a0d151da77e003398e1714a955d475b05e3e950b639503b452ec185de4229bc4873949",
+                "02856cef735f9acec6b9e33f0fbc8f9804d2aa54187f382b8ae842e5d3696c07459aad2a5aed25ea5e117eb1c7ba35da6a7a8adce9e6afe3ad79e9fa42d5bba8",
+                "eab89674feaa34e27aebeeff3c0a4d70070bb872d5e9f186cf1dbbdee517b6e35724d629ff025a5b07185e911ada7e3c8acf830aa0e4f71777bd2d44f504f7f0",
+                "1dffd5e3adb71d45d2245939665521ae001a317a03720a45732ba1900ca3b8351fc5c9b4ca513eba6f80bc7b1d1fdad4abd13491cb824d61b08d8c0e1561b3f7",
+                "1d9da57fbbdab09afb3506ab2d223d06109d65c1c8ad197f50138f714bc4c3f2fe5787922639c680acad1c651f955990425954ce2cba0c5cc83f2667d878eb0f",
+                "15025c9d135861ff5a549df0bfd6c398fd126613496d4e97627651e68b7b1f80407f187d7978464f0f78bfeea787600faaebbe991eddb60671cd0ce874f0a744",
+                "1e7b80bc8edc552c8feeb2780e111477e5bc70465fac1a77b29b35980c3f0ce4a036a6c9462036824bd56801e62af7e9feba5c22ed8a5af877bf7de117dcac6d",
+                "1558e05430a4b9682c3f6bf7849734df49155f6b414f423a894607d302d7eb1fc163ae1f70b23f4510c3edd7fee2bb44d61737bf0de4d581607ba6117bbedb05"
+        };
+        final String REF_HMAC =
+                "164b7a7bfcf819e2e395fbe73b56e0a387bd64222e831fd610270cd7ea2505549758bf75c05a994a6d034f65f8f0e6fdcaeab1a34d4a6b4b636e070a38bce737";
+        final String REF_PBKDF2 =
+                "b1ea1939de322a9e2a7a99c77919ce22aa31a447afcbde93cfd9a8b982122b6a9d28a79437a74e1bc3970b88255a68493579517a4eaa189ab41e9958b45e9d71";
+
+        HashVectors.check(this, REF_DATA_SIZES, REF_HASHES, REF_HMAC, REF_PBKDF2);
+    }
+}
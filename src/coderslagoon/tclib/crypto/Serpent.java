@@ -0,0 +1,540 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.util.Arrays;
+
+import coderslagoon.baselib.util.BinUtils;
+
+
+/**
+ * Serpent implementation, 256bit keys only, in bitslice mode. Words are read
+ * in little endian order, which is what TrueCrypt (and the NESSIE vectors)
+ * expect. The expanded key is not modified after initialization and blocks
+ * get processed in local variables only, so an instance can be shared between
+ * threads.
+ */
+public class Serpent extends BlockCipher {
+
+    private final static int KEY_SIZE = 32;
+    private final static int BLOCK_SIZE = 16;
+
+    private final static String NAME = "Serpent";
+
+    private final static int ROUNDS = 32;
+    private final static int PHI = 0x9e3779b9;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void erase() {
+        Arrays.fill(this.workingKey, 0);
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int keySize() {
+        return KEY_SIZE;
+    }
+
+    @Override
+    public void initialize(Mode mode, byte[] key, int ofs) {
+        super.initialize(mode, null, 0);
+        setKey(key, ofs);
+    }
+
+    @Override
+    public void processBlock(byte[] in, int ofsi, byte[] out, int ofso) {
+        processBlocks(in, ofsi, out, ofso, 1);
+    }
+
+    @Override
+    public void processBlocks(byte[] in, int ofsi, byte[] out, int ofso, int count) {
+        final int[] kw = this.workingKey;
+        final int end = ofsi + count * BLOCK_SIZE;
+        if (Mode.ENCRYPT == this.mode) {
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                encryptBlock(kw, in, ofsi, out, ofso);
+            }
+        }
+        else {
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                decryptBlock(kw, in, ofsi, out, ofso);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final int[] workingKey = new int[(ROUNDS + 1) * 4];
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public Object clone() {
+        Serpent result = new Serpent();
+        result.mode = this.mode;
+        System.arraycopy(this.workingKey, 0, result.workingKey, 0, this.workingKey.length);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void setKey(byte[] key, int ofs) {
+        final int[] w = new int[8 + ROUNDS * 4 + 4];
+        for (int i = 0; i < 8; i++) {
+            w[i] = BinUtils.readInt32LE(key, ofs + (i << 2));
+        }
+        for (int i = 8; i < w.length; i++) {
+            w[i] = Integer.rotateLeft(w[i - 8] ^ w[i - 5] ^ w[i - 3] ^ w[i - 1] ^
+                                      PHI ^ (i - 8), 11);
+        }
+        // round key i goes through S-box (3 - i) mod 8
+        final int[] x = new int[4];
+        for (int i = 0; i <= ROUNDS; i++) {
+            System.arraycopy(w, 8 + (i << 2), x, 0, 4);
+            switch((35 - i) & 7) {
+                case 0: sb0(x); break;
+                case 1: sb1(x); break;
+                case 2: sb2(x); break;
+                case 3: sb3(x); break;
+                case 4: sb4(x); break;
+                case 5: sb5(x); break;
+                case 6: sb6(x); break;
+                default:sb7(x); break;
+            }
+            System.arraycopy(x, 0, this.workingKey, i << 2, 4);
+        }
+        Arrays.fill(w, 0);
+        Arrays.fill(x, 0);
+    }
+
+    private final static void key(int[] x, int[] kw, int round) {
+        final int k = round << 2;
+        x[0] ^= kw[k    ];
+        x[1] ^= kw[k + 1];
+        x[2] ^= kw[k + 2];
+        x[3] ^= kw[k + 3];
+    }
+
+    private final static void lt(int[] x) {
+        int x0 = Integer.rotateLeft(x[0], 13);
+        int x2 = Integer.rotateLeft(x[2], 3);
+        int x1 = x[1] ^ x0 ^ x2;
+        int x3 = x[3] ^ x2 ^ (x0 << 3);
+        x1 = Integer.rotateLeft(x1, 1);
+        x3 = Integer.rotateLeft(x3, 7);
+        x0 = x0 ^ x1 ^ x3;
+        x2 = x2 ^ x3 ^ (x1 << 7);
+        x[0] = Integer.rotateLeft(x0, 5);
+        x[1] = x1;
+        x[2] = Integer.rotateLeft(x2, 22);
+        x[3] = x3;
+    }
+
+    private final static void ilt(int[] x) {
+        int x0 = Integer.rotateRight(x[0], 5);
+        int x1 = x[1];
+        int x2 = Integer.rotateRight(x[2], 22);
+        int x3 = x[3];
+        x2 = x2 ^ x3 ^ (x1 << 7);
+        x0 = x0 ^ x1 ^ x3;
+        x3 = Integer.rotateRight(x3, 7);
+        x1 = Integer.rotateRight(x1, 1);
+        x3 = x3 ^ x2 ^ (x0 << 3);
+        x1 = x1 ^ x0 ^ x2;
+        x[0] = Integer.rotateRight(x0, 13);
+        x[1] = x1;
+        x[2] = Integer.rotateRight(x2, 3);
+        x[3] = x3;
+    }
+
+    // (the state array never leaves the block, so the compiler is free to
+    // keep it in registers)
+    private final static void load(int[] x, byte[] in, int ofsi) {
+        x[0] = BinUtils.readInt32LE(in, ofsi     );
+        x[1] = BinUtils.readInt32LE(in, ofsi +  4);
+        x[2] = BinUtils.readInt32LE(in, ofsi +  8);
+        x[3] = BinUtils.readInt32LE(in, ofsi + 12);
+    }
+
+    private final static void store(int[] x, byte[] out, int ofso) {
+        BinUtils.writeInt32LE(x[0], out, ofso     );
+        BinUtils.writeInt32LE(x[1], out, ofso +  4);
+        BinUtils.writeInt32LE(x[2], out, ofso +  8);
+        BinUtils.writeInt32LE(x[3], out, ofso + 12);
+    }
+
+    private final static void encryptBlock(int[] kw,
+            byte[] in, int ofsi, byte[] out, int ofso) {
+        final int[] x = new int[4];
+        load(x, in, ofsi);
+        for (int r = 0; ; r += 8) {
+            key(x, kw, r    ); sb0(x); lt(x);
+            key(x, kw, r + 1); sb1(x); lt(x);
+            key(x, kw, r + 2); sb2(x); lt(x);
+            key(x, kw, r + 3); sb3(x); lt(x);
+            key(x, kw, r + 4); sb4(x); lt(x);
+            key(x, kw, r + 5); sb5(x); lt(x);
+            key(x, kw, r + 6); sb6(x); lt(x);
+            key(x, kw, r + 7); sb7(x);
+            if (ROUNDS - 8 == r) {
+                break;
+            }
+            lt(x);
+        }
+        key(x, kw, ROUNDS);
+        store(x, out, ofso);
+    }
+
+    private final static void decryptBlock(int[] kw,
+            byte[] in, int ofsi, byte[] out, int ofso) {
+        final int[] x = new int[4];
+        load(x, in, ofsi);
+        key(x, kw, ROUNDS);
+        for (int r = ROUNDS - 8; ; r -= 8) {
+            ib7(x); key(x, kw, r + 7); ilt(x);
+            ib6(x); key(x, kw, r + 6); ilt(x);
+            ib5(x); key(x, kw, r + 5); ilt(x);
+            ib4(x); key(x, kw, r + 4); ilt(x);
+            ib3(x); key(x, kw, r + 3); ilt(x);
+            ib2(x); key(x, kw, r + 2); ilt(x);
+            ib1(x); key(x, kw, r + 1); ilt(x);
+            ib0(x); key(x, kw, r    );
+            if (0 == r) {
+                break;
+            }
+            ilt(x);
+        }
+        store(x, out, ofso);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // The S-boxes (sbN) and their inverses (ibN) applied to 32 nibbles at once,
+    // bit i of x[0] being the lowest bit of nibble i. Each output bit is its
+    // algebraic normal form, derived from the tables of the specification:
+    //
+    // S0:  3  8 15  1 10  6  5 11 14 13  4  2  7  0  9 12
+    // S1: 15 12  2  7  9  0  5 10  1 11 14  8  6 13  3  4
+    // S2:  8  6  7  9  3 12 10 15 13  1 14  4  0 11  5  2
+    // S3:  0 15 11  8 12  9  6  3 13  1  2  4 10  7  5 14
+    // S4:  1 15  8  3 12  0 11  6  2  5  4 10  9 14  7 13
+    // S5: 15  5  2 11  4 10  9 12  0  3 14  8 13  6  7  1
+    // S6:  7  2 12  5  8  4  6 11 14  9  1 15 13  3 10  0
+    // S7:  1 13 15  0 14  8  2 11  7  4 12 10  9  3  5  6
+
+    private final static void sb0(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x012 = x01 & x2;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x01 ^ x2 ^ x02 ^ x12 ^ x012 ^ x3 ^ x023 ^ x123);
+        x[1] = ~(x0 ^ x02 ^ x12 ^ x012 ^ x13 ^ x023 ^ x123);
+        x[2] = x1 ^ x01 ^ x02 ^ x012 ^ x3 ^ x13 ^ x123;
+        x[3] = x0 ^ x1 ^ x2 ^ x3 ^ x03;
+    }
+
+    private final static void sb1(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x1 ^ x12 ^ x03 ^ x23 ^ x023 ^ x123);
+        x[1] = ~(x0 ^ x01 ^ x2 ^ x02 ^ x3 ^ x13 ^ x013 ^ x023 ^ x123);
+        x[2] = ~(x1 ^ x01 ^ x2 ^ x3);
+        x[3] = ~(x1 ^ x02 ^ x3 ^ x03 ^ x013 ^ x023 ^ x123);
+    }
+
+    private final static void sb2(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x0 & x1 & x2;
+        final int x013 = x0 & x1 & x3;
+        final int x023 = x02 & x3;
+        x[0] = x1 ^ x2 ^ x02 ^ x3;
+        x[1] = x0 ^ x1 ^ x2 ^ x12 ^ x012 ^ x03 ^ x013 ^ x23 ^ x023;
+        x[2] = x0 ^ x1 ^ x12 ^ x3 ^ x13 ^ x013 ^ x23 ^ x023;
+        x[3] = ~(x0 ^ x1 ^ x2 ^ x012 ^ x13);
+    }
+
+    private final static void sb3(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = x0 ^ x1 ^ x12 ^ x3 ^ x03 ^ x23 ^ x023 ^ x123;
+        x[1] = x0 ^ x1 ^ x02 ^ x03 ^ x013 ^ x23 ^ x023;
+        x[2] = x0 ^ x01 ^ x2 ^ x012 ^ x3 ^ x13 ^ x013;
+        x[3] = x0 ^ x1 ^ x01 ^ x2 ^ x02 ^ x012 ^ x3 ^ x23 ^ x023;
+    }
+
+    private final static void sb4(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x1 ^ x01 ^ x2 ^ x3 ^ x03 ^ x13);
+        x[1] = x0 ^ x02 ^ x12 ^ x3 ^ x13 ^ x23 ^ x023 ^ x123;
+        x[2] = x0 ^ x01 ^ x2 ^ x12 ^ x012 ^ x13 ^ x013 ^ x23 ^ x123;
+        x[3] = x0 ^ x1 ^ x2 ^ x12 ^ x03 ^ x13 ^ x013;
+    }
+
+    private final static void sb5(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x1 & x2 & x3;
+        x[0] = ~(x1 ^ x01 ^ x2 ^ x3 ^ x03 ^ x13);
+        x[1] = ~(x0 ^ x01 ^ x2 ^ x3 ^ x13 ^ x013 ^ x23);
+        x[2] = ~(x1 ^ x02 ^ x3 ^ x013 ^ x23 ^ x023 ^ x123);
+        x[3] = ~(x0 ^ x1 ^ x2 ^ x012 ^ x3 ^ x03 ^ x023);
+    }
+
+    private final static void sb6(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x1 ^ x2 ^ x02 ^ x12 ^ x012 ^ x3 ^ x013 ^ x123);
+        x[1] = ~(x1 ^ x2 ^ x03);
+        x[2] = ~(x0 ^ x01 ^ x2 ^ x12 ^ x012 ^ x13 ^ x013 ^ x23 ^ x123);
+        x[3] = x1 ^ x01 ^ x2 ^ x02 ^ x012 ^ x3 ^ x23 ^ x123;
+    }
+
+    private final static void sb7(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x01 ^ x2 ^ x03 ^ x13 ^ x23 ^ x023 ^ x123);
+        x[1] = x1 ^ x01 ^ x2 ^ x02 ^ x12 ^ x3 ^ x03 ^ x013 ^ x023;
+        x[2] = x0 ^ x1 ^ x2 ^ x012 ^ x3 ^ x03 ^ x13 ^ x013 ^ x123;
+        x[3] = x0 ^ x1 ^ x2 ^ x02 ^ x012 ^ x03;
+    }
+
+    private final static void ib0(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x01 ^ x2 ^ x12 ^ x03 ^ x13 ^ x013 ^ x23 ^ x023 ^ x123);
+        x[1] = x0 ^ x1 ^ x2 ^ x02 ^ x13 ^ x023 ^ x123;
+        x[2] = ~(x0 ^ x1 ^ x01 ^ x2 ^ x3);
+        x[3] = ~(x0 ^ x12 ^ x3 ^ x013 ^ x23 ^ x023 ^ x123);
+    }
+
+    private final static void ib1(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x012 = x01 & x2;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x1 ^ x01 ^ x012 ^ x13 ^ x023 ^ x123);
+        x[1] = x1 ^ x2 ^ x012 ^ x3 ^ x03 ^ x13 ^ x023 ^ x123;
+        x[2] = ~(x0 ^ x1 ^ x02 ^ x12 ^ x012 ^ x3 ^ x023);
+        x[3] = x0 ^ x2 ^ x3 ^ x13;
+    }
+
+    private final static void ib2(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x0 & x2 & x3;
+        x[0] = x0 ^ x1 ^ x2 ^ x12 ^ x13;
+        x[1] = x1 ^ x01 ^ x2 ^ x03 ^ x013 ^ x23 ^ x023;
+        x[2] = ~(x0 ^ x01 ^ x2 ^ x3 ^ x03 ^ x13 ^ x013 ^ x023);
+        x[3] = ~(x01 ^ x12 ^ x012 ^ x3 ^ x023);
+    }
+
+    private final static void ib3(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = x0 ^ x2 ^ x12 ^ x3 ^ x03 ^ x13 ^ x123;
+        x[1] = x1 ^ x2 ^ x12 ^ x012 ^ x3 ^ x03 ^ x023 ^ x123;
+        x[2] = x01 ^ x02 ^ x12 ^ x03 ^ x13 ^ x013 ^ x23 ^ x023;
+        x[3] = x0 ^ x1 ^ x2 ^ x02 ^ x012 ^ x03 ^ x013 ^ x23;
+    }
+
+    private final static void ib4(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        x[0] = ~(x0 ^ x1 ^ x2 ^ x3 ^ x03 ^ x013 ^ x23 ^ x023);
+        x[1] = x01 ^ x2 ^ x02 ^ x3 ^ x03 ^ x023;
+        x[2] = ~(x0 ^ x1 ^ x01 ^ x2 ^ x02 ^ x012 ^ x3 ^ x13 ^ x013);
+        x[3] = x1 ^ x01 ^ x2 ^ x03 ^ x013 ^ x23;
+    }
+
+    private final static void ib5(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        x[0] = x0 ^ x12 ^ x3 ^ x013;
+        x[1] = x0 ^ x1 ^ x02 ^ x12 ^ x012 ^ x3 ^ x03 ^ x013;
+        x[2] = x0 ^ x01 ^ x2 ^ x13 ^ x013 ^ x023;
+        x[3] = ~(x1 ^ x01 ^ x2 ^ x012 ^ x03);
+    }
+
+    private final static void ib6(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x01 ^ x02 ^ x12 ^ x012 ^ x3 ^ x013 ^ x123);
+        x[1] = ~(x1 ^ x2 ^ x02 ^ x3);
+        x[2] = ~(x0 ^ x1 ^ x12 ^ x13 ^ x013 ^ x23 ^ x123);
+        x[3] = ~(x1 ^ x01 ^ x2 ^ x12 ^ x012 ^ x3 ^ x03 ^ x013 ^ x23 ^ x123);
+    }
+
+    private final static void ib7(int[] x) {
+        final int x0 = x[0], x1 = x[1], x2 = x[2], x3 = x[3];
+        final int x01 = x0 & x1;
+        final int x02 = x0 & x2;
+        final int x12 = x1 & x2;
+        final int x03 = x0 & x3;
+        final int x13 = x1 & x3;
+        final int x23 = x2 & x3;
+        final int x012 = x01 & x2;
+        final int x013 = x01 & x3;
+        final int x023 = x02 & x3;
+        final int x123 = x12 & x3;
+        x[0] = ~(x0 ^ x1 ^ x12 ^ x13 ^ x013 ^ x23 ^ x123);
+        x[1] = ~(x0 ^ x2 ^ x12 ^ x3 ^ x03 ^ x13 ^ x023 ^ x123);
+        x[2] = x1 ^ x02 ^ x3 ^ x013 ^ x23 ^ x023;
+        x[3] = x01 ^ x2 ^ x012 ^ x03 ^ x13 ^ x013;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        // vectors created with Bouncy Castle, the second one is also NESSIE's
+        // set 1, vector 0 for 256bit keys
+        final String[][] REF = {
+            { "0000000000000000000000000000000000000000000000000000000000000000",
+              "00000000000000000000000000000000",
+              "49672ba898d98df95019180445491089" },
+            { "8000000000000000000000000000000000000000000000000000000000000000",
+              "00000000000000000000000000000000",
+              "a223aa1288463c0e2be38ebd825616c0" },
+            { "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+              "00112233445566778899aabbccddeeff",
+              "2868b7a2d28ecd5e4fdefac3c4330074" }
+        };
+        CipherVectors.check(this, REF, "9b1d8b34845df9bfd36aaad0cda1c8fe");
+    }
+}
@@ -0,0 +1,335 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.util.Arrays;
+
+import coderslagoon.baselib.util.BinUtils;
+
+
+/**
+ * Twofish implementation, 256bit keys only. The key dependent S-boxes get
+ * computed completely at initialization time, each of them merged with its
+ * column of the MDS matrix, so the g function is just four table lookups.
+ * Tables and subkeys are not touched after that, hence an instance can be
+ * shared between threads.
+ */
+public class Twofish extends BlockCipher {
+
+    private final static int KEY_SIZE = 32;
+    private final static int BLOCK_SIZE = 16;
+
+    private final static String NAME = "Twofish";
+
+    private final static int ROUNDS = 16;
+    private final static int SUBKEYS = 8 + ROUNDS * 2;
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public void erase() {
+        Arrays.fill(this.subKeys, 0);
+        Arrays.fill(this.sBox, 0);
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int keySize() {
+        return KEY_SIZE;
+    }
+
+    @Override
+    public void initialize(Mode mode, byte[] key, int ofs) {
+        super.initialize(mode, null, 0);
+        setKey(key, ofs);
+    }
+
+    @Override
+    public void processBlock(byte[] in, int ofsi, byte[] out, int ofso) {
+        processBlocks(in, ofsi, out, ofso, 1);
+    }
+
+    @Override
+    public void processBlocks(byte[] in, int ofsi, byte[] out, int ofso, int count) {
+        final int[] K = this.subKeys;
+        final int[] S = this.sBox;
+        final int end = ofsi + count * BLOCK_SIZE;
+        if (Mode.ENCRYPT == this.mode) {
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                encryptBlock(K, S, in, ofsi, out, ofso);
+            }
+        }
+        else {
+            for (; ofsi < end; ofsi += BLOCK_SIZE, ofso += BLOCK_SIZE) {
+                decryptBlock(K, S, in, ofsi, out, ofso);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final int[] subKeys = new int[SUBKEYS];
+    private final int[] sBox    = new int[4 * 256];
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public Object clone() {
+        Twofish result = new Twofish();
+        result.mode = this.mode;
+        System.arraycopy(this.subKeys, 0, result.subKeys, 0, SUBKEYS);
+        System.arraycopy(this.sBox   , 0, result.sBox   , 0, this.sBox.length);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final static int g(int[] S, int x) {
+        return S[        x         & 0xff] ^
+               S[0x100 | (x >>>  8) & 0xff] ^
+               S[0x200 | (x >>> 16) & 0xff] ^
+               S[0x300 |  x >>> 24        ];
+    }
+
+    private final static void encryptBlock(int[] K, int[] S,
+            byte[] in, int ofsi, byte[] out, int ofso) {
+        int r0 = BinUtils.readInt32LE(in, ofsi     ) ^ K[0];
+        int r1 = BinUtils.readInt32LE(in, ofsi +  4) ^ K[1];
+        int r2 = BinUtils.readInt32LE(in, ofsi +  8) ^ K[2];
+        int r3 = BinUtils.readInt32LE(in, ofsi + 12) ^ K[3];
+
+        // two rounds at a time, so the halves never have to be swapped
+        for (int k = 8; k < SUBKEYS; k += 4) {
+            int t0 = g(S, r0);
+            int t1 = g(S, Integer.rotateLeft(r1, 8));
+            r2 = Integer.rotateRight(r2 ^ (t0 + t1 + K[k]), 1);
+            r3 = Integer.rotateLeft(r3, 1) ^ (t0 + (t1 << 1) + K[k + 1]);
+            t0 = g(S, r2);
+            t1 = g(S, Integer.rotateLeft(r3, 8));
+            r0 = Integer.rotateRight(r0 ^ (t0 + t1 + K[k + 2]), 1);
+            r1 = Integer.rotateLeft(r1, 1) ^ (t0 + (t1 << 1) + K[k + 3]);
+        }
+
+        BinUtils.writeInt32LE(r2 ^ K[4], out, ofso     );
+        BinUtils.writeInt32LE(r3 ^ K[5], out, ofso +  4);
+        BinUtils.writeInt32LE(r0 ^ K[6], out, ofso +  8);
+        BinUtils.writeInt32LE(r1 ^ K[7], out, ofso + 12);
+    }
+
+    private final static void decryptBlock(int[] K, int[] S,
+            byte[] in, int ofsi, byte[] out, int ofso) {
+        int r2 = BinUtils.readInt32LE(in, ofsi     ) ^ K[4];
+        int r3 = BinUtils.readInt32LE(in, ofsi +  4) ^ K[5];
+        int r0 = BinUtils.readInt32LE(in, ofsi +  8) ^ K[6];
+        int r1 = BinUtils.readInt32LE(in, ofsi + 12) ^ K[7];
+
+        for (int k = SUBKEYS - 4; k >= 8; k -= 4) {
+            int t0 = g(S, r2);
+            int t1 = g(S, Integer.rotateLeft(r3, 8));
+            r1 = Integer.rotateRight(r1 ^ (t0 + (t1 << 1) + K[k + 3]), 1);
+            r0 = Integer.rotateLeft(r0, 1) ^ (t0 + t1 + K[k + 2]);
+            t0 = g(S, r0);
+            t1 = g(S, Integer.rotateLeft(r1, 8));
+            r3 = Integer.rotateRight(r3 ^ (t0 + (t1 << 1) + K[k + 1]), 1);
+            r2 = Integer.rotateLeft(r2, 1) ^ (t0 + t1 + K[k]);
+        }
+
+        BinUtils.writeInt32LE(r0 ^ K[0], out, ofso     );
+        BinUtils.writeInt32LE(r1 ^ K[1], out, ofso +  4);
+        BinUtils.writeInt32LE(r2 ^ K[2], out, ofso +  8);
+        BinUtils.writeInt32LE(r3 ^ K[3], out, ofso + 12);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void setKey(byte[] key, int ofs) {
+        final int k = KEY_SIZE / 8;
+        final int[] me = new int[k];
+        final int[] mo = new int[k];
+        final int[] s  = new int[k];
+        for (int i = 0; i < k; i++) {
+            me[i] = BinUtils.readInt32LE(key, ofs + i * 8);
+            mo[i] = BinUtils.readInt32LE(key, ofs + i * 8 + 4);
+            // (the S vector is used in reverse order)
+            s[k - 1 - i] = rs(key, ofs + i * 8);
+        }
+
+        final int RHO = 0x01010101;
+        for (int i = 0; i < SUBKEYS / 2; i++) {
+            final int a = h(2 * i * RHO, me);
+            final int b = Integer.rotateLeft(h((2 * i + 1) * RHO, mo), 8);
+            this.subKeys[2 * i    ] = a + b;
+            this.subKeys[2 * i + 1] = Integer.rotateLeft(a + (b << 1), 9);
+        }
+
+        for (int col = 0; col < 4; col++) {
+            for (int x = 0; x < 256; x++) {
+                this.sBox[col << 8 | x] = hColumn(col, x, s);
+            }
+        }
+
+        Arrays.fill(me, 0);
+        Arrays.fill(mo, 0);
+        Arrays.fill(s , 0);
+    }
+
+    private final static int h(int x, int[] l) {
+        return hColumn(0,  x         & 0xff, l) ^
+               hColumn(1, (x >>>  8) & 0xff, l) ^
+               hColumn(2, (x >>> 16) & 0xff, l) ^
+               hColumn(3,  x >>> 24        , l);
+    }
+
+    // one byte through the q permutation chain of its column (for 256bit keys,
+    // meaning four key words), multiplied with the matching MDS column ...
+    private final static int hColumn(int col, int y, int[] l) {
+        final int sh = col << 3;
+        final int l0 = l[0] >>> sh, l1 = l[1] >>> sh, l2 = l[2] >>> sh, l3 = l[3] >>> sh;
+        switch(col) {
+            case 0: y = Q1[Q0[Q0[Q1[Q1[y] ^ l3 & 0xff] ^ l2 & 0xff] ^ l1 & 0xff] ^ l0 & 0xff]; break;
+            case 1: y = Q0[Q0[Q1[Q1[Q0[y] ^ l3 & 0xff] ^ l2 & 0xff] ^ l1 & 0xff] ^ l0 & 0xff]; break;
+            case 2: y = Q1[Q1[Q0[Q0[Q0[y] ^ l3 & 0xff] ^ l2 & 0xff] ^ l1 & 0xff] ^ l0 & 0xff]; break;
+            default:y = Q0[Q1[Q1[Q0[Q1[y] ^ l3 & 0xff] ^ l2 & 0xff] ^ l1 & 0xff] ^ l0 & 0xff]; break;
+        }
+        return MDS[col][y];
+    }
+
+    // the Reed-Solomon code over eight key bytes, giving one S vector word
+    private final static int rs(byte[] key, int ofs) {
+        int result = 0;
+        for (int row = 0; row < 4; row++) {
+            int b = 0;
+            for (int j = 0; j < 8; j++) {
+                b ^= gfMul(RS[row][j], key[ofs + j] & 0xff, RS_POLY);
+            }
+            result |= b << (row << 3);
+        }
+        return result;
+    }
+
+    private final static int gfMul(int a, int b, int poly) {
+        int result = 0;
+        for (; 0 != b; b >>>= 1) {
+            if (0 != (b & 1)) {
+                result ^= a;
+            }
+            a <<= 1;
+            if (0 != (a & 0x100)) {
+                a ^= poly;
+            }
+        }
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final static int MDS_POLY = 0x169;
+    private final static int RS_POLY  = 0x14d;
+
+    private final static int[][] MDS_MATRIX = {
+        { 0x01, 0xef, 0x5b, 0x5b },
+        { 0x5b, 0xef, 0xef, 0x01 },
+        { 0xef, 0x5b, 0x01, 0xef },
+        { 0xef, 0x01, 0xef, 0x5b }
+    };
+
+    private final static int[][] RS = {
+        { 0x01, 0xa4, 0x55, 0x87, 0x5a, 0x58, 0xdb, 0x9e },
+        { 0xa4, 0x56, 0x82, 0xf3, 0x1e, 0xc6, 0x68, 0xe5 },
+        { 0x02, 0xa1, 0xfc, 0xc1, 0x47, 0xae, 0x3d, 0x19 },
+        { 0xa4, 0x55, 0x87, 0x5a, 0x58, 0xdb, 0x9e, 0x03 }
+    };
+
+    // the nibble permutations the q0 and q1 byte permutations are made of
+    private final static int[][] Q_T = {
+        { 0x8, 0x1, 0x7, 0xd, 0x6, 0xf, 0x3, 0x2, 0x0, 0xb, 0x5, 0x9, 0xe, 0xc, 0xa, 0x4 },
+        { 0xe, 0xc, 0xb, 0x8, 0x1, 0x2, 0x3, 0x5, 0xf, 0x4, 0xa, 0x6, 0x7, 0x0, 0x9, 0xd },
+        { 0xb, 0xa, 0x5, 0xe, 0x6, 0xd, 0x9, 0x0, 0xc, 0x8, 0xf, 0x3, 0x2, 0x4, 0x7, 0x1 },
+        { 0xd, 0x7, 0xf, 0x4, 0x1, 0x2, 0x6, 0xe, 0x9, 0xb, 0x3, 0x0, 0x8, 0x5, 0xc, 0xa },
+
+        { 0x2, 0x8, 0xb, 0xd, 0xf, 0x7, 0x6, 0xe, 0x3, 0x1, 0x9, 0x4, 0x0, 0xa, 0xc, 0x5 },
+        { 0x1, 0xe, 0x2, 0xb, 0x4, 0xc, 0x3, 0x7, 0x6, 0xd, 0xa, 0x5, 0xf, 0x9, 0x0, 0x8 },
+        { 0x4, 0xc, 0x7, 0x5, 0x1, 0x6, 0x9, 0xa, 0x0, 0xe, 0xd, 0x8, 0x2, 0xb, 0x3, 0xf },
+        { 0xb, 0x9, 0x5, 0x1, 0xc, 0x3, 0xd, 0xe, 0x6, 0x4, 0x7, 0xf, 0x2, 0x0, 0x8, 0xa }
+    };
+
+    private final static int[] Q0 = new int[256];
+    private final static int[] Q1 = new int[256];
+    private final static int[][] MDS = new int[4][256];
+
+    private final static int ror4(int x) {
+        return ((x >>> 1) | (x << 3)) & 0xf;
+    }
+
+    private final static int q(int[][] t, int tofs, int x) {
+        int a = x >>> 4, b = x & 0xf;
+        int a1 = a ^ b;
+        int b1 = (a ^ ror4(b) ^ (a << 3)) & 0xf;
+        a = t[tofs][a1];
+        b = t[tofs + 1][b1];
+        a1 = a ^ b;
+        b1 = (a ^ ror4(b) ^ (a << 3)) & 0xf;
+        a = t[tofs + 2][a1];
+        b = t[tofs + 3][b1];
+        return (b << 4) | a;
+    }
+
+    static {
+        for (int x = 0; x < 256; x++) {
+            Q0[x] = q(Q_T, 0, x);
+            Q1[x] = q(Q_T, 4, x);
+        }
+        for (int col = 0; col < 4; col++) {
+            for (int y = 0; y < 256; y++) {
+                int w = 0;
+                for (int row = 0; row < 4; row++) {
+                    w |= gfMul(MDS_MATRIX[row][col], y, MDS_POLY) << (row << 3);
+                }
+                MDS[col][y] = w;
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        // vectors created with Bouncy Castle, the first one is also the
+        // 256bit key vector of the Twofish paper
+        final String[][] REF = {
+            { "0000000000000000000000000000000000000000000000000000000000000000",
+              "00000000000000000000000000000000",
+              "57ff739d4dc92c1bd7fc01700cc8216f" },
+            { "8000000000000000000000000000000000000000000000000000000000000000",
+              "00000000000000000000000000000000",
+              "785229b51b515f30a1fcc88b969a4e47" },
+            { "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+              "00112233445566778899aabbccddeeff",
+              "b7b5fb57ec446a11cbb7e6292342537b" }
+        };
+        CipherVectors.check(this, REF, "1f62e1cb70febd3d4b44906bda6b8544");
+    }
+}
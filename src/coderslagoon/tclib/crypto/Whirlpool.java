@@ -0,0 +1,289 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.crypto;
+
+import java.util.Arrays;
+
+import coderslagoon.baselib.util.BinUtils;
+
+
+/**
+ * Whirlpool implementation (final version, as used by TrueCrypt). The runtime
+ * does not offer this one, hence it is done in the usual table-driven way.
+ */
+public class Whirlpool implements Hash.Function {
+    private final static int HASH_SIZE = 64;
+    private final static int BLOCK_SIZE = 64;
+    private final static int ROUNDS = 10;
+
+    private final static String NAME = "Whirlpool";
+
+    public Whirlpool() {
+        reset();
+    }
+
+    @Override
+    public String name() {
+        return NAME;
+    }
+
+    @Override
+    public int hashSize() {
+        return HASH_SIZE;
+    }
+
+    @Override
+    public int blockSize() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    public int recommededHMACIterations() {
+        return 1000;
+    }
+
+    @Override
+    public void erase() {
+        Arrays.fill(this.state, 0L);
+        Arrays.fill(this.buf, (byte)0);
+        Arrays.fill(this.k, 0L);
+        Arrays.fill(this.s, 0L);
+        Arrays.fill(this.l, 0L);
+        Arrays.fill(this.blk, 0L);
+        this.count = 0L;
+    }
+
+    @Override
+    public void reset() {
+        this.count = 0L;
+        Arrays.fill(this.state, 0L);
+    }
+
+    @Override
+    public void hash(byte[] hash, int ofs) {
+        // the length is a 256bit value, of which we only use the lower 64 bits
+        final byte[] size = this.size;
+        BinUtils.writeInt64BE(this.count, size, size.length - 8);
+
+        int padlen = BLOCK_SIZE - (((int)this.count >> 3) & 0x3f);
+        if (padlen < 1 + size.length) {
+            padlen += BLOCK_SIZE;
+        }
+        update(PADDING, 0, padlen - size.length);
+        update(size, 0, size.length);
+
+        for (int i = 0; i < 8; i++) {
+            BinUtils.writeInt64BE(this.state[i], hash, ofs + (i << 3));
+        }
+    }
+
+    @Override
+    public Hash.State snapshot(Hash.State state) {
+        State result = null == state ? new State() : (State)state;
+        System.arraycopy(this.state, 0, result.state, 0, this.state.length);
+        System.arraycopy(this.buf, 0, result.buf, 0, ((int)this.count >> 3) & 0x3f);
+        result.count = this.count;
+        return result;
+    }
+
+    @Override
+    public void restore(Hash.State state) {
+        State st = (State)state;
+        System.arraycopy(st.state, 0, this.state, 0, this.state.length);
+        System.arraycopy(st.buf, 0, this.buf, 0, ((int)st.count >> 3) & 0x3f);
+        this.count = st.count;
+    }
+
+    static class State implements Hash.State {
+        final long[] state = new long[8];
+        final byte[] buf = new byte[BLOCK_SIZE];
+        long count;
+        public void erase() {
+            Arrays.fill(this.state, 0L);
+            Arrays.fill(this.buf, (byte)0);
+            this.count = 0L;
+        }
+    }
+
+    @Override
+    public void update(final byte[] input, int ofs, final int len) {
+        int rest = ((int)this.count >> 3) & 0x3f;
+        final int c = BLOCK_SIZE - rest;
+        final int end = len + ofs;
+        this.count += (long)len << 3;
+
+        if (len >= c) {
+            if (0 != rest) {
+                System.arraycopy(input, ofs, this.buf, rest, c);
+                transform(this.buf, 0);
+                ofs += c;
+                rest = 0;
+            }
+            while (ofs + BLOCK_SIZE <= end) {
+                transform(input, ofs);
+                ofs += BLOCK_SIZE;
+            }
+        }
+        if (ofs < end) {
+            System.arraycopy(input, ofs, this.buf, rest, end - ofs);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private final long[] state = new long[8];
+    private long count;
+    private final byte[] buf = new byte[BLOCK_SIZE];
+    private final byte[] size = new byte[32];
+
+    private final long[] blk = new long[8];
+    private final long[] k   = new long[8];
+    private final long[] s   = new long[8];
+    private final long[] l   = new long[8];
+
+    private final static byte[] PADDING = new byte[BLOCK_SIZE]; static {
+        PADDING[0] = (byte)0x80;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // the S-box gets built out of these mini-boxes, see the specification...
+    final static int[] E = { 1, 11, 9, 12, 13, 6, 15, 3, 14, 8, 7, 4, 10, 2, 5, 0 };
+    final static int[] R = { 7, 12, 11, 13, 14, 4, 9, 15, 6, 3, 8, 10, 2, 5, 1, 0 };
+
+    final static int[] SBOX = new int[256];
+
+    // C[t][x] is the S-box value of x times the circulant matrix row, rotated
+    // by t bytes, so each round is nothing but lookups and XORs ...
+    final static long[][] C = new long[8][256];
+
+    final static long[] RC = new long[ROUNDS + 1];
+
+    static {
+        final int[] einv = new int[16];
+        for (int i = 0; i < 16; i++) {
+            einv[E[i]] = i;
+        }
+        for (int x = 0; x < 256; x++) {
+            final int a = E[x >>> 4], b = einv[x & 15];
+            final int r = R[a ^ b];
+            SBOX[x] = (E[a ^ r] << 4) | einv[b ^ r];
+        }
+        for (int x = 0; x < 256; x++) {
+            final long v1 = SBOX[x];
+            final long v2 = mul2(v1);
+            final long v4 = mul2(v2);
+            final long v5 = v4 ^ v1;
+            final long v8 = mul2(v4);
+            final long v9 = v8 ^ v1;
+            final long c0 = (v1 << 56) | (v1 << 48) | (v4 << 40) | (v1 << 32) |
+                            (v8 << 24) | (v5 << 16) | (v2 <<  8) |  v9;
+            for (int t = 0; t < 8; t++) {
+                C[t][x] = (c0 >>> (t << 3)) | (c0 << (64 - (t << 3)));
+            }
+        }
+        for (int r = 1; r <= ROUNDS; r++) {
+            final int i = (r - 1) << 3;
+            RC[r] = (C[0][i    ] & 0xff00000000000000L) ^
+                    (C[1][i + 1] & 0x00ff000000000000L) ^
+                    (C[2][i + 2] & 0x0000ff0000000000L) ^
+                    (C[3][i + 3] & 0x000000ff00000000L) ^
+                    (C[4][i + 4] & 0x00000000ff000000L) ^
+                    (C[5][i + 5] & 0x0000000000ff0000L) ^
+                    (C[6][i + 6] & 0x000000000000ff00L) ^
+                    (C[7][i + 7] & 0x00000000000000ffL);
+        }
+    }
+
+    // multiplication by two in GF(2^8), reduction polynomial x^8+x^4+x^3+x^2+1
+    final static long mul2(long v) {
+        v <<= 1;
+        return 0 != (v & 0x100) ? v ^ 0x11d : v;
+    }
+
+    final static void round(final long[] in, final long[] out) {
+        final long[] c0 = C[0], c1 = C[1], c2 = C[2], c3 = C[3];
+        final long[] c4 = C[4], c5 = C[5], c6 = C[6], c7 = C[7];
+        for (int i = 0; i < 8; i++) {
+            out[i] = c0[(int)(in[ i          ] >>> 56)       ] ^
+                     c1[(int)(in[(i - 1) & 7] >>> 48) & 0xff] ^
+                     c2[(int)(in[(i - 2) & 7] >>> 40) & 0xff] ^
+                     c3[(int)(in[(i - 3) & 7] >>> 32) & 0xff] ^
+                     c4[(int)(in[(i - 4) & 7] >>> 24) & 0xff] ^
+                     c5[(int)(in[(i - 5) & 7] >>> 16) & 0xff] ^
+                     c6[(int)(in[(i - 6) & 7] >>>  8) & 0xff] ^
+                     c7[(int)(in[(i - 7) & 7]       ) & 0xff];
+        }
+    }
+
+    final private void transform(final byte[] block, final int blockOfs) {
+        final long[] state = this.state;
+        final long[] blk = this.blk;
+        final long[] k = this.k;
+        final long[] s = this.s;
+        final long[] l = this.l;
+
+        for (int i = 0; i < 8; i++) {
+            blk[i] = BinUtils.readInt64BE(block, blockOfs + (i << 3));
+            k[i] = state[i];
+            s[i] = blk[i] ^ k[i];
+        }
+        for (int r = 1; r <= ROUNDS; r++) {
+            round(k, l);
+            l[0] ^= RC[r];
+            System.arraycopy(l, 0, k, 0, 8);
+            round(s, l);
+            for (int i = 0; i < 8; i++) {
+                s[i] = l[i] ^ k[i];
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            state[i] ^= s[i] ^ blk[i];
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Override
+    public void test() throws Throwable {
+        // vectors created with OpenSSL
+        final int[] REF_DATA_SIZES = {
+                0, 1, 63, 64, 65, 127, 128, 129, 255, 256, 258
+        };
+        final String[] REF_HASHES = new String[] {
+                "19fa61d75522a4669b44e39c1d2e1726c530232130d407f89afee0964997f7a73e83be698b288febcf88e3e03c4f0757ea8964e59b63d93708b138cc42a66eb3",
+                "4d9444c212955963d425a410176fccfb74161e6839692b4c11fde2ed6eb559efe0560c39a7b61d5a8bcabd6817a3135af80f342a4942ccaae745abddfb6afed0",
+                "37bf321f66ace827b66ecaa651ccfcad30ab627e717aa4fe441279c4fa48555cb7784b0af25a73b86375be71a1e3fddec661e0eb8115e0bb2b9a7ff81dc75df9",
+                "5c3c6f524c8ae1e7a4f76b84977b1560e78eb568e2fd8d72699ad79186481bd42b53ab39a0b741d9c098a4ecb01f3eccf3844cf1b73a9355ee5d496a2a1fb5b3",
+                "85a19923268414de6a10a2cdef7917d7aa01e68df9d028cbab5c5236faefced836bde9cf90d8a214013056202a1bae5cb73606078c5572d8fe85c36002c92d70",
+                "3c9a7f387b7104df19cf264b0b5821b2e46e44adc79262546e98ffa113eb3d45799eac78cca4643c937fcc3c1d249a212facb34c63d45eec81069095d7cdce7b",
+                "803a3b37c89e84fbbec75bee3d00dd728ffc4246b5a5e989dc8dc2cd0f7937966ab78c79e1d4648ee6eb40f3d70491cb46b8ab42e155672e2ab8374fcf70dd79",
+                "ea11a0a9d78ab1936093723f1e3cdcc603f78694fad7db415b75d942dbba47b7ed22deff520ed7bf9df5fccf4706985f30fadd897ec4adf8df7d74a11fdac708",
+                "0b349bea4ad863515da4254e425c5de614742731b4a85a1299378e7176a7d77afdea4e7e4efd82d88948f4a2173ee27a57cb33bb0bcb11f8c6b42c2cc5409b70",
+                "05a308887b2392bfb3c71a438aa03153ca102b62ca9f5cbb4ac2d7f161c9d7f8bc6eb895cb2be5f595c656c24c50f1e293f37c7b5b07f32baf251dfe11b4b2a3",
+                "b1046a42cfbb52cc85ee4694340858ee7aa5d6d7ff99a79a1f56ca271c8c142b20c19eb61900b7dd4af7d6ebdd20f0c9607daddc5307f3e3ce20ee5d8ca5d3d7"
+        };
+        final String REF_HMAC =
+                "3d595ccd1d4f4cfd045af53ba7d5c8283fee6ded6eaf1269071b6b4ea64800056b5077c6a942cfa1221bd4e5aed791276e5dd46a407d2b8007163d3e7cd1de66";
+        final String REF_PBKDF2 =
+                "09526e0537be528fadb974edf19801f67962aa94e6e21d0f566f24b438fed18c1e2f25fa5604e6733d441a422cd311da4f0c87e513624b28a3a58925a076e140";
+
+        HashVectors.check(this, REF_DATA_SIZES, REF_HASHES, REF_HMAC, REF_PBKDF2);
+    }
+}
@@ -18,19 +18,41 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.tclib.crypto;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.baselib.util.Prp;
 import coderslagoon.tclib.util.TCLibException;
 
 
 /**
  * XTS implementation, translated from TrueCrypt sources to get a compatible
- * (and verifiable) version.
+ * (and verifiable) version. Keeps no state besides the ciphers, so a single
+ * instance can be used by multiple threads at the same time. Cascades get
+ * processed like TrueCrypt does it, meaning one full pass for each of their
+ * stages. Larger amounts of data get split into batches then, which run
+ * through the stages in a pipelined fashion, each stage on its own thread.
  */
 public class XTS implements Algorithm, Cloneable {
+    protected static class Props {
+        public final static String PFX = "tclib.xts.";
+        public final static Prp.Bool PIPELINE = new Prp.Bool(PFX + "pipeline", true);
+    }
+
     BlockCipher cipher1;
     BlockCipher cipher2;
+    // (for cascades, one instance per stage, in encryption order)
+    XTS[] stages;
 
     private final static int BLOCK_SIZE = 16;
     
@@ -40,12 +62,13 @@ public class XTS implements Algorithm, Cloneable {
     private final static int BLOCKS_PER_DATA_UNIT = DATA_UNIT_SIZE / BLOCK_SIZE;
     private final static int SIZEOF_LONG = 8;
 
-    // XTS instances are supposed to have a long life span, thus we don't
-    // optimize or compact array allocation here (for now) ...
+    // up to this many data units get processed with one call of the block
+    // ciphers, so their bulk capabilities can actually be exploited ...
+    final static int UNITS_PER_BATCH = 16;
 
-    private long[] w_vals  = new long[DATA_UNIT_SIZE / SIZEOF_LONG];
-    private byte[] w_val   = new byte[BLOCK_SIZE];
-    private byte[] unit_no = new byte[BLOCK_SIZE];
+    // how many bytes of data a cascade stage processes before passing them on
+    // to the next stage, must be a multiple of the data unit size ...
+    final static int PIPELINE_BATCH = 128 * DATA_UNIT_SIZE;
 
     /** Restricted for tests and cloning. Do not use. */
     XTS() {
@@ -64,6 +87,20 @@ public class XTS implements Algorithm, Cloneable {
         }
         this.cipher1 = cipher1;
         this.cipher2 = cipher2;
+        setupStages();
+    }
+
+    private void setupStages() {
+        if (this.cipher1 instanceof Cascade) {
+            final BlockCipher[] stages1 = ((Cascade)this.cipher1).stages;
+            final BlockCipher[] stages2 = ((Cascade)this.cipher2).stages;
+            this.stages = new XTS[stages1.length];
+            for (int i = 0; i < stages1.length; i++) {
+                this.stages[i] = new XTS();
+                this.stages[i].cipher1 = stages1[i];
+                this.stages[i].cipher2 = stages2[i];
+            }
+        }
     }
 
     @Override
@@ -71,9 +108,25 @@ public class XTS implements Algorithm, Cloneable {
         XTS result = new XTS();
         result.cipher1 = (BlockCipher)this.cipher1.clone();
         result.cipher2 = (BlockCipher)this.cipher2.clone();
+        result.setupStages();
+        result.pipelined = this.pipelined;
         return result;
     }
 
+    /**
+     * Enables or disables the pipelined processing of cascades. The default is
+     * determined by the Props.PIPELINE property, on single core machines it is
+     * always off though, since the stages would just compete.
+     * @param pipelined True to run the stages of a cascade concurrently.
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    private final static int CPUS = Runtime.getRuntime().availableProcessors();
+
+    private boolean pipelined = Props.PIPELINE.get() && 1 < CPUS;
+
     @Override
     public String name() {
         return "XTS";
@@ -81,9 +134,6 @@ public class XTS implements Algorithm, Cloneable {
 
     @Override
     public void erase() {
-        Arrays.fill(this.w_vals , (byte)0);
-        Arrays.fill(this.w_val  , (byte)0);
-        Arrays.fill(this.unit_no, (byte)0);
         this.cipher2.erase();
         this.cipher1.erase();
     }
@@ -99,6 +149,38 @@ public class XTS implements Algorithm, Cloneable {
      */
     public void process(byte[] buf, int ofs, int len,
             long startDataUnit, int startBlock) throws TCLibException {
+        check(ofs, len, startDataUnit, startBlock);
+        process(buf, ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN), ofs, len,
+                startDataUnit, startBlock);
+    }
+
+    /**
+     * Process data held by a (heap or direct) buffer, in place.
+     * @param buf Data buffer. Position and limit are not touched.
+     * @param ofs Absolute index in the buffer where to start.
+     * @param len How many bytes to process.
+     * @param startDataUnit Block (as in volume) number.
+     * @param startBlock Which sub-block to start at.
+     * @throws TCLibException
+     */
+    public void process(ByteBuffer buf, int ofs, int len,
+            long startDataUnit, int startBlock) throws TCLibException {
+        check(ofs, len, startDataUnit, startBlock);
+        if (ofs + len > buf.capacity()) {
+            throw new TCLibException();
+        }
+        if (buf.hasArray()) {
+            process(buf.array(), buf.arrayOffset() + ofs, len, startDataUnit, startBlock);
+        }
+        else {
+            final ByteBuffer lbuf = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            lbuf.clear();
+            process(null, lbuf, ofs, len, startDataUnit, startBlock);
+        }
+    }
+
+    private final static void check(int ofs, int len,
+            long startDataUnit, int startBlock) throws TCLibException {
         if (0 > ofs ||
             0 > len ||
             0 != len % BLOCK_SIZE ||
@@ -106,39 +188,223 @@ public class XTS implements Algorithm, Cloneable {
             0 > startBlock) {
             throw new TCLibException();
         }
+    }
 
-        long dataUnit = startDataUnit;
+    // the little endian buffer is always set, the data gets whitened through
+    // it one long at a time; if the buffer just wraps an array then the
+    // latter is passed as well, for the block cipher to use it directly ...
+    private void process(byte[] buf, ByteBuffer lbuf, int ofs, int len,
+            long startDataUnit, int startBlock) {
+        if (null != this.stages) {
+            processStages(buf, lbuf, ofs, len, startDataUnit, startBlock);
+            return;
+        }
 
-        final long[] w_vals  = this.w_vals;
-        final byte[] unit_no = this.unit_no;
+        long dataUnit = startDataUnit;
 
         final BlockCipher cipher1 = this.cipher1;
         final BlockCipher cipher2 = this.cipher2;
 
-        final int w_vals_end = w_vals.length - 1;
-
         int blockCount = len / BLOCK_SIZE;
 
+        final byte[] unit_nos = new byte[Math.min(UNITS_PER_BATCH,
+                (startBlock + blockCount + BLOCKS_PER_DATA_UNIT - 1) / BLOCKS_PER_DATA_UNIT) *
+                BLOCK_SIZE];
+
         while (blockCount > 0) {
-            int endBlock = blockCount < BLOCKS_PER_DATA_UNIT ?
-                    startBlock + blockCount :
-                    BLOCKS_PER_DATA_UNIT;
+            // gather as many data units as we can, compute all of their
+            // tweak values with one single call ...
+            int units = 0;
+            int blocks = 0;
+            for (int sb = startBlock;
+                 units < UNITS_PER_BATCH && blocks < blockCount;
+                 units++, sb = 0) {
+                final int uofs = units * BLOCK_SIZE;
+                BinUtils.writeInt64LE(dataUnit + units, unit_nos, uofs);
+                Arrays.fill(unit_nos, uofs + SIZEOF_LONG, uofs + BLOCK_SIZE, (byte)0);
+                blocks += Math.min(BLOCKS_PER_DATA_UNIT - sb, blockCount - blocks);
+            }
+
+            cipher2.processBlocks(unit_nos, 0, unit_nos, 0, units);
+
+            // whiten all of the blocks first, so the cipher can run through
+            // them in one go, then do it again (recomputing the tweaks is
+            // cheaper than keeping them around) ...
+            xorTweaks(unit_nos, units, startBlock, blocks, lbuf, ofs);
+            if (null != buf) {
+                cipher1.processBlocks(buf, ofs, buf, ofs, blocks);
+            }
+            else {
+                cipher1.processBlocks(lbuf, ofs, blocks);
+            }
+            xorTweaks(unit_nos, units, startBlock, blocks, lbuf, ofs);
 
-            BinUtils.writeInt64LE(dataUnit, unit_no, 0);
-            Arrays.fill(unit_no, SIZEOF_LONG, BLOCK_SIZE, (byte)0);
+            ofs += blocks * BLOCK_SIZE;
+            blockCount -= blocks;
+            dataUnit += units;
+            startBlock = 0;
+        }
 
-            cipher2.processBlock(unit_no, 0, unit_no, 0);
+        Arrays.fill(unit_nos, (byte)0);
+    }
 
-            long w_lo = BinUtils.readInt64LE(unit_no, 0);
-            long w_hi = BinUtils.readInt64LE(unit_no, SIZEOF_LONG);
+    // a cascade encrypts with its stages in order, decryption starts with the
+    // last one; each stage is an XTS pass with its own tweak key ...
+    private void processStages(final byte[] buf, final ByteBuffer lbuf,
+            final int ofs, final int len,
+            final long startDataUnit, final int startBlock) {
+        final int c = this.stages.length;
+        final XTS[] order = new XTS[c];
+        for (int i = 0; i < c; i++) {
+            order[i] = this.stages[BlockCipher.Mode.DECRYPT == this.cipher1.mode() ? c - 1 - i : i];
+        }
 
-            for (int block = 0, wi = w_vals_end; block < endBlock; block++, wi -= 2) {
+        // (the first batch ends at a data unit boundary, all others are full)
+        final int firstLen = Math.min(len, PIPELINE_BATCH - startBlock * BLOCK_SIZE);
+        if (!this.pipelined || 1 == c || len == firstLen) {
+            for (XTS stage : order) {
+                stage.process(buf, lbuf, ofs, len, startDataUnit, startBlock);
+            }
+            return;
+        }
+        final int batches = 1 + (len - firstLen + PIPELINE_BATCH - 1) / PIPELINE_BATCH;
+
+        final Progress progress = new Progress(c);
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        class Stage implements Callable<Object> {
+            final int idx;
+            Stage(int idx) {
+                this.idx = idx;
+            }
+            public Object call() {
+                // (absolute accesses only, but better not share the buffer)
+                final ByteBuffer lbuf2 = lbuf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+                boolean ok = false;
+                try {
+                    for (int b = 0; b < batches; b++) {
+                        if (0 < this.idx && !progress.await(this.idx - 1, b)) {
+                            return null;
+                        }
+                        final int bofs = 0 == b ? 0 : firstLen + (b - 1) * PIPELINE_BATCH;
+                        order[this.idx].process(buf, lbuf2, ofs + bofs,
+                                0 == b ? firstLen : Math.min(PIPELINE_BATCH, len - bofs),
+                                startDataUnit + (0 == b ? 0 : (startBlock * BLOCK_SIZE + bofs) / DATA_UNIT_SIZE),
+                                0 == b ? startBlock : 0);
+                        progress.done(this.idx);
+                    }
+                    ok = true;
+                }
+                finally {
+                    if (!ok) {
+                        progress.fail();
+                    }
+                }
+                return null;
+            }
+        }
+        // the first stage runs on the calling thread, all of the others get
+        // their own one, so they can never starve each other ...
+        try {
+            for (int i = 1; i < c; i++) {
+                futures.add(executor().submit(new Stage(i)));
+            }
+            new Stage(0).call();
+        }
+        finally {
+            boolean interrupted = false;
+            Throwable err = null;
+            for (Future<?> future : futures) {
+                for (;;) {
+                    try {
+                        future.get();
+                        break;
+                    }
+                    catch (InterruptedException ie) {
+                        // the stages work on the caller's data, so we have
+                        // to wait for them in any case...
+                        interrupted = true;
+                    }
+                    catch (ExecutionException ee) {
+                        err = ee.getCause();
+                        break;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (null != err) {
+                throw new Error(err);
+            }
+        }
+    }
+
+    // which batches the stages got done with so far
+    private final static class Progress {
+        private final int[] done;
+        private boolean failed;
+        Progress(int stages) {
+            this.done = new int[stages];
+        }
+        synchronized boolean await(int stage, int batch) {
+            boolean interrupted = false;
+            while (!this.failed && this.done[stage] <= batch) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return !this.failed;
+        }
+        synchronized void done(int stage) {
+            this.done[stage]++;
+            notifyAll();
+        }
+        synchronized void fail() {
+            this.failed = true;
+            notifyAll();
+        }
+    }
+
+    private static ExecutorService _executor;
+
+    // (not bounded, since stages wait for each other)
+    private synchronized static ExecutorService executor() {
+        if (null == _executor) {
+            _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r, "xts");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+        }
+        return _executor;
+    }
+
+    private final static void xorTweaks(byte[] unit_nos, int units,
+            int startBlock, int blocks, ByteBuffer lbuf, int ofs) {
+        for (int unit = 0; unit < units; unit++) {
+            long w_lo = BinUtils.readInt64LE(unit_nos, unit * BLOCK_SIZE);
+            long w_hi = BinUtils.readInt64LE(unit_nos, unit * BLOCK_SIZE + SIZEOF_LONG);
+
+            final int endBlock = blocks < BLOCKS_PER_DATA_UNIT - startBlock ?
+                    startBlock + blocks :
+                    BLOCKS_PER_DATA_UNIT;
+
+            for (int block = 0; block < endBlock; block++) {
                 if (block >= startBlock) {
-                    w_vals[wi    ] = w_lo;
-                    w_vals[wi - 1] = w_hi;
+                    lbuf.putLong(ofs              , lbuf.getLong(ofs              ) ^ w_lo);
+                    lbuf.putLong(ofs + SIZEOF_LONG, lbuf.getLong(ofs + SIZEOF_LONG) ^ w_hi);
+                    ofs += BLOCK_SIZE;
                 }
 
-                int finalCarry = 0 == (w_hi & 0x8000000000000000L) ? 0 : 135;
+                final long finalCarry = (w_hi >> 63) & 135;
 
                 w_hi <<= 1;
                 w_hi |= w_lo >>> 63;
@@ -146,21 +412,8 @@ public class XTS implements Algorithm, Cloneable {
                 w_lo ^= finalCarry;
             }
 
-            for (int block = startBlock, wi = w_vals_end;
-                 block < endBlock;
-                 block++, wi -= 2, ofs += SIZEOF_LONG * 2) {
-                BinUtils.xorInt64OverBytesLE(w_vals[wi    ], buf, ofs);
-                BinUtils.xorInt64OverBytesLE(w_vals[wi - 1], buf, ofs + SIZEOF_LONG);
-
-                cipher1.processBlock(buf, ofs, buf, ofs);
-
-                BinUtils.xorInt64OverBytesLE(w_vals[wi    ], buf, ofs);
-                BinUtils.xorInt64OverBytesLE(w_vals[wi - 1], buf, ofs + SIZEOF_LONG);
-            }
-
-            blockCount -= endBlock - startBlock;
+            blocks -= endBlock - startBlock;
             startBlock = 0;
-            dataUnit++;
         }
     }
 
@@ -251,6 +504,71 @@ public class XTS implements Algorithm, Cloneable {
 
     @Override
     public void test() throws Throwable {
+        test(AES256.class);
+        if (AES256JCE.available()) {
+            test(AES256JCE.class);
+        }
+        testCascade(Cascade.AESTwofishSerpent.class);
+        testCascade(Cascade.SerpentAES.class);
+    }
+
+    // a cascade must be the same as XTS passes with its stages one after the
+    // other, no matter if pipelined, or whether the data is in native memory
+    static void testCascade(Class<? extends Cascade> clz) throws Throwable {
+        final int LEN = PIPELINE_BATCH * 3 + DATA_UNIT_SIZE * 5 - 7 * BLOCK_SIZE;
+        final int OFS = 32;
+        final long FIRST_UNIT = 0x87654321L;
+        final int START_BLOCK = 7;
+
+        Cascade casc = clz.newInstance();
+        byte[] key = new byte[casc.keySize() << 1];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = (byte)(i * 29 + 3);
+        }
+        byte[] data = new byte[OFS + LEN];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 3 + (i >>> 11));
+        }
+
+        byte[] ref = data.clone();
+        int kofs = 0;
+        for (BlockCipher stage : casc.stages()) {
+            BlockCipher bc1 = stage.getClass().newInstance();
+            BlockCipher bc2 = stage.getClass().newInstance();
+            bc1.initialize(BlockCipher.Mode.ENCRYPT, key, kofs);
+            bc2.initialize(BlockCipher.Mode.ENCRYPT, key, kofs + casc.keySize());
+            new XTS(bc1, bc2).process(ref, OFS, LEN, FIRST_UNIT, START_BLOCK);
+            kofs += stage.keySize();
+        }
+
+        for (BlockCipher.Mode mode : BlockCipher.Mode.values()) {
+            Cascade bc1 = clz.newInstance();
+            Cascade bc2 = clz.newInstance();
+            bc1.initialize(mode                    , key, 0);
+            bc2.initialize(BlockCipher.Mode.ENCRYPT, key, casc.keySize());
+            XTS xts = new XTS(bc1, bc2);
+            final byte[] src = BlockCipher.Mode.ENCRYPT == mode ? data : ref;
+            final byte[] dst = BlockCipher.Mode.ENCRYPT == mode ? ref : data;
+            for (boolean pipelined : new boolean[] { false, true }) {
+                xts.setPipelined(pipelined);
+                byte[] tmp = src.clone();
+                xts.process(tmp, OFS, LEN, FIRST_UNIT, START_BLOCK);
+                if (!BinUtils.arraysEquals(tmp, dst)) {
+                    throw new Exception();
+                }
+                ByteBuffer dbuf = ByteBuffer.allocateDirect(src.length);
+                dbuf.put(src);
+                ((XTS)xts.clone()).process(dbuf, OFS, LEN, FIRST_UNIT, START_BLOCK);
+                dbuf.clear();
+                dbuf.get(tmp);
+                if (!BinUtils.arraysEquals(tmp, dst)) {
+                    throw new Exception();
+                }
+            }
+        }
+    }
+
+    static void test(Class<? extends BlockCipher> clz) throws Throwable {
         for (String[] tv : TEST_VECTORS) {
             byte[] key1   = BinUtils.hexStrToBytes(tv[0]);
             byte[] key2   = BinUtils.hexStrToBytes(tv[1]);
@@ -260,8 +578,8 @@ public class XTS implements Algorithm, Cloneable {
             byte[] ptxt   = BinUtils.hexStrToBytes(tv[4]);
             byte[] ptxt2  = (byte[])ptxt.clone();
 
-            BlockCipher bc1 = new AES256();
-            BlockCipher bc2 = new AES256();
+            BlockCipher bc1 = clz.newInstance();
+            BlockCipher bc2 = clz.newInstance();
             bc1.initialize(BlockCipher.Mode.ENCRYPT, key1, 0);
             bc2.initialize(BlockCipher.Mode.ENCRYPT, key2, 0);
 
@@ -273,8 +591,8 @@ public class XTS implements Algorithm, Cloneable {
                 throw new Exception();
             }
 
-            bc1 = new AES256();
-            bc2 = new AES256();
+            bc1 = clz.newInstance();
+            bc2 = clz.newInstance();
             bc1.initialize(BlockCipher.Mode.DECRYPT, key1, 0);
             bc2.initialize(BlockCipher.Mode.ENCRYPT, key2, 0);
 
@@ -286,5 +604,141 @@ public class XTS implements Algorithm, Cloneable {
                 throw new Exception();
             }
         }
+        testBatching(clz);
+        testConcurrent(clz);
+        testByteBuffer(clz);
+    }
+
+    // processing many data units (or parts of them) in one call must produce
+    // exactly the same as processing them one by one ...
+    static void testBatching(Class<? extends BlockCipher> clz) throws Throwable {
+        final int UNITS = UNITS_PER_BATCH * 2 + 3;
+        final long FIRST_UNIT = 0x123456789L;
+
+        byte[] key1 = BinUtils.hexStrToBytes(TEST_VECTORS[0][0]);
+        byte[] key2 = BinUtils.hexStrToBytes(TEST_VECTORS[0][1]);
+
+        BlockCipher bc1 = clz.newInstance();
+        BlockCipher bc2 = clz.newInstance();
+        bc1.initialize(BlockCipher.Mode.ENCRYPT, key1, 0);
+        bc2.initialize(BlockCipher.Mode.ENCRYPT, key2, 0);
+        XTS xts = new XTS(bc1, bc2);
+
+        byte[] data = new byte[UNITS * DATA_UNIT_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 13 + (i >>> 9));
+        }
+        byte[] data2 = data.clone();
+        byte[] data3 = data.clone();
+
+        xts.process(data, 0, data.length, FIRST_UNIT, 0);
+        for (int unit = 0; unit < UNITS; unit++) {
+            xts.process(data2, unit * DATA_UNIT_SIZE, DATA_UNIT_SIZE, FIRST_UNIT + unit, 0);
+        }
+        if (!BinUtils.arraysEquals(data, data2)) {
+            throw new Exception();
+        }
+
+        final int SPLIT = 7;
+        final int SPLIT_OFS = SPLIT * BLOCK_SIZE;
+        xts.process(data3, 0, SPLIT_OFS, FIRST_UNIT, 0);
+        xts.process(data3, SPLIT_OFS, data3.length - SPLIT_OFS, FIRST_UNIT, SPLIT);
+        if (!BinUtils.arraysEquals(data, data3)) {
+            throw new Exception();
+        }
+    }
+
+    static void testConcurrent(Class<? extends BlockCipher> clz) throws Throwable {
+        final int THREADS = 4;
+        final int ROUNDS = 50;
+        final int UNITS = UNITS_PER_BATCH + 1;
+
+        BlockCipher bc1 = clz.newInstance();
+        BlockCipher bc2 = clz.newInstance();
+        bc1.initialize(BlockCipher.Mode.ENCRYPT, BinUtils.hexStrToBytes(TEST_VECTORS[0][0]), 0);
+        bc2.initialize(BlockCipher.Mode.ENCRYPT, BinUtils.hexStrToBytes(TEST_VECTORS[0][1]), 0);
+        final XTS xts = new XTS(bc1, bc2);
+
+        // every thread works on its own data units, with one shared instance
+        final byte[][] refs = new byte[THREADS][UNITS * DATA_UNIT_SIZE];
+        for (int t = 0; t < THREADS; t++) {
+            for (int i = 0; i < refs[t].length; i++) {
+                refs[t][i] = (byte)(i * 11 + t);
+            }
+            xts.process(refs[t], 0, refs[t].length, t * UNITS, 0);
+        }
+
+        final Throwable[] errs = new Throwable[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int t_ = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        byte[] data = new byte[refs[t_].length];
+                        for (int r = 0; r < ROUNDS; r++) {
+                            for (int i = 0; i < data.length; i++) {
+                                data[i] = (byte)(i * 11 + t_);
+                            }
+                            xts.process(data, 0, data.length, t_ * UNITS, 0);
+                            if (!BinUtils.arraysEquals(data, refs[t_])) {
+                                throw new Exception();
+                            }
+                        }
+                    }
+                    catch (Throwable err) {
+                        errs[t_] = err;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < THREADS; t++) {
+            threads[t].join();
+            if (null != errs[t]) {
+                throw errs[t];
+            }
+        }
+    }
+
+    static void testByteBuffer(Class<? extends BlockCipher> clz) throws Throwable {
+        final int LEN = (UNITS_PER_BATCH + 2) * DATA_UNIT_SIZE;
+        final int OFS = 48;
+        final long FIRST_UNIT = 1000;
+        final int START_BLOCK = 3;
+
+        BlockCipher bc1 = clz.newInstance();
+        BlockCipher bc2 = clz.newInstance();
+        bc1.initialize(BlockCipher.Mode.ENCRYPT, BinUtils.hexStrToBytes(TEST_VECTORS[0][0]), 0);
+        bc2.initialize(BlockCipher.Mode.ENCRYPT, BinUtils.hexStrToBytes(TEST_VECTORS[0][1]), 0);
+        XTS xts = new XTS(bc1, bc2);
+
+        byte[] data = new byte[OFS + LEN];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 5 + (i >>> 10));
+        }
+        byte[] ref = data.clone();
+        xts.process(ref, OFS, LEN, FIRST_UNIT, START_BLOCK);
+
+        // (the sliced heap buffer has an array offset different from zero)
+        ByteBuffer heap = ByteBuffer.allocate(data.length + 7);
+        heap.position(7);
+        for (ByteBuffer bb : new ByteBuffer[] {
+                ByteBuffer.allocateDirect(data.length),
+                heap.slice() }) {
+            bb.put(data);
+            bb.position(5);
+            bb.limit(11);
+            xts.process(bb, OFS, LEN, FIRST_UNIT, START_BLOCK);
+            if (5 != bb.position() || 11 != bb.limit()) {
+                throw new Exception();
+            }
+            byte[] out = new byte[data.length];
+            bb.clear();
+            bb.get(out);
+            if (!BinUtils.arraysEquals(out, ref)) {
+                throw new Exception();
+            }
+        }
     }
 }
@@ -59,13 +59,9 @@ public class CmdLn extends Exe {
     public static String __TEST_password;
     
     char[] password(boolean confirm) throws ExitError {
-        if (null != __TEST_password) {
-            return __TEST_password.toCharArray();
-        }
-        
-        String clpassw = CmdLnProps.OPTS_PASSWORD.get(this.props);
-        if (null != clpassw) {
-            return clpassw.toCharArray();
+        char[] result = givenPassword();
+        if (null != result) {
+            return result;
         }
         
         Console con = null == __TEST_console ? Console.system() : 
@@ -100,6 +96,18 @@ public class CmdLn extends Exe {
         }
     }
     
+    // password which is known without asking for it
+    char[] givenPassword() {
+        if (null != __TEST_password) {
+            return __TEST_password.toCharArray();
+        }
+        String clpassw = CmdLnProps.OPTS_PASSWORD.get(this.props);
+        if (null != clpassw) {
+            return clpassw.toCharArray();
+        }
+        return null;
+    }
+    
     void showUsage() {
         try {
             System.out.println(new String(IOUtils.readStreamBytes(
@@ -319,6 +327,16 @@ public class CmdLn extends Exe {
     ///////////////////////////////////////////////////////////////////////////
     
     void create(VarLong tm) throws ExitError {
+        // if we got the password already the header keys can be derived
+        // while the material gets registered, otherwise we ask for it later
+        char[] passw = givenPassword();
+        if (null != passw) {
+            Prg.Result res = this.prg.prepareMake(passw.clone());
+            if (res.isFailure()) {
+                throw new ExitError(res);
+            }
+        }
+        
         stepRegister();
             
         long freeSpace = CmdLnProps.OPTS_FREESPACE.get(this.props);
@@ -336,7 +354,9 @@ public class CmdLn extends Exe {
         final long volSz = this.prg.volumeBytes();
         this.out.printf(NLS.CMDLN_VOL_SZ_1.s(), volSz); 
         
-        char[] passw = password(true);
+        if (null == passw) {
+            passw = password(true);
+        }
         
         tm.v = Clock._system.now();
         
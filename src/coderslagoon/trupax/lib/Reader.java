@@ -80,6 +80,23 @@ public abstract class Reader {
         };
     }
     
+    /**
+     * Optional capability of a block device to read many consecutive blocks
+     * with one call, which is much cheaper for devices doing more than just
+     * plain I/O, e.g. decryption.
+     */
+    public interface BulkRead {
+        /**
+         * Reads consecutive blocks.
+         * @param num Number of the first block.
+         * @param buf Where to put the block data.
+         * @param ofs Where to start writing in the buffer.
+         * @param count Number of blocks to read.
+         * @throws IOException If any error occurred.
+         */
+        void readBlocks(long num, byte[] buf, int ofs, int count) throws IOException;
+    }
+
     protected BlockDevice bdev;
     protected Properties  props;
     
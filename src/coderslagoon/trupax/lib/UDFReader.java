@@ -47,6 +47,9 @@ import coderslagoon.trupax.lib.io.filesystem.udf.TerminatingDescriptor;
 
 public class UDFReader extends Reader {
     final static Log _log = new Log("udf.reader");
+
+    // how much file data gets read at once, if the device supports it
+    final static int XFER_BUF_SIZE = 65536;
     
     ///////////////////////////////////////////////////////////////////////////
     
@@ -111,6 +114,15 @@ public class UDFReader extends Reader {
     final private void readLogicalBlock(int num, byte[] buf) throws IOException {
         readBlock(blockAddressToLogicalBlock(num), buf);
     }
+    final private void readLogicalBlocks(BulkRead bulk, int num, byte[] buf, int count) throws IOException {
+        try {
+            bulk.readBlocks(blockAddressToLogicalBlock(num), buf, 0, count);
+        }
+        catch (IOException ioe) {
+            throw new Exception(Code.ERR_IO, null, "block device read error (%s)", 
+                                ioe.getMessage());
+        }
+    }
     final private long blockAddressToLogicalBlock(int num) {
         return BinUtils.u32ToLng(this.partitionDescriptor.partitionStartingLocation) + 
                BinUtils.u32ToLng(num);
@@ -386,20 +398,23 @@ public class UDFReader extends Reader {
     ///////////////////////////////////////////////////////////////////////////
     
     private void xferBytes(int block, int len, OutputStream os, VarLong total) throws IOException {
-        byte[] buf = new byte[this.blockSize];
-        int i = 0;
-        for (int c = len / this.blockSize; i < c; i++) {
-            dataProgress(total.v);
-            readLogicalBlock(block + i, buf);
-            os.write(buf);
-            total.v += this.blockSize;
-        }
-        int rest = len % this.blockSize;
-        if (0 < rest) {
+        final BulkRead bulk = this.bdev instanceof BulkRead ? (BulkRead)this.bdev : null;
+        final int chunk = null == bulk ? 1 : Math.max(1, XFER_BUF_SIZE / this.blockSize);
+        byte[] buf = new byte[chunk * this.blockSize];
+        for (int left = len; 0 < left;) {
+            int c = Math.min(chunk, (left + this.blockSize - 1) / this.blockSize);
             dataProgress(total.v);
-            readLogicalBlock(block + i, buf);
-            os.write(buf, 0, rest);
-            total.v += rest;
+            if (null == bulk) {
+                readLogicalBlock(block, buf);
+            }
+            else {
+                readLogicalBlocks(bulk, block, buf, c);
+            }
+            int n = Math.min(left, c * this.blockSize);
+            os.write(buf, 0, n);
+            total.v += n;
+            left -= n;
+            block += c;
         }
     }
     
@@ -0,0 +1,836 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.lib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import coderslagoon.baselib.io.BlockDevice;
+import coderslagoon.baselib.io.IOUtils;
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.baselib.util.BytePtr;
+import coderslagoon.baselib.util.Clock;
+import coderslagoon.baselib.util.Log;
+import coderslagoon.baselib.util.MiscUtils;
+import coderslagoon.trupax.lib.Writer.Exception;
+import coderslagoon.trupax.lib.io.filesystem.udf.*;
+
+/**
+ * Adds files to an existing volume, as emitted by the UDFWriter, in place.
+ * The space comes out of the free blocks the volume got made with (see
+ * Writer.Layout.freeBlocks()) and is taken from the space bitmap. Only the
+ * blocks which actually change get written: the new file entries and their
+ * data, the directories taking the new identifiers, the bitmap and the
+ * integrity descriptor. The latter is marked open until close() got called.
+ */
+public class UDFUpdater implements UDF {
+    public final static int ERROR_UNSUPPORTED   = Writer.ERROR_CUSTOM_BASE + 0;
+    public final static int ERROR_FILE_EXISTS   = Writer.ERROR_CUSTOM_BASE + 1;
+    public final static int ERROR_NOT_DIRECTORY = Writer.ERROR_CUSTOM_BASE + 2;
+
+    final static Log _log = new Log("udfupdater");
+
+    protected static Clock _clock = Clock._system;
+
+    final static short PART_REF_NUM   = 0;
+    final static short FILE_VERSION_1 = 1;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    final BlockDevice bdev;
+    final int         blockSize;
+    final byte[]      block;
+
+    long                             partitionStart;
+    long                             partitionLength;
+    long                             lvidBlock;
+    LogicalVolumeIntegrityDescriptor lvid;
+    LogicalVolumeHeaderDescriptor    lvhd;
+    int                              rootLbn;
+    long                             bitmapLbn;
+    byte[]                           bitmap;
+    boolean[]                        bitmapDirty;
+    long                             bitmapBits;
+    long                             freeBlocks;
+    long                             freeHint;
+    boolean                          opened;
+
+    final Map<Integer, Dir> dirs = new HashMap<Integer, Dir>();
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default ctor.
+     * @param bdev The volume, e.g. a container opened for updating.
+     */
+    public UDFUpdater(BlockDevice bdev) {
+        this.bdev      = bdev;
+        this.blockSize = bdev.blockSize();
+        this.block     = new byte[this.blockSize];
+    }
+
+    /**
+     * Reads the descriptors, the space bitmap and the root directory. Nothing
+     * gets written yet.
+     * @throws IOException If any error occurred or if the volume cannot be
+     * updated, e.g. because it has no space bitmap or was not closed.
+     */
+    public void open() throws IOException {
+        this.bdev.read(AnchorVolumeDescriptorPointer.LOCATION, this.block, 0);
+        AnchorVolumeDescriptorPointer avdp = (AnchorVolumeDescriptorPointer)
+                Descriptor.parse(this.block, 0);
+
+        LogicalVolumeDescriptor lvd = null;
+        PartitionDescriptor     pd  = null;
+
+        ExtentDescriptor mvds = avdp.mainVolumeDescriptorSequence;
+        for (long loc = mvds.location, end = loc + mvds.length / this.blockSize;
+             loc < end; loc++) {
+            Descriptor d = Descriptor.parse(readBlockNew(loc), 0);
+            if (d instanceof LogicalVolumeDescriptor) {
+                lvd = (LogicalVolumeDescriptor)d;
+            }
+            else if (d instanceof PartitionDescriptor) {
+                pd = (PartitionDescriptor)d;
+            }
+            else if (d instanceof TerminatingDescriptor) {
+                break;
+            }
+        }
+        if (null == lvd || null == pd) {
+            throw new Exception(ERROR_UNSUPPORTED, "incomplete volume descriptor sequence");
+        }
+        if (lvd.logicalBlockSize != this.blockSize) {
+            throw new Exception(ERROR_UNSUPPORTED, "logical block size is %d",
+                                lvd.logicalBlockSize);
+        }
+        this.partitionStart  = BinUtils.u32ToLng(pd.partitionStartingLocation);
+        this.partitionLength = BinUtils.u32ToLng(pd.partitionLength);
+
+        this.lvidBlock = BinUtils.u32ToLng(lvd.integritySequenceExtent.location);
+        Descriptor d = Descriptor.parse(readBlockNew(this.lvidBlock), 0);
+        if (!(d instanceof LogicalVolumeIntegrityDescriptor)) {
+            throw new Exception(ERROR_UNSUPPORTED, "no LVID found");
+        }
+        this.lvid = (LogicalVolumeIntegrityDescriptor)d;
+        if (LogicalVolumeIntegrityDescriptor.TYPE_CLOSE != this.lvid.integrityType) {
+            throw new Exception(ERROR_UNSUPPORTED, "volume has not been closed");
+        }
+        this.lvhd = new LogicalVolumeHeaderDescriptor(
+                this.lvid.logicalVolumeContentsUse.buf,
+                this.lvid.logicalVolumeContentsUse.ofs);
+
+        readSpaceBitmap(pd.partitionContentsUse.unallocatedSpaceBitmap);
+
+        AllocationDescriptor.Long adl = AllocationDescriptor.Long.parse(
+                lvd.logicalVolumeContentsUse.buf,
+                lvd.logicalVolumeContentsUse.ofs);
+        FileSetDescriptor fsd = (FileSetDescriptor)Descriptor.parse(
+                readBlockNew(this.partitionStart +
+                             BinUtils.u32ToLng(adl.location.logicalBlockNumber)), 0);
+        this.rootLbn = fsd.rootDirectoryICB.location.logicalBlockNumber;
+
+        readDirectory(this.rootLbn);
+
+        _log.infof("volume opened, %d free blocks", this.freeBlocks);
+    }
+
+    /**
+     * @return Number of blocks still available for new files and directories.
+     */
+    public long freeBlocks() {
+        return this.freeBlocks;
+    }
+
+    /**
+     * Adds a file. Missing directories on its path get created.
+     * @param path The path of the file in the volume, separated by slashes.
+     * @param ins Where to read the content from.
+     * @param size The exact number of bytes the file has.
+     * @param tstamp The time the file got modified.
+     * @throws IOException If any error occurred. Writer.Exception with
+     * ERROR_TOO_MUCH_DATA if there is not enough space left.
+     */
+    public void addFile(String path, InputStream ins, long size, long tstamp) throws IOException {
+        final String[] names = splitPath(path);
+        final Dir dir = resolve(names, names.length - 1);
+        final String name = names[names.length - 1];
+
+        if (size > FileEntry.Standard.maxFileSize(this.blockSize, 0)) {
+            throw new Exception(Writer.ERROR_FILE_TOO_LARGE,
+                    "file '%s' is too large", path);
+        }
+        begin();
+
+        final int emax = FileEntry.Standard.maxEmbeddedAllocDescSize(this.blockSize, 0);
+        final int lbn;
+        if (emax >= size) {
+            BytePtr embed = new BytePtr(new byte[emax]);
+            embed.len = IOUtils.readAll(ins, embed.buf, 0, emax);
+            if (embed.len != size || -1 != ins.read()) {
+                throw new Exception(Writer.ERROR_FILE_SIZE_CHANGED_LO,
+                        "small size mismatch for file '%s'", path);
+            }
+            lbn = (int)allocate(1).get(0)[0];
+            writeFileEntry(lbn, false, embed, null, 1, size, tstamp, nextUniqueID());
+        }
+        else {
+            // like the writer does, the data follows right after the entry if
+            // the space allows it ...
+            final List<long[]> runs = allocate(1 + bytesToBlocks(size));
+            final long[] first = runs.get(0);
+            lbn = (int)first[0];
+            boolean done = false;
+            try {
+                List<long[]> data = new ArrayList<long[]>(runs);
+                if (1 == first[1]) {
+                    data.remove(0);
+                }
+                else {
+                    data.set(0, new long[] { first[0] + 1, first[1] - 1 });
+                }
+                BytePtr ads = makeAllocationDescriptors(data, size);
+                if (ads.len > emax) {
+                    throw new Exception(Writer.ERROR_FILE_TOO_LARGE,
+                            "file '%s' is too fragmented", path);
+                }
+                writeData(data, ins, size, path);
+                writeFileEntry(lbn, false, null, ads, 1, size, tstamp, nextUniqueID());
+                done = true;
+            }
+            finally {
+                if (!done) {
+                    release(runs);
+                }
+            }
+        }
+        addIdentifier(dir, name, lbn, false);
+        this.lvid.numberOfFiles++;
+    }
+
+    /**
+     * Adds a directory, plus the missing ones on its path.
+     * @param path The path of the directory, separated by slashes.
+     * @param tstamp The time the directory got modified.
+     * @throws IOException If any error occurred.
+     */
+    public void addDirectory(String path, long tstamp) throws IOException {
+        final String[] names = splitPath(path);
+        final Dir dir = resolve(names, names.length - 1);
+        makeDirectory(dir, names[names.length - 1], tstamp);
+    }
+
+    /**
+     * Writes the space bitmap and closes the integrity descriptor again, so
+     * the volume is consistent. Must be called after any file got added. The
+     * block device does not get closed.
+     * @throws IOException If any error occurred.
+     */
+    public void close() throws IOException {
+        if (!this.opened) {
+            return;
+        }
+        final int bmap = this.bitmapDirty.length;
+        for (int i = 0; i < bmap; i++) {
+            if (this.bitmapDirty[i]) {
+                this.bdev.write(this.partitionStart + this.bitmapLbn + i,
+                                this.bitmap, i * this.blockSize);
+                this.bitmapDirty[i] = false;
+            }
+        }
+        writeIntegrity(LogicalVolumeIntegrityDescriptor.TYPE_CLOSE);
+        this.opened = false;
+
+        _log.infof("volume closed, %d files, %d directories, %d free blocks",
+                   this.lvid.numberOfFiles,
+                   this.lvid.numberOfDirectories,
+                   this.freeBlocks);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // a directory as far as needed for adding new identifiers to it
+    static class Dir {
+        int          lbn;
+        FileEntry    fe;
+        byte[]       data;
+        List<long[]> extents = new ArrayList<long[]>();
+    }
+
+    Dir readDirectory(int lbn) throws IOException {
+        Dir result = this.dirs.get(lbn);
+        if (null != result) {
+            return result;
+        }
+        result = new Dir();
+        result.lbn = lbn;
+
+        Descriptor d = Descriptor.parse(readLogicalBlockNew(lbn), 0);
+        if (!(d instanceof FileEntry.Standard)) {
+            throw new Exception(ERROR_UNSUPPORTED, "no file entry at %d", lbn);
+        }
+        result.fe = (FileEntry)d;
+        if (ICBTag.FileType.DIRECTORY != result.fe.icbTag.fileType) {
+            throw new Exception(ERROR_NOT_DIRECTORY, "entry at %d is not a directory", lbn);
+        }
+        if (ICBTag.ALLOCDESC_SHORT != result.fe.icbTag.allocDescriptor() ||
+            0 != result.fe.lengthOfExtendedAttributes) {
+            throw new Exception(ERROR_UNSUPPORTED, "unsupported directory at %d", lbn);
+        }
+
+        final long len = result.fe.informationLength;
+        if (len > Integer.MAX_VALUE) {
+            throw new Exception(Writer.ERROR_DIRECTORY_TOO_LARGE, "directory at %d is too large", lbn);
+        }
+        result.data = new byte[(int)len];
+
+        int ofs = 0;
+        for (int i = 0, c = result.fe.lengthOfAllocationDescriptors / AllocationDescriptor.Short.LENGTH;
+             i < c; i++) {
+            AllocationDescriptor.Short ads = AllocationDescriptor.Short.parse(
+                    result.fe.allocationDescriptors.buf,
+                    result.fe.allocationDescriptors.ofs + i * AllocationDescriptor.Short.LENGTH);
+
+            long blocks = bytesToBlocks(ads.length);
+            result.extents.add(new long[] { BinUtils.u32ToLng(ads.position), blocks });
+
+            for (long j = 0; j < blocks && ofs < result.data.length; j++) {
+                readLogicalBlock(ads.position + j, this.block);
+                int n = Math.min(this.blockSize, result.data.length - ofs);
+                System.arraycopy(this.block, 0, result.data, ofs, n);
+                ofs += n;
+            }
+        }
+        if (ofs != result.data.length) {
+            throw new Exception(ERROR_UNSUPPORTED, "directory at %d is incomplete", lbn);
+        }
+
+        this.dirs.put(lbn, result);
+        return result;
+    }
+
+    // returns the identifier of the given name in a directory, null if none
+    FileIdentifierDescriptor lookup(Dir dir, String name) throws IOException {
+        for (int ofs = 0; ofs < dir.data.length;) {
+            FileIdentifierDescriptor fid = (FileIdentifierDescriptor)
+                    Descriptor.parse(dir.data, ofs);
+            ofs += fid.length();
+            if (0 == (fid.fileCharacteristics & (FileIdentifierDescriptor.FCBIT_PARENT |
+                                                 FileIdentifierDescriptor.FCBIT_DELETED)) &&
+                fid.fileIdentifierStr.equals(name)) {
+                return fid;
+            }
+        }
+        return null;
+    }
+
+    // walks down (and makes) the first count directories of a path
+    Dir resolve(String[] names, int count) throws IOException {
+        Dir result = readDirectory(this.rootLbn);
+        for (int i = 0; i < count; i++) {
+            FileIdentifierDescriptor fid = lookup(result, names[i]);
+            if (null == fid) {
+                result = makeDirectory(result, names[i], _clock.now());
+            }
+            else if (0 == (fid.fileCharacteristics & FileIdentifierDescriptor.FCBIT_DIRECTORY)) {
+                throw new Exception(ERROR_NOT_DIRECTORY, "'%s' is not a directory", names[i]);
+            }
+            else {
+                result = readDirectory(fid.icb.location.logicalBlockNumber);
+            }
+        }
+        if (null != lookup(result, names[count])) {
+            throw new Exception(ERROR_FILE_EXISTS, "'%s' exists already", names[count]);
+        }
+        return result;
+    }
+
+    Dir makeDirectory(Dir parent, String name, long tstamp) throws IOException {
+        if (null != lookup(parent, name)) {
+            throw new Exception(ERROR_FILE_EXISTS, "'%s' exists already", name);
+        }
+        begin();
+
+        // entry plus one block for the parent identifier, just like the
+        // writer lays out directories ...
+        List<long[]> runs = allocate(2);
+        long[] run0 = runs.get(0);
+        final int lbn = (int)run0[0];
+        final List<long[]> extents = new ArrayList<long[]>();
+        extents.add(1 == run0[1] ? runs.get(1) : new long[] { run0[0] + 1, 1 });
+
+        final FileIdentifierDescriptor fid = newIdentifier(parent.lbn, true);
+        fid.fileCharacteristics |= FileIdentifierDescriptor.FCBIT_PARENT;
+        fid.setFileIdentifier(null);
+        fid.tag.location = (int)extents.get(0)[0];
+
+        Dir result = new Dir();
+        result.lbn     = lbn;
+        result.data    = new byte[FileIdentifierDescriptor.size(UDFWriter.PARENT_DIR_NAME, 0)];
+        result.extents = extents;
+        fid.write(result.data, 0);
+        writeStream(result, 0, result.data.length);
+
+        result.fe = writeFileEntry(lbn, true, null,
+                makeAllocationDescriptors(extents, result.data.length),
+                1, result.data.length, tstamp, nextUniqueID());
+
+        addIdentifier(parent, name, lbn, true);
+        this.lvid.numberOfDirectories++;
+
+        this.dirs.put(lbn, result);
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    FileIdentifierDescriptor newIdentifier(int lbn, boolean isDirectory) {
+        FileIdentifierDescriptor result = new FileIdentifierDescriptor(0);
+
+        result.fileVersionNumber         = FILE_VERSION_1;
+        result.fileCharacteristics       = (byte)(isDirectory ? FileIdentifierDescriptor.FCBIT_DIRECTORY : 0);
+        result.lengthOfFileIdentifier    = -1;
+        result.icb                       = new AllocationDescriptor.Long();
+        result.icb.type                  = AllocationDescriptor.ExtentType.RECORDED_AND_ALLOCATED;
+        result.icb.length                = this.blockSize;
+        result.icb.implementationUse     = null;
+        result.icb.location              = new RecordedAddress(lbn, PART_REF_NUM);
+        result.lengthOfImplementationUse = 0;
+        result.implementationUse         = new BytePtr(new byte[0]);
+        result.paddingBytes              = null;
+        return result;
+    }
+
+    void addIdentifier(Dir dir, String name, int lbn, boolean isDirectory) throws IOException {
+        final FileIdentifierDescriptor fid = newIdentifier(lbn, isDirectory);
+        final int len;
+        try {
+            fid.setFileIdentifier(name);
+            len = FileIdentifierDescriptor.size(name, 0);
+        }
+        catch (UDFException ue) {
+            throw new Exception(Writer.ERROR_NAME_TOO_LONG, "%s", ue.getMessage());
+        }
+
+        final int  ofs  = dir.data.length;
+        final long have = countBlocks(dir.extents);
+        final long need = bytesToBlocks((long)ofs + len);
+
+        List<long[]> released = null;
+        if (need > have) {
+            // grow the last extent if what follows is free, otherwise the
+            // whole stream has to move somewhere else ...
+            long[] last = dir.extents.get(dir.extents.size() - 1);
+            if (!claim(last[0] + last[1], need - have)) {
+                released = dir.extents;
+                dir.extents = allocate(need);
+            }
+            else {
+                last[1] += need - have;
+            }
+        }
+
+        dir.data = Arrays.copyOf(dir.data, ofs + len);
+        fid.tag.location = (int)blockAt(dir.extents, ofs);
+        fid.write(dir.data, ofs);
+
+        if (null == released) {
+            writeStream(dir, ofs, dir.data.length);
+        }
+        else {
+            // the identifiers know where they are, so all of them need to
+            // get updated (the tags have the location at the same offset) ...
+            for (int ofs2 = 0; ofs2 < ofs;) {
+                FileIdentifierDescriptor fid2 = (FileIdentifierDescriptor)
+                        Descriptor.parse(dir.data, ofs2);
+                fid2.tag.location = (int)blockAt(dir.extents, ofs2);
+                ofs2 = fid2.write(dir.data, ofs2);
+            }
+            writeStream(dir, 0, dir.data.length);
+        }
+
+        FileEntry fe = dir.fe;
+        fe.informationLength             = dir.data.length;
+        fe.logicalBlocksRecorded         = bytesToBlocks(dir.data.length);
+        fe.allocationDescriptors         = makeAllocationDescriptors(dir.extents, dir.data.length);
+        fe.lengthOfAllocationDescriptors = fe.allocationDescriptors.len;
+        fe.modificationDateAndTime       =
+        fe.attributeDateAndTime          = Timestamp.fromCalendar(
+                                           MiscUtils.calendarFromMillis(_clock.now()));
+        if (isDirectory) {
+            fe.fileLinkCount++;
+        }
+        if (fe.lengthOfAllocationDescriptors >
+            FileEntry.Standard.maxEmbeddedAllocDescSize(this.blockSize, 0)) {
+            throw new Exception(Writer.ERROR_DIRECTORY_TOO_LARGE,
+                    "directory at %d is too fragmented", dir.lbn);
+        }
+        byte[] blk = new byte[this.blockSize];
+        fe.write(blk, 0);
+        writeLogicalBlock(dir.lbn, blk);
+
+        if (null != released) {
+            release(released);
+        }
+    }
+
+    // writes the blocks of a directory stream covering a range of bytes
+    void writeStream(Dir dir, int from, int to) throws IOException {
+        final int bsz = this.blockSize;
+        for (int ofs = from - from % bsz; ofs < to; ofs += bsz) {
+            byte[] blk = new byte[bsz];
+            System.arraycopy(dir.data, ofs, blk, 0, Math.min(bsz, dir.data.length - ofs));
+            writeLogicalBlock(blockAt(dir.extents, ofs), blk);
+        }
+    }
+
+    void writeData(List<long[]> runs, InputStream ins, long size, String path) throws IOException {
+        final byte[] blk = this.block;
+        long rsz = 0L;
+        for (long[] run : runs) {
+            for (long i = 0; i < run[1]; i++) {
+                int toread = (int)Math.min(size - rsz, blk.length);
+                int read = IOUtils.readAll(ins, blk, 0, toread);
+                if (toread > read) {
+                    throw new Exception(Writer.ERROR_FILE_SIZE_CHANGED_LO,
+                            "file '%s' smaller than expected", path);
+                }
+                rsz += read;
+                Arrays.fill(blk, read, blk.length, (byte)0);
+                writeLogicalBlock(run[0] + i, blk);
+            }
+        }
+        if (-1 != ins.read()) {
+            throw new Exception(Writer.ERROR_FILE_SIZE_CHANGED_HI,
+                    "file '%s' bigger than expected", path);
+        }
+    }
+
+    FileEntry writeFileEntry(int lbn,
+                             boolean isDirectory,
+                             BytePtr embed,
+                             BytePtr ads,
+                             int links,
+                             long length,
+                             long tstamp,
+                             long uniqueID) throws IOException {
+        int icbFlags = null == embed ? ICBTag.ALLOCDESC_SHORT :
+                                       ICBTag.ALLOCDESC_EMBEDDED;
+        icbFlags |= ICBTag.FLAG_ARCHIVE;
+
+        Timestamp ts = Timestamp.fromCalendar(MiscUtils.calendarFromMillis(tstamp));
+
+        FileEntry.Standard fe = new FileEntry.Standard(lbn);
+
+        fe.icbTag = new ICBTag();
+        fe.icbTag.priorRecordedNumberOfDirectEntries = 0;
+        fe.icbTag.strategyType                       = ICBTag.STRATEGY_UDF102;
+        fe.icbTag.strategyParameter                  = ICBTag.SPARAMS_ZERO;
+        fe.icbTag.maximumNumberOfEntries             = 1;
+        fe.icbTag.reserved                           = 0;
+        fe.icbTag.fileType                           = isDirectory ?
+                                                       ICBTag.FileType.DIRECTORY :
+                                                       ICBTag.FileType.RANDOM_ACCESS_BYTE_SEQ;
+        fe.icbTag.parentICBLocation                  = RecordedAddress.ZERO;
+        fe.icbTag.flags                              = (short)icbFlags;
+        fe.uid                                       = 0;
+        fe.gid                                       = 0;
+        fe.permissions                               = 0x7fff;
+        fe.fileLinkCount                             = (short)links;
+        fe.recordFormat                              = FileEntry.RecordFormat.NOT_SPECIFIED;
+        fe.recordDisplayAttributes                   = FileEntry.RecordDisplayAttribute.NOT_SPECIFIED;
+        fe.recordLength                              = 0;
+        fe.informationLength                         = length;
+        fe.logicalBlocksRecorded                     = null == embed ? bytesToBlocks(length) : 0;
+        fe.accessDateAndTime                         = ts;
+        fe.modificationDateAndTime                   = ts;
+        fe.attributeDateAndTime                      = ts;
+        fe.checkpoint                                = 1;
+        fe.extendedAttributeICB                      = AllocationDescriptor.Long.ZERO;
+        fe.implementationIdentifier                  = UDFWriter.IMPLEMENTATION_ID;
+        fe.uniqueID                                  = uniqueID;
+        fe.lengthOfExtendedAttributes                = 0;
+        fe.extendedAttributes                        = BytePtr.NO_DATA;
+        fe.allocationDescriptors                     = null == embed ? ads : embed;
+        fe.lengthOfAllocationDescriptors             = fe.allocationDescriptors.len;
+
+        byte[] blk = new byte[this.blockSize];
+        fe.write(blk, 0);
+        writeLogicalBlock(lbn, blk);
+        return fe;
+    }
+
+    BytePtr makeAllocationDescriptors(List<long[]> runs, long length) throws UDFException {
+        final int chunkBlocks = AllocationDescriptor.maxLength(this.blockSize) / this.blockSize;
+
+        byte[] buf = new byte[0];
+        AllocationDescriptor.Short ad = new AllocationDescriptor.Short();
+        ad.type = AllocationDescriptor.ExtentType.RECORDED_AND_ALLOCATED;
+
+        for (long[] run : runs) {
+            for (long pos = run[0], left = run[1]; 0 < left && 0 < length;) {
+                int c = (int)Math.min(left, chunkBlocks);
+                ad.position = (int)pos;
+                ad.length   = (int)Math.min(length, (long)c * this.blockSize);
+                buf = Arrays.copyOf(buf, buf.length + AllocationDescriptor.Short.LENGTH);
+                ad.write(buf, buf.length - AllocationDescriptor.Short.LENGTH);
+                pos    += c;
+                left   -= c;
+                length -= ad.length;
+            }
+        }
+        return new BytePtr(buf);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    void readSpaceBitmap(AllocationDescriptor.Short usb) throws IOException {
+        if (0 == usb.length) {
+            throw new Exception(ERROR_UNSUPPORTED, "volume has no space bitmap");
+        }
+        this.bitmapLbn = BinUtils.u32ToLng(usb.position);
+
+        final int blocks = (int)bytesToBlocks(usb.length);
+        this.bitmap      = new byte[blocks * this.blockSize];
+        this.bitmapDirty = new boolean[blocks];
+        for (int i = 0; i < blocks; i++) {
+            readLogicalBlock(this.bitmapLbn + i, this.block);
+            System.arraycopy(this.block, 0, this.bitmap, i * this.blockSize, this.blockSize);
+        }
+
+        SpaceBitmapDescriptor sbd = (SpaceBitmapDescriptor)Descriptor.parse(this.bitmap, 0);
+        this.bitmapBits = Math.min(BinUtils.u32ToLng(sbd.numberOfBits), this.partitionLength);
+        if (SpaceBitmapDescriptor.LENGTH + ((this.bitmapBits + 7) >> 3) > this.bitmap.length) {
+            throw new Exception(ERROR_UNSUPPORTED, "space bitmap is truncated");
+        }
+
+        this.freeHint = -1L;
+        for (long b = 0; b < this.bitmapBits; b++) {
+            if (isFree(b)) {
+                if (-1L == this.freeHint) {
+                    this.freeHint = b;
+                }
+                this.freeBlocks++;
+            }
+        }
+        if (-1L == this.freeHint) {
+            this.freeHint = this.bitmapBits;
+        }
+    }
+
+    final boolean isFree(long b) {
+        return 0 != (this.bitmap[SpaceBitmapDescriptor.LENGTH + (int)(b >>> 3)] & (1 << (b & 7)));
+    }
+
+    final void mark(long b, boolean free) {
+        final int i = SpaceBitmapDescriptor.LENGTH + (int)(b >>> 3);
+        if (free) {
+            this.bitmap[i] |=  (1 << (b & 7));
+            this.freeBlocks++;
+            this.freeHint = Math.min(this.freeHint, b);
+        }
+        else {
+            this.bitmap[i] &= ~(1 << (b & 7));
+            this.freeBlocks--;
+        }
+        this.bitmapDirty[i / this.blockSize] = true;
+    }
+
+    /**
+     * Allocates blocks, in one piece if possible. Otherwise the first free
+     * runs get taken, in order.
+     * @param count Number of blocks needed.
+     * @return The runs, each one start and length.
+     * @throws IOException If there is not enough free space left.
+     */
+    List<long[]> allocate(long count) throws IOException {
+        if (count > this.freeBlocks) {
+            throw new Exception(Writer.ERROR_TOO_MUCH_DATA,
+                    "%d blocks needed, only %d left", count, this.freeBlocks);
+        }
+        List<long[]> result = new ArrayList<long[]>();
+
+        long first = -1L;
+        for (long b = this.freeHint, start = -1L; b < this.bitmapBits; b++) {
+            if (isFree(b)) {
+                if (-1L == start) {
+                    start = b;
+                }
+                if (b - start + 1 == count) {
+                    first = start;
+                    break;
+                }
+            }
+            else {
+                start = -1L;
+            }
+        }
+        if (-1L != first) {
+            result.add(new long[] { first, count });
+        }
+        else {
+            long left = count;
+            for (long b = this.freeHint; 0 < left; b++) {
+                if (!isFree(b)) {
+                    continue;
+                }
+                long[] last = result.isEmpty() ? null : result.get(result.size() - 1);
+                if (null != last && last[0] + last[1] == b) {
+                    last[1]++;
+                }
+                else {
+                    result.add(new long[] { b, 1 });
+                }
+                left--;
+            }
+        }
+        for (long[] run : result) {
+            for (long b = run[0]; b < run[0] + run[1]; b++) {
+                mark(b, false);
+            }
+        }
+        while (this.freeHint < this.bitmapBits && !isFree(this.freeHint)) {
+            this.freeHint++;
+        }
+        return result;
+    }
+
+    // takes blocks at a particular place, if they are all free
+    boolean claim(long start, long count) {
+        if (start + count > this.bitmapBits) {
+            return false;
+        }
+        for (long b = start; b < start + count; b++) {
+            if (!isFree(b)) {
+                return false;
+            }
+        }
+        for (long b = start; b < start + count; b++) {
+            mark(b, false);
+        }
+        while (this.freeHint < this.bitmapBits && !isFree(this.freeHint)) {
+            this.freeHint++;
+        }
+        return true;
+    }
+
+    void release(List<long[]> runs) {
+        for (long[] run : runs) {
+            for (long b = run[0]; b < run[0] + run[1]; b++) {
+                mark(b, true);
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // marks the volume as being modified, before the first change happens
+    void begin() throws IOException {
+        if (!this.opened) {
+            writeIntegrity(LogicalVolumeIntegrityDescriptor.TYPE_OPEN);
+            this.opened = true;
+        }
+    }
+
+    void writeIntegrity(int type) throws IOException {
+        this.lvid.integrityType            = type;
+        this.lvid.recordingDateAndTime     = Timestamp.fromCalendar(
+                                             MiscUtils.calendarFromMillis(_clock.now()));
+        this.lvid.freeSpaceTable[0]        = (int)this.freeBlocks;
+        this.lvid.logicalVolumeContentsUse = this.lvhd.data();
+
+        byte[] blk = new byte[this.blockSize];
+        this.lvid.write(blk, 0);
+        this.bdev.write(this.lvidBlock, blk, 0);
+    }
+
+    long nextUniqueID() {
+        long result = this.lvhd.uniqueID;
+        if ((result & 0xffffffffL) < MIN_UNIQUE_ID) {
+            result = (result & ~0xffffffffL) | MIN_UNIQUE_ID;
+        }
+        this.lvhd.uniqueID = result + 1;
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static String[] splitPath(String path) throws IOException {
+        List<String> result = new ArrayList<String>();
+        int len = 0;
+        for (String name : path.split("/")) {
+            if (0 < name.length()) {
+                result.add(name);
+                len += 1 + name.length();
+            }
+        }
+        if (result.isEmpty()) {
+            throw new Exception(Writer.ERROR_NAME_TOO_LONG, "empty path");
+        }
+        if (len > MAX_PATH_LEN) {
+            throw new Exception(Writer.ERROR_PATH_TOO_LONG,
+                "the length of path '%s' exceeds the maximum of %d characters",
+                path, MAX_PATH_LEN);
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    final long bytesToBlocks(long sz) {
+        return sz / this.blockSize + (0 == sz % this.blockSize ? 0 : 1);
+    }
+
+    static long countBlocks(List<long[]> runs) {
+        long result = 0;
+        for (long[] run : runs) {
+            result += run[1];
+        }
+        return result;
+    }
+
+    final long blockAt(List<long[]> runs, long ofs) {
+        long idx = ofs / this.blockSize;
+        for (long[] run : runs) {
+            if (idx < run[1]) {
+                return run[0] + idx;
+            }
+            idx -= run[1];
+        }
+        throw new IllegalArgumentException();
+    }
+
+    final private byte[] readBlockNew(long num) throws IOException {
+        byte[] result = new byte[this.blockSize];
+        this.bdev.read(num, result, 0);
+        return result;
+    }
+    final private byte[] readLogicalBlockNew(long lbn) throws IOException {
+        return readBlockNew(this.partitionStart + lbn);
+    }
+    final private void readLogicalBlock(long lbn, byte[] buf) throws IOException {
+        this.bdev.read(this.partitionStart + lbn, buf, 0);
+    }
+    final private void writeLogicalBlock(long lbn, byte[] buf) throws IOException {
+        this.bdev.write(this.partitionStart + lbn, buf, 0);
+    }
+}
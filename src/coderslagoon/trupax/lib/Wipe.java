@@ -22,7 +22,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.security.SecureRandom;
 import java.util.Random;
 
 import coderslagoon.baselib.io.FileNode;
@@ -30,6 +29,7 @@ import coderslagoon.baselib.io.FileRegistrar;
 import coderslagoon.baselib.io.LocalFileSystem;
 import coderslagoon.baselib.util.Prp;
 import coderslagoon.baselib.util.VarLong;
+import coderslagoon.tclib.crypto.Rand;
 
 
 public class Wipe {
@@ -55,6 +55,29 @@ public class Wipe {
             }
             byte[] data;
         }
+        
+        public static class RandomData implements Cycles {
+            Prp.Int pbsz = new Prp.Int(PROPS_PFX + "bufsize", 512 * 1024);
+            public RandomData(int count, Rand rnd) {
+                this.count = count;
+                this.rnd   = rnd;
+            }
+            public int count() {
+                return this.count;
+            }
+            public void set(int num) {
+                if (null == this.data) {
+                    this.data = new byte[this.pbsz.get()];  
+                }
+            }
+            public byte[] data() {
+                this.rnd.make(this.data, 0, this.data.length);
+                return this.data;
+            }
+            final int  count;
+            final Rand rnd;
+            byte[]     data;
+        }
     }
     
     ///////////////////////////////////////////////////////////////////////////
@@ -82,7 +105,6 @@ public class Wipe {
     final Cycles        cycles;
     final boolean       removeDirs;
     final long          totalBytes;
-    final SecureRandom  srnd = new SecureRandom();
     
     ///////////////////////////////////////////////////////////////////////////
     
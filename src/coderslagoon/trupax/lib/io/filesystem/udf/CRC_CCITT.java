@@ -56,24 +56,98 @@ public class CRC_CCITT {
         0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
     };
 
+    // TABLES[n][b] is the CRC of byte b followed by n zero bytes, so eight
+    // bytes can be processed at once, each one with its own table ...
+    final static int[][] TABLES = new int[8][];
+    static {
+        TABLES[0] = TABLE;
+        for (int n = 1; n < TABLES.length; n++) {
+            final int[] prev = TABLES[n - 1];
+            final int[] tbl = TABLES[n] = new int[256];
+            for (int b = 0; b < 256; b++) {
+                tbl[b] = (TABLE[prev[b] >>> 8] ^ (prev[b] << 8)) & 0xffff;
+            }
+        }
+    }
+
     public short value() {
         return (short)this.crc;
     }
 
     int crc;
 
+    public void reset() {
+        this.crc = 0;
+    }
+
     public void update(byte[] buf, int ofs, int len) {
-        int crc = this.crc;
-        for (int end = ofs + len; ofs < end; ofs++) {
-            crc = TABLE[((crc >> 8) ^ buf[ofs]) & 0xff] ^ (crc << 8);
+        this.crc = update(this.crc, buf, ofs, len);
+    }
+
+    /**
+     * Computes the CRC of a single block of data, without the need of an
+     * instance. This is what the descriptor tags use.
+     * @param buf The buffer with the data.
+     * @param ofs Where the data starts.
+     * @param len Number of bytes.
+     * @return The CRC value.
+     */
+    public static short compute(byte[] buf, int ofs, int len) {
+        return (short)update(0, buf, ofs, len);
+    }
+
+    static int update(int crc, byte[] buf, int ofs, int len) {
+        final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        crc &= 0xffff;
+        final int end = ofs + len;
+        for (final int end8 = ofs + (len & ~7); ofs < end8; ofs += 8) {
+            crc = t7[((crc >>> 8) ^ buf[ofs    ]) & 0xff] ^
+                  t6[( crc        ^ buf[ofs + 1]) & 0xff] ^
+                  t5[buf[ofs + 2] & 0xff] ^
+                  t4[buf[ofs + 3] & 0xff] ^
+                  t3[buf[ofs + 4] & 0xff] ^
+                  t2[buf[ofs + 5] & 0xff] ^
+                  t1[buf[ofs + 6] & 0xff] ^
+                  t0[buf[ofs + 7] & 0xff];
         }
-        this.crc = crc;
+        for (; ofs < end; ofs++) {
+            crc = (t0[((crc >>> 8) ^ buf[ofs]) & 0xff] ^ (crc << 8)) & 0xffff;
+        }
+        return crc;
     }
-    
+
     public static boolean test() {
         CRC_CCITT crc = new CRC_CCITT();
         crc.update(new byte[] { 0, 0x70, 0x6a, 0x77 }, 1, 3);
         short value = crc.value();
-        return 0x3299 == value;
+        if (0x3299 != value) {
+            return false;
+        }
+        // the sliced computation must match the one going byte by byte, for
+        // any length and alignment and also if done piece by piece...
+        byte[] data = new byte[300];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte)(i * 61 + (i >>> 2));
+        }
+        for (int ofs = 0; ofs < 8; ofs++) {
+            for (int len = 0; len <= data.length - ofs; len++) {
+                int ref = 0;
+                for (int i = ofs, end = ofs + len; i < end; i++) {
+                    ref = TABLE[((ref >> 8) ^ data[i]) & 0xff] ^ (ref << 8);
+                }
+                if ((short)ref != compute(data, ofs, len)) {
+                    return false;
+                }
+                int half = len >>> 1;
+                crc.reset();
+                crc.update(data, ofs, half);
+                crc.update(data, ofs + half, len - half);
+                if ((short)ref != crc.value()) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 }
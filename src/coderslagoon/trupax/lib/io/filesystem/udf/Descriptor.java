@@ -121,10 +121,8 @@ public abstract class Descriptor {
             this.descriptorCRCLength = BinUtils.readInt16LE(buf, ofs + 10);
     
             if (CRC_LENGTH_NONE != this.descriptorCRCLength) {
-                CRC_CCITT crc = new CRC_CCITT();
                 int len = BinUtils.u16ToInt(this.descriptorCRCLength);
-                crc.update(buf, ofs + LENGTH, len);
-                if (crc.value() != this.descriptorCRC) {
+                if (CRC_CCITT.compute(buf, ofs + LENGTH, len) != this.descriptorCRC) {
                     throw new UDFException("CRC mismatch (len=%d)", len);  
                 }
             }
@@ -141,9 +139,7 @@ public abstract class Descriptor {
             buf[ofs + 5] = (byte)this.reserved;
 
             if (-1 != crcLen) {
-                CRC_CCITT crc = new CRC_CCITT();
-                crc.update(buf, ofs + LENGTH, crcLen);
-                this.descriptorCRC       = crc.value();
+                this.descriptorCRC       = CRC_CCITT.compute(buf, ofs + LENGTH, crcLen);
                 this.descriptorCRCLength = (short)crcLen;
             }
             else {
@@ -352,6 +352,27 @@ public abstract class Prg {
          * Whether an invalidated volume should also be deleted. Boolean.
          */
         public final static String DELETE_AFTER = PFX + "deleteafter";        
+        /**
+         * Whether wiping should overwrite files with random data instead of
+         * zeros. The data comes from the fast generator, so this costs about
+         * the same as writing zeros. Boolean.
+         */
+        public final static String WIPE_RANDOM = PFX + "wiperandom";        
+        /**
+         * Whether header keys should be kept in memory for a limited amount of
+         * time, so opening the same volume again with the same password is
+         * much faster. The keys get wiped latest when the instance gets
+         * destroyed. Boolean.
+         */
+        public final static String KEY_CACHE = PFX + "keycache";        
+        /**
+         * Size of the blocks a new volume gets encrypted and written in, in
+         * bytes: "512", "2048" or "4096". Larger blocks mean a lot less work
+         * when creating. The file system inside and the container itself stay
+         * the same, the file system just gets padded to fill the last block.
+         * Default is "512". String.
+         */
+        public final static String BLOCK_SIZE = PFX + "blocksize";        
     }
     
     ///////////////////////////////////////////////////////////////////////////
@@ -778,6 +799,17 @@ public abstract class Prg {
      */
     public abstract long volumeBytes();
     
+    /**
+     * Hands over the password for the next make() call in advance, so the
+     * expensive derivation of the header keys can already run while material
+     * gets registered and the layout resolved. Optional, if make() gets called
+     * with a different password (or algorithm settings) the keys just get
+     * derived again.
+     * @param password The encryption password. Gets cleared.
+     * @return Result of the operation.
+     */
+    public abstract Result prepareMake(char[] password);
+    
     /**
      * Creates the volume.
      * @param password The encryption password. Any length, any characters.
@@ -50,6 +50,7 @@ import coderslagoon.baselib.util.VarInt;
 import coderslagoon.baselib.util.VarRef;
 import coderslagoon.baselib.util.Prp.Item;
 import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.container.KeyCache;
 import coderslagoon.tclib.crypto.Rand;
 import coderslagoon.tclib.crypto.Registry;
 import coderslagoon.tclib.util.Key;
@@ -62,6 +63,9 @@ import coderslagoon.trupax.lib.UDFReader;
 import coderslagoon.trupax.lib.UDFWriter;
 import coderslagoon.trupax.lib.Wipe;
 import coderslagoon.trupax.lib.Writer;
+import coderslagoon.trupax.tc.BatchBlockDevice;
+import coderslagoon.trupax.tc.HeaderKeys;
+import coderslagoon.trupax.tc.MappedBlockDevice;
 import coderslagoon.trupax.tc.TCBlockDevice;
 import coderslagoon.trupax.tc.TCInvalidate;
 import coderslagoon.trupax.tc.TCReader;
@@ -78,12 +82,16 @@ public class PrgImpl extends Prg {
     String                  extractDir;
     Long                    freeSpace = 0L;
     Long                    volumeSize;
+    int                     volumeBlockSize = BLOCK_SIZE;
     Boolean                 registerTopLevel;
     List<String>            objs = new ArrayList<String>();
     FileNode[]              viewables;
     FileRegistrar           freg;
     Writer                  wrt;
     RegisterObjectsCallback rocb;
+    KeyCache                keyCache;
+    KeyCache                keyCachePrevious;
+    HeaderKeys              headerKeys;
     
     ///////////////////////////////////////////////////////////////////////////
 
@@ -235,6 +243,15 @@ public class PrgImpl extends Prg {
     }
     
     public Result dtor() {
+        discardHeaderKeys();
+        if (null != this.keyCache) {
+            // (the cache set before ours comes back, unless someone else
+            // replaced ours in the meantime)
+            Header.keyCache(this.keyCache, this.keyCachePrevious);
+            this.keyCache.erase();
+            this.keyCache = null;
+            this.keyCachePrevious = null;
+        }
         if (null != this.propsSaveFile) {
             if (!Prp.saveToFile(this.props, new File(this.propsSaveFile), true,
                                   NLS.PRGIMPL_PROPS_COMMENT.s())) {
@@ -577,6 +594,31 @@ public class PrgImpl extends Prg {
     protected static boolean __TEST_make_npe;
     protected static boolean __TEST_write_error;
     
+    public Result prepareMake(char[] password) {
+        discardHeaderKeys();
+        try {
+            this.headerKeys = new HeaderKeys(
+                    new Password(password, null),
+                    new PrgProps.HashFunction().get(this.props),
+                    new PrgProps.BlockCipher ().get(this.props),
+                    Rand.wrap(Rand.secure()));
+        }
+        catch (TCLibException tle) {
+            return new Result(Result.Code.INTERNAL_ERROR,
+                    NLS.PRGIMPL_INTERNAL_ERROR_1.fmt(
+                            tle.getLocalizedMessage()),    
+                    MiscUtils.dumpError(tle));
+        }
+        return Result.ok();
+    }
+
+    void discardHeaderKeys() {
+        if (null != this.headerKeys) {
+            this.headerKeys.erase();
+            this.headerKeys = null;
+        }
+    }
+
     public Result make(char[] password, final MakeCallback cb) {
         if (null == this.volumeFile) {
             return new Result(Result.Code.MAKE_REJECT,
@@ -584,6 +626,10 @@ public class PrgImpl extends Prg {
         }
         File vol = null;
         try {
+            // (the block size the volume got resolved with, not whatever got
+            // set meanwhile) ...
+            final int bsz = this.volumeBlockSize;
+            final BlockDevice wrtdev;
             BlockDevice outdev;
             try {
                 vol = new File(this.volumeFile);
@@ -609,7 +655,7 @@ public class PrgImpl extends Prg {
                 outdev = new BlockDeviceImpl.OutputStreamBlockDevice(
                         os2, 
                         this.volumeSize, 
-                        BLOCK_SIZE, 
+                        bsz, 
                         true);
             }
             catch (IOException ioe) {
@@ -622,7 +668,7 @@ public class PrgImpl extends Prg {
             BlockDeviceImpl.HookBlockDevice(outdev) {
                 protected boolean onRead(long num) { throw new Error(); }
                 protected boolean onWrite(long num) {
-                    return cb.onVolumeWrite(num * (long)BLOCK_SIZE).isSuccess();
+                    return cb.onVolumeWrite(num * (long)bsz).isSuccess();
                 }
             };
             
@@ -633,13 +679,31 @@ public class PrgImpl extends Prg {
                 String hashFunction = new PrgProps.HashFunction().get(this.props);
                 String blockCipher  = new PrgProps.BlockCipher ().get(this.props);
                 
+                // keys derived in advance can only be used for the very same
+                // password and algorithms, otherwise it's the time to start ...
+                HeaderKeys keys = this.headerKeys;
+                this.headerKeys = null;
+                if (null != keys && keys.matches(key, hashFunction, blockCipher)) {
+                    key.erase();
+                }
+                else {
+                    if (null != keys) {
+                        keys.erase();
+                    }
+                    keys = new HeaderKeys(key, hashFunction, blockCipher,
+                            Rand.wrap(Rand.secure()));
+                }
+                
                 tcbdev = new TCBlockDevice(
                         houtdev,
-                        key,
-                        hashFunction,
-                        blockCipher,
+                        keys,
                         Rand.wrap(Rand.secure()));
                 
+                // (the file system gets written in 512 byte blocks, no matter
+                // what size the volume gets written in)
+                wrtdev = BLOCK_SIZE == bsz ? tcbdev : 
+                         new BatchBlockDevice(tcbdev, BLOCK_SIZE);
+
                 outdev = null;
             }
             catch (BlockDevice.AbortException ae) {
@@ -665,7 +729,7 @@ public class PrgImpl extends Prg {
             }
             
             try {
-                this.wrt.make(tcbdev, new Writer.Progress() {
+                this.wrt.make(wrtdev, new Writer.Progress() {
                     public void onFile(FileRegistrar.Directory dir, FileNode node) {
                         if (null == dir && null == node) {
                             cb.onFreeSpace();
@@ -678,7 +742,7 @@ public class PrgImpl extends Prg {
                     }
                 });
             
-                tcbdev.close(false);
+                wrtdev.close(false);
                 tcbdev = null;
     
                 vol = null;
@@ -695,7 +759,7 @@ public class PrgImpl extends Prg {
             finally {
                 if (null != tcbdev) {
                     try {
-                        tcbdev.close(null != vol); 
+                        wrtdev.close(null != vol); 
                     } 
                     catch (IOException ignored) {
                     }
@@ -714,21 +778,38 @@ public class PrgImpl extends Prg {
     ///////////////////////////////////////////////////////////////////////////
     
     public Result resolve() {
-        this.wrt = new UDFWriter(this.freg, this.props);
+        // the file system always comes in 512 byte blocks, since these are the
+        // sectors TrueCrypt exposes, larger blocks are just about writing the
+        // volume; the file system then gets padded with free blocks until it
+        // fills the last one of them, which might take another round or two
+        // because of the space bitmap growing ...
+        final int bsz = Integer.parseInt(new PrgProps.BlockSize().get(this.props));
+        final int units = bsz / BLOCK_SIZE;
         
         try {
-            this.volumeSize = this.wrt.resolve(new Writer.Layout() {
-                public long freeBlocks() {
-                    return PrgImpl.this.freeSpace / blockSize() +
-                     (0 == PrgImpl.this.freeSpace % blockSize() ? 0 : 1);
-                }
-                public int blockSize() {
-                    return BLOCK_SIZE;
-                }
-                public String label() {
-                    return new PrgProps.Label().get(PrgImpl.this.props);
+            for (long pad = 0L;;) {
+                final long pad_ = pad;
+                this.wrt = new UDFWriter(this.freg, this.props);
+                final long blocks = this.wrt.resolve(new Writer.Layout() {
+                    public long freeBlocks() {
+                        return PrgImpl.this.freeSpace / blockSize() +
+                         (0 == PrgImpl.this.freeSpace % blockSize() ? 0 : 1) + pad_;
+                    }
+                    public int blockSize() {
+                        return BLOCK_SIZE;
+                    }
+                    public String label() {
+                        return new PrgProps.Label().get(PrgImpl.this.props);
+                    }
+                });
+                final long rest = blocks % units;
+                if (0 == rest) {
+                    this.volumeSize = blocks / units + (Header.SIZE / bsz) * 2;
+                    break;
                 }
-            }) + Header.BLOCK_COUNT * 2;
+                pad += units - rest;
+            }
+            this.volumeBlockSize = bsz;
         } 
         catch (IOException ioe) {
             return new Result(Result.Code.RESOLVE_ERROR,
@@ -742,13 +823,14 @@ public class PrgImpl extends Prg {
     ///////////////////////////////////////////////////////////////////////////
 
     public long volumeBytes() {
-        return null == this.volumeSize ? -1L : (BLOCK_SIZE * this.volumeSize);
+        return null == this.volumeSize ? -1L : (this.volumeBlockSize * this.volumeSize);
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
     public Result wipe(final WipeCallback wcb) {
-        Wipe w = new Wipe(this.freg, new Wipe.Cycles.Zeros(), true);
+        Wipe w = new Wipe(this.freg, new PrgProps.WipeRandom().get(this.props) ?
+                new Wipe.Cycles.RandomData(1, Rand.fast()) : new Wipe.Cycles.Zeros(), true);
         return w.perform(new Wipe.Progress() {
             public boolean onNode(FileNode fn) {
                 if (!fn.hasAttributes(FileNode.ATTR_DIRECTORY)) {
@@ -790,14 +872,25 @@ public class PrgImpl extends Prg {
 
     ///////////////////////////////////////////////////////////////////////////
     
+    final static int  KEY_CACHE_SIZE    = 8;
+    final static long KEY_CACHE_TIMEOUT = 5 * 60 * 1000L;
+
+    void setupKeyCache() {
+        if (null == this.keyCache && new PrgProps.KeyCache().get(this.props)) {
+            this.keyCache = new KeyCache(KEY_CACHE_SIZE, KEY_CACHE_TIMEOUT);
+            this.keyCachePrevious = Header.keyCache(this.keyCache);
+        }
+    }
+
     public Result extract(char[] password, String dir, final ExtractCallback cb) {
         RandomAccessFile raf = null;
         BlockDevice bdev = null;
         TCReader tcr = null;
         try {
             raf = new RandomAccessFile(this.volumeFile, "r");  
-            bdev = new BlockDeviceImpl.FileBlockDevice(raf, BLOCK_SIZE, -1L, true, false);
+            bdev = new MappedBlockDevice(raf.getChannel(), BLOCK_SIZE, -1L);
             final Key key = new Password(password, null);
+            setupKeyCache();
             tcr = new TCReader(bdev, key, false);
         }
         catch (IOException ioe) {
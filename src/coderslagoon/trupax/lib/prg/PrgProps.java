@@ -117,6 +117,12 @@ public class PrgProps extends Prp.Registry {
     public static class DeleteAfter extends NBool implements Descriptor {
         public DeleteAfter() { super(Prg.Prop.DELETE_AFTER, "delete-after", null); }   
     }
+    public static class WipeRandom extends NBool implements Descriptor {
+        public WipeRandom() { super(Prg.Prop.WIPE_RANDOM, "wipe-random", null); }   
+    }
+    public static class KeyCache extends NBool implements Descriptor {
+        public KeyCache() { super(Prg.Prop.KEY_CACHE, "key-cache", null); }   
+    }
 
     public static class Label extends Prp.Str implements Descriptor {
         public Label() { super(Prg.Prop.LABEL, null); }   
@@ -166,6 +172,13 @@ public class PrgProps extends Prp.Registry {
                   Registry._hashFunctions.names()); 
         }
     }
+    public static class BlockSize extends Selection {
+        public BlockSize() {
+            super(Prg.Prop.BLOCK_SIZE,
+                  "block-size", null, 
+                  new String[] { "512", "2048", "4096" }); 
+        }
+    }
     
     ///////////////////////////////////////////////////////////////////////////
 
@@ -0,0 +1,128 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.sdk.apps;
+
+import java.util.Arrays;
+
+/**
+ * Reusable buffers for a batch of passwords, encoded the way TrueCrypt
+ * does it (ISO-8859-1). Passwords with characters beyond that cannot be
+ * entered in TrueCrypt in the first place, hence they get dropped. Also
+ * keeps what got claimed for the batch but did not fit in anymore.
+ */
+public class Batch {
+    // (TrueCrypt passwords are 64 characters at most)
+    final static int INITIAL_LEN = 64;
+
+    /**
+     * Default constructor.
+     * @param capacity The maximum number of passwords.
+     */
+    public Batch(int capacity) {
+        this.data     = new byte[capacity][INITIAL_LEN];
+        this.lens     = new int [capacity];
+        this.ordinals = new long[capacity];
+    }
+    /** @return The maximum number of passwords. */
+    public int capacity() {
+        return this.lens.length;
+    }
+    /** @return The number of passwords in the batch. */
+    public int count() {
+        return this.count;
+    }
+    /** @return True if no more passwords fit in. */
+    public boolean full() {
+        return this.count == this.lens.length;
+    }
+    /**
+     * @param idx Index of the password.
+     * @return The ordinal of the password.
+     */
+    public long ordinal(int idx) {
+        return this.ordinals[idx];
+    }
+    /**
+     * @param idx Index of the password.
+     * @return The password as a string, e.g. to report it.
+     */
+    public String password(int idx) {
+        final char[] chars = new char[this.lens[idx]];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char)(this.data[idx][i] & 0xff);
+        }
+        return new String(chars);
+    }
+    /** Empties the batch, claimed ordinals stay around. */
+    public void clear() {
+        this.count = 0;
+    }
+    /**
+     * Adds a password, unless it cannot be encoded.
+     * @param ordinal The ordinal of the password.
+     * @param passw The password.
+     */
+    public void add(long ordinal, CharSequence passw) {
+        final int len = passw.length();
+        final byte[] buf = slot(len);
+        for (int i = 0; i < len; i++) {
+            final char c = passw.charAt(i);
+            if (c > 0xff) {
+                return;
+            }
+            buf[i] = (byte)c;
+        }
+        commit(ordinal, len);
+    }
+    // the buffer for the next password, with at least the given size
+    byte[] slot(int len) {
+        byte[] result = this.data[this.count];
+        if (result.length < len) {
+            Arrays.fill(result, (byte)0);
+            result = this.data[this.count] = new byte[len];
+        }
+        return result;
+    }
+    // takes the password put into the buffer of the next slot
+    void commit(long ordinal, int len) {
+        this.ordinals[this.count] = ordinal;
+        this.lens[this.count++] = len;
+    }
+    // scratch space for sources
+    int[] digits(int len) {
+        if (null == this.digits || this.digits.length < len) {
+            this.digits = new int[len];
+        }
+        return this.digits;
+    }
+    /** Clears all of the buffers. */
+    public void erase() {
+        for (byte[] buf : this.data) {
+            Arrays.fill(buf, (byte)0);
+        }
+        this.count = 0;
+    }
+    final byte[][] data;
+    final int[] lens;
+    final long[] ordinals;
+    int count;
+    int[] digits;
+    long claimFrom;
+    long claimTo;
+}
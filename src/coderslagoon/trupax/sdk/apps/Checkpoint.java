@@ -0,0 +1,111 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.sdk.apps;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Checkpoint files, holding the ranges of ordinals still to search. Saving
+ * goes through a temporary file, so if a process gets killed in the middle
+ * of it the previous checkpoint is still there.
+ */
+public class Checkpoint {
+    final static String PROP_RANGES = "ranges";
+    final static String TMP_SUFFIX  = ".tmp";
+
+    /**
+     * Saves a checkpoint.
+     * @param file The checkpoint file.
+     * @param ranges The ranges still to search.
+     * @throws IOException If writing failed.
+     */
+    public static void save(File file, List<long[]> ranges) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (long[] range : ranges) {
+            if (0 < sb.length()) {
+                sb.append(',');
+            }
+            sb.append(range[0]).append('-').append(range[1]);
+        }
+        final Properties props = new Properties();
+        props.setProperty(PROP_RANGES, sb.toString());
+        final File tmp = new File(file.getPath() + TMP_SUFFIX);
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            props.store(fos, "password search checkpoint");
+            fos.getFD().sync();
+        }
+        finally {
+            fos.close();
+        }
+        if (file.exists() && !file.delete() || !tmp.renameTo(file)) {
+            throw new IOException("cannot replace " + file);
+        }
+    }
+    /**
+     * Loads a checkpoint.
+     * @param file The checkpoint file.
+     * @return The ranges still to search or null if there is no checkpoint.
+     * @throws IOException If reading failed or the checkpoint is damaged.
+     */
+    public static List<long[]> load(File file) throws IOException {
+        if (!file.exists()) {
+            // could have been killed just between deleting and renaming
+            file = new File(file.getPath() + TMP_SUFFIX);
+            if (!file.exists()) {
+                return null;
+            }
+        }
+        final Properties props = new Properties();
+        final FileInputStream fis = new FileInputStream(file);
+        try {
+            props.load(fis);
+        }
+        finally {
+            fis.close();
+        }
+        final String ranges = props.getProperty(PROP_RANGES);
+        if (null == ranges) {
+            throw new IOException("malformed checkpoint file");
+        }
+        final List<long[]> result = new ArrayList<long[]>();
+        try {
+            for (String range : ranges.split(",")) {
+                if (0 == range.length()) {
+                    continue;
+                }
+                final int dash = range.indexOf('-');
+                result.add(new long[] {
+                    Long.parseLong(range.substring(0, dash)),
+                    Long.parseLong(range.substring(dash + 1))
+                });
+            }
+        }
+        catch (RuntimeException re) {
+            throw new IOException("malformed checkpoint file");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.sdk.apps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+/**
+ * Hands out ranges of ordinals through a file shared by several searches,
+ * be it processes on the same machine or on other ones, with the file
+ * living on a network share. The file just holds the next unclaimed
+ * ordinal, access to it gets serialized by locking.
+ */
+public class Claims {
+    /**
+     * Default constructor.
+     * @param file The claims file. Gets created if it does not exist yet.
+     * @param chunk Number of passwords to claim at once.
+     */
+    public Claims(File file, long chunk) {
+        if (1 > chunk) {
+            throw new IllegalArgumentException();
+        }
+        this.file = file;
+        this.chunk = chunk;
+    }
+    /**
+     * Claims the next range.
+     * @param end The end of the key space.
+     * @return The range claimed, start (inclusive) and end (exclusive), or
+     * null if everything has been claimed already.
+     * @throws IOException If accessing the file failed.
+     */
+    public long[] claim(long end) throws IOException {
+        // (file locks are held by the whole process, not by threads)
+        synchronized(Claims.class) {
+            RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+            try {
+                FileLock lock = raf.getChannel().lock();
+                try {
+                    long next = 0;
+                    if (0 < raf.length()) {
+                        try {
+                            next = Long.parseLong(raf.readLine().trim());
+                        }
+                        catch (NumberFormatException nfe) {
+                            throw new IOException("malformed claims file");
+                        }
+                    }
+                    if (next >= end) {
+                        return null;
+                    }
+                    final long to = next + Math.min(this.chunk, end - next);
+                    raf.setLength(0);
+                    raf.writeBytes(to + "\n");
+                    return new long[] { next, to };
+                }
+                finally {
+                    lock.release();
+                }
+            }
+            finally {
+                raf.close();
+            }
+        }
+    }
+    final File file;
+    final long chunk;
+}
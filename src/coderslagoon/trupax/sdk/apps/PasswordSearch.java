@@ -18,34 +18,39 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 
 package coderslagoon.trupax.sdk.apps;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.LineNumberReader;
 import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.atomic.AtomicReference;
 
 import coderslagoon.tclib.container.Header;
-import coderslagoon.tclib.container.Header.NoMatchingAlgorithmException;
-import coderslagoon.tclib.util.Password;
+import coderslagoon.tclib.crypto.BlockCipher;
+import coderslagoon.tclib.crypto.Hash;
+import coderslagoon.tclib.crypto.PKCS5;
+import coderslagoon.tclib.crypto.RIPEMD160;
+import coderslagoon.tclib.crypto.RIPEMD160Lanes;
 import coderslagoon.tclib.util.TCLibException;
 
 /**
  * Simple command line password search solution for TC containers. There is a
  * lot of room for improvement regarding the generators. Running publicly known
  * password lists probably promises better chances for success. Notice that the
- * searcher uses all cores in the system to achieve the maximum possible speed.
- * But notice also that due to the computation-intensive password setup the
- * actual speed is slow. At this point a few hundred passwords per second is
- * the best case scenario.
+ * searcher uses all cores in the system to achieve the maximum possible speed,
+ * with each core deriving the keys for a whole batch of passwords at once. But
+ * notice also that due to the computation-intensive password setup the actual
+ * speed is slow. At this point several hundred passwords per second and core
+ * is the best case scenario.
  */
 public class PasswordSearch {
 
@@ -68,13 +73,49 @@ public class PasswordSearch {
 
     /** 
      * Basic password source interface. A source is nothing else than an
-     * iterator popping out passwords.
+     * iterator popping out passwords. Each password has an ordinal, which is
+     * its position in the source, so searches can be split up and resumed.
      */
     public interface Source extends Iterator<String> {
         /** Closes the source, releases potential resources. */
         void close();
+        /** @return The ordinal of the next password, meaning the number of
+         * passwords which came before it. */
+        long ordinal();
+        /**
+         * Moves to a certain password.
+         * @param ordinal The ordinal of the password to return next. If this
+         * is beyond the last password the source is exhausted afterwards.
+         * @throws UnsupportedOperationException If the source cannot move
+         * backwards and the ordinal is lower than the current one.
+         */
+        void seek(long ordinal);
     }
-    
+
+    /**
+     * Source which can produce the passwords of any range of ordinals by
+     * itself, without keeping track of a position. Searches can then take
+     * passwords concurrently, without having to synchronize. Ordinals do not
+     * have to be dense, meaning not each one needs to stand for a password.
+     */
+    public interface Addressable extends Source {
+        /** @return The end of the ordinal space, Long.MAX_VALUE if unknown. */
+        long size();
+        /**
+         * @param count Number of passwords wanted.
+         * @return How many ordinals to claim at once to get about that many.
+         */
+        long stride(int count);
+        /**
+         * Puts passwords into a batch, as many as fit. Must be thread-safe.
+         * @param batch The batch to add to.
+         * @param from The first ordinal.
+         * @param to The end of the ordinals (exclusive).
+         * @return The ordinal to continue from, the end if all of them fit in.
+         */
+        long fill(Batch batch, long from, long to);
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     /**
@@ -88,7 +129,7 @@ public class PasswordSearch {
          * @throws IOException If the stream causes any I/O error.
          */
         public StreamSource(InputStream ins) throws IOException {
-            this.lnr = new LineNumberReader(new InputStreamReader(ins));
+            this.lnr = new LineNumberReader(new InputStreamReader(ins, "UTF-8"));
             this.next = this.lnr.readLine();
         }
         @Override
@@ -106,10 +147,24 @@ public class PasswordSearch {
                     System.err.println(ioe.getMessage());
                     System.exit(ExitCode.IO_ERROR.ordinal());
                 }
+                this.ordinal++;
             }
             return result;
         }
         @Override
+        public long ordinal() {
+            return this.ordinal;
+        }
+        @Override
+        public void seek(long ordinal) {
+            if (ordinal < this.ordinal) {
+                throw new UnsupportedOperationException();
+            }
+            while (this.ordinal < ordinal && null != this.next) {
+                next();
+            }
+        }
+        @Override
         public void remove() {
         }
         @Override
@@ -122,17 +177,18 @@ public class PasswordSearch {
         }
         final LineNumberReader lnr;
         String next;
+        long ordinal;
     }
     
     ///////////////////////////////////////////////////////////////////////////
-    
+
     /**
      * Generator which  produces passwords based on a certain length and a set
      * of characters. All of the permutations will be generated. This can of
      * course quickly create a number of passwords which cannot be searched on
      * a single machine in a reasonable amount of time.
      */
-    public static class GeneratorSource implements Source {
+    public static class GeneratorSource implements Addressable {
         /** The built-in in sets. */
         public enum Set {
             /** Numbers only (0..9). */
@@ -189,6 +245,120 @@ public class PasswordSearch {
             this.buf = new char[len];
             this.set = set;
             this.c = new int[this.buf.length];
+            long size = 1;
+            for (int i = 0; i < len; i++) {
+                if (size > Long.MAX_VALUE / set.length) {
+                    size = Long.MAX_VALUE;
+                    break;
+                }
+                size *= set.length;
+            }
+            this.size = size;
+        }
+        /**
+         * @return Number of passwords in the key space. Capped at
+         * Long.MAX_VALUE, anything beyond that is not addressable.
+         */
+        public long size() {
+            return this.size;
+        }
+        /**
+         * Computes a password from its ordinal.
+         * @param ordinal The ordinal, below size().
+         * @return The password.
+         */
+        public String password(long ordinal) {
+            if (0 > ordinal || ordinal >= this.size) {
+                throw new IllegalArgumentException();
+            }
+            final char[] result = new char[this.buf.length];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = this.set[(int)(ordinal % this.set.length)];
+                ordinal /= this.set.length;
+            }
+            return new String(result);
+        }
+        /**
+         * Computes the ordinal of a password.
+         * @param password The password, made of the characters of the set.
+         * @return The ordinal or -1 if the password is not part of the key
+         * space (or is not addressable).
+         */
+        public long ordinal(String password) {
+            if (null == this.buf || password.length() != this.buf.length) {
+                return -1;
+            }
+            long result = 0;
+            for (int i = 0; i < password.length(); i++) {
+                int d = 0;
+                while (d < this.set.length && this.set[d] != password.charAt(i)) {
+                    d++;
+                }
+                if (d == this.set.length ||
+                    result > (Long.MAX_VALUE - d) / this.set.length) {
+                    return -1;
+                }
+                result = result * this.set.length + d;
+            }
+            return result;
+        }
+        @Override
+        public long stride(int count) {
+            return count;
+        }
+        @Override
+        public long fill(Batch batch, long from, long to) {
+            final long end = Math.min(to, this.size);
+            if (null == this.buf || from >= end) {
+                return to;
+            }
+            final char[] set = this.set;
+            final int len = this.buf.length;
+            final int[] c = batch.digits(len);
+            long o = from;
+            for (int i = len - 1; i >= 0; i--) {
+                c[i] = (int)(o % set.length);
+                o /= set.length;
+            }
+            for (o = from; o < end && !batch.full(); o++) {
+                final byte[] slot = batch.slot(len);
+                boolean valid = true;
+                for (int i = 0; i < len; i++) {
+                    final char ch = set[c[i]];
+                    valid &= ch <= 0xff;
+                    slot[i] = (byte)ch;
+                }
+                if (valid) {
+                    batch.commit(o, len);
+                }
+                for (int i = len - 1; i >= 0 && ++c[i] == set.length; i--) {
+                    c[i] = 0;
+                }
+            }
+            return o < end ? o : to;
+        }
+        @Override
+        public long ordinal() {
+            return this.ordinal;
+        }
+        @Override
+        public void seek(long ordinal) {
+            if (null == this.buf) {
+                return;
+            }
+            if (0 > ordinal) {
+                throw new IllegalArgumentException();
+            }
+            this.ordinal = ordinal;
+            if (ordinal >= this.size) {
+                this.c = null;
+                return;
+            }
+            this.c = new int[this.buf.length];
+            for (int i = this.c.length - 1; i >= 0; i--) {
+                this.c[i] = (int)(ordinal % this.set.length);
+                ordinal /= this.set.length;
+            }
         }
         @Override
         public boolean hasNext() {
@@ -213,6 +383,7 @@ public class PasswordSearch {
                 }
                 break;
             }
+            this.ordinal++;
             return new String(this.buf);
         }
         @Override
@@ -224,56 +395,126 @@ public class PasswordSearch {
         char[] buf;
         char[] set;
         int[] c;
+        long size;
+        long ordinal;
     }
     
     ///////////////////////////////////////////////////////////////////////////
 
     final ExecutorService         exsvc;
-    final Source                  src;
+    final RangeSource             src;
+    final Class<? extends Hash.Function>[] hashFunctions;
+    final Class<? extends BlockCipher>[]   blockCiphers;
     final byte[]                  header;
-    final AtomicLong              progress = new AtomicLong();
+    final AtomicLongArray         tested;
+    final AtomicLongArray         inflight;
     final AtomicReference<String> found = new AtomicReference<String>();
     
     /** 
      * Each core calls this code.
      */
     class SearchRun implements Runnable {
+        final int idx;
+        SearchRun(int idx) {
+            this.idx = idx;
+        }
         @Override
         public void run() {
             try {
                 unsafeRun();
             }
+            catch (TCLibException tle) {
+                tle.printStackTrace(System.err);
+            }
             catch (Throwable err) {
                 err.printStackTrace();
                 System.exit(ExitCode.ERROR.ordinal());
             }
         }
-        private void unsafeRun() {
+        private void unsafeRun() throws TCLibException {
             final PasswordSearch self = PasswordSearch.this;
-            byte[] hdr = self.header.clone();
-            while (null == PasswordSearch.this.found.get()) {
-                String pw;
-                synchronized(self.src) {
-                    pw = self.src.next();
-                    if (null == pw) {
-                        return;
-                    }
+            final RIPEMD160Lanes rl = new RIPEMD160Lanes();
+            final Batch batch = new Batch(rl.lanes());
+            final byte[][] keys = new byte[rl.lanes()][Header.derivedKeySize(self.blockCiphers)];
+            final byte[] salt = Arrays.copyOfRange(self.header,
+                    Header.OFS_SALT, Header.OFS_SALT + Header.SALT_SIZE);
+            final int iterations = new RIPEMD160().recommededHMACIterations();
+            final Header.Verifier verifier = new Header.Verifier(self.header.clone(), 0,
+                                                                  self.blockCiphers);
+            // RIPEMD-160 goes through the lanes, all of the other hash
+            // functions derive one key after the other...
+            boolean lanes = false;
+            final List<Class<? extends Hash.Function>> others =
+                    new ArrayList<Class<? extends Hash.Function>>();
+            for (Class<? extends Hash.Function> hf : self.hashFunctions) {
+                if (hf.equals(RIPEMD160.class)) {
+                    lanes = true;
                 }
-                try {
-                    new Header(new Password(pw.toCharArray(), null), hdr, 0);
-                    self.found.set(pw);
-                    return;
+                else {
+                    others.add(hf);
                 }
-                catch (NoMatchingAlgorithmException nmae) {
-                    self.progress.incrementAndGet();
-                    System.arraycopy(self.header, 0, hdr, 0, 512);
+            }
+            final PKCS5.PBKDF2[] kdfs = new PKCS5.PBKDF2[others.size()];
+            final int[] kdfIterations = new int[kdfs.length];
+            try {
+                for (int h = 0; h < kdfs.length; h++) {
+                    final Hash.Function hf = others.get(h).newInstance();
+                    kdfIterations[h] = hf.recommededHMACIterations();
+                    kdfs[h] = new PKCS5.PBKDF2(hf);
+                    kdfs[h].setParallel(false);
+                }
+            }
+            catch (InstantiationException ie) {
+                throw new TCLibException(ie);
+            }
+            catch (IllegalAccessException iae) {
+                throw new TCLibException(iae);
+            }
+            try {
+                while (null == self.found.get()) {
+                    // whatever gets claimed next lies above the source's
+                    // current ordinal, unless there is something left over
+                    self.inflight.set(this.idx, batch.claimFrom < batch.claimTo ?
+                                                batch.claimFrom : self.src.ordinal());
+                    if (!self.src.next(batch)) {
+                        break;
+                    }
+                    final int count = batch.count();
+                    if (lanes) {
+                        rl.deriveKeys(batch.data, batch.lens, count, salt, iterations, keys);
+                        for (int i = 0; i < count; i++) {
+                            if (null != verifier.verify(RIPEMD160.class, keys[i])) {
+                                self.found.set(batch.password(i));
+                                return;
+                            }
+                        }
+                    }
+                    for (int h = 0; h < kdfs.length; h++) {
+                        for (int i = 0; i < count; i++) {
+                            kdfs[h].deriveKey(batch.data[i], batch.lens[i], salt,
+                                              kdfIterations[h], keys[i]);
+                            final Header hdr = verifier.verify(others.get(h), keys[i]);
+                            if (null != hdr) {
+                                self.found.set(batch.password(i));
+                                return;
+                            }
+                        }
+                    }
+                    self.tested.addAndGet(this.idx, count);
                 }
-                catch (TCLibException tle) {
-                    tle.printStackTrace(System.err);
-                    return;
+            }
+            finally {
+                self.inflight.set(this.idx, Long.MAX_VALUE);
+                rl.erase();
+                verifier.erase();
+                batch.erase();
+                for (byte[] key : keys) {
+                    Arrays.fill(key, (byte)0);
                 }
-                catch (Throwable err) {
-                    err.printStackTrace();
+                for (PKCS5.PBKDF2 kdf : kdfs) {
+                    if (null != kdf) {
+                        kdf.erase();
+                    }
                 }
             }
         }
@@ -282,12 +523,46 @@ public class PasswordSearch {
     ///////////////////////////////////////////////////////////////////////////
 
     /**
-     * Default constructor.
-     * @param src The password source.
+     * Default constructor, trying out all of the hash functions.
+     * @param src The password source. Unless it is a range source already
+     * all of its passwords get searched.
      * @param volume The file to look out for passwords.
      * @throws IOException If the file cannot be opened or read.
      */
     public PasswordSearch(Source src, File volume) throws IOException {
+        this(src, volume, Header.hashFunctions());
+    }
+
+    /**
+     * Constructor to search with certain hash functions only, which is faster
+     * if it is known which one the volume got created with.
+     * @param src The password source. Unless it is a range source already
+     * all of its passwords get searched.
+     * @param volume The file to look out for passwords.
+     * @param hashFunctions The hash functions to try out.
+     * @throws IOException If the file cannot be opened or read.
+     */
+    public PasswordSearch(Source src, File volume,
+                          Class<? extends Hash.Function>[] hashFunctions) throws IOException {
+        this(src, volume, hashFunctions, Header.blockCiphers());
+    }
+
+    /**
+     * Constructor to search with certain hash functions and block ciphers
+     * only. Leaving out the cascades makes the key derivation a lot cheaper,
+     * since they need three times the key material.
+     * @param src The password source. Unless it is a range source already
+     * all of its passwords get searched.
+     * @param volume The file to look out for passwords.
+     * @param hashFunctions The hash functions to try out.
+     * @param blockCiphers The block ciphers to try out.
+     * @throws IOException If the file cannot be opened or read.
+     */
+    public PasswordSearch(Source src, File volume,
+                          Class<? extends Hash.Function>[] hashFunctions,
+                          Class<? extends BlockCipher>[] blockCiphers) throws IOException {
+        this.hashFunctions = hashFunctions.clone();
+        this.blockCiphers = blockCiphers.clone();
         this.header = new byte[Header.BLOCK_SIZE * 
                                Header.BLOCK_COUNT];
         RandomAccessFile raf = null;
@@ -300,11 +575,24 @@ public class PasswordSearch {
                 raf.close();
             }
         }
-        this.src = src;
+        if (src instanceof RangeSource) {
+            this.src = (RangeSource)src;
+        }
+        else {
+            final List<long[]> all = new ArrayList<long[]>();
+            all.add(new long[] { 0L, Long.MAX_VALUE });
+            this.src = new RangeSource(src, all, null, src instanceof Addressable ?
+                                       ((Addressable)src).size() : Long.MAX_VALUE);
+        }
         int pcount = Runtime.getRuntime().availableProcessors();
+        this.tested   = new AtomicLongArray(pcount);
+        this.inflight = new AtomicLongArray(pcount);
+        for (int i = 0; i < pcount; i++) {
+            this.inflight.set(i, Long.MAX_VALUE);
+        }
         this.exsvc = Executors.newFixedThreadPool(pcount);
         for (int i = 0; i < pcount; i++) {
-            this.exsvc.execute(new SearchRun());
+            this.exsvc.execute(new SearchRun(i));
         }
     }
 
@@ -312,7 +600,36 @@ public class PasswordSearch {
      * @return The search progress, which is number of passwords tried so far.
      */
     public long progress() {
-        return this.progress.get();
+        long result = 0;
+        for (long t : tested()) {
+            result += t;
+        }
+        return result;
+    }
+
+    /**
+     * @return Number of passwords tried so far, for each of the threads.
+     */
+    public long[] tested() {
+        final long[] result = new long[this.tested.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = this.tested.get(i);
+        }
+        return result;
+    }
+
+    /**
+     * @return The lowest ordinal which might not have been tested yet, all
+     * of the passwords below are done. Passwords get taken out of the source
+     * in batches and results come in out of order, so this can lag behind.
+     */
+    public long low() {
+        // (the source first, the workers note where they are before claiming)
+        long result = this.src.ordinal();
+        for (int i = 0; i < this.inflight.length(); i++) {
+            result = Math.min(result, this.inflight.get(i));
+        }
+        return result;
     }
 
     /**
@@ -324,19 +641,109 @@ public class PasswordSearch {
 
     /**
      * Cleans up resources of this instance. Discard after this call is made.
+     * Waits for all of the workers to finish their batches, so a password in
+     * the last ones does not get missed. Only after that found() is final.
      */
     public void end() throws InterruptedException{
         this.exsvc.shutdown();
-        this.exsvc.awaitTermination(30, TimeUnit.SECONDS);
+        this.exsvc.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
         this.src.close();
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
+    final static long DEFAULT_CHUNK = 1L << 20;
+
+    @SuppressWarnings("unchecked")
+    static Class<? extends Hash.Function>[] hashFunction(String name) {
+        for (Class<? extends Hash.Function> hf : Header.hashFunctions()) {
+            try {
+                if (hf.newInstance().name().equalsIgnoreCase(name)) {
+                    return new Class[] { hf };
+                }
+            }
+            catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Class<? extends BlockCipher>[] blockCipher(String name) {
+        for (Class<? extends BlockCipher> bc : Header.blockCiphers()) {
+            try {
+                if (bc.newInstance().name().equalsIgnoreCase(name)) {
+                    return new Class[] { bc };
+                }
+            }
+            catch (Exception e) {
+                throw new Error(e);
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+    final static long CHECKPOINT_INTERVAL = 60000;
+
     public static ExitCode _main(String[] args) {
+        File checkpoint = null;
+        File claimsFile = null;
+        long chunk = DEFAULT_CHUNK;
+        int shard = 0, shards = 1;
+        Class<? extends Hash.Function>[] hashFunctions = Header.hashFunctions();
+        Class<? extends BlockCipher>[] blockCiphers = Header.blockCiphers();
+        int a = 0;
+        for (; a + 1 < args.length && args[a].startsWith("-"); a += 2) {
+            final String opt = args[a], val = args[a + 1];
+            try {
+                if (opt.equals("-checkpoint")) {
+                    checkpoint = new File(val);
+                }
+                else if (opt.equals("-claims")) {
+                    claimsFile = new File(val);
+                }
+                else if (opt.equals("-chunk")) {
+                    chunk = Long.parseLong(val);
+                }
+                else if (opt.equals("-shard")) {
+                    final int slash = val.indexOf('/');
+                    shard  = Integer.parseInt(val.substring(0, slash));
+                    shards = Integer.parseInt(val.substring(slash + 1));
+                }
+                else if (opt.equals("-hash")) {
+                    hashFunctions = hashFunction(val);
+                }
+                else if (opt.equals("-cipher")) {
+                    blockCiphers = blockCipher(val);
+                }
+                else {
+                    System.err.println("unknown option '" + opt + "'");
+                    return ExitCode.WRONG_ARGS;
+                }
+            }
+            catch (RuntimeException re) {
+                System.err.printf("invalid value for %s (%s)\n", opt, val);
+                return ExitCode.WRONG_ARGS;
+            }
+        }
+        if (1 > chunk || 0 > shard || shard >= shards) {
+            System.err.println("invalid chunk or shard");
+            return ExitCode.WRONG_ARGS;
+        }
+        args = Arrays.copyOfRange(args, a, args.length);
         if (3 > args.length) {
             System.out.println(
-                "USAGE: tcpws [volume] [source] [param] {param} ...\n" +
+                "USAGE: tcpws {option} [volume] [source] [param] {param} ...\n" +
+                "options:\n" +
+                "    -checkpoint [filename]  save progress, resume from it\n" +
+                "    -shard [index]/[count]  search only one part of the passwords\n" +
+                "    -claims [filename]      take parts to search from a shared file\n" +
+                "    -chunk [count]          size of the parts to take (" + DEFAULT_CHUNK + "),\n" +
+                "                            in bytes for password lists\n" +
+                "    -hash [name]            try only one hash function (RIPEMD-160,\n" +
+                "                            SHA-512 or Whirlpool), instead of all\n" +
+                "    -cipher [name]          try only one block cipher or cascade\n" +
+                "                            (e.g. AES256 or AES-Twofish-Serpent)\n" +
                 "sources:\n" +
                 "    file [filename]\n" +           
                 "    generator [length] [type] {param}\n" +           
@@ -348,16 +755,16 @@ public class PasswordSearch {
                 "EXAMPLES:\n" +
                 "tcpws test.tc file passwords.txt\n" +     
                 "tcpws test.tc generator 5 numbers_letters\n" +    
-                "tcpws test.tc generator 10 user_defined abcdef123!_\n");    
+                "tcpws test.tc generator 10 user_defined abcdef123!_\n" +
+                "tcpws -shard 2/8 -checkpoint run2.txt test.tc generator 7 numbers\n" +
+                "tcpws -claims /share/claims.txt test.tc file passwords.txt\n");
             return ExitCode.WRONG_ARGS;
         }
         File vol = new File(args[0]);
-        Source src;
+        Addressable src;
         if (args[1].equals("file")) {
             try {
-                src = new StreamSource(
-                      new BufferedInputStream(
-                      new FileInputStream(args[2])));
+                src = new WordlistSource(new File(args[2]));
             }
             catch (IOException ioe) {
                 System.err.println(ioe.getMessage());
@@ -399,18 +806,62 @@ public class PasswordSearch {
             System.err.println("unknown source '" + args[1] +"'");
             return ExitCode.WRONG_ARGS;
         }
+        // (for password lists the ordinals are file offsets)
+        final long end = src.size();
+        List<long[]> ranges = null;
+        if (null != checkpoint) {
+            try {
+                ranges = Checkpoint.load(checkpoint);
+            }
+            catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                return ExitCode.IO_ERROR;
+            }
+            if (null != ranges) {
+                System.out.println("resuming from " + checkpoint);
+            }
+        }
+        if (null == ranges) {
+            // (with claims there is nothing to start with, else the shard)
+            ranges = new ArrayList<long[]>();
+            if (null == claimsFile) {
+                final long part = end / shards, rest = end % shards;
+                final long from = part * shard + Math.min(shard, rest);
+                ranges.add(new long[] { from, from + part + (shard < rest ? 1 : 0) });
+            }
+        }
+        // claims get recorded right away, the claims file has moved past them
+        final File cpfile = checkpoint;
+        final AtomicReference<PasswordSearch> search = new AtomicReference<PasswordSearch>();
+        final RangeSource rsrc = new RangeSource(src, ranges,
+                null == claimsFile ? null : new Claims(claimsFile, chunk), end,
+                null == checkpoint ? null : new RangeSource.ClaimCallback() {
+            public void onClaimed(RangeSource rs, long[] range) throws IOException {
+                saveCheckpoint(cpfile, search.get(), rs);
+            }
+        });
         try {
-            PasswordSearch ps = new PasswordSearch(src, vol);
-            while (null == ps.found()) {
-                synchronized(src) {
-                    if (!src.hasNext()) {
-                        break;
-                    }
-                }
-                System.out.printf("%,d passwords tested\r", ps.progress());
+            PasswordSearch ps = new PasswordSearch(rsrc, vol, hashFunctions, blockCiphers);
+            search.set(ps);
+            long[] tested = ps.tested();
+            long tm = System.currentTimeMillis();
+            long tmcp = tm;
+            while (null == ps.found() && !rsrc.done()) {
                 Thread.sleep(1000);
+                final long tm2 = System.currentTimeMillis();
+                final long[] tested2 = ps.tested();
+                report(tested, tested2, tm2 - tm, rsrc);
+                tested = tested2;
+                tm = tm2;
+                if (null != checkpoint && tm - tmcp >= CHECKPOINT_INTERVAL) {
+                    saveCheckpoint(checkpoint, ps, rsrc);
+                    tmcp = tm;
+                }
             }
             ps.end();
+            if (null != checkpoint) {
+                saveCheckpoint(checkpoint, ps, rsrc);
+            }
             if (null == ps.found()) {
                 System.out.println("sorry, no password was found");
                 return ExitCode.NOT_FOUND;
@@ -426,6 +877,36 @@ public class PasswordSearch {
         }
     }
     
+    static void report(long[] tested, long[] tested2, long millis, RangeSource rsrc) {
+        final StringBuilder rates = new StringBuilder();
+        long total = 0, delta = 0;
+        for (int i = 0; i < tested2.length; i++) {
+            final long d = tested2[i] - tested[i];
+            rates.append(0 == i ? "" : " ").append(d * 1000 / Math.max(1, millis));
+            total += tested2[i];
+            delta += d;
+        }
+        final double rate = delta * 1000.0 / Math.max(1, millis);
+        String eta = "";
+        // (the remaining ordinals are not passwords necessarily)
+        final long remaining = rsrc.remaining();
+        if (0 <= remaining && 0 < rate) {
+            final long secs = (long)(remaining / (rate * rsrc.spacing()));
+            eta = String.format(", ETA %d:%02d:%02d", secs / 3600, secs / 60 % 60, secs % 60);
+        }
+        System.out.printf("%,d passwords tested, %,.0f/s [%s]%s   \r",
+                total, rate, rates, eta);
+    }
+
+    static void saveCheckpoint(File checkpoint, PasswordSearch ps, RangeSource rsrc)
+            throws IOException {
+        // (claims can come in any time, so saving has to be serialized, the
+        // search might not be around yet either, then all counts as pending)
+        synchronized(rsrc) {
+            Checkpoint.save(checkpoint, rsrc.pending(null == ps ? 0 : ps.low()));
+        }
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     public static void main(String[] args) {
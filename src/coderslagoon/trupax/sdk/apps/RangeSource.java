@@ -0,0 +1,335 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.sdk.apps;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import coderslagoon.trupax.sdk.apps.PasswordSearch.Addressable;
+import coderslagoon.trupax.sdk.apps.PasswordSearch.ExitCode;
+import coderslagoon.trupax.sdk.apps.PasswordSearch.Source;
+
+/**
+ * Source working through ranges of ordinals of another source. The ranges
+ * either get passed in or claimed one by one, or both: once the given ones
+ * are through claiming starts. Ranges must be in ascending order if the
+ * underlying source cannot move backwards. Ranges which got passed stay
+ * around until they are not needed for checkpoints anymore. Passwords can
+ * be taken concurrently in batches, or through the (synchronized)
+ * iterator methods, but not both ways at the same time.
+ */
+public class RangeSource implements Source {
+    /**
+     * Default constructor.
+     * @param src The underlying source. Taken over.
+     * @param ranges The ranges to search, start (inclusive) and end
+     * (exclusive) each.
+     * @param claims Where to claim more ranges from, after the given ones
+     * are done. Null for none.
+     * @param end The end of the key space, Long.MAX_VALUE if unknown.
+     */
+    public RangeSource(Source src, List<long[]> ranges, Claims claims, long end) {
+        this(src, ranges, claims, end, null);
+    }
+    /**
+     * Constructor to get told about claims.
+     * @param src The underlying source. Taken over.
+     * @param ranges The ranges to search, start (inclusive) and end
+     * (exclusive) each.
+     * @param claims Where to claim more ranges from, after the given ones
+     * are done. Null for none.
+     * @param end The end of the key space, Long.MAX_VALUE if unknown.
+     * @param claimed Gets called after each claim. Null for none.
+     */
+    public RangeSource(Source src, List<long[]> ranges, Claims claims, long end,
+                       ClaimCallback claimed) {
+        this.src = src;
+        for (long[] range : ranges) {
+            this.queued.add(range.clone());
+        }
+        this.claims = claims;
+        this.end = end;
+        this.claimed = claimed;
+    }
+    /**
+     * Callback for claims. A claimed range is gone from the claims file, so
+     * if the search gets killed it must be recorded elsewhere, e.g. in a
+     * checkpoint, or it will never be searched at all.
+     */
+    public interface ClaimCallback {
+        /**
+         * Called right after a range got claimed, before any of its ordinals
+         * get handed out. The range is part of what is pending already. The
+         * lock of the source is held during the call.
+         * @param rsrc The source which claimed.
+         * @param range The range claimed, start (inclusive) and end
+         * (exclusive).
+         * @throws IOException If recording the claim failed.
+         */
+        void onClaimed(RangeSource rsrc, long[] range) throws IOException;
+    }
+    // a range being searched, with the next ordinal to hand out
+    final static class Range {
+        Range(long from, long to) {
+            this.from   = from;
+            this.to     = to;
+            this.cursor = new AtomicLong(from);
+        }
+        final long from;
+        final long to;
+        final AtomicLong cursor;
+    }
+    // where the handing out of a range is at, meaning all ordinals below
+    // have been given away (claiming beyond the end is tolerated) ...
+    static long reached(Range range) {
+        final long cursor = range.cursor.get();
+        return cursor < range.from ? range.to : Math.min(cursor, range.to);
+    }
+    // moves on to the next range (if any), with the lock held
+    void advance() {
+        final Range range = this.current;
+        if (null != range) {
+            final long reached = reached(range);
+            this.passed.add(new long[] { range.from, reached });
+            this.idle = reached;
+            this.current = null;
+        }
+        if (this.queued.isEmpty() && null != this.claims && !this.exhausted) {
+            try {
+                final long[] claim = this.claims.claim(this.end);
+                this.exhausted = null == claim;
+                if (null != claim) {
+                    // (queued first, so the callback sees it as pending)
+                    this.queued.add(claim);
+                    if (null != this.claimed) {
+                        this.claimed.onClaimed(this, claim.clone());
+                    }
+                }
+            }
+            catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                System.exit(ExitCode.IO_ERROR.ordinal());
+            }
+        }
+        final long[] next = this.queued.poll();
+        if (null == next) {
+            this.done = true;
+            return;
+        }
+        this.current = new Range(next[0], Math.min(next[1], this.end));
+    }
+    // the underlying source came to its end, nothing can come after that
+    void ended() {
+        this.queued.clear();
+        this.exhausted = true;
+    }
+    /**
+     * Takes as many passwords as fit into a batch. Thread-safe. If the
+     * underlying source is addressable the ordinals get claimed through
+     * an atomic cursor, locking happens only when moving on to the next
+     * range. Otherwise the source gets read through with the lock held.
+     * @param batch The batch, gets cleared first. Remembers what got
+     * claimed but did not fit in anymore, to be used for the next batch.
+     * @return False if the source is exhausted, meaning the batch is
+     * empty.
+     */
+    public boolean next(Batch batch) {
+        batch.clear();
+        if (!(this.src instanceof Addressable)) {
+            synchronized(this) {
+                return nextSequential(batch);
+            }
+        }
+        final Addressable asrc = (Addressable)this.src;
+        while (!batch.full()) {
+            if (batch.claimFrom < batch.claimTo) {
+                batch.claimFrom = asrc.fill(batch, batch.claimFrom, batch.claimTo);
+                continue;
+            }
+            final Range range = this.current;
+            if (null != range) {
+                final long stride = asrc.stride(batch.capacity() - batch.count());
+                final long from = range.cursor.getAndAdd(stride);
+                if (from >= range.from && from < range.to) {
+                    batch.claimFrom = from;
+                    batch.claimTo = range.to - from > stride ? from + stride : range.to;
+                    continue;
+                }
+            }
+            synchronized(this) {
+                if (range == this.current && !this.done) {
+                    advance();
+                }
+            }
+            if (this.done) {
+                break;
+            }
+        }
+        return 0 < batch.count();
+    }
+    boolean nextSequential(Batch batch) {
+        final Source src = this.src;
+        while (!batch.full() && !this.done) {
+            final Range range = this.current;
+            if (null == range) {
+                advance();
+                continue;
+            }
+            final long cursor = range.cursor.get();
+            if (src.ordinal() != cursor && cursor < range.to) {
+                src.seek(cursor);
+            }
+            if (!src.hasNext()) {
+                range.cursor.set(Math.max(range.from, src.ordinal()));
+                ended();
+                advance();
+                continue;
+            }
+            if (cursor >= range.to) {
+                advance();
+                continue;
+            }
+            batch.add(cursor, src.next());
+            range.cursor.set(src.ordinal());
+        }
+        return 0 < batch.count();
+    }
+    /**
+     * Checks if everything has been handed out, without taking any of
+     * the passwords.
+     * @return True if there is nothing left.
+     */
+    public synchronized boolean done() {
+        while (!this.done) {
+            final Range range = this.current;
+            if (null != range && reached(range) < range.to) {
+                if (this.src instanceof Addressable || this.src.hasNext()) {
+                    return false;
+                }
+                ended();
+            }
+            advance();
+        }
+        return true;
+    }
+    @Override
+    public synchronized boolean hasNext() {
+        return 0 < this.iter.count() || next(this.iter);
+    }
+    @Override
+    public synchronized String next() {
+        if (!hasNext()) {
+            return null;
+        }
+        final String result = this.iter.password(0);
+        this.iter.clear();
+        return result;
+    }
+    /**
+     * @return The lowest ordinal which has not been handed out yet. Might
+     * lag behind, but is never too high.
+     */
+    @Override
+    public long ordinal() {
+        final Range range = this.current;
+        return null == range ? this.idle : reached(range);
+    }
+    /** Not supported, the ranges determine the positions. */
+    @Override
+    public void seek(long ordinal) {
+        throw new UnsupportedOperationException();
+    }
+    /**
+     * Computes what is left to do, e.g. to store it in a checkpoint.
+     * @param low The lowest ordinal which might have not been tested yet.
+     * Everything below is considered done.
+     * @return The ranges to search still.
+     */
+    public synchronized List<long[]> pending(long low) {
+        final List<long[]> result = new ArrayList<long[]>();
+        for (Iterator<long[]> i = this.passed.iterator(); i.hasNext();) {
+            long[] range = i.next();
+            if (range[1] <= low || range[0] >= range[1]) {
+                i.remove();
+            }
+            else {
+                result.add(new long[] { Math.max(range[0], low), range[1] });
+            }
+        }
+        final Range range = this.current;
+        if (null != range && Math.max(range.from, low) < range.to) {
+            result.add(new long[] { Math.max(range.from, low), range.to });
+        }
+        for (long[] queued : this.queued) {
+            result.add(queued.clone());
+        }
+        return result;
+    }
+    /**
+     * @return Number of ordinals left to hand out, or -1 if this is not
+     * known (because of an unknown end or more claims to come). Ordinals are
+     * not necessarily passwords, for password lists they are bytes, so use
+     * spacing() to estimate the number of passwords.
+     */
+    public synchronized long remaining() {
+        if (Long.MAX_VALUE == this.end || (null != this.claims && !this.exhausted)) {
+            return -1;
+        }
+        long result = 0;
+        final Range range = this.current;
+        if (null != range) {
+            result += range.to - reached(range);
+        }
+        for (long[] queued : this.queued) {
+            result += Math.max(0, Math.min(queued[1], this.end) - queued[0]);
+        }
+        return result;
+    }
+    /**
+     * @return Estimated number of ordinals per password, e.g. the average
+     * line length of a password list. One if the source is not addressable.
+     */
+    public long spacing() {
+        return this.src instanceof Addressable ?
+               Math.max(1, ((Addressable)this.src).stride(1)) : 1;
+    }
+    @Override
+    public void remove() {
+    }
+    @Override
+    public void close() {
+        this.src.close();
+    }
+    final Source src;
+    final Claims claims;
+    final ClaimCallback claimed;
+    final long end;
+    final Deque<long[]> queued = new ArrayDeque<long[]>();
+    final List<long[]> passed = new ArrayList<long[]>();
+    final Batch iter = new Batch(1);
+    volatile Range current;
+    volatile long idle;
+    volatile boolean done;
+    boolean exhausted;
+}
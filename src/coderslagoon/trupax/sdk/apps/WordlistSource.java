@@ -0,0 +1,189 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.sdk.apps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import coderslagoon.trupax.sdk.apps.PasswordSearch.Addressable;
+
+/**
+ * Source for (large) password lists, one password per line, in UTF-8.
+ * The file gets memory-mapped, the ordinal of a password is the offset
+ * of its line, so searches can claim byte ranges and scan through them on
+ * their own, without any decoding into strings. Lines which cannot be
+ * encoded the TrueCrypt way get dropped, same for overly long ones.
+ */
+public class WordlistSource implements Addressable {
+    // (mappings are limited to 2GB, the file is covered by several)
+    final static int  SEGMENT_BITS = 30;
+    final static long SEGMENT_MASK = (1L << SEGMENT_BITS) - 1;
+    final static int  MAX_LINE = 4096;
+    final static int  SAMPLE = 65536;
+
+    /**
+     * Default constructor.
+     * @param file The password list file.
+     * @throws IOException If mapping the file failed.
+     */
+    public WordlistSource(File file) throws IOException {
+        this.raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel fc = this.raf.getChannel();
+            this.size = fc.size();
+            this.maps = new MappedByteBuffer[(int)((this.size + SEGMENT_MASK) >>> SEGMENT_BITS)];
+            for (int i = 0; i < this.maps.length; i++) {
+                final long ofs = (long)i << SEGMENT_BITS;
+                this.maps[i] = fc.map(FileChannel.MapMode.READ_ONLY, ofs,
+                                      Math.min(SEGMENT_MASK + 1, this.size - ofs));
+            }
+        }
+        catch (IOException ioe) {
+            this.raf.close();
+            throw ioe;
+        }
+        // guess the average line length, for claiming ranges
+        long lines = 1;
+        final long sample = Math.min(SAMPLE, this.size);
+        for (long pos = 0; pos < sample; pos++) {
+            if ('\n' == at(pos)) {
+                lines++;
+            }
+        }
+        this.avgLine = Math.max(1, sample / lines);
+    }
+    byte at(long pos) {
+        return this.maps[(int)(pos >>> SEGMENT_BITS)].get((int)(pos & SEGMENT_MASK));
+    }
+    // the start of the first line at or after a position
+    long align(long pos) {
+        if (0 >= pos) {
+            return 0;
+        }
+        while (pos < this.size && '\n' != at(pos - 1)) {
+            pos++;
+        }
+        return Math.min(pos, this.size);
+    }
+    // the end of the line starting at a position (before the terminator)
+    long lineEnd(long pos) {
+        while (pos < this.size && '\n' != at(pos)) {
+            pos++;
+        }
+        return pos;
+    }
+    @Override
+    public long size() {
+        return this.size;
+    }
+    @Override
+    public long stride(int count) {
+        return count * this.avgLine;
+    }
+    @Override
+    public long fill(Batch batch, long from, long to) {
+        final long last = Math.min(to, this.size);
+        long pos = align(from);
+        while (pos < last && !batch.full()) {
+            final long end = lineEnd(pos);
+            final long len = end - pos - (end > pos && '\r' == at(end - 1) ? 1 : 0);
+            if (len <= MAX_LINE) {
+                encode(batch, pos, (int)len);
+            }
+            pos = end + 1;
+        }
+        return pos < last ? pos : to;
+    }
+    // UTF-8 to ISO-8859-1, meaning only the two byte sequences for the
+    // upper half of the latter are allowed, anything else is invalid
+    void encode(Batch batch, long pos, int len) {
+        final byte[] slot = batch.slot(len);
+        int n = 0;
+        for (final long end = pos + len; pos < end; pos++) {
+            final int b = at(pos) & 0xff;
+            if (0x80 > b) {
+                slot[n++] = (byte)b;
+                continue;
+            }
+            if ((0xc2 != b && 0xc3 != b) || pos + 1 >= end) {
+                return;
+            }
+            final int b2 = at(++pos) & 0xff;
+            if (0x80 != (b2 & 0xc0)) {
+                return;
+            }
+            slot[n++] = (byte)(((b & 3) << 6) | (b2 & 0x3f));
+        }
+        batch.commit(pos - len, n);
+    }
+    @Override
+    public boolean hasNext() {
+        return this.pos < this.size;
+    }
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            return null;
+        }
+        final long end = lineEnd(this.pos);
+        final byte[] line = new byte[(int)Math.min(end - this.pos, Integer.MAX_VALUE)];
+        for (int i = 0; i < line.length; i++) {
+            line[i] = at(this.pos + i);
+        }
+        this.pos = Math.min(end + 1, this.size);
+        int len = line.length;
+        if (0 < len && '\r' == line[len - 1]) {
+            len--;
+        }
+        try {
+            return new String(line, 0, len, "UTF-8");
+        }
+        catch (UnsupportedEncodingException uee) {
+            throw new Error(uee);
+        }
+    }
+    @Override
+    public long ordinal() {
+        return this.pos;
+    }
+    @Override
+    public void seek(long ordinal) {
+        this.pos = align(ordinal);
+    }
+    @Override
+    public void remove() {
+    }
+    @Override
+    public void close() {
+        try {
+            this.raf.close();
+        }
+        catch (IOException ignored) {
+        }
+    }
+    final RandomAccessFile raf;
+    final MappedByteBuffer[] maps;
+    final long size;
+    final long avgLine;
+    long pos;
+}
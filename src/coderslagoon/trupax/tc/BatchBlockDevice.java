@@ -0,0 +1,93 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.tc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import coderslagoon.baselib.io.BlockDevice;
+import coderslagoon.baselib.io.BlockDeviceImpl;
+
+/**
+ * Gathers small blocks, written one after the other, into the larger blocks of
+ * another device. This way a file system made of 512 byte blocks, which is
+ * what TrueCrypt exposes, can still get encrypted and written in larger
+ * blocks, meaning far less calls per volume. Whatever is missing of the last
+ * large block gets padded with zeros when closing.
+ */
+public class BatchBlockDevice extends BlockDeviceImpl {
+    final BlockDevice bdev;
+    final int         factor;
+    final byte[]      buf;
+    long              next;
+
+    /**
+     * Default constructor.
+     * @param bdev The device to write the large blocks to. Gets closed with
+     * this one.
+     * @param blockSize Size of a small block in bytes. Must divide the block
+     * size of the device.
+     * @throws IOException If the block sizes do not fit.
+     */
+    public BatchBlockDevice(BlockDevice bdev, int blockSize) throws IOException {
+        super(false, true, true, -1L, blockSize);
+        if (0 >= blockSize || 0 != bdev.blockSize() % blockSize) {
+            throw new IOException(String.format(
+                    "block size %d does not fit into %d", blockSize, bdev.blockSize()));
+        }
+        this.bdev   = bdev;
+        this.factor = bdev.blockSize() / blockSize;
+        this.buf    = new byte[bdev.blockSize()];
+    }
+
+    protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+        throw new IOException();
+    }
+
+    protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+        if (num != this.next) {
+            throw new IOException("block " + num + " written out of order");
+        }
+        final int idx = (int)(num % this.factor);
+        System.arraycopy(block, ofs, this.buf, idx * blockSize(), blockSize());
+        this.next++;
+        if (this.factor == idx + 1) {
+            this.bdev.write(num / this.factor, this.buf, 0);
+        }
+    }
+
+    public void close(boolean err) throws IOException {
+        try {
+            final int idx = (int)(this.next % this.factor);
+            if (!err && 0 != idx) {
+                Arrays.fill(this.buf, idx * blockSize(), this.buf.length, (byte)0);
+                this.bdev.write(this.next / this.factor, this.buf, 0);
+            }
+        }
+        finally {
+            // (the data is still plain)
+            Arrays.fill(this.buf, (byte)0);
+            this.bdev.close(err);
+        }
+    }
+
+    public long size() {
+        return this.bdev.size() * this.factor;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+
+package coderslagoon.trupax.tc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import coderslagoon.baselib.io.BlockDeviceImpl;
+
+/**
+ * Block device on top of a file channel. Besides the regular access, block by
+ * block, runs of blocks can be transferred from and to (direct) buffers with
+ * one single call, so the data can be processed in place without having to
+ * move it through heap arrays.
+ */
+public class ChannelBlockDevice extends BlockDeviceImpl {
+    final FileChannel fc;
+    final long        size;
+
+    /**
+     * Default constructor.
+     * @param fc The file channel. Gets closed with the device.
+     * @param blockSize Size of a block in bytes.
+     * @param size Number of blocks, or -1 to derive it from the file size.
+     * @param readOnly True if writing is not allowed.
+     * @throws IOException If the size of the file could not be determined.
+     */
+    public ChannelBlockDevice(FileChannel fc, int blockSize, long size,
+                              boolean readOnly) throws IOException {
+        super(readOnly, false, false, -1L, blockSize);
+
+        this.fc   = fc;
+        this.size = -1L == size ? fc.size() / blockSize : size;
+    }
+
+    /**
+     * Reads consecutive blocks into a buffer.
+     * @param num The number of the first block.
+     * @param buf The buffer. Its position and limit do not get changed.
+     * @param ofs Absolute index in the buffer where to store the first block.
+     * @param count Number of blocks to read.
+     * @throws IOException If any error occurred.
+     */
+    public void read(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        final ByteBuffer dup = slice(num, buf, ofs, count);
+        long pos = num * blockSize();
+        while (dup.hasRemaining()) {
+            final int read = this.fc.read(dup, pos);
+            if (-1 == read) {
+                throw new EOFException();
+            }
+            pos += read;
+        }
+    }
+
+    /**
+     * Writes consecutive blocks from a buffer.
+     * @param num The number of the first block.
+     * @param buf The buffer. Its position and limit do not get changed.
+     * @param ofs Absolute index in the buffer where the first block starts.
+     * @param count Number of blocks to write.
+     * @throws IOException If any error occurred.
+     */
+    public void write(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        if (readOnly()) {
+            throw new IOException();
+        }
+        final ByteBuffer dup = slice(num, buf, ofs, count);
+        long pos = num * blockSize();
+        while (dup.hasRemaining()) {
+            pos += this.fc.write(dup, pos);
+        }
+    }
+
+    private ByteBuffer slice(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        if (0 > num || 0 > count || num + count > this.size) {
+            throw new IOException();
+        }
+        final ByteBuffer result = buf.duplicate();
+        result.clear();
+        result.position(ofs);
+        result.limit(ofs + count * blockSize());
+        return result;
+    }
+
+    protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+        read(num, ByteBuffer.wrap(block), ofs, 1);
+    }
+
+    protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+        write(num, ByteBuffer.wrap(block), ofs, 1);
+    }
+
+    public void close(boolean err) throws IOException {
+        this.fc.close();
+    }
+
+    public long size() {
+        return this.size;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.tc;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import coderslagoon.baselib.io.BlockDevice;
+import coderslagoon.tclib.container.Volume;
+
+/**
+ * Pipeline encrypting blocks on their way to a serial output. Consecutive
+ * blocks get collected in batches, which are held by a ring of slots. Each
+ * batch gets encrypted as a whole by one of the workers, and a committer then
+ * writes the batches to the output strictly in the order they got started, so
+ * the output sees the blocks in the very same order as they came in. If all of
+ * the slots are in use the writer has to wait, so memory stays bounded and a
+ * slow output (or slow encryption) holds back the writer.
+ * <br>
+ * The output gets written by the committer thread, errors it runs into are
+ * passed on to the writer with the next write or at the latest when closing.
+ */
+public class EncryptPipeline {
+    final Volume          volume;
+    final BlockDevice     out;
+    final long            num0;
+    final int             blockSize;
+    final int             units;
+    final int             batchSize;
+    final Batch[]         ring;
+    final ExecutorService workers;
+    final Thread          committer;
+
+    final static class Batch {
+        final byte[] buf;
+        long    seq = -1L;
+        long    num;
+        int     count;
+        boolean submitted;
+        boolean encrypted;
+        Batch(int size) {
+            this.buf = new byte[size];
+        }
+    }
+
+    Batch current;
+
+    // number of batches started by the writer and written by the committer,
+    // (taken - committed) is the number of slots in use ...
+    long taken;
+    long committed;
+
+    boolean closing;
+    volatile boolean aborted;
+    volatile Throwable error;
+
+    long blocks;
+    long depthSum;
+    int  maxDepth;
+    long stallNanos;
+    long idleNanos;
+    long encryptWaitNanos;
+    long outputNanos;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor. Starts the workers and the committer.
+     * @param volume The volume to encrypt with. Must be safe to be used by
+     * multiple threads at the same time.
+     * @param out Where to write the encrypted blocks to.
+     * @param num0 Offset to add to a block number to get its location in the
+     * output. Times the number of data units per block this also gives the
+     * data unit number used for encryption, since blocks can be larger than
+     * the volume's data units.
+     * @param batchSize Maximum number of blocks in a batch.
+     * @param slots Number of batches which can be in the pipeline at once.
+     * @param workers Number of threads doing the encryption.
+     */
+    public EncryptPipeline(Volume volume, BlockDevice out, long num0,
+                           int batchSize, int slots, int workers) {
+        if (0 >= batchSize || 0 >= slots || 0 >= workers) {
+            throw new IllegalArgumentException();
+        }
+        this.volume    = volume;
+        this.out       = out;
+        this.num0      = num0;
+        this.blockSize = out.blockSize();
+        this.units     = this.blockSize / volume.blockSize();
+        this.batchSize = batchSize;
+        if (0 != this.blockSize % volume.blockSize()) {
+            throw new IllegalArgumentException();
+        }
+
+        this.ring = new Batch[slots];
+        for (int i = 0; i < slots; i++) {
+            this.ring[i] = new Batch(batchSize * this.blockSize);
+        }
+
+        this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, "tcencrypt");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+        this.committer = new Thread(new Runnable() {
+            public void run() {
+                commit();
+            }
+        }, "tccommit");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Passes on a block. Blocks following their predecessor end up in the
+     * same batch, any other one starts a new batch.
+     * @param num The block number.
+     * @param block Buffer with the plain block data, which gets copied.
+     * @param ofs Where the block data starts.
+     * @throws IOException If an earlier batch could not be encrypted or
+     * written.
+     */
+    public void write(long num, byte[] block, int ofs) throws IOException {
+        check();
+        Batch batch = this.current;
+        if (null != batch && (this.batchSize == batch.count ||
+                              batch.num + batch.count != num)) {
+            submit();
+            batch = null;
+        }
+        if (null == batch) {
+            batch = acquire(num);
+        }
+        System.arraycopy(block, ofs, batch.buf, batch.count * this.blockSize, this.blockSize);
+        batch.count++;
+    }
+
+    /**
+     * Closes the pipeline, after all pending batches got written. The output
+     * itself does not get closed.
+     * @param err True if this is due to an error, meaning that any pending
+     * batches should be dropped as quickly as possible.
+     * @throws IOException If any batch could not be encrypted or written.
+     */
+    public void close(boolean err) throws IOException {
+        if (!err && null != this.current && null == this.error) {
+            submit();
+        }
+        synchronized (this) {
+            this.closing = true;
+            if (err) {
+                this.aborted = true;
+            }
+            notifyAll();
+        }
+        // the workers encrypt with the caller's volume and the committer
+        // writes to the caller's device, so we wait for them in any case ...
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                this.committer.join();
+                break;
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        this.workers.shutdown();
+        for (;;) {
+            try {
+                if (this.workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (!err) {
+            check();
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Snapshot of the pipeline's counters. If the committer spent most of its
+     * time waiting for encryption then more workers (cores) would help, if it
+     * was mostly busy writing then the output is the limit. Time the writer
+     * got stalled is caused by either of the two, time the committer was idle
+     * means that the writer could not keep up.
+     */
+    public static class Stats {
+        /** Number of batches written so far. */
+        public final long batches;
+        /** Number of blocks written so far. */
+        public final long blocks;
+        /** Most batches in the pipeline when a new one got submitted. */
+        public final int maxQueueDepth;
+        /** Average number of batches in the pipeline at submission time. */
+        public final double avgQueueDepth;
+        /** Time the writer had to wait for a free slot. */
+        public final long writerStallNanos;
+        /** Time the committer waited for the writer to fill a batch. */
+        public final long committerIdleNanos;
+        /** Time the committer waited for a batch to get encrypted. */
+        public final long encryptWaitNanos;
+        /** Time the committer spent writing to the output. */
+        public final long outputNanos;
+
+        Stats(EncryptPipeline ep) {
+            this.batches            = ep.committed;
+            this.blocks             = ep.blocks;
+            this.maxQueueDepth      = ep.maxDepth;
+            this.avgQueueDepth      = 0L == ep.taken ? 0.0 : (double)ep.depthSum / ep.taken;
+            this.writerStallNanos   = ep.stallNanos;
+            this.committerIdleNanos = ep.idleNanos;
+            this.encryptWaitNanos   = ep.encryptWaitNanos;
+            this.outputNanos        = ep.outputNanos;
+        }
+
+        /**
+         * @return True if the committer waited for encryption longer than it
+         * took to write the output, meaning the CPUs are the limit.
+         */
+        public boolean encryptionBound() {
+            return this.encryptWaitNanos > this.outputNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "batches=%d blocks=%d depth(max=%d,avg=%.2f) " +
+                    "stall=%dms idle=%dms encrypt=%dms output=%dms",
+                    this.batches, this.blocks,
+                    this.maxQueueDepth, this.avgQueueDepth,
+                    this.writerStallNanos   / 1000000L,
+                    this.committerIdleNanos / 1000000L,
+                    this.encryptWaitNanos   / 1000000L,
+                    this.outputNanos        / 1000000L);
+        }
+    }
+
+    /**
+     * @return The current counters.
+     */
+    public synchronized Stats stats() {
+        return new Stats(this);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private void check() throws IOException {
+        final Throwable err = this.error;
+        if (null == err) {
+            return;
+        }
+        if (err instanceof IOException) {
+            throw (IOException)err;
+        }
+        if (err instanceof RuntimeException) {
+            throw (RuntimeException)err;
+        }
+        if (err instanceof Error) {
+            throw (Error)err;
+        }
+        throw new IOException(err);
+    }
+
+    private synchronized void fail(Throwable err) {
+        if (null == this.error) {
+            this.error = err;
+        }
+        notifyAll();
+    }
+
+    private synchronized Batch acquire(long num) throws IOException {
+        long tm = 0L;
+        boolean interrupted = false;
+        while (null == this.error && this.taken - this.committed >= this.ring.length) {
+            if (0L == tm) {
+                tm = System.nanoTime();
+            }
+            try {
+                wait();
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (0L != tm) {
+            this.stallNanos += System.nanoTime() - tm;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        check();
+        final Batch result = this.ring[(int)(this.taken % this.ring.length)];
+        result.seq   = this.taken++;
+        result.num   = num;
+        result.count = 0;
+        return this.current = result;
+    }
+
+    private void submit() {
+        final Batch batch = this.current;
+        this.current = null;
+        synchronized (this) {
+            batch.submitted = true;
+            final int depth = (int)(this.taken - this.committed);
+            this.depthSum += depth;
+            this.maxDepth = Math.max(this.maxDepth, depth);
+            notifyAll();
+        }
+        this.workers.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (!EncryptPipeline.this.aborted) {
+                        EncryptPipeline.this.volume.processBlocks(
+                                (EncryptPipeline.this.num0 + batch.num) *
+                                        EncryptPipeline.this.units,
+                                batch.buf, 0, batch.count * EncryptPipeline.this.units);
+                    }
+                }
+                catch (Throwable err) {
+                    fail(err);
+                    return;
+                }
+                synchronized (EncryptPipeline.this) {
+                    batch.encrypted = true;
+                    EncryptPipeline.this.notifyAll();
+                }
+            }
+        });
+    }
+
+    private void commit() {
+        for (;;) {
+            final Batch batch;
+            synchronized (this) {
+                long tm = System.nanoTime();
+                for (;;) {
+                    if (null != this.error || this.aborted) {
+                        return;
+                    }
+                    final Batch next = this.ring[(int)(this.committed % this.ring.length)];
+                    final boolean started = this.committed < this.taken &&
+                                            this.committed == next.seq;
+                    if (started && next.encrypted) {
+                        batch = next;
+                        break;
+                    }
+                    if (!started && this.closing) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    }
+                    catch (InterruptedException ie) {
+                        fail(ie);
+                        return;
+                    }
+                    final long tm2 = System.nanoTime();
+                    if (started && next.submitted) {
+                        this.encryptWaitNanos += tm2 - tm;
+                    }
+                    else {
+                        this.idleNanos += tm2 - tm;
+                    }
+                    tm = tm2;
+                }
+            }
+            final long tm = System.nanoTime();
+            try {
+                for (int i = 0; i < batch.count && !this.aborted; i++) {
+                    this.out.write(this.num0 + batch.num + i, batch.buf, i * this.blockSize);
+                }
+            }
+            catch (Throwable err) {
+                fail(err);
+                return;
+            }
+            synchronized (this) {
+                this.outputNanos += System.nanoTime() - tm;
+                this.blocks += batch.count;
+                batch.seq       = -1L;
+                batch.submitted = false;
+                batch.encrypted = false;
+                this.committed++;
+                notifyAll();
+            }
+        }
+    }
+}
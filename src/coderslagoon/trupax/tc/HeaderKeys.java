@@ -0,0 +1,200 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.tc;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import coderslagoon.baselib.util.BytePtr;
+import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.crypto.BlockCipher;
+import coderslagoon.tclib.crypto.Hash;
+import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.Registry;
+import coderslagoon.tclib.util.Erasable;
+import coderslagoon.tclib.util.Key;
+import coderslagoon.tclib.util.TCLibException;
+
+/**
+ * The keys to encode the primary and the backup header of a new volume with.
+ * Deriving them is expensive, so both derivations get started right away in
+ * the background, and only get joined when the headers actually need to be
+ * written. Meanwhile everything else can go on, like registering the material
+ * and resolving the layout of the volume.
+ */
+public class HeaderKeys implements Erasable {
+    final Key                            key;
+    final Class<? extends Hash.Function> hashFunction;
+    final Class<? extends BlockCipher>   blockCipher;
+    final BytePtr[]                      salts = new BytePtr[2];
+    final Future<?>[]                    jobs  = new Future<?>[2];
+
+    byte[][] kbufs;
+
+    /**
+     * Default constructor. Starts the derivations.
+     * @param key The password. Gets kept until the instance gets erased.
+     * @param hashFunction Name of the hash function to use.
+     * @param blockCipher Name of the block cipher to use.
+     * @param rnd Source for the salts.
+     * @throws TCLibException If the algorithms are not known or any other
+     * error occurred.
+     */
+    public HeaderKeys(Key key, String hashFunction, String blockCipher,
+                      Rand rnd) throws TCLibException {
+        this.key          = key;
+        this.hashFunction = Registry._hashFunctions.lookup(hashFunction);
+        this.blockCipher  = Registry._blockCiphers .lookup(blockCipher);
+        if (null == this.hashFunction || null == this.blockCipher) {
+            throw new TCLibException();
+        }
+        for (int i = 0; i < this.jobs.length; i++) {
+            final Header hdr = header();
+            hdr.generateSalt(rnd);
+            this.salts[i] = hdr.salt;
+            final byte[] passw = key.data();
+            this.jobs[i] = executor().submit(new Callable<byte[]>() {
+                public byte[] call() throws TCLibException {
+                    return hdr.deriveEncodeKey(passw);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return New header instance, for the algorithms the keys get derived
+     * for. Its salt has to be set to the one of either header.
+     */
+    public Header header() {
+        return new Header(this.hashFunction, this.blockCipher);
+    }
+
+    /**
+     * @param backup True for the backup header, false for the primary one.
+     * @return The salt the key got derived with.
+     */
+    public BytePtr salt(boolean backup) {
+        return this.salts[backup ? 1 : 0];
+    }
+
+    /**
+     * Waits for the derivations to finish, if they have not done so yet.
+     * @param backup True for the backup header, false for the primary one.
+     * @return The key. Stays valid until the instance gets erased.
+     * @throws TCLibException If the derivation failed.
+     */
+    public byte[] join(boolean backup) throws TCLibException {
+        if (null == this.kbufs) {
+            final byte[][] kbufs = new byte[this.jobs.length][];
+            boolean interrupted = false;
+            try {
+                for (int i = 0; i < kbufs.length; i++) {
+                    for (;;) {
+                        try {
+                            kbufs[i] = (byte[])this.jobs[i].get();
+                            break;
+                        }
+                        catch (InterruptedException ie) {
+                            interrupted = true;
+                        }
+                        catch (ExecutionException ee) {
+                            throw new TCLibException(ee.getCause());
+                        }
+                    }
+                }
+            }
+            finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            this.kbufs = kbufs;
+        }
+        return this.kbufs[backup ? 1 : 0];
+    }
+
+    /**
+     * Checks if the keys got derived from a particular password, for the
+     * same algorithms.
+     * @param key The password.
+     * @param hashFunction Name of the hash function.
+     * @param blockCipher Name of the block cipher.
+     * @return True if it is the same password and the same algorithms, false
+     * if not or if either password got erased already.
+     */
+    public boolean matches(Key key, String hashFunction, String blockCipher) {
+        if (!this.hashFunction.equals(Registry._hashFunctions.lookup(hashFunction)) ||
+            !this.blockCipher .equals(Registry._blockCiphers .lookup(blockCipher))) {
+            return false;
+        }
+        try {
+            return Arrays.equals(this.key.data(), key.data());
+        }
+        catch (Key.ErasedException ee) {
+            return false;
+        }
+    }
+
+    /** @see coderslagoon.tclib.util.Erasable#erase() */
+    public void erase() {
+        // (an erased password does not stop the derivations, so we have to
+        // wait for them to finish, to be able to clear their results) ...
+        boolean interrupted = false;
+        for (Future<?> job : this.jobs) {
+            for (;;) {
+                try {
+                    Arrays.fill((byte[])job.get(), (byte)0);
+                    break;
+                }
+                catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+                catch (ExecutionException ignored) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        this.key.erase();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private static ExecutorService _executor;
+
+    private synchronized static ExecutorService executor() {
+        if (null == _executor) {
+            _executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread result = new Thread(r, "headerkeys");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+        }
+        return _executor;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.tc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only block device on top of a memory mapped file, so reads come right
+ * out of the page cache without any system call. Since a single mapping cannot
+ * exceed 2GB the file gets mapped in windows, each one on first access. If
+ * mapping fails, e.g. due to a lack of address space, the device falls back to
+ * regular channel reads. Notice that mappings only get released when they get
+ * garbage collected, closing the device does not unmap them.
+ */
+public class MappedBlockDevice extends ChannelBlockDevice {
+    /** Default size of a window. */
+    public final static long WINDOW = 1L << 30;
+
+    final long               window;
+    final long               bytes;
+    final MappedByteBuffer[] windows;
+
+    boolean unmappable;
+
+    /**
+     * Default constructor.
+     * @param fc The file channel. Gets closed with the device.
+     * @param blockSize Size of a block in bytes.
+     * @param size Number of blocks, or -1 to derive it from the file size.
+     * @throws IOException If the size of the file could not be determined.
+     */
+    public MappedBlockDevice(FileChannel fc, int blockSize, long size) throws IOException {
+        this(fc, blockSize, size, WINDOW);
+    }
+
+    /**
+     * Constructor with a custom window size.
+     * @param fc The file channel. Gets closed with the device.
+     * @param blockSize Size of a block in bytes.
+     * @param size Number of blocks, or -1 to derive it from the file size.
+     * @param window Size of a window in bytes, rounded down to full blocks.
+     * @throws IOException If the size of the file could not be determined.
+     */
+    public MappedBlockDevice(FileChannel fc, int blockSize, long size,
+                             long window) throws IOException {
+        super(fc, blockSize, size, true);
+
+        if (window < blockSize || Integer.MAX_VALUE < window) {
+            throw new IllegalArgumentException();
+        }
+        this.window  = window - window % blockSize;
+        this.bytes   = this.size * blockSize;
+        this.windows = new MappedByteBuffer[(int)((this.bytes + this.window - 1) / this.window)];
+    }
+
+    /**
+     * Copies consecutive blocks from the mapping into a buffer.
+     * @see coderslagoon.trupax.tc.ChannelBlockDevice#read(long, java.nio.ByteBuffer, int, int)
+     */
+    @Override
+    public void read(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        if (0 > num || 0 > count || num + count > this.size) {
+            throw new IOException();
+        }
+        final int bsz = blockSize();
+        long pos = num * bsz;
+        long end = pos + (long)count * bsz;
+        while (pos < end) {
+            final int  idx  = (int)(pos / this.window);
+            final int  wofs = (int)(pos % this.window);
+            final int  len  = (int)Math.min(end - pos, this.window - wofs);
+            final ByteBuffer win = window(idx);
+            if (null == win) {
+                super.read(pos / bsz, buf, ofs, len / bsz);
+            }
+            else {
+                // (duplicates, since the device is shared by multiple threads)
+                final ByteBuffer src = win.duplicate();
+                src.limit(wofs + len);
+                src.position(wofs);
+                final ByteBuffer dst = buf.duplicate();
+                dst.clear();
+                dst.position(ofs);
+                dst.put(src);
+            }
+            pos += len;
+            ofs += len;
+        }
+    }
+
+    private synchronized ByteBuffer window(int idx) {
+        MappedByteBuffer result = this.windows[idx];
+        if (null == result && !this.unmappable) {
+            final long pos = idx * this.window;
+            try {
+                result = this.fc.map(FileChannel.MapMode.READ_ONLY, pos,
+                                     Math.min(this.window, this.bytes - pos));
+                this.windows[idx] = result;
+            }
+            catch (IOException ioe) {
+                this.unmappable = true;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,311 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.tc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read-ahead for sequential access. Once reads follow each other the blocks
+ * after them get fetched in segments by a pool of workers, which also decrypt
+ * them, and later reads then just copy from that window. Reads elsewhere do
+ * not discard the window, so the occasional metadata access in between runs
+ * of file data does not cost the prefetched blocks.
+ */
+class ReadAhead {
+    /** Where the blocks come from. Gets called by multiple threads at once. */
+    interface Source {
+        /**
+         * Reads and decrypts consecutive blocks.
+         * @param num Number of the first block.
+         * @param buf Where to put the block data.
+         * @param ofs Where to start writing in the buffer.
+         * @param count Number of blocks to read.
+         * @throws IOException If any error occurred.
+         */
+        void read(long num, byte[] buf, int ofs, int count) throws IOException;
+    }
+
+    /** Number of blocks a read has to continue to start the window. Only
+     *  the previous reads count, so a single large one does not start it. */
+    final static int SEQUENTIAL = 16;
+
+    final Source          src;
+    final long            size;
+    final int             blockSize;
+    final int             segment;
+    final Segment[]       ring;
+    final ExecutorService workers;
+
+    final static class Segment {
+        final byte[] buf;
+        long          num;
+        int           count;
+        Future<?>     job;
+        AtomicBoolean started;
+        Segment(int size) {
+            this.buf = new byte[size];
+        }
+    }
+
+    // the window is made of the segments [first, first+used), the ring index
+    // of the first one and the number of the block after the window ...
+    int  first;
+    int  used;
+    long next;
+
+    long lastEnd = -1L;
+    long run;
+
+    long hits;
+    long misses;
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Default constructor.
+     * @param src The source of the blocks.
+     * @param size Number of blocks available, nothing gets fetched beyond.
+     * @param blockSize Size of a block in bytes.
+     * @param window Number of blocks to read ahead.
+     * @param segment Number of blocks fetched and decrypted at once.
+     * @param workers Number of threads doing the fetching.
+     */
+    ReadAhead(Source src, long size, int blockSize,
+              int window, int segment, int workers) {
+        if (0 >= segment || window < segment || 0 >= workers) {
+            throw new IllegalArgumentException();
+        }
+        this.src       = src;
+        this.size      = size;
+        this.blockSize = blockSize;
+        this.segment   = segment;
+
+        this.ring = new Segment[window / segment];
+        for (int i = 0; i < this.ring.length; i++) {
+            this.ring[i] = new Segment(segment * blockSize);
+        }
+
+        this.workers = Executors.newFixedThreadPool(workers, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread result = new Thread(r, "tcreadahead");
+                result.setDaemon(true);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Serves a read from the window, or starts a new window if the read
+     * continues the previous one.
+     * @param num Number of the first block.
+     * @param buf Where to put the block data.
+     * @param ofs Where to start writing in the buffer.
+     * @param count Number of blocks to read.
+     * @return Number of blocks served, starting with the first one. The
+     * remaining ones have to be read by the caller.
+     * @throws IOException If fetching any of the blocks failed.
+     */
+    int read(long num, byte[] buf, int ofs, int count) throws IOException {
+        return read(num, buf, null, ofs, count);
+    }
+
+    /**
+     * Same as the other read(), just for (direct) buffers.
+     * @param num Number of the first block.
+     * @param buf Where to put the block data. Its position and limit do not
+     * get changed.
+     * @param ofs Absolute index in the buffer where to store the first block.
+     * @param count Number of blocks to read.
+     * @return Number of blocks served, starting with the first one.
+     * @throws IOException If fetching any of the blocks failed.
+     */
+    int read(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        return read(num, null, buf.duplicate(), ofs, count);
+    }
+
+    // reads into either an array or a buffer, whatever is not null ...
+    private int read(long num, byte[] buf, ByteBuffer bbuf, int ofs, int count) throws IOException {
+        final boolean continues = num == this.lastEnd;
+        final boolean sequential = continues && SEQUENTIAL <= this.run;
+        this.run = continues ? this.run + count : count;
+        this.lastEnd = num + count;
+
+        int result = 0;
+        while (result < count) {
+            final long n = num + result;
+            if (!covers(n)) {
+                if (!sequential) {
+                    break;
+                }
+                restart(n);
+            }
+            // segments before the block got passed, so they can be reused ...
+            Segment seg = this.ring[this.first];
+            while (n >= seg.num + seg.count) {
+                drop(false);
+                seg = this.ring[this.first];
+            }
+            await(seg);
+            final int c = (int)Math.min(count - result, seg.num + seg.count - n);
+            if (null == bbuf) {
+                System.arraycopy(seg.buf, (int)(n - seg.num) * this.blockSize,
+                                 buf, ofs + result * this.blockSize,
+                                 c * this.blockSize);
+            }
+            else {
+                bbuf.clear();
+                bbuf.position(ofs + result * this.blockSize);
+                bbuf.put(seg.buf, (int)(n - seg.num) * this.blockSize,
+                         c * this.blockSize);
+            }
+            result += c;
+            fill();
+        }
+        if (result == count) {
+            this.hits++;
+        }
+        else {
+            this.misses++;
+        }
+        return result;
+    }
+
+    /**
+     * Cancels all of the fetches not started yet, waits for the running ones
+     * and stops the workers. Then wipes the segments, they hold decrypted
+     * data.
+     */
+    void close() {
+        while (0 < this.used) {
+            drop(true);
+        }
+        this.workers.shutdown();
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                if (this.workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        for (Segment seg : this.ring) {
+            Arrays.fill(seg.buf, (byte)0);
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    private boolean covers(long num) {
+        return 0 < this.used && this.ring[this.first].num <= num && num < this.next;
+    }
+
+    private void restart(long num) {
+        while (0 < this.used) {
+            drop(true);
+        }
+        this.next = num;
+        fill();
+    }
+
+    // schedules segments until the ring is full or the end got reached
+    private void fill() {
+        while (this.used < this.ring.length && this.next < this.size) {
+            final Segment seg = this.ring[(this.first + this.used) % this.ring.length];
+            seg.num   = this.next;
+            seg.count = (int)Math.min(this.segment, this.size - this.next);
+            final AtomicBoolean started = seg.started = new AtomicBoolean();
+            final long num   = seg.num;
+            final int  count = seg.count;
+            seg.job = this.workers.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    if (started.compareAndSet(false, true)) {
+                        ReadAhead.this.src.read(num, seg.buf, 0, count);
+                    }
+                    return null;
+                }
+            });
+            this.next += seg.count;
+            this.used++;
+        }
+    }
+
+    // releases the first segment, after its fetch is over (since its buffer
+    // might get reused right away), errors do not matter anymore then; a
+    // fetch which did not start yet can be cancelled instead of waited for ...
+    private void drop(boolean cancel) {
+        final Segment seg = this.ring[this.first];
+        if (cancel && seg.started.compareAndSet(false, true)) {
+            seg.job.cancel(false);
+        }
+        else {
+            try {
+                await(seg);
+            }
+            catch (IOException ignored) {
+            }
+        }
+        seg.job     = null;
+        seg.started = null;
+        this.first = (this.first + 1) % this.ring.length;
+        this.used--;
+    }
+
+    private void await(Segment seg) throws IOException {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    seg.job.get();
+                    return;
+                }
+                catch (InterruptedException ie) {
+                    interrupted = true;
+                }
+                catch (ExecutionException ee) {
+                    final Throwable err = ee.getCause();
+                    if (err instanceof IOException) {
+                        throw (IOException)err;
+                    }
+                    throw new Error(err);
+                }
+            }
+        }
+        finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -19,27 +19,32 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 package coderslagoon.trupax.tc;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
 
 import coderslagoon.baselib.io.BlockDevice;
 import coderslagoon.baselib.io.BlockDeviceImpl;
-import coderslagoon.baselib.io.MultiplexBlockDevice;
+import coderslagoon.baselib.util.Log;
 import coderslagoon.baselib.util.Prp;
 import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.container.HeaderUnlock;
 import coderslagoon.tclib.container.Volume;
 import coderslagoon.tclib.crypto.BlockCipher;
 import coderslagoon.tclib.crypto.Rand;
-import coderslagoon.tclib.crypto.Registry;
 import coderslagoon.tclib.util.Key;
 import coderslagoon.tclib.util.TCLibException;
 
 public class TCBlockDevice extends BlockDeviceImpl {
-    final BlockDevice  bdev;
-    final BlockDevice  mpbdev;
-    final byte[]       headerBackup;
-    final List<Volume> volumes = new ArrayList<Volume>();
+    final static Log _log = new Log("tcblockdevice");
+
+    final BlockDevice     bdev;
+    final int             units;
+    final int             headerBlocks;
+    final EncryptPipeline pipeline;
+    final byte[]          headerBackup;
+    final Volume          volume;
+    final Volume          updateVolume;
+    final byte[]          updateBuf;
 
     ///////////////////////////////////////////////////////////////////////////
     
@@ -47,6 +52,7 @@ public class TCBlockDevice extends BlockDeviceImpl {
     
     final Prp.Int propBufSize;
     final Prp.Int propBufCount;
+    final Prp.Int propWorkers;
 
     ///////////////////////////////////////////////////////////////////////////
     
@@ -66,168 +72,246 @@ public class TCBlockDevice extends BlockDeviceImpl {
                          String hashFunction,
                          String blockCipher,
                          Rand rnd) throws IOException, TCLibException {
-        super(null == rnd, 
+        this(bdev, key, null == rnd ? null : new HeaderKeys(
+                new Key.ByteArray(key.data().clone()), hashFunction, blockCipher, rnd),
+             rnd);
+    }
+
+    /**
+     * Creates a new volume with header keys which got derived in advance.
+     * @param bdev Where to write the volume to.
+     * @param keys The header keys. Get erased after the headers got encoded.
+     * @param rnd Source for the key material.
+     * @throws IOException If any I/O error occurred.
+     * @throws TCLibException If the header keys could not be derived.
+     */
+    public TCBlockDevice(BlockDevice bdev, 
+                         HeaderKeys keys,
+                         Rand rnd) throws IOException, TCLibException {
+        this(bdev, null, keys, rnd, false);
+    }
+
+    /**
+     * Opens an existing container, optionally for updating it in place.
+     * Blocks get decrypted when read and encrypted again when written, so
+     * only the ones actually written change. The headers are left untouched.
+     * @param bdev The container. Must be writable if updating.
+     * @param key The key to unlock the container with.
+     * @param update True to allow writing, false to open it read-only.
+     * @throws IOException If any I/O error occurred.
+     * @throws TCLibException If the container could not be unlocked.
+     */
+    public TCBlockDevice(BlockDevice bdev, 
+                         Key key,
+                         boolean update) throws IOException, TCLibException {
+        this(bdev, key, null, null, update);
+    }
+
+    TCBlockDevice(BlockDevice bdev, 
+                  Key key,
+                  HeaderKeys keys,
+                  Rand rnd) throws IOException, TCLibException {
+        this(bdev, key, keys, rnd, false);
+    }
+
+    TCBlockDevice(BlockDevice bdev, 
+                  Key key,
+                  HeaderKeys keys,
+                  Rand rnd,
+                  boolean update) throws IOException, TCLibException {
+        super(null == rnd && !update, 
               null != rnd, 
               false, 
-              bdev.size() - 2 * Header.BLOCK_COUNT, 
+              bdev.size() - 2 * (Header.SIZE / bdev.blockSize()), 
               bdev.blockSize());
+
+        this.units        = unitsPerBlock(bdev);
+        this.headerBlocks = Header.SIZE / bdev.blockSize();
         
-        this.propBufSize  = new Prp.Int(PROPS_PFX + "bufsize", 64);  
-        this.propBufCount = new Prp.Int(PROPS_PFX + "bufcount",
-                Runtime.getRuntime().availableProcessors() + 1);        
+        // batches of 128KB, enough slots for every worker to have one in
+        // progress while as many are waiting to be written ...
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        this.propBufSize  = new Prp.Int(PROPS_PFX + "bufsize" , 256);
+        this.propBufCount = new Prp.Int(PROPS_PFX + "bufcount", 2 * cpus + 2);
+        this.propWorkers  = new Prp.Int(PROPS_PFX + "workers" , cpus);
 
         this.bdev = bdev;
         
         final Volume vol0;
         
         if (null == rnd) {
-            Header hdr = null;
-            int bak = 0;
-            for (bak = 0; bak < 2; bak++) {
-                byte[] hdrData = new byte[Header.SIZE];
-                
-                long i = 0 == bak ? 0 : (bdev.size() - Header.BLOCK_COUNT);
-                long c = i + Header.BLOCK_COUNT;
+            final byte[][] hdrData = new byte[2][Header.SIZE];
+            for (int bak = 0; bak < 2; bak++) {
+                long i = 0 == bak ? 0 : (bdev.size() - this.headerBlocks);
+                long c = i + this.headerBlocks;
                 
                 for (int ofs = 0; i < c; i++, ofs += bdev.blockSize()) {
-                    bdev.read(i, hdrData, ofs);
-                }
-                
-                try {
-                    hdr = new Header(key, hdrData, 0);
-                    break;
-                }
-                catch (TCLibException tle) {
-                    if (0 != bak) {
-                        throw tle;
-                    }
+                    bdev.read(i, hdrData[bak], ofs);
                 }
             }
-            this.usedBackupHeader = (0 != bak);
+            HeaderUnlock.Result ures = HeaderUnlock.unlock(key, hdrData);
+            Header hdr = ures.header;
+            this.usedBackupHeader = (0 != ures.index);
             this.headerBackup = null;
             
             vol0 = new Volume(BlockCipher.Mode.DECRYPT, hdr);
+
+            if (update) {
+                this.updateVolume = new Volume(BlockCipher.Mode.ENCRYPT, hdr);
+                this.updateBuf    = new byte[bdev.blockSize()];
+            }
+            else {
+                this.updateVolume = null;
+                this.updateBuf    = null;
+            }
         }
         else {
-            Header hdr = new Header(Registry._hashFunctions.lookup(hashFunction),
-                                    Registry._blockCiphers .lookup(blockCipher));
-            
-            hdr.generateSalt(rnd);
-            hdr.generateKeyMaterial(rnd);
-            
-            hdr.version        = Header.Version.LOWEST_HEADER;
-            hdr.minimumVersion = Header.Version.LOWEST_APP;
-     
-            rnd.make(hdr.salt);
-            
-            final long volumeBytes = this.size * bdev.blockSize();
-            if (0L > volumeBytes) {
-                throw new IOException();
+            try {
+                Header hdr = keys.header();
+
+                hdr.generateKeyMaterial(rnd);
+
+                hdr.version        = Header.Version.LOWEST_HEADER;
+                hdr.minimumVersion = Header.Version.LOWEST_APP;
+
+                final long volumeBytes = this.size * bdev.blockSize();
+                if (0L > volumeBytes) {
+                    throw new IOException();
+                }
+
+                hdr.sizeofHiddenVolume = 0L;
+                hdr.sizeofVolume       = volumeBytes;
+                hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
+                hdr.dataAreaSize       = volumeBytes;
+                hdr.flags              = 0;
+                hdr.reserved3          = null;
+                hdr.hiddenVolumeHeader = null;
+
+                // (the first block written is where the derivations of the
+                // keys, running since the password got known, get joined)
+                hdr.salt = keys.salt(false);
+                writeHeaderData(0, hdr.encodeWithKey(keys.join(false)));
+
+                vol0 = new Volume(BlockCipher.Mode.ENCRYPT, hdr);
+
+                hdr.salt = keys.salt(true);
+                this.headerBackup = hdr.encodeWithKey(keys.join(true));
+
+                hdr.erase();
             }
-    
-            hdr.sizeofHiddenVolume = 0L;
-            hdr.sizeofVolume       = volumeBytes;
-            hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
-            hdr.dataAreaSize       = volumeBytes;
-            hdr.flags              = 0;
-            hdr.reserved3          = null;
-            hdr.hiddenVolumeHeader = null;
-            
-            final byte[] passw = key.data();
-            
-            writeHeaderData(0, hdr.encode(passw));
-    
-            vol0 = new Volume(BlockCipher.Mode.ENCRYPT, hdr);
-            
-            hdr.generateSalt(rnd);
-            this.headerBackup = hdr.encode(passw);
-            
-            hdr.erase();
-            
+            finally {
+                keys.erase();
+            }
+
             this.usedBackupHeader = null;
+            this.updateVolume     = null;
+            this.updateBuf        = null;
         }
         
-        this.volumes.add(vol0);
-            
-        this.mpbdev = new MultiplexBlockDevice(
-                new BlockDevice.Filter.Factory() {
-                    public Filter createRead() {
-                        return createWrite();
-                    }
-                    public Filter createWrite() {
-                        final Volume vol = (Volume)vol0.clone();
-                        TCBlockDevice.this.volumes.add(vol);
-                        
-                        return new Filter() {
-                            public void transform(long num, byte[] block, 
-                                    int ofs) throws IOException {
-                                try {
-                                    vol.processBlock(num, block, ofs);
-                                }
-                                catch (TCLibException tcle) {
-                                    throw new IOException(tcle);
-                                }
-                            }
-                            public long map(long num) {
-                                return num + Header.BLOCK_COUNT;
-                            }
-                        };
-                    }
-                    public void initialize(int blockSize) throws IOException {
-                        // NOTE: we could have done the setup here as well
-                    }
-                },
-                new BlockDevice() {
-                    // (mapping to the new block number already done by the filter)
-                    public int blockSize() {
-                        return TCBlockDevice.this.blockSize();
-                    }
-                    public void close(boolean err) throws IOException {
-                    }
-                    public void read(long num, byte[] block, int ofs) throws IOException {
-                        TCBlockDevice.this.bdev.read(num, block, ofs);
-                    }
-                    public boolean readOnly   () { return TCBlockDevice.this.readOnly   (); }
-                    public boolean writeOnly  () { return TCBlockDevice.this.writeOnly  (); }
-                    public boolean serialWrite() { return TCBlockDevice.this.serialWrite(); }
-                    public long    size       () { return TCBlockDevice.this.size       (); }
-
-                    public void write(long num, byte[] block, int ofs) throws IOException {
-                        TCBlockDevice.this.bdev.write(num, block, ofs);
-                    }
-                },
-                this.propBufCount.get(),
-                this.propBufSize .get());
+        // one volume serves all of the workers, it keeps no state besides
+        // the keys ...
+        this.volume = vol0;
+
+        this.pipeline = null == rnd ? null : new EncryptPipeline(
+                vol0,
+                bdev,
+                this.headerBlocks,
+                this.propBufSize  .get(),
+                this.propBufCount .get(),
+                this.propWorkers  .get());
+    }
+
+    /**
+     * @return Counters of the encryption pipeline, telling whether the cores
+     * or the output are the limit. Null if the device is decrypting.
+     */
+    public EncryptPipeline.Stats stats() {
+        return null == this.pipeline ? null : this.pipeline.stats();
     }
 
     ///////////////////////////////////////////////////////////////////////////
 
     /** @see coderslagoon.baselib.io.BlockDevice#close() */
     public void close(boolean err) throws IOException {
-        this.mpbdev.close(err);
-        
-        if (!err && !decrypting()) {
-            writeHeaderData(this.bdev.size() - Header.BLOCK_COUNT, 
-                            this.headerBackup);
-        }
+        // (the device gets closed and the keys erased no matter what, if
+        // finishing the volume failed the device learns about it too)
+        boolean done = false;
+        try {
+            if (null != this.pipeline) {
+                this.pipeline.close(err);
+                _log.infof("encryption pipeline: %s", this.pipeline.stats());
+            }
             
-        this.bdev.close(err);
-        
-        for (Volume vol : this.volumes) {
-            vol.erase();
+            if (!err && !decrypting()) {
+                writeHeaderData(this.bdev.size() - this.headerBlocks, 
+                                this.headerBackup);
+            }
+            done = true;
+        }
+        finally {
+            try {
+                this.bdev.close(err || !done);
+            }
+            finally {
+                this.volume.erase();
+                if (null != this.updateVolume) {
+                    this.updateVolume.erase();
+                    Arrays.fill(this.updateBuf, (byte)0);
+                }
+            }
         }
     }
 
     /** @see coderslagoon.baselib.io.BlockDeviceImpl#internalRead(long, byte[], int) */
     protected void internalRead(long num, byte[] block, int ofs) throws IOException {
-        this.mpbdev.read(num, block, ofs);
+        num += this.headerBlocks;
+        this.bdev.read(num, block, ofs);
+        try {
+            this.volume.processBlocks(num * this.units, block, ofs, this.units);
+        }
+        catch (TCLibException tcle) {
+            throw new IOException(tcle);
+        }
     }
 
     /** @see coderslagoon.baselib.io.BlockDeviceImpl#internalWrite(long, byte[], int) */
     protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
-        this.mpbdev.write(num, block, ofs);
+        if (null != this.pipeline) {
+            this.pipeline.write(num, block, ofs);
+            return;
+        }
+        // updating in place, the caller's block must stay as it is though ...
+        System.arraycopy(block, ofs, this.updateBuf, 0, this.updateBuf.length);
+        num += this.headerBlocks;
+        try {
+            this.updateVolume.processBlocks(num * this.units, this.updateBuf, 0, this.units);
+        }
+        catch (TCLibException tcle) {
+            throw new IOException(tcle);
+        }
+        this.bdev.write(num, this.updateBuf, 0);
     }
     
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Determines how many data units make up a block of a device. Blocks can
+     * be larger than the data units, with the data units keeping the numbers
+     * they would have with 512 byte blocks, so the container itself does not
+     * depend on the block size at all.
+     * @param bdev The device holding the container.
+     * @return Number of data units per block.
+     * @throws IOException If the block size is not a multiple of the data
+     * unit size, or if the header area cannot be made of whole blocks.
+     */
+    static int unitsPerBlock(BlockDevice bdev) throws IOException {
+        final int bsz = bdev.blockSize();
+        if (0 >= bsz || 0 != bsz % Header.BLOCK_SIZE || 0 != Header.SIZE % bsz) {
+            throw new IOException("unsupported block size " + bsz);
+        }
+        return bsz / Header.BLOCK_SIZE;
+    }
+
     ///////////////////////////////////////////////////////////////////////////
     
     private void writeHeaderData(long num, byte[] data) throws IOException {
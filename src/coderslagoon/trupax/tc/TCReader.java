@@ -19,24 +19,40 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 package coderslagoon.trupax.tc;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 
 
 import coderslagoon.baselib.io.BlockDevice;
 import coderslagoon.baselib.io.BlockDeviceImpl;
+import coderslagoon.baselib.util.Prp;
 import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.container.HeaderUnlock;
 import coderslagoon.tclib.container.Volume;
 import coderslagoon.tclib.crypto.BlockCipher;
 import coderslagoon.tclib.util.Key;
 import coderslagoon.tclib.util.TCLibException;
+import coderslagoon.trupax.lib.Reader;
+
+public class TCReader extends BlockDeviceImpl implements Reader.BulkRead {
+    protected static class Props {
+        public final static String PFX = "tcreader.";
+        public final static Prp.Int READ_AHEAD = new Prp.Int(PFX + "readahead", 4096);
+    }
 
-public class TCReader extends BlockDeviceImpl {
     final BlockDevice bdev;
     final Volume      vol;
+    final int         units;
     final long        num0;
     final long        size;
     
     protected Header header;
+
+    ReadAhead readAhead;
+
+    final static int SEGMENT = 256;
+    final static int CPUS = Runtime.getRuntime().availableProcessors();
     
     public TCReader(BlockDevice bdev, Key key, boolean tryBackupHeader) 
         throws IOException, TCLibException {
@@ -45,15 +61,13 @@ public class TCReader extends BlockDeviceImpl {
         this.bdev = bdev;
         
         try {
-            this.header = openHeader(0, key);
-        }
-        catch (TCLibException tle) {
-            if (tryBackupHeader) {
-                this.header = openHeader(bdev.size() - Header.BLOCK_COUNT, key);
-            }
-            else {
-                throw tle;
-            }
+            this.units = TCBlockDevice.unitsPerBlock(bdev);
+            
+            final byte[] primary = readHeader(0);
+            this.header = (tryBackupHeader ?
+                HeaderUnlock.unlock(key, primary, readHeader(
+                        bdev.size() - Header.SIZE / bdev.blockSize())) :
+                HeaderUnlock.unlock(key, primary)).header;
         }
         finally {
             key.erase();
@@ -68,23 +82,152 @@ public class TCReader extends BlockDeviceImpl {
         this.num0 = this.header.dataAreaOffset / this.bdev.blockSize();
         
         this.vol = new Volume(BlockCipher.Mode.DECRYPT, this.header); 
+
+        setReadAhead(1 < CPUS ? Props.READ_AHEAD.get() : 0);
+    }
+
+    /**
+     * Sets up reading ahead. Once sequential access got detected the blocks
+     * following it get fetched and decrypted in the background, by as many
+     * workers as there are cores. The default window size is determined by
+     * the Props.READ_AHEAD property, on single core machines reading ahead is
+     * off though, since there would be nothing to gain.
+     * @param window Number of blocks to read ahead, 0 to turn it off.
+     */
+    public void setReadAhead(int window) {
+        if (null != this.readAhead) {
+            this.readAhead.close();
+            this.readAhead = null;
+        }
+        if (0 < window) {
+            this.readAhead = new ReadAhead(new ReadAhead.Source() {
+                    public void read(long num, byte[] buf, int ofs, int count) throws IOException {
+                        fetch(num, buf, ofs, count);
+                    }
+                },
+                this.size,
+                this.bdev.blockSize(),
+                window,
+                Math.max(1, Math.min(SEGMENT, window / 4)),
+                CPUS);
+        }
     }
     
-    private Header openHeader(long num, Key key) throws IOException, TCLibException {
-        final byte[] data = new byte[Header.SIZE];
+    private byte[] readHeader(long num) throws IOException {
+        final byte[] result = new byte[Header.SIZE];
         
-        for (int ofs = 0; ofs < data.length; ofs += Header.BLOCK_SIZE) {
-            this.bdev.read(num++, data, ofs);
+        for (int ofs = 0; ofs < result.length; ofs += this.bdev.blockSize()) {
+            this.bdev.read(num++, result, ofs);
         }
 
-        return new Header(key, data, 0);
+        return result;
     }
 
     protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+        if (null != this.readAhead && 1 == this.readAhead.read(num, block, ofs, 1)) {
+            return;
+        }
+        fetch(num, block, ofs, 1);
+    }
+
+    /**
+     * Reads consecutive blocks and decrypts all of them with one call.
+     * @see coderslagoon.trupax.lib.Reader.BulkRead#readBlocks(long, byte[], int, int)
+     */
+    public void readBlocks(long num, byte[] buf, int ofs, int count) throws IOException {
+        if (0 > num || 0 > count || num + count > this.size) {
+            throw new IOException();
+        }
+        if (null != this.readAhead) {
+            final int served = this.readAhead.read(num, buf, ofs, count);
+            num   += served;
+            ofs   += served * this.bdev.blockSize();
+            count -= served;
+            if (0 == count) {
+                return;
+            }
+        }
+        fetch(num, buf, ofs, count);
+    }
+
+    // reads and decrypts, might get called by the read-ahead workers
+    private void fetch(long num, byte[] buf, int ofs, int count) throws IOException {
+        num += this.num0;
+        readRaw(num, buf, ofs, count);
+        try {
+            this.vol.processBlocks(num * this.units, buf, ofs, count * this.units);
+        }
+        catch (TCLibException tle) {
+            throw new IOException(tle);
+        }
+    }
+
+    // channels can be read from concurrently, other devices are not expected
+    // to be thread-safe, so access to them has to be serialized ...
+    private void readRaw(long num, byte[] buf, int ofs, int count) throws IOException {
+        if (this.bdev instanceof ChannelBlockDevice) {
+            ((ChannelBlockDevice)this.bdev).read(num, ByteBuffer.wrap(buf), ofs, count);
+            return;
+        }
+        synchronized (this.bdev) {
+            final int bsz = this.bdev.blockSize();
+            for (int i = 0; i < count; i++) {
+                this.bdev.read(num + i, buf, ofs + i * bsz);
+            }
+        }
+    }
+
+    /**
+     * Reads consecutive blocks into a (heap or direct) buffer. If the device
+     * underneath is channel based the data gets transferred and decrypted
+     * right there, without any intermediate copy. Reading ahead works just
+     * like for arrays.
+     * @param num The number of the first block.
+     * @param buf The buffer. Its position and limit do not get changed.
+     * @param ofs Absolute index in the buffer where to store the first block.
+     * @param count Number of blocks to read.
+     * @throws IOException If any error occurred.
+     */
+    public void readBlocks(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        if (buf.hasArray()) {
+            readBlocks(num, buf.array(), buf.arrayOffset() + ofs, count);
+            return;
+        }
+        if (0 > num || 0 > count || num + count > this.size) {
+            throw new IOException();
+        }
+        if (null != this.readAhead) {
+            final int served = this.readAhead.read(num, buf, ofs, count);
+            num   += served;
+            ofs   += served * this.bdev.blockSize();
+            count -= served;
+            if (0 == count) {
+                return;
+            }
+        }
+        fetch(num, buf, ofs, count);
+    }
+
+    // same as the other fetch(), for buffers which are not array based
+    private void fetch(long num, ByteBuffer buf, int ofs, int count) throws IOException {
+        if (!(this.bdev instanceof ChannelBlockDevice)) {
+            final byte[] tmp = new byte[count * this.bdev.blockSize()];
+            try {
+                fetch(num, tmp, 0, count);
+                final ByteBuffer dup = buf.duplicate();
+                dup.clear();
+                dup.position(ofs);
+                dup.put(tmp);
+            }
+            finally {
+                Arrays.fill(tmp, (byte)0);
+            }
+            return;
+        }
         num += this.num0;
-        this.bdev.read(num, block, ofs);
+        ((ChannelBlockDevice)this.bdev).read(num, buf, ofs, count);
         try {
-            this.vol.processBlock(num, block, ofs);
+            this.vol.processBlocks(num * this.units, buf, ofs, count * this.units);
         }
         catch (TCLibException tle) {
             throw new IOException(tle);
@@ -96,6 +239,8 @@ public class TCReader extends BlockDeviceImpl {
     }
 
     public void close(boolean err) throws IOException {
+        setReadAhead(0);
+
         this.header.erase();
         this.vol   .erase();
         
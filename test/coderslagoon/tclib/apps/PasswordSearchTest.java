@@ -19,11 +19,35 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 package coderslagoon.tclib.apps;
 
 import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.junit.Test;
 
+import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.crypto.AES256;
+import coderslagoon.tclib.crypto.Cascade;
+import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.SHA512;
+import coderslagoon.trupax.sdk.apps.Batch;
+import coderslagoon.trupax.sdk.apps.Checkpoint;
+import coderslagoon.trupax.sdk.apps.Claims;
 import coderslagoon.trupax.sdk.apps.PasswordSearch;
 import coderslagoon.trupax.sdk.apps.PasswordSearch.GeneratorSource;
+import coderslagoon.trupax.sdk.apps.PasswordSearch.StreamSource;
+import coderslagoon.trupax.sdk.apps.RangeSource;
+import coderslagoon.trupax.sdk.apps.WordlistSource;
 
 public class PasswordSearchTest {
 
@@ -36,6 +60,295 @@ public class PasswordSearchTest {
         }
         assertEquals(1000, c);
     }
+
+    @Test
+    public void testGeneratorOrdinals() {
+        GeneratorSource gs = new GeneratorSource(3, "abcde".toCharArray());
+        assertEquals(125, gs.size());
+        for (long o = 0; gs.hasNext(); o++) {
+            assertEquals(o, gs.ordinal());
+            String pw = gs.next();
+            assertEquals(pw, gs.password(o));
+            assertEquals(o, gs.ordinal(pw));
+        }
+        assertEquals(125, gs.ordinal());
+        assertEquals(-1, gs.ordinal("abf"));
+        assertEquals(-1, gs.ordinal("abcd"));
+        gs.seek(31);
+        assertTrue(gs.hasNext());
+        assertEquals("bbb", gs.next());
+        gs.seek(124);
+        assertEquals("eee", gs.next());
+        assertFalse(gs.hasNext());
+        gs.seek(0);
+        assertEquals("aaa", gs.next());
+
+        gs = new GeneratorSource(20, GeneratorSource.Set.SPACE_TO_255);
+        assertEquals(Long.MAX_VALUE, gs.size());
+        gs.seek(Long.MAX_VALUE - 1);
+        assertEquals(Long.MAX_VALUE - 1, gs.ordinal(gs.next()));
+    }
+
+    @Test
+    public void testRangesAndClaims() throws IOException {
+        List<long[]> ranges = new ArrayList<long[]>();
+        ranges.add(new long[] { 10, 12 });
+        ranges.add(new long[] { 20, 20 });
+        ranges.add(new long[] { 95, 200 });
+        RangeSource rs = new RangeSource(new GeneratorSource(2, GeneratorSource.Set.NUMBERS),
+                                         ranges, null, 100);
+        assertEquals(7, rs.remaining());
+        List<String> pws = new ArrayList<String>();
+        while (rs.hasNext()) {
+            pws.add(rs.next());
+        }
+        assertEquals(Arrays.asList("10", "11", "95", "96", "97", "98", "99"), pws);
+        assertEquals(0, rs.remaining());
+        assertTrue(rs.pending(100).isEmpty());
+
+        // two searches sharing the key space through the same claims file
+        File cf = File.createTempFile("claims", null);
+        cf.delete();
+        try {
+            Claims claims = new Claims(cf, 7);
+            RangeSource[] rss = new RangeSource[2];
+            for (int i = 0; i < rss.length; i++) {
+                rss[i] = new RangeSource(new GeneratorSource(2, GeneratorSource.Set.NUMBERS),
+                                         new ArrayList<long[]>(), claims, 100);
+            }
+            Set<String> all = new HashSet<String>();
+            int[] counts = new int[rss.length];
+            for (boolean more = true; more;) {
+                more = false;
+                for (int i = 0; i < rss.length; i++) {
+                    if (rss[i].hasNext()) {
+                        assertTrue(all.add(rss[i].next()));
+                        counts[i]++;
+                        more = true;
+                    }
+                }
+            }
+            assertEquals(100, all.size());
+            assertTrue(0 < counts[0] && 0 < counts[1]);
+
+            // claims are pending before anything of them gets handed out
+            cf.delete();
+            final List<long[]> claimed = new ArrayList<long[]>();
+            final List<String> taken = new ArrayList<String>();
+            RangeSource rs2 = new RangeSource(new GeneratorSource(2, GeneratorSource.Set.NUMBERS),
+                                              new ArrayList<long[]>(), claims, 100,
+                                              new RangeSource.ClaimCallback() {
+                public void onClaimed(RangeSource rsrc, long[] range) {
+                    List<long[]> pending = rsrc.pending(0);
+                    assertTrue(Arrays.equals(range, pending.get(pending.size() - 1)));
+                    for (String passw : taken) {
+                        assertTrue(Integer.parseInt(passw) < range[0]);
+                    }
+                    claimed.add(range);
+                }
+            });
+            while (rs2.hasNext()) {
+                taken.add(rs2.next());
+            }
+            assertEquals(100, taken.size());
+            assertEquals(15, claimed.size());
+        }
+        finally {
+            cf.delete();
+        }
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        final List<long[]> ranges = new ArrayList<long[]>();
+        ranges.add(new long[] { 3, 5000 });
+        ranges.add(new long[] { 7000, 9999 });
+        final RangeSource rs = new RangeSource(new GeneratorSource(4, GeneratorSource.Set.NUMBERS),
+                                               ranges, null, 10000);
+        final Set<String> all = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Throwable[] errs = new Throwable[4];
+        final Thread[] threads = new Thread[errs.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int t_ = t;
+            threads[t] = new Thread() {
+                public void run() {
+                    try {
+                        final Batch batch = new Batch(7 + t_);
+                        while (rs.next(batch)) {
+                            for (int i = 0; i < batch.count(); i++) {
+                                String pw = batch.password(i);
+                                assertEquals(batch.ordinal(i), Long.parseLong(pw));
+                                assertTrue(all.add(pw));
+                            }
+                        }
+                    }
+                    catch (Throwable err) {
+                        errs[t_] = err;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (Throwable err : errs) {
+            assertNull(err);
+        }
+        assertEquals(4997 + 2999, all.size());
+        assertTrue(rs.done());
+        assertTrue(rs.pending(9999).isEmpty());
+
+        // characters which cannot be encoded mean passwords to drop
+        final Batch batch = new Batch(100);
+        ranges.clear();
+        ranges.add(new long[] { 0, 4 });
+        RangeSource rs2 = new RangeSource(new GeneratorSource(2, "a\u0100".toCharArray()),
+                                          ranges, null, 4);
+        assertTrue(rs2.next(batch));
+        assertEquals(1, batch.count());
+        assertEquals("aa", batch.password(0));
+        assertFalse(rs2.next(batch));
+
+        final String lines = "abc\n\u00e4\u00f6\u00fc\nx\u20acx\n" + new String(new char[100]).replace('\0', 'z');
+        StreamSource ss = new StreamSource(new ByteArrayInputStream(lines.getBytes("UTF-8")));
+        ranges.clear();
+        ranges.add(new long[] { 0, Long.MAX_VALUE });
+        rs2 = new RangeSource(ss, ranges, null, Long.MAX_VALUE);
+        assertTrue(rs2.next(batch));
+        assertEquals(3, batch.count());
+        assertEquals("abc", batch.password(0));
+        assertEquals("\u00e4\u00f6\u00fc", batch.password(1));
+        assertEquals(100, batch.password(2).length());
+        assertEquals(3, batch.ordinal(2));
+        assertFalse(rs2.next(batch));
+        assertTrue(rs2.done());
+    }
+
+    @Test
+    public void testWordlist() throws Exception {
+        final String content = "abc\r\n\nx\u20acx\n\u00e4\u00f6\u00fc\n" +
+                new String(new char[5000]).replace('\0', 'z') + "\n" +
+                "12345678\n\u00ff\r\nlast";
+        final byte[] data = content.getBytes("UTF-8");
+        final File wlf = File.createTempFile("wordlist", null);
+        try {
+            FileOutputStream fos = new FileOutputStream(wlf);
+            fos.write(data);
+            fos.close();
+
+            // what the stream source comes up with is the reference
+            final List<String> all = new ArrayList<String>();
+            final List<String> ref = new ArrayList<String>();
+            StreamSource ss = new StreamSource(new ByteArrayInputStream(data));
+            while (ss.hasNext()) {
+                String pw = ss.next();
+                all.add(pw);
+                if (pw.length() <= 4096 && !pw.contains("\u20ac")) {
+                    ref.add(pw);
+                }
+            }
+            assertEquals(6, ref.size());
+
+            WordlistSource ws = new WordlistSource(wlf);
+            assertEquals(data.length, ws.size());
+            List<String> seq = new ArrayList<String>();
+            while (ws.hasNext()) {
+                seq.add(ws.next());
+            }
+            assertEquals(all, seq);
+            assertEquals(data.length, ws.ordinal());
+            ws.seek(6);
+            assertEquals(6, ws.ordinal());
+            assertEquals("x\u20acx", ws.next());
+            ws.seek(1);
+            assertEquals("", ws.next());
+
+            // ranges split anywhere must cover each line exactly once
+            Batch batch = new Batch(3);
+            for (long split = 0; split <= data.length; split++) {
+                List<String> pws = new ArrayList<String>();
+                for (long[] range : new long[][] {{ 0, split }, { split, Long.MAX_VALUE }}) {
+                    for (long from = range[0]; from < range[1];) {
+                        batch.clear();
+                        from = ws.fill(batch, from, range[1]);
+                        for (int i = 0; i < batch.count(); i++) {
+                            pws.add(batch.password(i));
+                            final int ofs = (int)batch.ordinal(i);
+                            assertTrue(0 == ofs || '\n' == data[ofs - 1]);
+                        }
+                    }
+                }
+                assertEquals(ref, pws);
+            }
+            ws.close();
+
+            final List<long[]> ranges = new ArrayList<long[]>();
+            ranges.add(new long[] { 0, Long.MAX_VALUE });
+            RangeSource rs = new RangeSource(new WordlistSource(wlf), ranges, null, data.length);
+            // (remaining bytes, turned into lines by the average length)
+            assertEquals(data.length, rs.remaining());
+            assertEquals(data.length / 8, rs.spacing());
+            List<String> pws = new ArrayList<String>();
+            while (rs.next(batch)) {
+                for (int i = 0; i < batch.count(); i++) {
+                    pws.add(batch.password(i));
+                }
+            }
+            assertEquals(ref, pws);
+            rs.close();
+        }
+        finally {
+            wlf.delete();
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        File cpf = File.createTempFile("checkpoint", null);
+        try {
+            List<long[]> ranges = new ArrayList<long[]>();
+            ranges.add(new long[] { 0, 1 });
+            ranges.add(new long[] { 1L << 40, Long.MAX_VALUE });
+            Checkpoint.save(cpf, ranges);
+            List<long[]> ranges2 = Checkpoint.load(cpf);
+            assertEquals(2, ranges2.size());
+            for (int i = 0; i < ranges.size(); i++) {
+                assertTrue(Arrays.equals(ranges.get(i), ranges2.get(i)));
+            }
+            Checkpoint.save(cpf, new ArrayList<long[]>());
+            assertTrue(Checkpoint.load(cpf).isEmpty());
+
+            // ranges beyond the end of the source are not pending anymore
+            RangeSource rs = new RangeSource(new GeneratorSource(2, GeneratorSource.Set.NUMBERS),
+                                             ranges2, null, 100);
+            assertEquals("00", rs.next());
+            assertFalse(rs.hasNext());
+            assertEquals(1, rs.pending(0).size());
+            assertTrue(rs.pending(1).isEmpty());
+
+            // passwords partially handed out, some of them still in flight
+            ranges.clear();
+            ranges.add(new long[] { 0, 50 });
+            ranges.add(new long[] { 60, 70 });
+            rs = new RangeSource(new GeneratorSource(2, GeneratorSource.Set.NUMBERS),
+                                 ranges, null, 100);
+            for (int i = 0; i < 55; i++) {
+                rs.next();
+            }
+            List<long[]> pending = rs.pending(48);
+            assertEquals(2, pending.size());
+            assertTrue(Arrays.equals(new long[] { 48, 50 }, pending.get(0)));
+            assertTrue(Arrays.equals(new long[] { 60, 70 }, pending.get(1)));
+            pending = rs.pending(62);
+            assertEquals(1, pending.size());
+            assertTrue(Arrays.equals(new long[] { 62, 70 }, pending.get(0)));
+        }
+        finally {
+            cpf.delete();
+        }
+        assertNull(Checkpoint.load(cpf));
+    }
     
     final static String TEST_FILE_PATH = 
             "./test/coderslagoon/tclib/container/resources/";
@@ -56,6 +369,113 @@ public class PasswordSearchTest {
         }
     }
     
+    @Test
+    public void testMainHashFunctions() throws Exception {
+        File vol = File.createTempFile("sha512vol", null);
+        try {
+            Header hdr = new Header(SHA512.class, AES256.class);
+            hdr.generateSalt(Rand.fast());
+            hdr.generateKeyMaterial(Rand.fast());
+            hdr.sizeofHiddenVolume = 0L;
+            hdr.sizeofVolume       = 1L << 20;
+            hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
+            hdr.dataAreaSize       = 1L << 20;
+            hdr.version            = Header.Version.LOWEST_HEADER;
+            hdr.minimumVersion     = Header.Version.LOWEST_APP;
+            FileOutputStream fos = new FileOutputStream(vol);
+            fos.write(hdr.encode("b2".getBytes()));
+            fos.close();
+            hdr.erase();
+
+            String[] args = new String[] {
+                vol.getPath(), "generator", "2", "user_defined", "ab12"
+            };
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(args));
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(
+                    new String[] { "-hash", "sha-512", args[0], args[1], args[2], args[3], args[4] }));
+            assertEquals(PasswordSearch.ExitCode.NOT_FOUND, PasswordSearch._main(
+                    new String[] { "-hash", "RIPEMD-160", args[0], args[1], args[2], args[3], args[4] }));
+            assertEquals(PasswordSearch.ExitCode.WRONG_ARGS, PasswordSearch._main(
+                    new String[] { "-hash", "MD5", args[0], args[1], args[2], args[3], args[4] }));
+        }
+        finally {
+            vol.delete();
+        }
+    }
+
+    @Test
+    public void testMainBlockCiphers() throws Exception {
+        File vol = File.createTempFile("cascadevol", null);
+        try {
+            Header hdr = new Header(SHA512.class, Cascade.AESTwofishSerpent.class);
+            hdr.generateSalt(Rand.fast());
+            hdr.generateKeyMaterial(Rand.fast());
+            hdr.sizeofHiddenVolume = 0L;
+            hdr.sizeofVolume       = 1L << 20;
+            hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
+            hdr.dataAreaSize       = 1L << 20;
+            hdr.version            = Header.Version.LOWEST_HEADER;
+            hdr.minimumVersion     = Header.Version.LOWEST_APP;
+            FileOutputStream fos = new FileOutputStream(vol);
+            fos.write(hdr.encode("2a".getBytes()));
+            fos.close();
+            hdr.erase();
+
+            String[] args = new String[] {
+                "-hash", "sha-512", vol.getPath(), "generator", "2", "user_defined", "ab12"
+            };
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(args));
+            String[] args2 = new String[args.length + 2];
+            System.arraycopy(args, 0, args2, 2, args.length);
+            args2[0] = "-cipher";
+            args2[1] = "aes-twofish-serpent";
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(args2));
+            args2[1] = "AES256";
+            assertEquals(PasswordSearch.ExitCode.NOT_FOUND, PasswordSearch._main(args2));
+            args2[1] = "DES";
+            assertEquals(PasswordSearch.ExitCode.WRONG_ARGS, PasswordSearch._main(args2));
+        }
+        finally {
+            vol.delete();
+        }
+    }
+
+    @Test
+    public void testMainResume() throws IOException {
+        File cpf = File.createTempFile("checkpoint", null);
+        try {
+            // the password (a_1) lies outside of the range left to search
+            List<long[]> ranges = new ArrayList<long[]>();
+            ranges.add(new long[] { 100, 200 });
+            Checkpoint.save(cpf, ranges);
+            String[] args = new String[] {
+                "-checkpoint",
+                cpf.getPath(),
+                TEST_FILE_PATH + "firstsector.dat",
+                "generator",
+                "3",
+                "user_defined",
+                "abcd1234_"
+            };
+            assertEquals(PasswordSearch.ExitCode.NOT_FOUND, PasswordSearch._main(args));
+            assertTrue(Checkpoint.load(cpf).isEmpty());
+            assertEquals(PasswordSearch.ExitCode.NOT_FOUND, PasswordSearch._main(args));
+
+            cpf.delete();
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(args));
+
+            assertEquals(PasswordSearch.ExitCode.WRONG_ARGS, PasswordSearch._main(
+                    new String[] { "-shard", "2/2", args[2], args[3], args[4], args[5], args[6] }));
+            assertEquals(PasswordSearch.ExitCode.NOT_FOUND, PasswordSearch._main(
+                    new String[] { "-shard", "1/2", args[2], args[3], args[4], args[5], args[6] }));
+            assertEquals(PasswordSearch.ExitCode.SUCCESS, PasswordSearch._main(
+                    new String[] { "-shard", "0/2", args[2], args[3], args[4], args[5], args[6] }));
+        }
+        finally {
+            cpf.delete();
+        }
+    }
+
     @Test
     public void testMainFile() {
         String[] args = new String[] {
@@ -26,6 +26,7 @@ import static org.junit.Assert.fail;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -33,8 +34,12 @@ import coderslagoon.baselib.util.BinUtils;
 import coderslagoon.baselib.util.BytePtr;
 import coderslagoon.tclib.container.Header;
 import coderslagoon.tclib.crypto.AES256;
+import coderslagoon.tclib.crypto.BlockCipher;
+import coderslagoon.tclib.crypto.Hash;
 import coderslagoon.tclib.crypto.RIPEMD160;
 import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.SHA512;
+import coderslagoon.tclib.crypto.Whirlpool;
 import coderslagoon.tclib.util.Key;
 import coderslagoon.tclib.util.TCLibException;
 
@@ -108,6 +113,121 @@ public class HeaderTest {
         }
     }
 
+    @Test
+    public void testVerifier() throws Exception {
+        byte[] hdata = loadHeader();
+        byte[] hdata_orig = hdata.clone();
+
+        Header.Verifier vrf = new Header.Verifier(hdata, 0);
+
+        for (String passw : new String[] { "test1234", "", "test123456" }) {
+            byte[] kbuf = Header.deriveKey(RIPEMD160.class, passw.getBytes(), hdata, 0, false, false);
+            assertTrue(kbuf.length == Header.derivedKeySize());
+            assertTrue(null == vrf.verify(RIPEMD160.class, kbuf));
+            assertTrue(BinUtils.arraysEquals(hdata, hdata_orig));
+        }
+
+        byte[] kbuf = Header.deriveKey(RIPEMD160.class, "test12345".getBytes(), hdata, 0, false, false);
+        Header hdr = vrf.verify(RIPEMD160.class, kbuf);
+        assertTrue(null != hdr);
+        assertTrue(4 == hdr.version.value);
+        assertTrue(hdr.blockCipher .equals(AES256   .class));
+        assertTrue(hdr.hashFunction.equals(RIPEMD160.class));
+        assertFalse(BinUtils.arraysEquals(hdata, hdata_orig));
+
+        // a matching magic block alone does not count, the CRCs must fit too
+        hdata = hdata_orig.clone();
+        hdata[Header.OFS_CRC32_2] ^= 1;
+        vrf = new Header.Verifier(hdata, 0);
+        assertTrue(null == vrf.verify(RIPEMD160.class, kbuf));
+        vrf.erase();
+    }
+
+    @Test
+    public void testHashFunctions() throws Exception {
+        @SuppressWarnings("unchecked")
+        Class<? extends Hash.Function>[] hfs = new Class[] {
+            SHA512.class, Whirlpool.class
+        };
+        for (Class<? extends Hash.Function> hf : hfs) {
+            Header hdr = new Header(hf, AES256.class);
+            hdr.generateSalt(Rand.fast());
+            hdr.generateKeyMaterial(Rand.fast());
+            hdr.sizeofHiddenVolume = 0L;
+            hdr.sizeofVolume       = 1L << 20;
+            hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
+            hdr.dataAreaSize       = 1L << 20;
+            hdr.version            = Header.Version.LOWEST_HEADER;
+            hdr.minimumVersion     = Header.Version.LOWEST_APP;
+            byte[] enc = hdr.encode("pw".getBytes());
+            byte[] enc_orig = enc.clone();
+            hdr.erase();
+
+            try {
+                new Header(new Key.ByteArray("pw2".getBytes()), enc, 0);
+                fail();
+            }
+            catch (Header.NoMatchingAlgorithmException nmae) {
+            }
+            assertTrue(BinUtils.arraysEquals(enc, enc_orig));
+
+            hdr = new Header(new Key.ByteArray("pw".getBytes()), enc, 0);
+            assertTrue(hdr.hashFunction.equals(hf));
+            assertTrue(hdr.blockCipher .equals(AES256.class));
+            assertTrue(1L << 20 == hdr.sizeofVolume);
+            hdr.erase();
+        }
+    }
+
+    @Test
+    public void testBlockCiphers() throws Exception {
+        for (Class<? extends BlockCipher> bc : Header.blockCiphers()) {
+            Header hdr = new Header(SHA512.class, bc);
+            hdr.generateSalt(Rand.fast());
+            hdr.generateKeyMaterial(Rand.fast());
+            hdr.sizeofHiddenVolume = 0L;
+            hdr.sizeofVolume       = 1L << 20;
+            hdr.dataAreaOffset     = Header.OFS_DATA_AREA;
+            hdr.dataAreaSize       = 1L << 20;
+            hdr.version            = Header.Version.LOWEST_HEADER;
+            hdr.minimumVersion     = Header.Version.LOWEST_APP;
+            byte[] enc = hdr.encode("pw".getBytes());
+            hdr.erase();
+
+            // the verifier has to find the magic through all of the stages
+            byte[] kbuf = Header.deriveKey(SHA512.class, "pw".getBytes(), enc, 0, false, false);
+            Header.Verifier vrf = new Header.Verifier(enc.clone(), 0);
+            hdr = vrf.verify(SHA512.class, kbuf);
+            assertTrue(null != hdr);
+            assertTrue(hdr.blockCipher.equals(bc));
+            hdr.erase();
+            vrf.erase();
+            @SuppressWarnings("unchecked")
+            Class<? extends BlockCipher>[] aesOnly = new Class[] { AES256.class };
+            vrf = new Header.Verifier(enc.clone(), 0, aesOnly);
+            assertTrue(AES256.class.equals(bc) ^
+                       null == vrf.verify(SHA512.class, Arrays.copyOf(kbuf,
+                               Header.derivedKeySize(aesOnly))));
+            vrf.erase();
+
+            hdr = new Header(new Key.ByteArray("pw".getBytes()), enc, 0);
+            assertTrue(hdr.hashFunction.equals(SHA512.class));
+            assertTrue(hdr.blockCipher .equals(bc));
+            assertTrue(1L << 20 == hdr.sizeofVolume);
+            hdr.erase();
+        }
+    }
+
+    byte[] loadHeader() throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream ins = getClass().getResourceAsStream("resources/5gb_aes_ripemd160_header");
+        for (int b = ins.read(); b != -1; b = ins.read()) {
+            bos.write(b);
+        }
+        ins.close();
+        return bos.toByteArray();
+    }
+
     ///////////////////////////////////////////////////////////////////////////
 
     static class DummyRand extends Rand {
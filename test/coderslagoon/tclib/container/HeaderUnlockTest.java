@@ -0,0 +1,111 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.tclib.crypto.AES256;
+import coderslagoon.tclib.crypto.RIPEMD160;
+import coderslagoon.tclib.util.Key;
+
+public class HeaderUnlockTest {
+
+    byte[] load() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream ins = getClass().getResourceAsStream("resources/5gb_aes_ripemd160_header");
+        for (int b = ins.read(); b != -1; b = ins.read()) {
+            bos.write(b);
+        }
+        ins.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testBackup() throws Exception {
+        byte[] hdata = load();
+        byte[] broken = hdata.clone();
+        broken[Header.OFS_MAGIC] ^= 1;
+        byte[] broken_orig = broken.clone();
+
+        HeaderUnlock.Result ures = HeaderUnlock.unlock(
+                new Key.ByteArray("test12345".getBytes()), broken, hdata);
+
+        assertEquals(1, ures.index);
+        assertTrue(ures.header.blockCipher .equals(AES256   .class));
+        assertTrue(ures.header.hashFunction.equals(RIPEMD160.class));
+        assertTrue(4 == ures.header.version.value);
+        assertTrue(BinUtils.arraysEquals(broken, broken_orig));
+
+        byte[] enc = ures.header.encode("test12345".getBytes());
+        assertTrue(BinUtils.arraysEquals(enc, load()));
+        ures.header.erase();
+    }
+
+    @Test
+    public void testPreference() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            byte[] hdata = load();
+            byte[] hdata2 = hdata.clone();
+
+            HeaderUnlock.Result ures = HeaderUnlock.unlock(
+                    new Key.ByteArray("test12345".getBytes()), hdata, hdata2);
+
+            assertEquals(0, ures.index);
+            assertTrue(BinUtils.arraysEquals(hdata2, load()));
+            assertTrue(4 == ures.header.version.value);
+            ures.header.erase();
+        }
+    }
+
+    @Test
+    public void testWrongPassword() throws Exception {
+        byte[] hdata = load();
+        try {
+            HeaderUnlock.unlock(new Key.ByteArray("test1234".getBytes()),
+                                hdata, hdata.clone());
+            fail();
+        }
+        catch (Header.NoMatchingAlgorithmException nmae) {
+        }
+        assertTrue(BinUtils.arraysEquals(hdata, load()));
+    }
+
+    @Test
+    public void testMatchesErase() {
+        // key material handed over before or after the end gets wiped
+        HeaderUnlock.Matches matches = new HeaderUnlock.Matches(2);
+        byte[] kbuf = new byte[] { 1, 2, 3 };
+        byte[] kbuf2 = kbuf.clone();
+        assertTrue(matches.put(0, kbuf));
+        matches.erase();
+        assertTrue(BinUtils.arraysEquals(new byte[3], kbuf));
+        assertFalse(matches.put(1, kbuf2));
+        assertNull(matches.get(1));
+    }
+}
@@ -0,0 +1,121 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.tclib.container;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.junit.Test;
+
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.tclib.util.Key;
+
+public class KeyCacheTest {
+
+    @Test
+    public void testLRU() {
+        final byte[] SALT = new byte[] { 1, 2, 3 };
+        KeyCache kc = new KeyCache(2, 60000);
+        kc.put("h", "a".getBytes(), SALT, new byte[] { 10 });
+        kc.put("h", "b".getBytes(), SALT, new byte[] { 11 });
+        assertEquals(10, kc.get("h", "a".getBytes(), SALT)[0]);
+        kc.put("h", "c".getBytes(), SALT, new byte[] { 12 });
+        assertEquals(2, kc.size());
+        assertNull   (kc.get("h", "b".getBytes(), SALT));
+        assertNotNull(kc.get("h", "a".getBytes(), SALT));
+        assertNotNull(kc.get("h", "c".getBytes(), SALT));
+        assertNull   (kc.get("g", "c".getBytes(), SALT));
+        assertNull   (kc.get("h", "c".getBytes(), new byte[] { 1, 2 }));
+        byte[] key = kc.get("h", "c".getBytes(), SALT);
+        key[0] = 0;
+        assertEquals(12, kc.get("h", "c".getBytes(), SALT)[0]);
+        kc.put("h", "c".getBytes(), SALT, new byte[] { 13 });
+        assertEquals(2, kc.size());
+        assertEquals(13, kc.get("h", "c".getBytes(), SALT)[0]);
+        kc.put("h", "d".getBytes(), SALT, new byte[] { 14 });
+        assertNull   (kc.get("h", "a".getBytes(), SALT));
+        assertNotNull(kc.get("h", "c".getBytes(), SALT));
+        kc.erase();
+        assertEquals(0, kc.size());
+        kc.put("h", "a".getBytes(), SALT, new byte[] { 10 });
+        assertEquals(0, kc.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        KeyCache kc = new KeyCache(10, 100);
+        kc.put("h", "a".getBytes(), new byte[0], new byte[] { 10 });
+        assertEquals(1, kc.size());
+        for (int i = 0; i < 100 && 0 < kc.size(); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, kc.size());
+        kc.erase();
+    }
+
+    @Test
+    public void testHeader() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream ins = getClass().getResourceAsStream("resources/5gb_aes_ripemd160_header");
+        for (int b = ins.read(); b != -1; b = ins.read()) {
+            bos.write(b);
+        }
+        ins.close();
+        final byte[] hdata = bos.toByteArray();
+
+        KeyCache kc = new KeyCache(4, 60000);
+        assertNull(Header.keyCache(kc));
+        try {
+            for (int i = 0; i < 2; i++) {
+                byte[] buf = hdata.clone();
+                Header hdr = new Header(new Key.ByteArray("test12345".getBytes()), buf, 0);
+                assertEquals(1, kc.size());
+                assertTrue(BinUtils.arraysEquals(hdr.encode("test12345".getBytes()), hdata));
+            }
+        }
+        finally {
+            assertTrue(kc == Header.keyCache(null));
+            kc.erase();
+        }
+    }
+
+    @Test
+    public void testReplace() {
+        KeyCache kc  = new KeyCache(4, 60000);
+        KeyCache kc2 = new KeyCache(4, 60000);
+        assertNull(Header.keyCache(kc));
+        try {
+            assertFalse(Header.keyCache(kc2, null));
+            assertTrue(kc == Header.keyCache(kc2));
+            assertFalse(Header.keyCache(kc, null));
+            assertTrue(Header.keyCache(kc2, kc));
+        }
+        finally {
+            assertTrue(kc == Header.keyCache(null));
+            kc .erase();
+            kc2.erase();
+        }
+    }
+}
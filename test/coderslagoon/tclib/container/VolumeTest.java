@@ -23,6 +23,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 import org.junit.Test;
 
@@ -72,6 +73,10 @@ public class VolumeTest {
         long no = Header.BLOCK_COUNT;
         long end = no + (VOL_SIZE / vol.blockSize());
 
+        byte[] minvol2 = minvol.clone();
+        ByteBuffer minvol3 = ByteBuffer.allocateDirect(minvol.length);
+        minvol3.put(minvol);
+
         System.out.printf("decrypting %d blocks...\n", end - no);
 
         for (; no < end; no++) {
@@ -80,6 +85,14 @@ public class VolumeTest {
             vol.processBlock(no, minvol, ofs);
         }
 
+        vol.processBlocks(Header.BLOCK_COUNT, minvol2, Header.SIZE, (int)(end - Header.BLOCK_COUNT));
+        assertTrue(BinUtils.arraysEquals(minvol, minvol2));
+
+        vol.processBlocks(Header.BLOCK_COUNT, minvol3, Header.SIZE, (int)(end - Header.BLOCK_COUNT));
+        minvol3.clear();
+        minvol3.get(minvol2);
+        assertTrue(BinUtils.arraysEquals(minvol, minvol2));
+
         final byte[] SOME_TEXT = "GALLIA est omnis divisa in partes tres".getBytes();
 
         assertTrue(BinUtils.arraysEquals(
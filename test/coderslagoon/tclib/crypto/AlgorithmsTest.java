@@ -20,14 +20,19 @@ package coderslagoon.tclib.crypto;
 
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 
 import coderslagoon.tclib.crypto.AES256;
+import coderslagoon.tclib.crypto.AES256JCE;
 import coderslagoon.tclib.crypto.Algorithm;
 import coderslagoon.tclib.crypto.CRC32;
 import coderslagoon.tclib.crypto.HMAC;
 import coderslagoon.tclib.crypto.PKCS5;
 import coderslagoon.tclib.crypto.RIPEMD160;
+import coderslagoon.tclib.crypto.SHA512;
+import coderslagoon.tclib.crypto.Whirlpool;
 import coderslagoon.tclib.crypto.XTS;
 import coderslagoon.tclib.util.Testable;
 
@@ -39,10 +44,21 @@ public class AlgorithmsTest {
         for (Class<Testable> clz : new Class[] {
                 CRC32       .class,
                 AES256      .class,
+                AES256JCE   .class,
                 RIPEMD160   .class,
                 HMAC        .class,
                 PKCS5.PBKDF2.class,
                 XTS         .class,
+                RIPEMD160Lanes.class,
+                SHA512      .class,
+                Whirlpool   .class,
+                Twofish     .class,
+                Serpent     .class,
+                Cascade.AESTwofish       .class,
+                Cascade.AESTwofishSerpent.class,
+                Cascade.SerpentAES       .class,
+                Cascade.SerpentTwofishAES.class,
+                Cascade.TwofishSerpent   .class,
         }) {
             Testable tst = clz.newInstance();
             tst.test();
@@ -53,6 +69,71 @@ public class AlgorithmsTest {
         }
     }
 
+    @Test
+    public void testRand() throws Throwable {
+        new Rand.CTR(100).test();
+        new Rand.CTR(0).test();
+        Rand.fast().test();
+    }
+
+    @Test
+    public void testRandReseed() {
+        Rand.CTR ctr = new Rand.CTR(100);
+        byte[] buf = new byte[50];
+        for (int i = 0; i < 20; i++) {
+            ctr.make(buf, 0, buf.length);
+        }
+        // initial seeding, then once per 100 bytes
+        assertTrue(10 == ctr.seedings);
+        ctr = new Rand.CTR(0);
+        for (int i = 0; i < 20; i++) {
+            ctr.make(buf, 0, buf.length);
+        }
+        assertTrue(1 == ctr.seedings);
+    }
+
+    @Test
+    public void testPBKDF2Interrupt() {
+        for (boolean parallel : new boolean[] { false, true }) {
+            PKCS5.PBKDF2 pbkdf2 = new PKCS5.PBKDF2(new RIPEMD160());
+            pbkdf2.setParallel(parallel);
+            Thread.currentThread().interrupt();
+            try {
+                assertTrue(64 == pbkdf2.deriveKey("password".getBytes(),
+                        "salty\r\n".getBytes(), 2000, 64).length);
+                pbkdf2.setInterruptible(true);
+                assertNull(pbkdf2.deriveKey("password".getBytes(),
+                        "salty\r\n".getBytes(), 2000, 64));
+                assertTrue(Thread.currentThread().isInterrupted());
+            }
+            finally {
+                Thread.interrupted();
+            }
+            assertTrue(64 == pbkdf2.deriveKey("password".getBytes(),
+                    "salty\r\n".getBytes(), 2000, 64).length);
+        }
+    }
+
+    @Test
+    public void testPBKDF2Reuse() {
+        // keys derived into the same buffers, with passwords of different
+        // sizes in a longer buffer, must be the same as allocated ones
+        final byte[] salt = "salty\r\n".getBytes();
+        for (boolean parallel : new boolean[] { false, true }) {
+            PKCS5.PBKDF2 pbkdf2 = new PKCS5.PBKDF2(new SHA512());
+            pbkdf2.setParallel(parallel);
+            PKCS5.PBKDF2 ref = new PKCS5.PBKDF2(new SHA512());
+            final byte[] passw = new byte[200];
+            final byte[] key = new byte[192];
+            for (int len : new int[] { 8, 0, 200, 3, 129 }) {
+                Arrays.fill(passw, (byte)len);
+                assertTrue(pbkdf2.deriveKey(passw, len, salt, 50, key));
+                assertArrayEquals(ref.deriveKey(Arrays.copyOf(passw, len), salt, 50,
+                                  key.length), key);
+            }
+        }
+    }
+
     @Test
     public void testPBKDF2Performance() {
 
@@ -0,0 +1,309 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+
+package coderslagoon.tclib.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.crypto.BlockCipher.Mode;
+import coderslagoon.tclib.util.Key;
+
+/**
+ * Micro benchmarks for the hot paths of the crypto layer. Each benchmark gets
+ * warmed up first, then measured over a number of fixed-time iterations. The
+ * results are written as CSV, either to standard output or to the file given
+ * as the first argument ("-" for standard output), so they can be compared
+ * between runs and machines.
+ * A second argument limits the run to benchmarks whose name contains it.
+ */
+public class CryptoPerf {
+
+    final static int  WARMUP_ITERATIONS = Integer.getInteger("cryptoperf.warmup"    , 3);
+    final static int  ITERATIONS        = Integer.getInteger("cryptoperf.iterations", 5);
+    final static long ITERATION_MILLIS  = Long   .getLong   ("cryptoperf.millis"    , 1000L);
+
+    final static int[] XTS_SIZES = { 512, 4096, 65536, 1 << 20 };
+
+    final static int PBKDF2_ITERATIONS = 2000;
+
+    /** One benchmark, which does one operation per call. */
+    static abstract class Bench {
+        final String name;
+        final int    param;
+        final long   bytesPerOp;
+        Bench(String name, int param, long bytesPerOp) {
+            this.name       = name;
+            this.param      = param;
+            this.bytesPerOp = bytesPerOp;
+        }
+        abstract void op() throws Exception;
+    }
+
+    static class Result {
+        double opsPerSec;
+        double error;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static long runFor(Bench bench, long millis) throws Exception {
+        final long end = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        for (int batch = 1;; batch = Math.min(batch << 1, 1 << 16)) {
+            for (int i = 0; i < batch; i++) {
+                bench.op();
+            }
+            ops += batch;
+            if (System.nanoTime() >= end) {
+                return ops;
+            }
+        }
+    }
+
+    static Result measure(Bench bench) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            runFor(bench, ITERATION_MILLIS);
+        }
+        final double[] rates = new double[ITERATIONS];
+        double sum = 0.0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            final long start = System.nanoTime();
+            final long ops = runFor(bench, ITERATION_MILLIS);
+            final long tm = Math.max(1L, System.nanoTime() - start);
+            sum += rates[i] = ops * 1e9 / tm;
+        }
+        Result result = new Result();
+        result.opsPerSec = sum / ITERATIONS;
+        double var = 0.0;
+        for (double rate : rates) {
+            var += (rate - result.opsPerSec) * (rate - result.opsPerSec);
+        }
+        result.error = Math.sqrt(var / Math.max(1, ITERATIONS - 1));
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    static byte[] testData(int len) {
+        byte[] result = new byte[len];
+        for (int i = 0; i < len; i++) {
+            result[i] = (byte)(i * 31 + (i >>> 8));
+        }
+        return result;
+    }
+
+    static byte[] loadHeader() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        InputStream ins = CryptoPerf.class.getResourceAsStream(
+                "/coderslagoon/tclib/container/resources/5gb_aes_ripemd160_header");
+        byte[] buf = new byte[4096];
+        for (int read; -1 != (read = ins.read(buf));) {
+            bos.write(buf, 0, read);
+        }
+        ins.close();
+        return bos.toByteArray();
+    }
+
+    static void addCipher(List<Bench> benches, final Class<? extends BlockCipher> clz) throws Exception {
+        final String sfx = clz.getSimpleName();
+        final byte[] key = testData(clz.newInstance().keySize());
+        final int BLOCKS = 256;
+        for (final Mode mode : Mode.values()) {
+            final BlockCipher bc = clz.newInstance();
+            bc.initialize(mode, key, 0);
+            final byte[] data = testData(BLOCKS * bc.blockSize());
+            benches.add(new Bench(sfx + "." + mode.name().toLowerCase(), data.length, data.length) {
+                void op() {
+                    bc.processBlocks(data, 0, data, 0, BLOCKS);
+                }
+            });
+        }
+        // (some implementations expand the key lazily, hence the first block)
+        final BlockCipher bc = clz.newInstance();
+        final byte[] blk = new byte[bc.blockSize()];
+        benches.add(new Bench(sfx + ".keysetup", key.length, 0) {
+            void op() {
+                bc.initialize(Mode.ENCRYPT, key, 0);
+                bc.processBlock(blk, 0, blk, 0);
+            }
+        });
+    }
+
+    static List<Bench> benches() throws Exception {
+        List<Bench> result = new ArrayList<Bench>();
+
+        addCipher(result, AES256.class);
+        if (AES256JCE.available()) {
+            addCipher(result, AES256JCE.class);
+        }
+        addCipher(result, Twofish.class);
+        addCipher(result, Serpent.class);
+
+        for (final int size : XTS_SIZES) {
+            BlockCipher bc1 = Registry._blockCiphers.lookup("AES256").newInstance();
+            BlockCipher bc2 = Registry._blockCiphers.lookup("AES256").newInstance();
+            bc1.initialize(Mode.ENCRYPT, testData(32), 0);
+            bc2.initialize(Mode.ENCRYPT, testData(64), 32);
+            final XTS xts = new XTS(bc1, bc2);
+            final byte[] data = testData(size);
+            result.add(new Bench("XTS.process", size, size) {
+                long unit;
+                void op() throws Exception {
+                    xts.process(data, 0, data.length, this.unit, 0);
+                    this.unit += data.length / XTS.DATA_UNIT_SIZE;
+                }
+            });
+        }
+
+        // a three stage cascade, with and without the stages running in
+        // parallel, over the largest amount of data only
+        for (final boolean pipelined : new boolean[] { false, true }) {
+            final int size = XTS_SIZES[XTS_SIZES.length - 1];
+            BlockCipher bc1 = new Cascade.AESTwofishSerpent();
+            BlockCipher bc2 = new Cascade.AESTwofishSerpent();
+            bc1.initialize(Mode.ENCRYPT, testData(bc1.keySize() << 1), 0);
+            bc2.initialize(Mode.ENCRYPT, testData(bc1.keySize() << 1), bc1.keySize());
+            final XTS xts = new XTS(bc1, bc2);
+            xts.setPipelined(pipelined);
+            final byte[] data = testData(size);
+            result.add(new Bench("XTS.process.cascade" + (pipelined ? ".pipelined" : ""), size, size) {
+                long unit;
+                void op() throws Exception {
+                    xts.process(data, 0, data.length, this.unit, 0);
+                    this.unit += data.length / XTS.DATA_UNIT_SIZE;
+                }
+            });
+        }
+
+        final RIPEMD160 rmd = new RIPEMD160();
+        final byte[] data4k = testData(4096);
+        result.add(new Bench("RIPEMD160.update", data4k.length, data4k.length) {
+            void op() {
+                rmd.update(data4k, 0, data4k.length);
+            }
+        });
+
+        final HMAC hmac = new HMAC();
+        hmac.initialize(new RIPEMD160(), testData(64), 0, 64);
+        final byte[] msg = testData(64);
+        final byte[] mac = new byte[hmac.hashSize()];
+        result.add(new Bench("HMAC.RIPEMD160", msg.length, msg.length) {
+            void op() {
+                hmac.reset(null, 0, 0);
+                hmac.update(msg, 0, msg.length);
+                hmac.hash(mac, 0);
+            }
+        });
+
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final PKCS5.PBKDF2 pbkdf2 = new PKCS5.PBKDF2(new RIPEMD160());
+            pbkdf2.setParallel(parallel);
+            final byte[] passw = "password".getBytes();
+            final byte[] salt = testData(Header.SALT_SIZE);
+            result.add(new Bench("PBKDF2.deriveKey" + (parallel ? ".parallel" : ""),
+                                 PBKDF2_ITERATIONS, 0) {
+                void op() {
+                    pbkdf2.deriveKey(passw, salt, PBKDF2_ITERATIONS, 64);
+                }
+            });
+        }
+
+        // the other hash functions, with the iterations TrueCrypt uses for them
+        for (final Hash.Function hf : new Hash.Function[] { new SHA512(), new Whirlpool() }) {
+            final PKCS5.PBKDF2 pbkdf2 = new PKCS5.PBKDF2(hf);
+            pbkdf2.setParallel(false);
+            final int iterations = hf.recommededHMACIterations();
+            final byte[] passw = "password".getBytes();
+            final byte[] salt = testData(Header.SALT_SIZE);
+            result.add(new Bench("PBKDF2.deriveKey." + hf.name(), iterations, 0) {
+                void op() {
+                    pbkdf2.deriveKey(passw, salt, iterations, 64);
+                }
+            });
+        }
+
+        // (one operation derives keys for all of the lanes)
+        for (final int lanes : new int[] { 8, new RIPEMD160Lanes().lanes() }) {
+            final RIPEMD160Lanes rl = new RIPEMD160Lanes(lanes);
+            final byte[][] passws = new byte[lanes][];
+            final byte[][] keys = new byte[lanes][64];
+            for (int i = 0; i < lanes; i++) {
+                passws[i] = ("password" + i).getBytes();
+            }
+            final byte[] salt = testData(Header.SALT_SIZE);
+            result.add(new Bench("RIPEMD160Lanes.deriveKeys", lanes, 0) {
+                void op() {
+                    rl.deriveKeys(passws, lanes, salt, PBKDF2_ITERATIONS, keys);
+                }
+            });
+        }
+
+        final CRC32 crc = new CRC32();
+        result.add(new Bench("CRC32.update", data4k.length, data4k.length) {
+            void op() {
+                crc.update(data4k, 0, data4k.length);
+            }
+        });
+
+        // (decoding happens in place, so the data has to be restored first)
+        final byte[] hdata = loadHeader();
+        final byte[] hbuf = new byte[hdata.length];
+        Header.keyCache(null);
+        result.add(new Bench("Header.decode", hdata.length, 0) {
+            void op() throws Exception {
+                System.arraycopy(hdata, 0, hbuf, 0, hdata.length);
+                new Header(new Key.ByteArray("test12345".getBytes()), hbuf, 0).erase();
+            }
+        });
+
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    public static void main(String[] args) throws Exception {
+        PrintStream out = 0 < args.length && !args[0].equals("-") ?
+                new PrintStream(new FileOutputStream(args[0])) : System.out;
+        String filter = 1 < args.length ? args[1] : null;
+
+        Registry.setup(true);
+
+        out.println("benchmark,param,ops_per_sec,error,bytes_per_sec");
+        for (Bench bench : benches()) {
+            if (null != filter && !bench.name.contains(filter)) {
+                continue;
+            }
+            Result res = measure(bench);
+            out.printf("%s,%d,%.3f,%.3f,%.0f%n",
+                    bench.name, bench.param,
+                    res.opsPerSec, res.error,
+                    res.opsPerSec * bench.bytesPerOp);
+            out.flush();
+        }
+        if (out != System.out) {
+            out.close();
+        }
+    }
+}
@@ -450,7 +450,8 @@ public class CmdLnTest extends TestUtils {
         
         for (C1 c : new C1[] {
             new C1("--block-cipher=" , new String[] { "AES256"    , "AES257" }, new PrgProps.BlockCipher ()),
-            new C1("--hash-function=", new String[] { "RIPEMD-160", "HASHME" }, new PrgProps.HashFunction())
+            new C1("--hash-function=", new String[] { "RIPEMD-160", "HASHME" }, new PrgProps.HashFunction()),
+            new C1("--block-size="   , new String[] { "4096"      , "1000"   }, new PrgProps.BlockSize   ())
         }) {
             cl = new CmdLn();
             cl.exec(new String[] { c.t + c.u[0] });
@@ -0,0 +1,295 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.lib;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import coderslagoon.baselib.io.BlockDevice;
+import coderslagoon.baselib.io.BlockDeviceImpl;
+import coderslagoon.baselib.io.FileNode;
+import coderslagoon.baselib.io.FileRegistrar;
+import coderslagoon.baselib.io.LocalFileSystem;
+import coderslagoon.baselib.io.FileRegistrar.InMemory.DefCmp;
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.container.Volume;
+import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.Registry;
+import coderslagoon.tclib.util.Key;
+import coderslagoon.test.util.TestUtils;
+import coderslagoon.trupax.tc.TCBlockDevice;
+import coderslagoon.trupax.tc.TCReader;
+
+public class UDFUpdaterTest {
+    final static int BLOCK_SZ = 512;
+
+    File srcDir;
+    File outDir;
+
+    @Before
+    public void setUp() throws Exception {
+        Registry.setup(true);
+        this.srcDir = TestUtils.createTempDir("udfupdatertest_src");
+        this.outDir = TestUtils.createTempDir("udfupdatertest_out");
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(TestUtils.removeDir(this.srcDir, true));
+        assertTrue(TestUtils.removeDir(this.outDir, true));
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    // makes a volume out of the source directory, which gets filled first
+    BlockDevice makeVolume(long freeBlocks, BlockDeviceImpl.MemoryBlockDevice mbdev) throws Exception {
+        TestUtils.fillFile123(new File(this.srcDir, "a.dat"), 10);
+        TestUtils.fillFile123(new File(this.srcDir, "b.dat"), 5000);
+        File sub = new File(this.srcDir, "sub");
+        assertTrue(sub.mkdirs());
+        TestUtils.fillFile123(new File(sub, "c.dat"), 1234);
+
+        FileRegistrar freg = new FileRegistrar.InMemory(new DefCmp(false));
+        LocalFileSystem lfs = new LocalFileSystem(false);
+        List<FileNode> fnodes = new ArrayList<FileNode>();
+        for (String name : new String[] { "a.dat", "b.dat", "sub", "sub/c.dat" }) {
+            fnodes.add(lfs.nodeFromString(new File(this.srcDir, name).getAbsolutePath()));
+        }
+        freg.add(fnodes, lfs.nodeFromString(this.srcDir.getAbsolutePath()), null,
+                 new FileRegistrar.Callback() {
+            public Merge onMerge(FileNode[] nd0, FileNode nd1) {
+                fail();
+                return null;
+            }
+        });
+
+        UDFWriter w = new UDFWriter(freg, new Properties());
+        final long fb = freeBlocks;
+        long bcount = w.resolve(new Writer.Layout() {
+            public int    blockSize () { return BLOCK_SZ; }
+            public long   freeBlocks() { return fb; }
+            public String label     () { return "updatertest"; }
+        });
+        if (null == mbdev) {
+            mbdev = new BlockDeviceImpl.MemoryBlockDevice(BLOCK_SZ, bcount, false, false);
+            w.make(mbdev, Writer.Progress.NULL);
+            return mbdev;
+        }
+        TCBlockDevice tcbdev = new TCBlockDevice(
+                mbdev,
+                key(),
+                "RIPEMD-160",
+                "AES256",
+                Rand.wrap(new Random(0x0bda7e)));
+        w.make(tcbdev, Writer.Progress.NULL);
+        tcbdev.close(false);
+        return null;
+    }
+
+    // a fresh key each time, since devices erase them when getting closed
+    static Key key() {
+        return new Key.ByteArray("notyours".getBytes());
+    }
+
+    static InputStream pattern(int len) {
+        byte[] data = new byte[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = (byte)(i % 3 + 1);
+        }
+        return new ByteArrayInputStream(data);
+    }
+
+    static boolean checkFile(File fl, int len) throws IOException {
+        if (fl.length() != len) {
+            return false;
+        }
+        byte[] data = new byte[len];
+        InputStream ins = new FileInputStream(fl);
+        try {
+            return len == ins.read(data) && TestUtils.checkPattern123(data, 0, len);
+        }
+        finally {
+            ins.close();
+        }
+    }
+
+    final int[] counts = new int[2];
+
+    // extracts the volume and checks that the original files are still there
+    File extract(BlockDevice bdev) throws IOException {
+        new UDFReader(bdev, new Properties()).extract(this.outDir, new Reader.Progress2() {
+            public Result onMounting (int numOfObjects                 ) { return Result.OK; }
+            public Result onMount    (int numOfFiles, int numOfDirs    ) {
+                UDFUpdaterTest.this.counts[0] = numOfFiles;
+                UDFUpdaterTest.this.counts[1] = numOfDirs;
+                return Result.OK;
+            }
+            public Result onDirectory(File dir , long size, Long tstamp) { return Result.OK; }
+            public Result onFile     (File file, long size, Long tstamp) { return Result.OK; }
+            public Result onData     (long written                     ) { return Result.OK; }
+            public Result onDone     (long total                       ) { return Result.OK; }
+        });
+        File result = new File(this.outDir, this.srcDir.getName());
+        assertTrue(checkFile(new File(result, "a.dat"), 10));
+        assertTrue(checkFile(new File(result, "b.dat"), 5000));
+        assertTrue(checkFile(new File(result, "sub" + File.separator + "c.dat"), 1234));
+        return result;
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
+    @Test
+    public void testContainer() throws Exception {
+        final long bcount;
+        {
+            // size the container by making the volume once in memory ...
+            BlockDevice bdev = makeVolume(300, null);
+            bcount = bdev.size();
+            assertTrue(TestUtils.removeDir(this.srcDir, false));
+        }
+        final long csz = Volume.sizeToContainerSize(bcount);
+        BlockDeviceImpl.MemoryBlockDevice mbdev = new
+        BlockDeviceImpl.MemoryBlockDevice(BLOCK_SZ, csz, false, false);
+        makeVolume(300, mbdev);
+        final byte[] before = mbdev.buffer().clone();
+
+        final String top = this.srcDir.getName() + "/";
+        TCBlockDevice tcbdev = new TCBlockDevice(mbdev, key(), true);
+        UDFUpdater upd = new UDFUpdater(tcbdev);
+        upd.open();
+        final long free = upd.freeBlocks();
+        assertTrue(300 <= free);
+
+        upd.addFile(top + "d.dat"          , pattern(100)  , 100  , 1000L);
+        upd.addFile(top + "sub/e.dat"      , pattern(3000) , 3000 , 1000L);
+        upd.addFile(top + "new/deep/f.dat" , pattern(20000), 20000, 1000L);
+        upd.addDirectory(top + "empty", 1000L);
+        try {
+            upd.addFile(top + "a.dat", pattern(1), 1, 1000L);
+            fail();
+        }
+        catch (Writer.Exception we) {
+            assertTrue(UDFUpdater.ERROR_FILE_EXISTS == we.error);
+        }
+        try {
+            upd.addFile(top + "a.dat/g.dat", pattern(1), 1, 1000L);
+            fail();
+        }
+        catch (Writer.Exception we) {
+            assertTrue(UDFUpdater.ERROR_NOT_DIRECTORY == we.error);
+        }
+        final long free2 = upd.freeBlocks();
+        try {
+            upd.addFile(top + "h.dat", pattern(1000), 2000, 1000L);
+            fail();
+        }
+        catch (Writer.Exception we) {
+            assertTrue(Writer.ERROR_FILE_SIZE_CHANGED_LO == we.error);
+        }
+        assertTrue(free2 == upd.freeBlocks());
+        try {
+            upd.addFile(top + "i.dat", pattern(0), free2 * BLOCK_SZ, 1000L);
+            fail();
+        }
+        catch (Writer.Exception we) {
+            assertTrue(Writer.ERROR_TOO_MUCH_DATA == we.error);
+        }
+        upd.close();
+        tcbdev.close(false);
+        assertTrue(free - free2 >= 1 + 1 + 6 + 1 + 40 + 2 * 2 + 2);
+
+        // headers and everything not used by the new files stays the same ...
+        final byte[] after = mbdev.buffer();
+        int changed = 0;
+        for (long i = 0; i < csz; i++) {
+            if (!BinUtils.arraysEquals(before, (int)i * BLOCK_SZ,
+                                       after , (int)i * BLOCK_SZ, BLOCK_SZ)) {
+                assertTrue(i >= Header.BLOCK_COUNT && i < csz - Header.BLOCK_COUNT);
+                changed++;
+            }
+        }
+        assertTrue(changed <= free - free2 + 10);
+
+        TCReader tcr = new TCReader(mbdev, key(), false);
+        File top2 = extract(tcr);
+        tcr.close(false);
+        assertTrue(checkFile(new File(top2, "d.dat"), 100));
+        assertTrue(checkFile(new File(top2, "sub" + File.separator + "e.dat"), 3000));
+        assertTrue(checkFile(new File(top2, "new" + File.separator +
+                                            "deep" + File.separator + "f.dat"), 20000));
+        assertTrue(new File(top2, "empty").isDirectory());
+        assertTrue(0 == new File(top2, "empty").list().length);
+        assertTrue(3 + 3 == this.counts[0]);
+        assertTrue(3 + 3 == this.counts[1]);
+
+        // the volume got closed properly, so another update must work ...
+        tcbdev = new TCBlockDevice(mbdev, key(), true);
+        upd = new UDFUpdater(tcbdev);
+        upd.open();
+        assertTrue(free2 == upd.freeBlocks());
+        upd.close();
+        tcbdev.close(false);
+    }
+
+    @Test
+    public void testManyFiles() throws Exception {
+        // a lot of (long) names, so the directories have to grow and move,
+        // until the space runs out eventually ...
+        BlockDevice bdev = makeVolume(100, null);
+        final String top = this.srcDir.getName() + "/";
+        UDFUpdater upd = new UDFUpdater(bdev);
+        upd.open();
+        int count = 0;
+        try {
+            for (;; count++) {
+                String name = String.format("%s%s/file_with_a_rather_long_name_%04d.dat",
+                        top, 0 == count % 2 ? "sub" : "", count);
+                upd.addFile(name, pattern(count), count, 1000L);
+            }
+        }
+        catch (Writer.Exception we) {
+            assertTrue(Writer.ERROR_TOO_MUCH_DATA == we.error);
+        }
+        upd.close();
+        assertTrue(20 < count);
+
+        File top2 = extract(bdev);
+        for (int i = 0; i < count; i++) {
+            File fl = new File(0 == i % 2 ? new File(top2, "sub") : top2,
+                    String.format("file_with_a_rather_long_name_%04d.dat", i));
+            assertTrue(checkFile(fl, i));
+        }
+        assertTrue(3 + count == this.counts[0]);
+    }
+}
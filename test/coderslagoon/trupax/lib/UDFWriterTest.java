@@ -54,6 +54,7 @@ import coderslagoon.baselib.io.BlockDeviceImpl.HookBlockDevice;
 import coderslagoon.baselib.io.BlockDeviceImpl.NullWriteDevice;
 import coderslagoon.baselib.io.FileRegistrar.Directory;
 import coderslagoon.baselib.io.FileRegistrar.InMemory.DefCmp;
+import coderslagoon.baselib.util.BinUtils;
 import coderslagoon.baselib.util.Clock;
 import coderslagoon.baselib.util.Combo;
 import coderslagoon.baselib.util.Log;
@@ -63,12 +64,19 @@ import coderslagoon.baselib.util.VarBool;
 import coderslagoon.baselib.util.VarInt;
 import coderslagoon.baselib.util.VarLong;
 import coderslagoon.baselib.util.VarRef;
+import coderslagoon.tclib.container.Header;
+import coderslagoon.tclib.crypto.Rand;
+import coderslagoon.tclib.crypto.Registry;
+import coderslagoon.tclib.util.Key;
 import coderslagoon.test.util.FileNameMaker;
 import coderslagoon.test.util.TestUtils;
 import coderslagoon.trupax.lib.UDFWriter;
 import coderslagoon.trupax.lib.Writer;
 import coderslagoon.trupax.lib.io.filesystem.udf.Browser;
 import coderslagoon.trupax.lib.io.filesystem.udf.UDF;
+import coderslagoon.trupax.tc.BatchBlockDevice;
+import coderslagoon.trupax.tc.TCBlockDevice;
+import coderslagoon.trupax.tc.TCReader;
 
 public class UDFWriterTest
     extends WriterTest
@@ -1301,6 +1309,117 @@ public class UDFWriterTest
     
     ///////////////////////////////////////////////////////////////////////////
 
+    // writes a volume through the batching the program uses for the larger
+    // block sizes, the result has to be what writing in 512 byte blocks gives
+    BlockDeviceImpl.MemoryBlockDevice makeContainer(FileRegistrar freg,
+                                                    long freeBlocks,
+                                                    int bsz) throws Exception {
+        UDFWriter w = new UDFWriter(freg, new Properties());
+        w.rnd = new Random(0xb5ee);
+        final long fb = freeBlocks;
+        final long blocks = w.resolve(new Writer.Layout() {
+            public int    blockSize () { return BLOCK_SZ; }
+            public long   freeBlocks() { return fb; }
+            public String label     () { return "blocksizes"; }
+        });
+        assertTrue(0 == blocks % (bsz / BLOCK_SZ));
+        BlockDeviceImpl.MemoryBlockDevice result = new BlockDeviceImpl.MemoryBlockDevice(
+                bsz, (blocks * BLOCK_SZ + 2 * Header.SIZE) / bsz, false, false);
+        BlockDevice bdev = new TCBlockDevice(
+                result,
+                new Key.ByteArray("test123".getBytes()),
+                "RIPEMD-160",
+                "AES256",
+                Rand.wrap(new Random(0xb5ef)));
+        if (BLOCK_SZ != bsz) {
+            bdev = new BatchBlockDevice(bdev, BLOCK_SZ);
+        }
+        w.make(bdev, Writer.Progress.NULL);
+        bdev.close(false);
+        return result;
+    }
+
+    @Test
+    public void testBlockSizes() throws Exception {
+        Registry.setup(true);
+        UDFWriter._clock = new Clock() {
+            public long now() {
+                return 1300000000000L;
+            }
+        };
+        Random rnd = new Random(0xb512e);
+        File dir = this.rootDir;
+        for (int i = 0; i < 50; i++) {
+            if (0 == i % 10) {
+                dir = new File(this.rootDir, "folder" + i);
+                assertTrue(dir.mkdirs());
+            }
+            TestUtils.fillFile123(new File(dir, String.format("%03d.dat", i)),
+                                  rnd.nextInt(20001));
+        }
+        FileRegistrar freg = new FileRegistrar.InMemory(new DefCmp(false));
+        LocalFileSystem lfs = new LocalFileSystem(false);
+        FileNode fn = lfs.nodeFromString(this.rootDir.getAbsolutePath());
+        assertTrue(50 == registerDirectory(freg, lfs, fn, fn));
+
+        // (padded like PrgImpl.resolve() does it, the largest size first so
+        // the smaller ones fit as well)
+        long freeBlocks = 20;
+        for (;;) {
+            UDFWriter w = new UDFWriter(freg, new Properties());
+            final long fb = freeBlocks;
+            long rest = w.resolve(new Writer.Layout() {
+                public int    blockSize () { return BLOCK_SZ; }
+                public long   freeBlocks() { return fb; }
+                public String label     () { return "blocksizes"; }
+            }) % (4096 / BLOCK_SZ);
+            if (0 == rest) {
+                break;
+            }
+            freeBlocks += 4096 / BLOCK_SZ - rest;
+        }
+
+        final byte[] ref = makeContainer(freg, freeBlocks, BLOCK_SZ).buffer();
+        final int hsz = Header.SIZE;
+        for (int bsz : new int[] { 2048, 4096 }) {
+            final byte[] data = makeContainer(freg, freeBlocks, bsz).buffer();
+            assertTrue(ref.length == data.length);
+            assertTrue(0 == data.length % bsz);
+            // the header areas are mostly random, but the header itself and
+            // everything in between must match exactly ...
+            assertTrue(BinUtils.arraysEquals(ref, 0, data, 0, BLOCK_SZ));
+            assertTrue(BinUtils.arraysEquals(ref, hsz, data, hsz, data.length - 2 * hsz));
+
+            TCReader tcr = new TCReader(new BlockDeviceImpl.MemoryBlockDevice(
+                    BLOCK_SZ, data, false, false),
+                    new Key.ByteArray("test123".getBytes()), false);
+            byte[] dec = new byte[(int)tcr.size() * BLOCK_SZ];
+            for (int i = 0; i < tcr.size(); i++) {
+                tcr.read(i, dec, i * BLOCK_SZ);
+            }
+            File out = new File(this.tmpDir, this.rootDir.getName() + "_" + bsz);
+            assertTrue(out.mkdirs());
+            new UDFReader(tcr, new Properties()).extract(out, Reader.Progress2.NULL);
+            tcr.close(false);
+            File top = new File(out, this.rootDir.getName());
+            for (File dir2 : this.rootDir.listFiles()) {
+                for (File fl : dir2.listFiles()) {
+                    assertTrue(TestUtils.areFilesEqual(fl,
+                            new File(new File(top, dir2.getName()), fl.getName())));
+                }
+            }
+            assertTrue(TestUtils.removeDir(out, true));
+
+            if (UDFTest.available()) {
+                File dump = TestUtils.dumpToFile(dec, "UDFWriterTest.testBlockSizes.dump", true);
+                assertNotNull(dump);
+                assertTrue(UDFTest.exec(dump, BLOCK_SZ, true, false, false, null));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     @Test
     public void testNormalizeVolumeID() {
         for (String[] vid : new String[][] {
@@ -36,7 +36,10 @@ import coderslagoon.baselib.io.LocalFileSystem;
 import coderslagoon.baselib.io.NulOutputStream;
 import coderslagoon.baselib.io.FileRegistrar.BulkCallback;
 import coderslagoon.baselib.io.FileRegistrar.InMemory.DefCmp;
+import coderslagoon.baselib.util.BinUtils;
+import coderslagoon.baselib.util.MiscUtils;
 import coderslagoon.baselib.util.VarInt;
+import coderslagoon.tclib.crypto.Rand;
 import coderslagoon.test.util.FileNameMaker;
 import coderslagoon.test.util.TestUtils;
 import coderslagoon.trupax.lib.Wipe;
@@ -383,6 +386,41 @@ public class WipeTest {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    @Test
+    public void testRandomCycles() throws IOException {
+        final int FLEN = 100001;
+        FileNode fn = makeSingleFile(FLEN);
+        Wipe w = new Wipe(this.freg, new Wipe.Cycles.RandomData(3, Rand.fast()), true);
+        Progress progress = new Progress(0);
+        final List<byte[]> passes = new ArrayList<byte[]>();
+        Wipe.__test_CHECK._instance = new Wipe.__test_CHECK() {
+            public void onCycleDone(File fl, int cycle) {
+                assertTrue(passes.size() == cycle);
+                try {
+                    passes.add(MiscUtils.readFile(fl));
+                }
+                catch (IOException ioe) {
+                    fail();
+                }
+            }
+        }; 
+        assertTrue(w.perform(progress));
+        assertFalse(new File(fn.path(true)).exists());
+        assertTrue(0 == progress.errors.size());
+        assertTrue(3 == passes.size());
+        for (int i = 0; i < passes.size(); i++) {
+            final byte[] pass = passes.get(i);
+            assertTrue(FLEN == pass.length);
+            // (not the same pattern over and over, no matter the buffer size)
+            assertFalse(BinUtils.arraysEquals(pass, 0, pass, FLEN >> 1, FLEN >> 1));
+            if (0 < i) {
+                assertFalse(BinUtils.arraysEquals(pass, passes.get(i - 1)));
+            }
+        }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+
     @Test
     public void testFileAndDirs() throws IOException {
         final int MAX_FILES = 20;
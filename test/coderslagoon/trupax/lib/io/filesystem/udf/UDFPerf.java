@@ -0,0 +1,119 @@
+/*
+Copyright 2010-2013 CODERSLAGOON
+
+This file is part of TruPax.
+
+TruPax is free software: you can redistribute it and/or modify it under the
+terms of the GNU General Public License as published by the Free Software
+Foundation, either version 3 of the License, or (at your option) any later
+version.
+
+TruPax is distributed in the hope that it will be useful, but WITHOUT ANY
+WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+PARTICULAR PURPOSE. See the GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License along with
+TruPax. If not, see http://www.gnu.org/licenses/.
+*/
+
+package coderslagoon.trupax.lib.io.filesystem.udf;
+
+import coderslagoon.baselib.util.BytePtr;
+
+/**
+ * Measures how fast the descriptors of a large directory, meaning mostly file
+ * identifier descriptors, get written and parsed. The descriptor CRCs are what
+ * dominates here, so the byte by byte computation is measured as well, to see
+ * what the sliced one gains.
+ */
+public class UDFPerf {
+
+    final static int  FIDS       = Integer.getInteger("udfperf.fids", 10000);
+    final static long RUN_MILLIS = Long.getLong("udfperf.millis", 4000L);
+
+    static abstract class Bench {
+        final String name;
+        Bench(String name) {
+            this.name = name;
+        }
+        abstract void run() throws Exception;
+    }
+
+    static void measure(Bench bench) throws Exception {
+        bench.run();    // (warm up)
+        final long start = System.currentTimeMillis();
+        long tm, c = 0;
+        while ((tm = System.currentTimeMillis() - start) < RUN_MILLIS) {
+            bench.run();
+            c++;
+        }
+        System.out.printf("%-24s %,15.1f descriptors per second\n", bench.name,
+                ((double)(FIDS * c) * 1000.0) / (double)Math.max(1, tm));
+    }
+
+    static int crcBytewise(byte[] buf, int ofs, int len) {
+        int crc = 0;
+        for (int end = ofs + len; ofs < end; ofs++) {
+            crc = CRC_CCITT.TABLE[((crc >> 8) ^ buf[ofs]) & 0xff] ^ (crc << 8);
+        }
+        return crc;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (!CRC_CCITT.test()) {
+            System.err.println("TEST FAILED");
+            return;
+        }
+
+        // lay out a directory with file names of typical lengths...
+        final byte[] buf = new byte[FIDS * 300];
+        final int[] ofss = new int[FIDS + 1];
+        final FileIdentifierDescriptor[] fids = new FileIdentifierDescriptor[FIDS];
+        for (int i = 0; i < FIDS; i++) {
+            FileIdentifierDescriptor fid = new FileIdentifierDescriptor(i);
+            fid.fileCharacteristics       = 0;
+            fid.icb                       = new AllocationDescriptor.Long();
+            fid.icb.type                  = AllocationDescriptor.ExtentType.RECORDED_AND_ALLOCATED;
+            fid.icb.length                = 2048;
+            fid.icb.implementationUse     = new BytePtr(new byte[AllocationDescriptor.Long.IMPL_USE_LEN]);
+            fid.icb.location              = new RecordedAddress(1000 + i, (short)0);
+            fid.lengthOfImplementationUse = 0;
+            fid.implementationUse         = new BytePtr(new byte[0]);
+            fid.setFileIdentifier(String.format("document_%06d_%s.txt", i,
+                                  "abcdefghijklmnopqrstuvwxyz".substring(i % 26)));
+            fids[i] = fid;
+            ofss[i + 1] = fid.write(buf, ofss[i]);
+        }
+
+        measure(new Bench("CRC (byte by byte)") {
+            void run() {
+                for (int i = 0; i < FIDS; i++) {
+                    final int ofs = ofss[i] + Descriptor.Tag.LENGTH;
+                    crcBytewise(buf, ofs, ofss[i + 1] - ofs);
+                }
+            }
+        });
+        measure(new Bench("CRC (sliced)") {
+            void run() {
+                for (int i = 0; i < FIDS; i++) {
+                    final int ofs = ofss[i] + Descriptor.Tag.LENGTH;
+                    CRC_CCITT.compute(buf, ofs, ofss[i + 1] - ofs);
+                }
+            }
+        });
+        measure(new Bench("FID write") {
+            void run() throws Exception {
+                for (int i = 0; i < FIDS; i++) {
+                    fids[i].write(buf, ofss[i]);
+                }
+            }
+        });
+        measure(new Bench("FID parse") {
+            void run() throws Exception {
+                for (int i = 0; i < FIDS; i++) {
+                    Descriptor.parse(buf, ofss[i]);
+                }
+            }
+        });
+    }
+}
@@ -298,6 +298,107 @@ public class PrgImplTest {
     
     ///////////////////////////////////////////////////////////////////////////
     
+    @Test
+    public void testBlockSizes() throws Exception {
+        Verifier ver = new Verifier(
+                null,
+                null,
+                new PrintStream(new NulOutputStream()), //System.out,
+                System.err,
+                new FileNameMaker.Numbered(),
+                null);
+        
+        final String PASSW = "test123";
+        
+        final Verifier.Setup vsetup = (new Verifier.Setup() {
+            public boolean  usingAbsolutePath() { return true; }
+            public int      maxFiles         () { return 50; }
+            public int      minSubDirsPerDir () { return 1; }
+            public int      maxSubDirsPerDir () { return 3; }
+            public long     minFileSize      () { return 0; }
+            public long     maxFileSize      () { return 20000; }
+            public int      minFilesPerDir   () { return 0; }
+            public int      maxFilesPerDir   () { return 10; }
+            public int      minFileNameLen   () { return 5; }
+            public int      maxFileNameLen   () { return 20; }
+            public int      maxPathLen       () { return 128; }
+            public long     maxBytes         () { return Long.MAX_VALUE; }
+            public String[] basePath         () { return new String[] { "base1" }; }
+        });
+        
+        for (final int bsz : new int[] { 2048, 4096 }) {
+            File base = ver.makeDirsAndFiles(vsetup);
+            assertNotNull(base);
+    
+            assertTrue(newPrg().ctor(Prp.global(), new Prg.Setup()).isSuccess());
+            Prg prg = this.prgi;
+            
+            assertTrue(prg.addObject(base.getAbsolutePath()).isSuccess());
+            assertTrue(prg.setProperty(new Prg.NamedString(
+                    Prg.Prop.RECURSIVE_SEARCH, Boolean.TRUE.toString())).isSuccess());
+            assertTrue(prg.setProperty(new Prg.NamedString(
+                    Prg.Prop.BLOCK_SIZE, String.valueOf(bsz))).isSuccess());
+            assertTrue(prg.registerObjects(new Prg.RegisterObjectsCallback() {
+                public Result onDirectory(String dir) { return Result.ok(); }
+                public void configLocked() { }
+            }).isSuccess());
+    
+            File vol = ver.newVolumeFile();
+            assertNotNull(vol);
+            prg.setVolumeFile(vol.getAbsolutePath());
+            prg.setFreeSpace(10000L);
+            assertTrue(prg.resolve().isSuccess());
+    
+            // the block size changing after resolving must not matter
+            assertTrue(prg.setProperty(new Prg.NamedString(
+                    Prg.Prop.BLOCK_SIZE, "512")).isSuccess());
+            
+            final long volBytes = prg.volumeBytes();
+            assertTrue(0 == volBytes % bsz);
+            
+            final VarLong lpos = new VarLong(-1L);
+            Result res = prg.make(PASSW.toCharArray(), new Prg.MakeCallback() {
+                public void onFile(String fileName, long fileSize) {
+                }
+                public Result onVolumeWrite(long pos) {
+                    assertTrue(0 == pos % bsz);
+                    lpos.v = pos;
+                    return Result.ok();
+                }
+                public Result onFreeSpace() {
+                    return Result.ok();
+                }
+            });
+            assertTrue(res.isSuccess());
+            assertTrue(volBytes == vol.length());
+            assertTrue(volBytes == lpos.v + bsz);
+    
+            // the file system inside still has to be made of 512 byte blocks,
+            // so nothing changes for the readers (nor for TrueCrypt) ...
+            for (Verifier.Matcher matcher : new Verifier.Matcher[] {
+                ver.readerMatcher (),
+                ver.browserMatcher()
+            }) {
+                matcher.match(base, vol, PrgImpl.BLOCK_SIZE, 
+                    new Password(PASSW.toCharArray(), null),
+                    prg.getProperty(Prg.Prop.HASH_FUNCTION),
+                    prg.getProperty(Prg.Prop.BLOCK_CIPHER),
+                    vsetup);
+            }
+    
+            if (UDFTest.available()) {
+                File decfl = new File(base, "testBlockSizes.dec.dump");
+                MiscUtils.writeFile(decfl, Verifier.decryptVolume(PASSW.toCharArray(), vol));
+                assertTrue(UDFTest.exec(decfl, PrgImpl.BLOCK_SIZE, true, false, false, null));
+            }
+            delPrg();
+            assertTrue(vol.delete());
+            assertTrue(TestUtils.removeDir(base, true));
+        }
+    }
+    
+    ///////////////////////////////////////////////////////////////////////////
+    
     @Test
     public void testDifferentFileCounts() throws Exception {
         for (final int FILE_COUNT : new int[] { 1, 2, 10, 51, 117, 1001 }) {
@@ -19,7 +19,12 @@ TruPax. If not, see http://www.gnu.org/licenses/.
 package coderslagoon.trupax.tc;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -28,10 +33,12 @@ import org.junit.Test;
 
 
 import coderslagoon.baselib.io.BlockDeviceImpl;
+import coderslagoon.baselib.util.BinUtils;
 import coderslagoon.baselib.util.BytePtr;
 import coderslagoon.baselib.util.MiscUtils;
 import coderslagoon.tclib.container.Header;
 import coderslagoon.tclib.container.Volume;
+import coderslagoon.tclib.crypto.BlockCipher;
 import coderslagoon.tclib.crypto.Rand;
 import coderslagoon.tclib.crypto.Registry;
 import coderslagoon.tclib.util.Key;
@@ -52,11 +59,11 @@ public class TCBlockDeviceTest {
     @Test
     public void testAvailability() throws Exception {
         String[] names = Registry._blockCiphers.names();
-        assertTrue(1 == names.length);
+        assertTrue(8 == names.length);
         for (String name : names) assertTrue(null != name && 0 < name.length());
         
         names = Registry._hashFunctions.names();
-        assertTrue(1 == names.length);
+        assertTrue(3 == names.length);
         for (String name : names) assertTrue(null != name && 0 < name.length());
     }
     
@@ -151,4 +158,585 @@ public class TCBlockDeviceTest {
         }
         return;
     }
+
+    // makes a container with each block filled with the lower byte of its
+    // number, except for the first byte which holds the next higher one ...
+    static BlockDeviceImpl.MemoryBlockDevice makeContainer(long vsz, long seed) throws Exception {
+        BlockDeviceImpl.MemoryBlockDevice result = new
+        BlockDeviceImpl.MemoryBlockDevice(BLOCK_SZ, Volume.sizeToContainerSize(vsz), false, false);
+
+        TCBlockDevice tcbdev = new TCBlockDevice(
+                result,
+                new Key.ByteArray("notyours".getBytes()),
+                "RIPEMD-160",
+                "AES256",
+                Rand.wrap(new Random(seed)));
+        final byte[] block = new byte[BLOCK_SZ];
+        for (int i = 0; i < vsz; i++) {
+            Arrays.fill(block, (byte)i);
+            block[0] = (byte)(i >>> 8);
+            tcbdev.write(i, block, 0);
+        }
+        tcbdev.close(false);
+        return result;
+    }
+
+    // checks a block as made by makeContainer()
+    static boolean checkBlock(byte[] buf, int ofs, long num) {
+        return (byte)(num >>> 8) == buf[ofs] &&
+               TestUtils.checkFill(new BytePtr(buf, ofs + 1, BLOCK_SZ - 1), (byte)num);
+    }
+
+    // dumps data into a temporary file, which the caller has to delete
+    static File tempFile(byte[] data) throws IOException {
+        File result = File.createTempFile("tcbdevtest", null);
+        RandomAccessFile raf = new RandomAccessFile(result, "rw");
+        try {
+            raf.write(data);
+        }
+        finally {
+            raf.close();
+        }
+        return result;
+    }
+
+    @Test
+    public void testChannel() throws Exception {
+        final long vsz = 1000;
+        final BlockDeviceImpl.MemoryBlockDevice mbdev = makeContainer(vsz, 0xc4a77e1);
+
+        File fl = tempFile(mbdev.buffer());
+        try {
+            // (with reading ahead the direct buffers get served by it too)
+            for (int window : new int[] { 0, 256 }) {
+                RandomAccessFile raf = new RandomAccessFile(fl, "r");
+                TCReader tcrdr = new TCReader(
+                        new ChannelBlockDevice(raf.getChannel(), BLOCK_SZ, -1L, true),
+                        new Key.ByteArray("notyours".getBytes()),
+                        false);
+                tcrdr.setReadAhead(window);
+                assertTrue(vsz == tcrdr.size());
+
+                final int COUNT = 77;
+                final int OFS = 3;
+                ByteBuffer dbuf = ByteBuffer.allocateDirect(OFS + COUNT * BLOCK_SZ);
+                byte[] abuf = new byte[OFS + COUNT * BLOCK_SZ];
+                final byte[] block = new byte[BLOCK_SZ];
+                for (int num = 0; num < vsz; num += COUNT) {
+                    final int count = (int)Math.min(COUNT, vsz - num);
+                    tcrdr.readBlocks(num, dbuf, OFS, count);
+                    tcrdr.readBlocks(num, abuf, OFS, count);
+                    for (int i = 0; i < count; i++) {
+                        dbuf.clear();
+                        dbuf.position(OFS + i * BLOCK_SZ);
+                        dbuf.get(block);
+                        assertTrue(checkBlock(block, 0, num + i));
+                        assertTrue(BinUtils.arraysEquals(block, 0, abuf, OFS + i * BLOCK_SZ, BLOCK_SZ));
+                        tcrdr.read(num + i, block, 0);
+                        assertTrue(BinUtils.arraysEquals(block, 0, abuf, OFS + i * BLOCK_SZ, BLOCK_SZ));
+                    }
+                }
+                if (0 < window) {
+                    assertTrue(0 < tcrdr.readAhead.hits);
+                }
+                tcrdr.close(false);
+            }
+        }
+        finally {
+            assertTrue(fl.delete());
+        }
+    }
+
+    // memory device which can only be written in order, and fails at will
+    static class SerialDevice extends BlockDeviceImpl {
+        final byte[] buf;
+        final long fail;
+        long next;
+        SerialDevice(long size, long next, long fail) {
+            super(false, false, false, size, BLOCK_SZ);
+            this.buf  = new byte[(int)size * BLOCK_SZ];
+            this.next = next;
+            this.fail = fail;
+        }
+        protected void internalRead(long num, byte[] block, int ofs) throws IOException {
+            throw new IOException();
+        }
+        protected void internalWrite(long num, byte[] block, int ofs) throws IOException {
+            if (num != this.next++ || num == this.fail) {
+                throw new IOException("FAKE_" + num);
+            }
+            System.arraycopy(block, ofs, this.buf, (int)num * BLOCK_SZ, BLOCK_SZ);
+        }
+        public void close(boolean err) throws IOException {
+            this.closed = err ? Boolean.FALSE : Boolean.TRUE;
+        }
+        Boolean closed;
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+        final int VSZ = 777;
+
+        Header hdr = new Header(Registry._hashFunctions.lookup("RIPEMD-160"),
+                                Registry._blockCiphers .lookup("AES256"));
+        hdr.generateKeyMaterial(Rand.wrap(new Random(0xb10c)));
+        final Volume vol = new Volume(BlockCipher.Mode.ENCRYPT, hdr);
+
+        for (final int[] cfg : new int[][] {
+                { 1, 1, 1 }, { 5, 2, 1 }, { 16, 3, 2 }, { 1000, 4, 3 } }) {
+            // the output has to see the blocks in the order they got written
+            SerialDevice sdev = new SerialDevice(VSZ + 1, 1, -1);
+            EncryptPipeline ep = new EncryptPipeline(vol, sdev, 1, cfg[0], cfg[1], cfg[2]);
+            final byte[] block = new byte[1 + BLOCK_SZ];
+            for (int i = 0; i < VSZ; i++) {
+                Arrays.fill(block, (byte)i);
+                ep.write(i, block, 1);
+            }
+            ep.close(false);
+
+            EncryptPipeline.Stats stats = ep.stats();
+            assertTrue(VSZ == stats.blocks);
+            assertTrue((VSZ + cfg[0] - 1) / cfg[0] == stats.batches);
+            assertTrue(stats.maxQueueDepth <= cfg[1]);
+            assertTrue(0.0 < stats.avgQueueDepth);
+
+            for (int i = 0; i < VSZ; i++) {
+                Arrays.fill(block, (byte)i);
+                vol.processBlock(1 + i, block, 1);
+                assertTrue(BinUtils.arraysEquals(block, 1, sdev.buf, (1 + i) * BLOCK_SZ, BLOCK_SZ));
+            }
+        }
+
+        // errors of the output have to make it back to the writer
+        EncryptPipeline ep = new EncryptPipeline(vol, new SerialDevice(VSZ, 0, 100), 0, 8, 2, 2);
+        final byte[] block = new byte[BLOCK_SZ];
+        IOException err = null;
+        try {
+            for (int i = 0; i < VSZ; i++) {
+                ep.write(i, block, 0);
+            }
+            ep.close(false);
+        }
+        catch (IOException ioe) {
+            err = ioe;
+        }
+        assertTrue(null != err && "FAKE_100".equals(err.getMessage()));
+        assertTrue(100 >= ep.stats().blocks);
+        ep.close(true);
+
+        vol.erase();
+        hdr.erase();
+
+        // failing to finish the volume must still close the device
+        final int hblks = Header.SIZE / BLOCK_SZ;
+        for (long fail : new long[] { hblks + 100, hblks + VSZ + 1 }) {
+            SerialDevice sdev = new SerialDevice(VSZ + 2 * hblks, 0, fail);
+            TCBlockDevice tcbdev = new TCBlockDevice(sdev,
+                    new Key.ByteArray("failing".getBytes()), "RIPEMD-160", "AES256",
+                    Rand.wrap(new Random(0xfa11)));
+            err = null;
+            try {
+                for (int i = 0; i < VSZ; i++) {
+                    tcbdev.write(i, block, 0);
+                }
+            }
+            catch (IOException ioe) {
+                err = ioe;
+            }
+            try {
+                tcbdev.close(null != err);
+            }
+            catch (IOException ioe) {
+                err = null == err ? ioe : err;
+            }
+            assertTrue(null != err && ("FAKE_" + fail).equals(err.getMessage()));
+            assertTrue(Boolean.FALSE == sdev.closed);
+        }
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        final long vsz = 3000;
+        final BlockDeviceImpl.MemoryBlockDevice mbdev = makeContainer(vsz, 0x4eada4e);
+        final byte[] block = new byte[BLOCK_SZ];
+
+        for (final int window : new int[] { 1, 16, 100, 1000, 4096 }) {
+            TCReader tcrdr = new TCReader(
+                    mbdev,
+                    new Key.ByteArray("notyours".getBytes()),
+                    false);
+            tcrdr.setReadAhead(window);
+
+            // runs of sequential reads of all sizes, with random reads in
+            // between, starting all over again once in a while ...
+            Random rnd = new Random(window);
+            final byte[] buf = new byte[1 + 200 * BLOCK_SZ];
+            final ByteBuffer dbuf = ByteBuffer.allocateDirect(buf.length);
+            long num = 0;
+            for (int i = 0; i < 500; i++) {
+                if (0 == rnd.nextInt(50)) {
+                    num = rnd.nextInt((int)vsz);
+                }
+                if (0 == rnd.nextInt(3)) {
+                    final long rnum = rnd.nextInt((int)vsz);
+                    tcrdr.read(rnum, block, 0);
+                    assertTrue(checkBlock(block, 0, rnum));
+                }
+                final int count = (int)Math.min(vsz - num, 1 + rnd.nextInt(0 == (i & 1) ? 3 : 200));
+                if (1 == count && rnd.nextBoolean()) {
+                    tcrdr.read(num, buf, 1);
+                }
+                else if (rnd.nextBoolean()) {
+                    tcrdr.readBlocks(num, dbuf, 1, count);
+                    dbuf.clear();
+                    dbuf.get(buf);
+                }
+                else {
+                    tcrdr.readBlocks(num, buf, 1, count);
+                }
+                for (int j = 0; j < count; j++) {
+                    assertTrue(checkBlock(buf, 1 + j * BLOCK_SZ, num + j));
+                }
+                num += count;
+                if (vsz == num) {
+                    num = 0;
+                }
+            }
+            assertTrue(0 < tcrdr.readAhead.hits);
+            tcrdr.close(false);
+            assertTrue(null == tcrdr.readAhead);
+        }
+    }
+
+    @Test
+    public void testReadAheadStart() throws Exception {
+        final int[] fetched = new int[1];
+        ReadAhead ra = new ReadAhead(new ReadAhead.Source() {
+            public void read(long num, byte[] buf, int ofs, int count) {
+                synchronized(fetched) {
+                    fetched[0] += count;
+                }
+                for (int i = 0; i < count; i++, ofs += BLOCK_SZ) {
+                    Arrays.fill(buf, ofs, ofs + BLOCK_SZ, (byte)(num + i));
+                }
+            }
+        }, 1000, BLOCK_SZ, 64, 16, 2);
+        final byte[] buf = new byte[100 * BLOCK_SZ];
+
+        // a single large read is no sequence yet, but the one after it is ...
+        assertTrue(0 == ra.read(0, buf, 0, 100));
+        synchronized(fetched) {
+            assertTrue(0 == fetched[0]);
+        }
+        assertTrue(100 == ra.read(100, buf, 0, 100));
+        for (int i = 0; i < 100; i++) {
+            assertTrue(TestUtils.checkFill(new BytePtr(buf, i * BLOCK_SZ, BLOCK_SZ), (byte)(100 + i)));
+        }
+
+        // ... and so it is elsewhere
+        assertTrue(0 == ra.read(500, buf, 0, 20));
+        assertTrue(20 == ra.read(520, buf, 0, 20));
+        for (int i = 0; i < 20; i++) {
+            assertTrue(TestUtils.checkFill(new BytePtr(buf, i * BLOCK_SZ, BLOCK_SZ), (byte)(520 + i)));
+        }
+        assertTrue(2 == ra.hits && 2 == ra.misses);
+        ra.close();
+
+        // nothing decrypted must be left behind
+        for (ReadAhead.Segment seg : ra.ring) {
+            assertTrue(TestUtils.checkFill(new BytePtr(seg.buf), (byte)0));
+        }
+    }
+
+    @Test
+    public void testMapped() throws Exception {
+        final long vsz = 1000;
+        final long csz = Volume.sizeToContainerSize(vsz);
+        final BlockDeviceImpl.MemoryBlockDevice mbdev = makeContainer(vsz, 0x3a99ed);
+        final byte[] block = new byte[BLOCK_SZ];
+
+        File fl = tempFile(mbdev.buffer());
+        try {
+            // windows not aligned to anything, so reads run across them
+            for (final long window : new long[] { BLOCK_SZ, 7 * BLOCK_SZ + 100,
+                                                  MappedBlockDevice.WINDOW }) {
+                RandomAccessFile raf = new RandomAccessFile(fl, "r");
+                MappedBlockDevice mpbdev = new MappedBlockDevice(
+                        raf.getChannel(), BLOCK_SZ, -1L, window);
+                assertTrue(csz == mpbdev.size());
+                assertTrue(mpbdev.readOnly());
+
+                final int COUNT = 33;
+                final int OFS = 5;
+                ByteBuffer dbuf = ByteBuffer.allocateDirect(OFS + COUNT * BLOCK_SZ);
+                byte[] abuf = new byte[OFS + COUNT * BLOCK_SZ];
+                for (int num = 0; num < csz; num += COUNT) {
+                    final int count = (int)Math.min(COUNT, csz - num);
+                    mpbdev.read(num, dbuf, OFS, count);
+                    mpbdev.read(num, ByteBuffer.wrap(abuf), OFS, count);
+                    for (int i = 0; i < count; i++) {
+                        dbuf.clear();
+                        dbuf.position(OFS + i * BLOCK_SZ);
+                        dbuf.get(block);
+                        assertTrue(BinUtils.arraysEquals(block, 0, mbdev.buffer(), (num + i) * BLOCK_SZ, BLOCK_SZ));
+                        assertTrue(BinUtils.arraysEquals(block, 0, abuf, OFS + i * BLOCK_SZ, BLOCK_SZ));
+                    }
+                }
+                try {
+                    mpbdev.read(csz - 1, abuf, 0);
+                    mpbdev.read(csz, abuf, 0);
+                    assertTrue(false);
+                }
+                catch (IOException expected) {
+                }
+
+                TCReader tcrdr = new TCReader(mpbdev,
+                        new Key.ByteArray("notyours".getBytes()),
+                        false);
+                assertTrue(vsz == tcrdr.size());
+                for (int num = 0; num < vsz; num += 3) {
+                    final int count = (int)Math.min(3, vsz - num);
+                    tcrdr.readBlocks(num, abuf, OFS, count);
+                    for (int i = 0; i < count; i++) {
+                        tcrdr.read(num + i, block, 0);
+                        assertTrue(checkBlock(block, 0, num + i));
+                        assertTrue(BinUtils.arraysEquals(block, 0, abuf, OFS + i * BLOCK_SZ, BLOCK_SZ));
+                    }
+                }
+                tcrdr.close(false);
+            }
+        }
+        finally {
+            assertTrue(fl.delete());
+        }
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        final long vsz = 100;
+        final long csz = Volume.sizeToContainerSize(vsz);
+        final BlockDeviceImpl.MemoryBlockDevice mbdev = makeContainer(vsz, 0x0bda7e);
+        final byte[] block = new byte[1 + BLOCK_SZ];
+        final byte[] before = mbdev.buffer().clone();
+
+        // only the blocks written to may change, everything else (headers
+        // included) has to stay exactly as it was ...
+        final int[] nums = { 0, 1, 50, 99 };
+        TCBlockDevice tcbdev = new TCBlockDevice(mbdev, new Key.ByteArray("notyours".getBytes()), true);
+        assertTrue(!tcbdev.readOnly());
+        for (int num : nums) {
+            tcbdev.read(num, block, 1);
+            assertTrue(checkBlock(block, 1, num));
+            Arrays.fill(block, 1, block.length, (byte)~num);
+            tcbdev.write(num, block, 1);
+            assertTrue(TestUtils.checkFill(new BytePtr(block, 1, BLOCK_SZ), (byte)~num));
+            tcbdev.read(num, block, 1);
+            assertTrue(TestUtils.checkFill(new BytePtr(block, 1, BLOCK_SZ), (byte)~num));
+        }
+        tcbdev.close(false);
+
+        final byte[] after = mbdev.buffer();
+        for (long i = 0; i < csz; i++) {
+            boolean touched = false;
+            for (int num : nums) {
+                touched |= i == num + Header.BLOCK_COUNT;
+            }
+            assertTrue(touched != BinUtils.arraysEquals(before, (int)i * BLOCK_SZ,
+                                                        after , (int)i * BLOCK_SZ, BLOCK_SZ));
+        }
+
+        TCReader tcrdr = new TCReader(mbdev, new Key.ByteArray("notyours".getBytes()), false);
+        for (int i = 0; i < vsz; i++) {
+            boolean touched = false;
+            for (int num : nums) {
+                touched |= i == num;
+            }
+            tcrdr.read(i, block, 1);
+            assertTrue(touched ? TestUtils.checkFill(new BytePtr(block, 1, BLOCK_SZ), (byte)~i) :
+                                 checkBlock(block, 1, i));
+        }
+        tcrdr.close(false);
+    }
+
+    @Test
+    public void testHeaderKeys() throws Exception {
+        final long vsz = 10;
+        final long csz = Volume.sizeToContainerSize(vsz);
+
+        HeaderKeys keys = new HeaderKeys(
+                new Key.ByteArray("notyours".getBytes()),
+                "RIPEMD-160",
+                "AES256",
+                Rand.wrap(new Random(0x4e75)));
+        assertTrue( keys.matches(new Key.ByteArray("notyours".getBytes()), "RIPEMD-160", "AES256"));
+        assertTrue(!keys.matches(new Key.ByteArray("notyourz".getBytes()), "RIPEMD-160", "AES256"));
+        assertTrue(!keys.matches(new Key.ByteArray("notyours".getBytes()), "SHA-512"   , "AES256"));
+        assertTrue(!keys.matches(new Key.ByteArray("notyours".getBytes()), "RIPEMD-160", "Serpent"));
+        assertTrue(!BinUtils.arraysEquals(keys.salt(false).extract(), keys.salt(true).extract()));
+
+        BlockDeviceImpl.MemoryBlockDevice mbdev = new
+        BlockDeviceImpl.MemoryBlockDevice(BLOCK_SZ, csz, false, false);
+        TCBlockDevice tcbdev = new TCBlockDevice(mbdev, keys, Rand.wrap(new Random(0x4e76)));
+        final byte[] block = new byte[BLOCK_SZ];
+        for (int i = 0; i < vsz; i++) {
+            Arrays.fill(block, (byte)i);
+            tcbdev.write(i, block, 0);
+        }
+        tcbdev.close(false);
+        assertTrue(!keys.matches(new Key.ByteArray("notyours".getBytes()), "RIPEMD-160", "AES256"));
+
+        // both headers have to work, each one with its own salt
+        final byte[] mbuf = mbdev.buffer();
+        assertTrue(!BinUtils.arraysEquals(mbuf, 0, mbuf, mbuf.length - Header.SIZE, Header.SALT_SIZE));
+        for (int bak = 0; bak < 2; bak++) {
+            if (1 == bak) {
+                Arrays.fill(mbuf, 0, Header.SIZE, (byte)0);
+            }
+            TCReader tcrdr = new TCReader(mbdev, new Key.ByteArray("notyours".getBytes()), 1 == bak);
+            for (int i = 0; i < vsz; i++) {
+                tcrdr.read(i, block, 0);
+                assertTrue(TestUtils.checkFill(new BytePtr(block), (byte)i));
+            }
+            tcrdr.close(false);
+        }
+    }
+
+    @Test
+    public void testLargeBlocks() throws Exception {
+        final long vsz = 30;
+        final byte[] block = new byte[4096];
+
+        for (int bsz : new int[] { 2048, 4096 }) {
+            final int  f   = bsz / BLOCK_SZ;
+            final long csz = vsz + 2 * Header.SIZE / bsz;
+
+            // the container has to be the same as one made of small blocks,
+            // given the same data and the same randomness ...
+            BlockDeviceImpl.MemoryBlockDevice mbdev = new
+            BlockDeviceImpl.MemoryBlockDevice(bsz, csz, false, false);
+            TCBlockDevice tcbdev = new TCBlockDevice(
+                    mbdev,
+                    new Key.ByteArray("notyours".getBytes()),
+                    "RIPEMD-160",
+                    "AES256",
+                    Rand.wrap(new Random(0x4096)));
+            for (int i = 0; i < vsz; i++) {
+                for (int j = 0; j < f; j++) {
+                    Arrays.fill(block, j * BLOCK_SZ, (j + 1) * BLOCK_SZ, (byte)(i * f + j));
+                }
+                tcbdev.write(i, block, 0);
+            }
+            tcbdev.close(false);
+
+            BlockDeviceImpl.MemoryBlockDevice mbdev2 = new
+            BlockDeviceImpl.MemoryBlockDevice(BLOCK_SZ, csz * f, false, false);
+            tcbdev = new TCBlockDevice(
+                    mbdev2,
+                    new Key.ByteArray("notyours".getBytes()),
+                    "RIPEMD-160",
+                    "AES256",
+                    Rand.wrap(new Random(0x4096)));
+            for (int i = 0; i < vsz * f; i++) {
+                Arrays.fill(block, 0, BLOCK_SZ, (byte)i);
+                tcbdev.write(i, block, 0);
+            }
+            tcbdev.close(false);
+            final byte[] mbuf  = mbdev .buffer();
+            final byte[] mbuf2 = mbdev2.buffer();
+            assertTrue(mbuf.length == mbuf2.length);
+            assertTrue(BinUtils.arraysEquals(mbuf, Header.SIZE, mbuf2, Header.SIZE,
+                                             mbuf.length - 2 * Header.SIZE));
+            // (the rest of the header areas is random filler)
+            assertTrue(BinUtils.arraysEquals(mbuf, 0, mbuf2, 0, Header.BLOCK_SIZE));
+            final int bak = mbuf.length - Header.SIZE;
+            assertTrue(BinUtils.arraysEquals(mbuf, bak, mbuf2, bak, Header.BLOCK_SIZE));
+
+            TCReader tcrdr = new TCReader(mbdev, new Key.ByteArray("notyours".getBytes()), true);
+            assertTrue(vsz == tcrdr.size());
+            assertTrue(bsz == tcrdr.blockSize());
+            for (int i = 0; i < vsz; i++) {
+                tcrdr.read(i, block, 0);
+                for (int j = 0; j < f; j++) {
+                    assertTrue(TestUtils.checkFill(new BytePtr(block, j * BLOCK_SZ, BLOCK_SZ),
+                                                   (byte)(i * f + j)));
+                }
+            }
+            tcrdr.close(false);
+
+            // the very same container read in small blocks
+            tcrdr = new TCReader(new BlockDeviceImpl.MemoryBlockDevice(
+                    BLOCK_SZ, mbdev.buffer(), false, false),
+                    new Key.ByteArray("notyours".getBytes()), false);
+            for (int i = 0; i < vsz * f; i++) {
+                tcrdr.read(i, block, 0);
+                assertTrue(TestUtils.checkFill(new BytePtr(block, 0, BLOCK_SZ), (byte)i));
+            }
+            tcrdr.close(false);
+        }
+
+        try {
+            new TCBlockDevice(new BlockDeviceImpl.MemoryBlockDevice(1000, 1000, false, false),
+                              new Key.ByteArray("notyours".getBytes()), "RIPEMD-160", "AES256");
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        final long vsz = 20;
+        final byte[] block = new byte[BLOCK_SZ];
+
+        for (int bsz : new int[] { 2048, 4096 }) {
+            final int f = bsz / BLOCK_SZ;
+
+            // small blocks written in large ones, with the last one incomplete
+            BlockDeviceImpl.MemoryBlockDevice mbdev = new
+            BlockDeviceImpl.MemoryBlockDevice(bsz, vsz + 2 * Header.SIZE / bsz, false, false);
+            BatchBlockDevice bbdev = new BatchBlockDevice(new TCBlockDevice(
+                    mbdev,
+                    new Key.ByteArray("notyours".getBytes()),
+                    "RIPEMD-160",
+                    "AES256",
+                    Rand.wrap(new Random(0xba7c4))), BLOCK_SZ);
+            assertTrue(BLOCK_SZ == bbdev.blockSize());
+            assertTrue(vsz * f == bbdev.size());
+            final int count = (int)vsz * f - 1;
+            for (int i = 0; i < count; i++) {
+                Arrays.fill(block, (byte)(i + 1));
+                bbdev.write(i, block, 0);
+            }
+            bbdev.close(false);
+
+            TCReader tcrdr = new TCReader(new BlockDeviceImpl.MemoryBlockDevice(
+                    BLOCK_SZ, mbdev.buffer(), false, false),
+                    new Key.ByteArray("notyours".getBytes()), false);
+            assertTrue(vsz * f == tcrdr.size());
+            for (int i = 0; i <= count; i++) {
+                tcrdr.read(i, block, 0);
+                assertTrue(TestUtils.checkFill(new BytePtr(block), (byte)(i < count ? i + 1 : 0)));
+            }
+            tcrdr.close(false);
+
+            bbdev = new BatchBlockDevice(new BlockDeviceImpl.MemoryBlockDevice(
+                    bsz, 2, false, false), BLOCK_SZ);
+            bbdev.write(0, block, 0);
+            try {
+                bbdev.write(2, block, 0);
+                fail();
+            }
+            catch (IOException expected) {
+            }
+            bbdev.close(true);
+        }
+
+        try {
+            new BatchBlockDevice(new BlockDeviceImpl.MemoryBlockDevice(
+                    1000, 10, false, false), BLOCK_SZ);
+            fail();
+        }
+        catch (IOException expected) {
+        }
+    }
 }